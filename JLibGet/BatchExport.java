@@ -0,0 +1,557 @@
+/*
+ * File:  BatchExport.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * $Log$
+ */
+package ISIS.JLibGet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.util.Vector;
+import java.util.zip.Deflater;
+
+
+/**
+ * A driver class for ISISio that exports the spectra, time channel
+ * boundaries and detector tables of many RAW files at once.  Each file is
+ * read on one of several threads, and the counts are read a block of
+ * spectra at a time.  A block cannot be read until there is room for it in
+ * a fixed memory budget, so the memory held by all of the threads together
+ * is bounded however many files there are.<br>
+ * One export file is written for each RAW file, named after the RAW file
+ * with the extension .rxb.  The export file is written with
+ * DataOutputStream, so every value is big-endian, and each quantity is
+ * stored as one contiguous column:<br>
+ * <br>
+ * "RXB2" (4 bytes), number of periods, NSP1, NTC1, number of detectors,
+ * good proton charge (float), number of columns<br>
+ * for each column: name (4 bytes), type (0 = int, 1 = float), codec (0 =
+ * none, 1 = blocks of spectra compressed with Deflater), number of
+ * values, byte offset of the column from the start of the file<br>
+ * the columns:<br>
+ * TCB1: the NTC1+1 time channel boundaries<br>
+ * LEN2: the secondary flight path of each detector<br>
+ * TTHE: the scattering angle of each detector<br>
+ * SPEC: the spectrum number of each detector<br>
+ * CBLK: the block index of CNTS, two values for each block: the number
+ * of spectra in the block and the number of compressed bytes<br>
+ * CNTS: (NSP1+1)*periods spectra of NTC1+1 counts<br>
+ * <br>
+ * The counts are compressed a block of spectra at a time, so one block
+ * can be read without the rest.  The blocks follow each other from the
+ * start of the CNTS column.  Before a block is compressed, each count
+ * after the first in a spectrum is replaced by its difference from the
+ * count before it, as in byte relative compression, so that slowly
+ * changing spectra compress well.
+ */
+public class BatchExport {
+  //~ Static fields/initializers ***********************************************
+
+  /** The type codes for the columns. */
+  public static final int TYPE_INT   = 0;
+  public static final int TYPE_FLOAT = 1;
+
+  /** The codes for how a column is stored. */
+  public static final int CODEC_NONE    = 0;
+  public static final int CODEC_DEFLATE = 1;
+
+  /** The most bytes of counts read by one call to ISISio.getDat. */
+  private static final int BLOCK_BYTES = 4 << 20;
+
+  /** The most bytes of counts compressed as one block of CNTS. */
+  private static final int CODEC_BLOCK_BYTES = 256 << 10;
+
+  //~ Instance fields **********************************************************
+
+  private ISISio myISISio   = new ISISio(  );
+  private File   outputDir;
+  private Vector queue      = new Vector(  );
+  private long   budget;
+  private long   available;
+  private int    numFailed  = 0;
+  private long   totalBytes = 0;
+  private long   totalOut   = 0;
+
+  //~ Constructors *************************************************************
+
+  /**
+   * Creates a new BatchExport.
+   *
+   * @param outputDir The directory to write the export files to.
+   * @param memoryBytes The most bytes of counts that may be held at once by
+   *        all of the threads together.
+   */
+  public BatchExport( File outputDir, long memoryBytes ) {
+    this.outputDir   = outputDir;
+    this.budget      = Math.max( memoryBytes, 4 );
+    this.available   = budget;
+  }
+
+  //~ Methods ******************************************************************
+
+  /**
+   * Main method for execution.<br>
+   * Usage: BatchExport [-threads n] [-memory MB] outputDir [file or
+   * directory] ...<br>
+   * Every file ending in .raw in a directory is exported.
+   */
+  public static void main( String[] args ) {
+    int  numThreads = Runtime.getRuntime(  ).availableProcessors(  );
+    long memory     = 256;
+    int  i          = 0;
+
+    for( ; ( i < args.length ) && args[i].startsWith( "-" ); i++ ) {
+      if( args[i].equals( "-threads" ) && ( i + 1 < args.length ) ) {
+        numThreads = Integer.parseInt( args[++i] );
+      } else if( args[i].equals( "-memory" ) && ( i + 1 < args.length ) ) {
+        memory = Long.parseLong( args[++i] );
+      }
+    }
+
+    if( i + 1 >= args.length ) {
+      System.out.println(
+        "Usage: BatchExport [-threads n] [-memory MB] outputDir " +
+        "[file or directory] ..." );
+
+      return;
+    }
+
+    BatchExport export = new BatchExport(
+        new File( args[i] ), memory * 1024 * 1024 );
+
+    for( i++; i < args.length; i++ ) {
+      File file = new File( args[i] );
+
+      if( file.isDirectory(  ) ) {
+        File[] list = file.listFiles(  );
+
+        for( int j = 0; ( list != null ) && ( j < list.length ); j++ ) {
+          if( list[j].getName(  ).toLowerCase(  ).endsWith( ".raw" ) ) {
+            export.add( list[j].getPath(  ) );
+          }
+        }
+      } else {
+        export.add( file.getPath(  ) );
+      }
+    }
+
+    if( !export.run( numThreads ) ) {
+      System.exit( 1 );
+    }
+  }
+
+  /**
+   * Adds a RAW file to the files to export.
+   *
+   * @param runID The name of the RAW file.
+   */
+  public void add( String runID ) {
+    queue.add( runID );
+  }
+
+  /**
+   * Exports all of the files that have been added, and prints the
+   * throughput for each file and for all of them together.
+   *
+   * @param numThreads The number of files to export at once.
+   *
+   * @return True if every file was exported.
+   */
+  public boolean run( int numThreads ) {
+    int      numFiles = queue.size(  );
+    Thread[] threads  = new Thread[Math.max( 1, Math.min( numThreads, numFiles ) )];
+    long     start    = System.currentTimeMillis(  );
+
+    for( int i = 0; i < threads.length; i++ ) {
+      threads[i] = new Thread( "BatchExport " + i ) {
+            public void run(  ) {
+              String runID;
+
+              while( ( runID = next(  ) ) != null ) {
+                if( !export( runID ) ) {
+                  failed(  );
+                }
+              }
+            }
+          };
+      threads[i].start(  );
+    }
+
+    for( int i = 0; i < threads.length; i++ ) {
+      try {
+        threads[i].join(  );
+      } catch( InterruptedException e ) {
+        e.printStackTrace(  );
+      }
+    }
+
+    double seconds = Math.max(
+        ( System.currentTimeMillis(  ) - start ) / 1000.0, 0.001 );
+
+    System.out.println(
+      numFiles + " files, " + numFailed + " failed, " +
+      ( totalBytes / 100000 / 10.0 ) + " MB of counts written as " +
+      ( totalOut / 100000 / 10.0 ) + " MB in " + seconds + " s: " +
+      ( int )( totalBytes / seconds / 1.0e6 ) + " MB/s, " +
+      ( ( int )( ( numFiles / seconds ) * 10 ) / 10.0 ) + " files/s" );
+
+    return numFailed == 0;
+  }
+
+  /**
+   * Exports one file.  The export file is written under a temporary name
+   * and renamed when it is complete, so a partly written export file is
+   * never left with the final name.
+   *
+   * @param runID The name of the RAW file.
+   *
+   * @return True if the file was exported.
+   */
+  public boolean export( String runID ) {
+    RawHandle h = RawHandle.open( runID );
+
+    if( h == null ) {
+      System.out.println( "File for " + runID + " not found" );
+
+      return false;
+    }
+
+    String name = new File( runID ).getName(  );
+    int    dot  = name.lastIndexOf( '.' );
+
+    if( dot > 0 ) {
+      name = name.substring( 0, dot );
+    }
+
+    File             outFile  = new File( outputDir, name + ".rxb" );
+    File             tmpFile  = new File( outputDir, name + ".rxb.tmp" );
+    DataOutputStream out      = null;
+    Deflater         deflater = new Deflater( Deflater.BEST_SPEED );
+    long             start    = System.currentTimeMillis(  );
+    long             bytes    = 0;
+    long             written  = 0;
+
+    try {
+      int     nTC     = h.NTC1 + 1;
+      int     nSpec   = ( h.NSP1 + 1 ) * h.nPer;
+      float[] tcb     = new float[nTC];
+      float[] len2    = new float[h.nDet];
+      float[] tthe    = new float[h.nDet];
+      int[]   spec    = new int[h.nDet];
+      float[] rrpb    = new float[32];
+      int     errCode = myISISio.getParr( h, "TCB1", tcb );
+
+      if( errCode == 0 ) {
+        errCode = myISISio.getParr( h, "LEN2", len2 );
+      }
+
+      if( errCode == 0 ) {
+        errCode = myISISio.getParr( h, "TTHE", tthe );
+      }
+
+      if( errCode == 0 ) {
+        errCode = myISISio.getPari( h, "SPEC", spec );
+      }
+
+      if( errCode == 0 ) {
+        errCode = myISISio.getParr( h, "RRPB", rrpb );
+      }
+
+      if( errCode != 0 ) {
+        System.out.println( runID + ": error " + errCode + " reading parameters" );
+
+        return false;
+      }
+
+      //the counts are read a whole number of compressed blocks at a time
+      int perCodec  = Math.max( 1, CODEC_BLOCK_BYTES / ( 4 * nTC ) );
+      int perBlock  = perCodec * Math.max( 1, BLOCK_BYTES / ( 4 * nTC * perCodec ) );
+      int numBlocks = ( nSpec + perCodec - 1 ) / perCodec;
+
+      String[] names  = { "TCB1", "LEN2", "TTHE", "SPEC", "CBLK", "CNTS" };
+      int[]    types  = {
+          TYPE_FLOAT, TYPE_FLOAT, TYPE_FLOAT, TYPE_INT, TYPE_INT, TYPE_INT
+        };
+      int[]    codecs = {
+          CODEC_NONE, CODEC_NONE, CODEC_NONE, CODEC_NONE, CODEC_NONE,
+          CODEC_DEFLATE
+        };
+      long[]   counts = {
+          nTC, h.nDet, h.nDet, h.nDet, 2 * numBlocks, ( long )nSpec * nTC
+        };
+
+      out = new DataOutputStream( 
+          new BufferedOutputStream( new FileOutputStream( tmpFile ), 65536 ) );
+
+      //header and column directory
+      out.writeBytes( "RXB2" );
+      out.writeInt( h.nPer );
+      out.writeInt( h.NSP1 );
+      out.writeInt( h.NTC1 );
+      out.writeInt( h.nDet );
+      //RPB(8) is the good proton charge and RPB(9) the total
+      out.writeFloat( rrpb[7] );
+      out.writeInt( names.length );
+
+      long offset = 28 + ( 28L * names.length );
+      long index  = 0;
+
+      for( int i = 0; i < names.length; i++ ) {
+        out.writeBytes( names[i] );
+        out.writeInt( types[i] );
+        out.writeInt( codecs[i] );
+        out.writeLong( counts[i] );
+        out.writeLong( offset );
+
+        if( names[i].equals( "CBLK" ) ) {
+          index = offset;
+        }
+
+        offset += 4 * counts[i];
+      }
+
+      writeFloats( out, tcb );
+      writeFloats( out, len2 );
+      writeFloats( out, tthe );
+
+      for( int i = 0; i < spec.length; i++ ) {
+        out.writeInt( spec[i] );
+      }
+
+      //the block index is filled in once the blocks have been compressed
+      int[] blockIndex = new int[2 * numBlocks];
+
+      for( int i = 0; i < blockIndex.length; i++ ) {
+        out.writeInt( 0 );
+      }
+
+      //the counts, a block of spectra at a time
+      //more than Deflater can need for a block that does not compress
+      int    most   = 4 * perCodec * nTC;
+      byte[] packed = new byte[most + ( most / 1000 ) + 64];
+      int    block  = 0;
+
+      for( int first = 0; first < nSpec; first += perBlock ) {
+        int  NOS   = Math.min( perBlock, nSpec - first );
+        long size  = 4L * NOS * nTC;
+
+        //the counts are held as ints and as bytes to compress
+        long taken = acquire( 2 * size );
+
+        try {
+          int[] iData = new int[NOS * nTC];
+
+          errCode = myISISio.getDat( h, first, NOS, iData );
+
+          if( errCode != 0 ) {
+            System.out.println( 
+              runID + ": error " + errCode + " reading spectrum " + first );
+
+            return false;
+          }
+
+          for( int s = 0; s < NOS; s += perCodec, block++ ) {
+            int n      = Math.min( perCodec, NOS - s );
+            int length = compress( 
+                iData, s * nTC, n, nTC, deflater, packed );
+
+            out.write( packed, 0, length );
+            blockIndex[2 * block]         = n;
+            blockIndex[( 2 * block ) + 1] = length;
+            written += length;
+          }
+        } finally {
+          release( taken );
+        }
+
+        bytes += size;
+      }
+
+      out.close(  );
+      writeIndex( tmpFile, index, blockIndex );
+      out = null;
+
+      if( ( outFile.exists(  ) && !outFile.delete(  ) ) ||
+          !tmpFile.renameTo( outFile ) ) {
+        System.out.println( "Could not rename " + tmpFile + " to " + outFile );
+
+        return false;
+      }
+    } catch( IOException e ) {
+      e.printStackTrace(  );
+
+      return false;
+    } finally {
+      h.close(  );
+      deflater.end(  );
+
+      if( out != null ) {
+        try {
+          out.close(  );
+        } catch( IOException e ) {
+          //drop it on the floor
+        }
+
+        tmpFile.delete(  );
+      }
+    }
+
+    double seconds = Math.max(
+        ( System.currentTimeMillis(  ) - start ) / 1000.0, 0.001 );
+
+    exported( bytes, written );
+    System.out.println( 
+      runID + ": " + ( bytes / 100000 / 10.0 ) + " MB of counts written as " +
+      ( written / 100000 / 10.0 ) + " MB in " + seconds + " s, " +
+      ( int )( bytes / seconds / 1.0e6 ) + " MB/s" );
+
+    return true;
+  }
+
+  /**
+   * Waits until there is room in the memory budget for a block of counts.
+   * A block bigger than the whole budget is allowed once nothing else is
+   * held, so that a very large spectrum can still be exported.
+   *
+   * @param size The size of the block in bytes.
+   *
+   * @return The number of bytes taken from the budget, which must be passed
+   *         to release().
+   */
+  private synchronized long acquire( long size ) {
+    long taken = Math.min( size, budget );
+
+    while( available < taken ) {
+      try {
+        wait(  );
+      } catch( InterruptedException e ) {
+        e.printStackTrace(  );
+      }
+    }
+
+    available -= taken;
+
+    return taken;
+  }
+
+  private synchronized void release( long taken ) {
+    available += taken;
+    notifyAll(  );
+  }
+
+  private synchronized String next(  ) {
+    if( queue.isEmpty(  ) ) {
+      return null;
+    }
+
+    return ( String )queue.remove( 0 );
+  }
+
+  private synchronized void failed(  ) {
+    numFailed++;
+  }
+
+  private synchronized void exported( long bytes, long written ) {
+    totalBytes += bytes;
+    totalOut += written;
+  }
+
+  /**
+   * Compresses a block of spectra into <code>packed</code>, each count after
+   * the first in a spectrum stored as its difference from the count before.
+   *
+   * @param iData The counts.
+   * @param from The index in <code>iData</code> of the first count.
+   * @param numSpectra The number of spectra in the block.
+   * @param nTC The number of counts in each spectrum.
+   * @param deflater The Deflater to use.
+   * @param packed Is given the compressed bytes.
+   *
+   * @return The number of compressed bytes.
+   *
+   * @throws IOException If the compressed bytes do not fit in
+   *         <code>packed</code>.
+   */
+  private static int compress( 
+    int[] iData, int from, int numSpectra, int nTC, Deflater deflater,
+    byte[] packed ) throws IOException {
+    ByteBuffer words = ByteBuffer.allocate( 4 * numSpectra * nTC );
+
+    for( int s = 0; s < numSpectra; s++ ) {
+      int last = 0;
+
+      for( int i = from + ( s * nTC ); i < from + ( ( s + 1 ) * nTC ); i++ ) {
+        words.putInt( iData[i] - last );
+        last = iData[i];
+      }
+    }
+
+    deflater.reset(  );
+    deflater.setInput( words.array(  ) );
+    deflater.finish(  );
+
+    int n = 0;
+
+    while( !deflater.finished(  ) && ( n < packed.length ) ) {
+      n += deflater.deflate( packed, n, packed.length - n );
+    }
+
+    if( !deflater.finished(  ) ) {
+      throw new IOException( "A block of counts did not fit when compressed" );
+    }
+
+    return n;
+  }
+
+  /**
+   * Fills in the block index of the CNTS column, once the blocks have been
+   * written.
+   */
+  private static void writeIndex( File file, long offset, int[] blockIndex )
+    throws IOException {
+    ByteBuffer       buffer = ByteBuffer.allocate( 4 * blockIndex.length );
+    RandomAccessFile raf    = new RandomAccessFile( file, "rw" );
+
+    buffer.asIntBuffer(  ).put( blockIndex );
+
+    try {
+      raf.seek( offset );
+      raf.write( buffer.array(  ) );
+    } finally {
+      raf.close(  );
+    }
+  }
+
+  private static void writeFloats( DataOutputStream out, float[] values )
+    throws IOException {
+    for( int i = 0; i < values.length; i++ ) {
+      out.writeFloat( values[i] );
+    }
+  }
+}
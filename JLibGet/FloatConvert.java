@@ -40,10 +40,17 @@
  */
 package ISIS.JLibGet;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * Routines to convert from vax to ieee floating point, based on the XDR
  * routines of SUN RPC  Converted to Java by Chris M. Bouzek, February 2004.
- * Note: The JVM is big-endian and uses IEEE floating point format.
+ * Note: The JVM is big-endian and uses IEEE floating point format.<br>
+ * The static VAXToFloat methods convert VAX reals as they are read from a
+ * RAW file, as little-endian 32 bit words, straight to floats.  They
+ * allocate nothing and give the same floats as
+ * ISIS.Rawfile.Header.ReadVAXReal4.
  */
 public class FloatConvert {
   //~ Static fields/initializers ***********************************************
@@ -52,6 +59,11 @@ public class FloatConvert {
   private static final int VAX_SNG_BIAS  = 0x81;
   private static final int IEEE_SNG_BIAS = 0x7f;
 
+  //VAX exponents 1 and 2 are below the smallest normal IEEE float, so
+  //the mantissa (with its hidden bit) is scaled by these and rounded
+  private static final double[] SUBNORMAL_SCALE = 
+    { 0.0, Math.pow( 2.0, -151 ), Math.pow( 2.0, -150 ) };
+
   //~ Instance fields **********************************************************
 
   //Max VAX
@@ -66,6 +78,102 @@ public class FloatConvert {
 
   //~ Methods ******************************************************************
 
+  /**
+   * Converts one VAX F_floating value to an IEEE float.
+   *
+   * @param bits The VAX value as a little-endian 32 bit word, as read from
+   *        the file.
+   *
+   * @return The value.  A zero exponent gives zero (negative zero if the
+   *         sign bit is set), and the two smallest exponents give IEEE
+   *         subnormals.
+   */
+  public static float VAXToFloat( int bits ) {
+    int exp      = ( bits >>> 7 ) & 0xff;
+    int sign     = bits & 0x8000;
+    int mantissa = ( ( bits & 0x7f ) << 16 ) | ( bits >>> 16 );
+
+    if( exp > 2 ) {
+      return Float.intBitsToFloat( 
+        ( sign << 16 ) | ( ( exp - 2 ) << 23 ) | mantissa );
+    }
+
+    float f = 0.0f;
+
+    if( exp != 0 ) {
+      f = ( float )( ( mantissa | 0x800000 ) * SUBNORMAL_SCALE[exp] );
+    }
+
+    return ( sign != 0 ) ? -f : f;
+  }
+
+  /**
+   * Converts an IEEE float to a VAX F_floating value.  Zero, IEEE subnormals
+   * and values too small for VAX give zero, and infinities, NaNs and values
+   * too large for VAX give the largest VAX value.
+   *
+   * @param f The value.
+   *
+   * @return The VAX value as a little-endian 32 bit word, as it would be
+   *         written to the file.
+   */
+  public static int floatToVAX( float f ) {
+    int bits     = Float.floatToIntBits( f );
+    int exp      = ( ( bits >>> 23 ) & 0xff ) + 2;
+    int sign     = ( bits >>> 16 ) & 0x8000;
+    int mantissa = bits & 0x7fffff;
+
+    if( exp <= 2 ) {
+      return 0;
+    }
+
+    if( exp > 0xff ) {
+      exp        = 0xff;
+      mantissa   = 0x7fffff;
+    }
+
+    return ( mantissa << 16 ) | sign | ( exp << 7 ) | ( mantissa >>> 16 );
+  }
+
+  /**
+   * Converts an array of VAX F_floating values to IEEE floats.
+   *
+   * @param src The VAX values as little-endian 32 bit words.
+   * @param srcOffset The index of the first value in src.
+   * @param dst The array to store the floats in.
+   * @param dstOffset The index in dst for the first float.
+   * @param n The number of values to convert.
+   */
+  public static void VAXToFloats( 
+    int[] src, int srcOffset, float[] dst, int dstOffset, int n ) {
+    for( int i = 0; i < n; i++ ) {
+      dst[dstOffset + i] = VAXToFloat( src[srcOffset + i] );
+    }
+  }
+
+  /**
+   * Converts VAX F_floating values from a buffer to IEEE floats.  The
+   * values are read from the buffer's position, which is moved past them.
+   * The buffer's byte order is left as it was.
+   *
+   * @param src The buffer holding the VAX values, 4 bytes each.
+   * @param dst The array to store the floats in.
+   * @param dstOffset The index in dst for the first float.
+   * @param n The number of values to convert.
+   */
+  public static void VAXToFloats( 
+    ByteBuffer src, float[] dst, int dstOffset, int n ) {
+    ByteOrder order = src.order(  );
+
+    src.order( ByteOrder.LITTLE_ENDIAN );
+
+    for( int i = 0; i < n; i++ ) {
+      dst[dstOffset + i] = VAXToFloat( src.getInt(  ) );
+    }
+
+    src.order( order );
+  }
+
   /**
    * Convert a local IEEE single float to little endian VAX F FLOAT format.
    * This keeps the floating point in an array.
@@ -80,7 +188,7 @@ public class FloatConvert {
       case 0:
 
         if( is.getMantissa(  ) == mmin.getIEEE(  ).getMantissa(  ) ) {
-          vs = mmin.getVAX(  );
+          vs = mmin.getVAX(  ).copy(  );
         } else {
           int tmp = is.getMantissa(  ) >> 20;
 
@@ -89,7 +197,7 @@ public class FloatConvert {
           } else if( tmp >= 2 ) {
             vs.setExp( 1 );
           } else {
-            vs = mmin.getVAX(  );
+            vs = mmin.getVAX(  ).copy(  );
 
             break;
           }
@@ -104,7 +212,7 @@ public class FloatConvert {
 
       case 0xfe:
       case 0xff:
-        vs = mmax.getVAX(  );
+        vs = mmax.getVAX(  ).copy(  );
 
         break;
 
@@ -142,7 +250,7 @@ public class FloatConvert {
       case 0:
 
         // all vax float with zero exponent map to zero
-        is = mmin.getIEEE(  );
+        is = mmin.getIEEE(  ).copy(  );
 
         break;
 
@@ -165,7 +273,7 @@ public class FloatConvert {
           ( vs.getMantissa2(  ) == mmax.getVAX(  ).getMantissa2(  ) ) &&
             ( vs.getMantissa1(  ) == mmax.getVAX(  ).getMantissa1(  ) ) ) {
           // map largest vax float to ieee infinity 
-          is = mmax.getIEEE(  );
+          is = mmax.getIEEE(  ).copy(  );
 
           break;
         }
@@ -299,6 +407,13 @@ public class FloatConvert {
     public int getSign(  ) {
       return sign;
     }
+
+    /**
+     * @return A new IEEESingle with the same sign, exponent and mantissa.
+     */
+    public IEEESingle copy(  ) {
+      return new IEEESingle( sign, exp, mantissa );
+    }
   }
 
   /**
@@ -487,5 +602,83 @@ public class FloatConvert {
     public int getSign(  ) {
       return sign;
     }
+
+    /**
+     * @return A new VAXSingle with the same sign, exponent and mantissas.
+     */
+    public VAXSingle copy(  ) {
+      return new VAXSingle( mantissa2, sign, exp, mantissa1 );
+    }
+  }
+
+  /**
+   * The conversion done by ISIS.Rawfile.Header.ReadVAXReal4, which the
+   * testbed checks VAXToFloat against.
+   */
+  private static float referenceVAXToFloat( int bits ) {
+    long   val      = bits & 0xffffffffL;
+    long   hi_mant  = ( val & 127 ) + 128;
+    long   exp;
+    long   sign;
+    long   low_mant;
+    double f_val;
+
+    val        = val >> 7;
+    exp        = ( ( int )( val & 255 ) ) - 128;
+    val        = val >> 8;
+    sign       = val & 1;
+    low_mant   = val >> 1;
+
+    if( exp == -128 ) {
+      f_val = 0;
+    } else {
+      f_val = ( ( hi_mant / 256.0 ) + ( low_mant / 16777216.0 ) ) * Math.pow( 
+          2.0, ( double )exp );
+    }
+
+    if( sign == 1 ) {
+      f_val = -f_val;
+    }
+
+    return ( float )f_val;
+  }
+
+  /**
+   * Testbed.  Checks VAXToFloat against the conversion in
+   * ISIS.Rawfile.Header for every 32 bit pattern, or for every n'th
+   * pattern if a step n is given.
+   */
+  public static void main( String[] args ) {
+    long step = 1;
+
+    if( args.length > 0 ) {
+      step = Long.parseLong( args[0] );
+    }
+
+    long bad   = 0;
+    long count = 0;
+    long start = System.currentTimeMillis(  );
+
+    for( long b = 0; b <= 0xffffffffL; b += step ) {
+      int bits = ( int )b;
+
+      if( 
+        Float.floatToIntBits( VAXToFloat( bits ) ) != Float.floatToIntBits( 
+            referenceVAXToFloat( bits ) ) ) {
+        if( bad < 10 ) {
+          System.out.println( 
+            "Mismatch for 0x" + Integer.toHexString( bits ) + ": " +
+            VAXToFloat( bits ) + " != " + referenceVAXToFloat( bits ) );
+        }
+
+        bad++;
+      }
+
+      count++;
+    }
+
+    System.out.println( 
+      count + " values checked, " + bad + " mismatches in " +
+      ( System.currentTimeMillis(  ) - start ) + " ms" );
   }
 }
@@ -46,10 +46,17 @@ package ISIS.JLibGet;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
 
 /**
- * Basically, we just read the whole file into "file_buffer" and then catch
- * calls to the old FORTRAN GETSECT routine
+ * Catches calls to the old FORTRAN GETSECT routine.  Files of up to 2GB are
+ * memory mapped, and larger files are read with positional reads through a
+ * small reusable buffer, so opening a file does not use heap memory
+ * proportional to the size of the file.  Words are copied out in bulk.
  */
 public class GetSect {
   //~ Static fields/initializers ***********************************************
@@ -58,30 +65,113 @@ public class GetSect {
   //need it for the buffer size checking  
   private static final int MAX_BUFFER_SIZE = 2147483647;
 
+  //the size (in bytes) of the buffer used for positional reads
+  private static final int FOPEN_BUFFER_SIZE = 65536;
+
   //~ Instance fields **********************************************************
 
-  private boolean          readWholeFile     = true;
   private String           file_name;  // Name of the file to buffer (passed from fortran)
-  private byte[]           file_buffer       = new byte[50];
-  private long             file_size         = 0;  // How big "file_name" is  
-  private long             buffer_iunit      = 0;  // Fortran unit associated with "file_buffer" 
-  private RandomAccessFile file_fd           = null;
-  private int              FOPEN_BUFFER_SIZE = 0;
+  private volatile MappedByteBuffer file_map = null;  // The whole file, for files of up to 2GB
+  private long             file_size    = 0;  // How big "file_name" is  
+  private long             buffer_iunit = 0;  // Fortran unit associated with "file_buffer" 
+  private RandomAccessFile file_fd      = null;
+  private FileChannel      file_channel = null;
+  private ByteBuffer       read_buffer  = null;  // Used for positional reads of larger files
 
   //~ Methods ******************************************************************
 
   /**
-   * Gets a segment from the data file.
+   * Gets a segment from the data file.  The words are returned as if they
+   * were stored big-endian, so VAX integers still need to be converted with
+   * IntConvert.VAXToLocalInts().
    *
    * @param istart The index to start at.
    * @param ilong The length of the segment.
-   * @param ivalue The array to store the segment in.
+   * @param ivalue The array to store the segment in.  If it is shorter than
+   *        the segment, only the start of the segment is copied.
    * @param iunit Used for DAE and CRPT_ACCESS-currently unnecessary
    *
    * @return Error code information.
    */
   public int getSect( int istart, int ilong, int[] ivalue, int iunit ) {
-    return getsectFile( istart, ilong, ivalue );
+    return getsectFile( istart, ilong, ivalue, ByteOrder.BIG_ENDIAN );
+  }
+
+  /**
+   * Gets a segment from the data file, converting the words from VAX
+   * (little-endian) integers to local integers as they are copied.  This
+   * is the same as calling getSect() followed by
+   * IntConvert.VAXToLocalInts(), without the second pass over the words.
+   *
+   * @param istart The index to start at.
+   * @param ilong The length of the segment.
+   * @param ivalue The array to store the segment in.
+   *
+   * @return Error code information.
+   */
+  public int getSectLocal( int istart, int ilong, int[] ivalue ) {
+    return getsectFile( istart, ilong, ivalue, ByteOrder.LITTLE_ENDIAN );
+  }
+
+  /**
+   * Gets a segment from the data file as bytes, e.g. for byte relative
+   * compressed data.
+   *
+   * @param istart The index (in words) to start at.
+   * @param ilong The length of the segment in words.
+   * @param bvalue The array to store the segment in.  If it is shorter than
+   *        the segment, only the start of the segment is copied.
+   *
+   * @return Error code information.
+   */
+  public int getBytes( int istart, int ilong, byte[] bvalue ) {
+    //copy as much of the segment as the caller has room for
+    ilong = Math.min( ilong, bvalue.length / 4 );
+
+    if( !checkSegment( istart, ilong ) ) {
+      return -1;
+    }
+
+    long position = ( istart - 1 ) * 4L;
+    int  length   = ilong * 4;
+
+    //read the field once, since close() may clear it from another thread
+    MappedByteBuffer map = file_map;
+
+    if( map != null ) {
+      ByteBuffer view = map.duplicate(  );
+
+      view.position( ( int )position );
+      view.get( bvalue, 0, length );
+
+      return 0;
+    }
+
+    synchronized( this ) {
+      int done = 0;
+
+      while( done < length ) {
+        int n = readAt( position + done, Math.min( length - done, FOPEN_BUFFER_SIZE ) );
+
+        if( n < 0 ) {
+          return -1;
+        }
+
+        read_buffer.get( bvalue, done, n );
+        done += n;
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Get the size of the open file.
+   *
+   * @return The size of the file in bytes.
+   */
+  public long getFileSize(  ) {
+    return file_size;
   }
 
   /**
@@ -95,75 +185,119 @@ public class GetSect {
     }
 
     String error_message;
-    int    first_call = 1;
-
-    if( first_call == 1 ) {
-      first_call          = 0;
-
-      //I just picked this number (2^16) because I felt like it
-      FOPEN_BUFFER_SIZE   = 65536;
-    }
-
-    file_name      = name;
-    buffer_iunit   = iUnit;
 
     RandomAccessFile fd;
 
     try {
-      fd = new RandomAccessFile( file_name, "r" );
+      fd = new RandomAccessFile( name, "r" );
     } catch( IOException ioe ) {
-      error_message = "Cannot open " + file_name;
+      error_message = "Cannot open " + name;
       FErrorAddDummy.fErrorAdd( 
         "FASTGET_INIT", error_message, "Check file exists and is readable" );
 
       return 1;
     }
 
+    // Close any previously opened file.
+    close(  );
+
+    file_name      = name;
+    buffer_iunit   = iUnit;
+    file_fd        = fd;
+    file_channel   = fd.getChannel(  );
+
     try {
-      file_size = fd.length(  );
+      file_size = file_channel.size(  );
     } catch( IOException ioe6 ) {
       error_message = "Error retrieving length of " + file_name;
       FErrorAddDummy.fErrorAdd( 
         "FASTGET_INIT", error_message, "This shouldn't happen!" );
+      close(  );
 
       return 1;
     }
 
-    if( file_size > MAX_BUFFER_SIZE ) {
-      readWholeFile = false;
-      enlargeBuffer( FOPEN_BUFFER_SIZE );
-    } else {
-      readWholeFile = true;
-
-      if( file_size > file_buffer.length ) {
-        enlargeBuffer( ( int )file_size );
+    if( file_size <= MAX_BUFFER_SIZE ) {
+      try {
+        file_map = file_channel.map( FileChannel.MapMode.READ_ONLY, 0, file_size );
+      } catch( IOException ioe5 ) {
+        //fall back to positional reads
+        file_map = null;
       }
     }
 
-    // Close any previously opened file.
+    if( ( file_map == null ) && ( read_buffer == null ) ) {
+      read_buffer = ByteBuffer.allocateDirect( FOPEN_BUFFER_SIZE );
+    }
+
+    return 0;
+  }
+
+  /**
+   * Closes the file opened by fastGetInit().  Reads already under way on
+   * other threads finish with the mapping they started with.
+   */
+  public synchronized void close(  ) {
+    file_map       = null;
+    file_channel   = null;
+
     if( file_fd != null ) {
       try {
         file_fd.close(  );
-        file_fd = null;
       } catch( IOException ioe3 ) {
         //drop it on the floor
       }
+
+      file_fd = null;
+    }
+  }
+
+  /**
+   * Gets a segment from the data file.
+   *
+   * @param istart The index to start at.
+   * @param ilong The length of the segment.
+   * @param ivalue The array to store the segment in.
+   * @param order The byte order to read the words in.
+   *
+   * @return Error code information.
+   */
+  private int getsectFile( int istart, int ilong, int[] ivalue, ByteOrder order ) {
+    //copy as much of the segment as the caller has room for
+    ilong = Math.min( ilong, ivalue.length );
+
+    if( !checkSegment( istart, ilong ) ) {
+      return -1;
     }
 
-    // Now fill up our buffer
-    file_fd = fd;
+    long position = ( istart - 1 ) * 4L;
 
-    if( readWholeFile ) {
-      try {
-        file_fd.readFully( file_buffer );
-      } catch( IOException ioe5 ) {
-        error_message = "Cannot read " + file_size + " bytes from " +
-          file_name;
-        FErrorAddDummy.fErrorAdd( 
-          "FASTGET_INIT", error_message,
-          "Check file is not corrupted or has been deleted" );
+    //read the field once, since close() may clear it from another thread
+    MappedByteBuffer map = file_map;
+
+    if( map != null ) {
+      //duplicate so that several threads can read at once
+      ByteBuffer view = map.duplicate(  );
+
+      view.position( ( int )position );
+      view.order( order ).asIntBuffer(  ).get( ivalue, 0, ilong );
+
+      return 0;
+    }
+
+    synchronized( this ) {
+      int done = 0;
+
+      while( done < ilong ) {
+        int n = readAt( position + ( done * 4L ),
+            Math.min( ilong - done, FOPEN_BUFFER_SIZE / 4 ) * 4 );
+
+        if( n < 0 ) {
+          return -1;
+        }
 
-        return 1;
+        read_buffer.order( order ).asIntBuffer(  ).get( ivalue, done, n / 4 );
+        done += ( n / 4 );
       }
     }
 
@@ -171,99 +305,68 @@ public class GetSect {
   }
 
   /**
-   * Enlarges the internal file_buffer to the newSize.
+   * Reads <code>length</code> bytes at <code>position</code> into
+   * read_buffer, leaving it ready to be read from.
    *
-   * @param newSize The new size (in bytes) of the file buffer.
+   * @return The number of bytes read or -1 on failure.
    */
-  private void enlargeBuffer( int newSize ) {
-    byte[] temp = new byte[newSize];
+  private int readAt( long position, int length ) {
+    if( file_channel == null ) {
+      FErrorAddDummy.fErrorAdd( 
+        "GETSECT", "No file is open", "Call fastGetInit() first" );
 
-    for( int i = 0; i < file_buffer.length; i++ ) {
-      temp[i] = file_buffer[i];
+      return -1;
     }
 
-    file_buffer = temp;
+    read_buffer.clear(  );
+    read_buffer.limit( length );
+
+    try {
+      while( read_buffer.hasRemaining(  ) ) {
+        if( file_channel.read( read_buffer, position + read_buffer.position(  ) ) < 0 ) {
+          throw new EOFException(  );
+        }
+      }
+    } catch( IOException ioe2 ) {
+      String error_message = "Error reading file size " + file_size +
+        " bytes for " + length + " bytes from " + position;
+
+      FErrorAddDummy.fErrorAdd( 
+        "GETSECT", error_message, "This shouldn't happen!" );
+
+      return -1;
+    }
+
+    read_buffer.flip(  );
+
+    return length;
   }
 
   /**
-   * Gets a segment from the data file.
+   * Checks that a segment is in the file.
    *
-   * @param istart The index to start at.
-   * @param ilong The length of the segment.
-   * @param ivalue The array to store the segment in.
-   *
-   * @return Error code information.
+   * @return True if the segment can be read.
    */
-  private int getsectFile( int istart, int ilong, int[] ivalue ) {
-    int       ierr          = 0;
-    String    error_message = null;
-    final int sz            = 4;  //sizeof (int);
+  private boolean checkSegment( int istart, int ilong ) {
+    if( file_fd == null ) {
+      FErrorAddDummy.fErrorAdd( 
+        "GETSECT", "No file is open", "Call fastGetInit() first" );
 
-    try {
-      if( readWholeFile ) {
-        //i.e. we have already loaded the whole file into file_buffer, so we can easily 
-        //just read off the buffer.  This will always get hit for files 2GB in size or
-        //less
-        int tempInt;
-
-        for( int i = 0; i < ivalue.length; i++ ) {
-          //concatenate the bits up to 32 bit integer size
-          tempInt = file_buffer[i];
-          tempInt <<= 24;
-          ivalue[i]   = tempInt;
-          tempInt     = file_buffer[i + 1];
-          tempInt <<= 16;
-          ivalue[i] |= tempInt;
-          tempInt = file_buffer[i + 2];
-          tempInt <<= 8;
-          ivalue[i] |= tempInt;
-          ivalue[i] |= file_buffer[i + 3];
-        }
-      } else {
-        //this is untested.  When we run into a file more than 2GB in size, it
-        //will need to be tested.
-        try {
-          file_fd.seek( ( istart - 1 ) * sz );
-        } catch( IOException ioe ) {
-          error_message = "Error seeking file size" + file_size + " bytes at " +
-            ( ( istart - 1 ) * sz );
-          FErrorAddDummy.fErrorAdd( 
-            "GETSECT", error_message, "This shouldn't happen!" );
-          ierr = -1;
-
-          return ierr;
-        }
+      return false;
+    }
 
-        try {
-          //if( fread( ivalue, sz, ilong, file_fd ) != ( size_t )( ilong ) ) {
-          for( int i = 0; i < ilong; i++ ) {
-            ivalue[i] = file_fd.readInt(  );
-          }
-        } catch( IOException ioe2 ) {
-          error_message = "Error reading file size " + file_size +
-            " bytes for " + ilong + "words from " + ( istart - 1 );
-          FErrorAddDummy.fErrorAdd( 
-            "GETSECT", error_message, "This shouldn't happen!" );
-          ierr = -1;
-
-          return ierr;
-        }
-      }
+    if( ( istart < 1 ) || ( ilong < 0 ) ||
+        ( ( ( istart - 1 + ( long )ilong ) * 4L ) > file_size ) ) {
+      String error_message = "Attempt to read invalid part of file buffer: istart = " +
+        istart + " words, ilong = " + ilong + " words, file size = " +
+        file_size + " bytes";
 
-      return ierr;
-    } catch( ArrayIndexOutOfBoundsException e ) {
-      try {
-        error_message = "Attempt to read invalid part of file buffer: istart = " +
-          istart + " words, ilong = " + ilong + " words, file size = " +
-          file_fd.length(  ) + " bytes";
-        FErrorAddDummy.fErrorAdd( 
-          "GETSECT", error_message, "This shouldn't happen!" );
-        ierr = -1;
-
-        return ierr;
-      } catch( IOException ioe ) {
-        return -1;
-      }
+      FErrorAddDummy.fErrorAdd( 
+        "GETSECT", error_message, "This shouldn't happen!" );
+
+      return false;
     }
+
+    return true;
   }
 }
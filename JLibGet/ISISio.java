@@ -54,34 +54,130 @@
  */
 package ISIS.JLibGet;
 
+import java.util.HashMap;
+
 /**
- * Main I/O class to read ISIS RAW files.
+ * Main I/O class to read ISIS RAW files.  The methods that take a runID
+ * read from the one file opened by openFile().  The methods that take a
+ * RawHandle read from that handle's file, so one ISISio can serve many files
+ * from many threads at once.
  */
 public class ISISio {
+  //~ Static fields/initializers ***********************************************
+
+  //codes for the parameter names understood by getParc
+  private static final int PARC_HDR = 1;
+  private static final int PARC_TITL = 2;
+  private static final int PARC_USER = 3;
+  private static final int PARC_NAME = 4;
+  private static final int PARC_NOTE = 5;
+
+  //codes for the parameter names understood by getPari
+  private static final int PARI_VER1 = 1;
+  private static final int PARI_SFMT = 2;
+  private static final int PARI_SRUN = 3;
+  private static final int PARI_VER2 = 4;
+  private static final int PARI_RUN = 5;
+  private static final int PARI_RPB = 6;
+  private static final int PARI_IRPB = 7;
+  private static final int PARI_SINS = 8;
+  private static final int PARI_VER3 = 9;
+  private static final int PARI_IVPB = 10;
+  private static final int PARI_NDET = 11;
+  private static final int PARI_NMON = 12;
+  private static final int PARI_NEFF = 13;
+  private static final int PARI_NUSE = 14;
+  private static final int PARI_MDET = 15;
+  private static final int PARI_MONP = 16;
+  private static final int PARI_SPEC = 17;
+  private static final int PARI_CODE = 18;
+  private static final int PARI_TIMR = 19;
+  private static final int PARI_SSEN = 20;
+  private static final int PARI_VER4 = 21;
+  private static final int PARI_SPB = 22;
+  private static final int PARI_NSEP = 23;
+  private static final int PARI_SDAE = 24;
+  private static final int PARI_VER5 = 25;
+  private static final int PARI_DAEP = 26;
+  private static final int PARI_CRAT = 27;
+  private static final int PARI_MODN = 28;
+  private static final int PARI_MPOS = 29;
+  private static final int PARI_UDET = 30;
+  private static final int PARI_STCB = 31;
+  private static final int PARI_VER6 = 32;
+  private static final int PARI_NTRG = 33;
+  private static final int PARI_NFPP = 34;
+  private static final int PARI_NPER = 35;
+  private static final int PARI_PMAP = 36;
+  private static final int PARI_NSP1 = 37;
+  private static final int PARI_NTC1 = 38;
+  private static final int PARI_TCM1 = 39;
+  private static final int PARI_PRE1 = 40;
+  private static final int PARI_TCB1 = 41;
+  private static final int PARI_DHDR = 42;
+  private static final int PARI_ULEN = 43;
+  private static final int PARI_VER7 = 44;
+  private static final int PARI_VER8 = 45;
+  private static final int PARI_VER9 = 46;
+  private static final int PARI_NTLL = 47;
+  private static final int PARI_FORM = 48;
+  private static final int PARI_NTNL = 49;
+
+  //codes for the parameter names understood by getParr
+  private static final int PARR_LEN2 = 1;
+  private static final int PARR_OMEG = 2;
+  private static final int PARR_DELT = 3;
+  private static final int PARR_TTHE = 4;
+  private static final int PARR_PHI = 5;
+  private static final int PARR_EF01 = 6;
+  private static final int PARR_EF02 = 7;
+  private static final int PARR_EF03 = 8;
+  private static final int PARR_EF04 = 9;
+  private static final int PARR_EF05 = 10;
+  private static final int PARR_EF06 = 11;
+  private static final int PARR_RVPB = 12;
+  private static final int PARR_TCP1 = 13;
+  private static final int PARR_TCB1 = 14;
+  private static final int PARR_DAT1 = 15;
+  private static final int PARR_RRPB = 16;
+
+  private static final HashMap PARC_CODES = codeTable( 
+      new String[] { "HDR", "TITL", "USER", "NAME", "NOTE" },
+      new int[] { PARC_HDR, PARC_TITL, PARC_USER, PARC_NAME, PARC_NOTE } );
+
+  private static final HashMap PARI_CODES = codeTable( 
+      new String[] { "VER1", "SFMT", "SRUN", "VER2", "RUN", "RPB", "IRPB",
+        "SINS", "VER3", "IVPB", "NDET", "NMON", "NEFF", "NUSE", "MDET",
+        "MONP", "SPEC", "CODE", "TIMR", "SSEN", "VER4", "SPB ", "NSEP",
+        "SDAE", "VER5", "DAEP", "CRAT", "MODN", "MPOS", "UDET", "STCB",
+        "VER6", "NTRG", "NFPP", "NPER", "PMAP", "NSP1", "NTC1", "TCM1",
+        "PRE1", "TCB1", "DHDR", "ULEN", "VER7", "VER8", "VER9", "NTLL",
+        "FORM", "NTNL" },
+      new int[] { PARI_VER1, PARI_SFMT, PARI_SRUN, PARI_VER2, PARI_RUN,
+        PARI_RPB, PARI_IRPB, PARI_SINS, PARI_VER3, PARI_IVPB, PARI_NDET,
+        PARI_NMON, PARI_NEFF, PARI_NUSE, PARI_MDET, PARI_MONP, PARI_SPEC,
+        PARI_CODE, PARI_TIMR, PARI_SSEN, PARI_VER4, PARI_SPB, PARI_NSEP,
+        PARI_SDAE, PARI_VER5, PARI_DAEP, PARI_CRAT, PARI_MODN, PARI_MPOS,
+        PARI_UDET, PARI_STCB, PARI_VER6, PARI_NTRG, PARI_NFPP, PARI_NPER,
+        PARI_PMAP, PARI_NSP1, PARI_NTC1, PARI_TCM1, PARI_PRE1, PARI_TCB1,
+        PARI_DHDR, PARI_ULEN, PARI_VER7, PARI_VER8, PARI_VER9, PARI_NTLL,
+        PARI_FORM, PARI_NTNL } );
+
+  private static final HashMap PARR_CODES = codeTable( 
+      new String[] { "LEN2", "OMEG", "DELT", "TTHE", "PHI", "EF01", "EF02",
+        "EF03", "EF04", "EF05", "EF06", "RVPB", "TCP1", "TCB1", "DAT1",
+        "RRPB" },
+      new int[] { PARR_LEN2, PARR_OMEG, PARR_DELT, PARR_TTHE, PARR_PHI,
+        PARR_EF01, PARR_EF02, PARR_EF03, PARR_EF04, PARR_EF05, PARR_EF06,
+        PARR_RVPB, PARR_TCP1, PARR_TCB1, PARR_DAT1, PARR_RRPB } );
+
   //~ Instance fields **********************************************************
 
-  //crpt_SPECIALS common block start
-  private String       fileName;
-  private int          ver1;
-  private int[]        iFormat    = new int[10];
-  private int[]        iVer       = new int[10];
-  private int          nDet;
-  private int          nMon;
-  private int          nEff;
-  private int          nSep;
-  private int          nTRG;
-  private int          NSP1;
-  private int          NTC1;
-  private int          uLen;
-  private int          nPer;
-  private int[]        dataHeader = new int[32];
   private IntConvert   intConvert = new IntConvert(  );
-  private FloatConvert fConvert   = new FloatConvert(  );
-  private GetSect      getSect    = new GetSect(  );
 
-  //crpt_SPECIALS common block end
-  //peculiar to crpt_SPECIALS common block from OPEN_DATA_FILE start
-  private int nDet1;
+  //the file opened by openFile(), which holds what was the crpt_SPECIALS
+  //common block
+  private volatile RawHandle handle;
 
   //~ Methods ******************************************************************
 
@@ -96,118 +192,265 @@ public class ISISio {
    * 4 = TOO MANY SPECTRA ASKED FOR<br>
    * 5 = error in byte unpacking<br>
    * 6 = cannot understand data section<br>
+   * This reads from the file opened by openFile().
    */
   public int getDat( String runID, int IFSN, int NOS, int[] iData ) {
-    //note that the length parameter is the length of iData
-    //note also that there was an EQUIVALENCE(iWork, work) in Fortran
-    int   iErr;
-    int   iBase;
-    int   iLong;
-    int   j;
-    int   i;
-    int   iStart;
-    int   status;
-    int   iCompress;
-    int[] iBuffer = new int[33000];
-    int   errCode = 0;
+    int errCode = getDat( handle, IFSN, NOS, iData );
 
-    if( runID.substring( 3, 7 ).equals( "00000" ) ) {
+    if( ( errCode == 0 ) && runID.substring( 3, 7 ).equals( "00000" ) ) {
       errCode = 2;
       //note no return statement in original Fortran
     }
 
-    //  check name is valid & open file according to runID
+    return errCode;
+  }
+
+  /**
+   * Gets data from a RAW file one or more spectra at a time.  This can be
+   * called for any number of handles from several threads at once.
+   *
+   * @param h The file, from RawHandle.open().
+   * @param IFSN The first spectrum.
+   * @param NOS The number of spectra.
+   * @param iData The array to store the spectra in.
+   *
+   * @return The error code, as for getDat( String, int, int, int[] ).
+   */
+  public int getDat( RawHandle h, int IFSN, int NOS, int[] iData ) {
+    //note that the length parameter is the length of iData
+    //note also that there was an EQUIVALENCE(iWork, work) in Fortran
+    int iErr;
+    int iBase;
+    int iLong;
+    int iCompress;
+    int errCode = 0;
+
+    if( h == null ) {
+      FErrorAddDummy.fErrorAdd( "getDat", "No file open", " " );
+      errCode = 1;
 
-    /*if( ( !fileName.equals( runID ) ) || ( fileName.equals( " " ) ) ) {
-       String msg = "Access requested to " + runID + " when " + fileName +
-         " open.";
-       FErrorAddDummy.fErrorAdd( "getDat", msg, " " );
-       errCode = 1;
-       return errCode;
-       }*/
+      return errCode;
+    }
 
     //  read data into iDat ....remembering there are NTC1+1 time channels and
     //  NSP1+1 spectra and now also nPer periods
-    if( ( IFSN < 0 ) || ( IFSN > ( ( ( NSP1 + 1 ) * nPer ) - 1 ) ) ) {
+    if( ( IFSN < 0 ) || ( IFSN > ( ( ( h.NSP1 + 1 ) * h.nPer ) - 1 ) ) ) {
+      errCode = 4;
+
+      return errCode;
+    }
+
+    if( ( ( IFSN + NOS ) - 1 ) > ( ( ( h.NSP1 + 1 ) * h.nPer ) - 1 ) ) {
       errCode = 4;
 
       return errCode;
     }
 
-    if( ( ( IFSN + NOS ) - 1 ) > ( ( ( NSP1 + 1 ) * nPer ) - 1 ) ) {
+    iLong = NOS * ( h.NTC1 + 1 );
+
+    if( iLong > iData.length ) {
+      FErrorAddDummy.fErrorAdd( 
+        "getDat", "Room for " + iData.length + " values but " + iLong +
+        " requested", "Pass a larger array" );
       errCode = 4;
 
       return errCode;
     }
 
-    if( ver1 == 1 ) {
-      iBase = iFormat[5];
+    if( h.ver1 == 1 ) {
+      iBase = h.iFormat[5];
     } else {
-      iBase = iFormat[6];
+      iBase = h.iFormat[6];
     }
 
-    if( ( iVer[6] <= 1 ) ) {
+    if( ( h.iVer[6] <= 1 ) ) {
       // Original version of data section
-      iBase   = iBase + 1 + ( IFSN * ( NTC1 + 1 ) );
-      iLong   = NOS * ( NTC1 + 1 );
-      iErr    = getSect.getSect( iBase, iLong, iData, 49 );
-      intConvert.VAXToLocalInts( iData );
+      iBase   = iBase + 1 + ( IFSN * ( h.NTC1 + 1 ) );
+      iErr    = h.getSect.getSectLocal( iBase, iLong, iData );
     } else {
       // New version of data section (may be compressed and not necessarily consecutive
       // First pick up data section header, in particular compression type.
-      iCompress = dataHeader[0];
+      iCompress = h.dataHeader[0];
 
       // The CRPT has the "compress" flag set, even though it isn't really compressed
       if( ( iCompress == 0 ) ) {
         // uncompressed
-        iBase   = iBase + dataHeader[2] + ( IFSN * ( NTC1 + 1 ) );
-        iLong   = NOS * ( NTC1 + 1 );
-        iErr    = getSect.getSect( iBase, iLong * 4, iData, 49 );
-        intConvert.VAXToLocalInts( iData );
+        iBase   = iBase + h.dataHeader[2] + ( IFSN * ( h.NTC1 + 1 ) );
+        iErr    = h.getSect.getSectLocal( iBase, iLong, iData );
       } else if( iCompress == 1 ) {
         // byte relative compression
-        j = 0;
+        return getCompressedDat( h, iBase, IFSN, NOS, iData );
+      } else {
+        errCode = 6;
 
-        int[] someInt = new int[1];
+        return errCode;
+      }
+    }
 
-        //put bytes from iBuffer into a byte array...this may not be done right
-        byte[] bArr = new byte[iBuffer.length * 4];
+    if( iErr != 0 ) {
+      errCode = 5;
+    }
 
-        for( i = IFSN - 1; i < ( ( IFSN + NOS ) - 1 ); i++ ) {
-          iStart   = iBase + dataHeader[2] + ( 2 * i );
-          iLong    = 2;
-          iErr     = getSect.getSect( iStart, iLong, iBuffer, 49 );
-          intConvert.VAXToLocalInts( iBuffer );
-          iStart       = iBase + iBuffer[1];
-          iLong        = iBuffer[0];
-          iErr         = getSect.getSect( iStart, iLong, iBuffer, 49 );
+    //note no return in original Fortran code
+    return errCode;
+  }
 
-          //We do not need to  intConvert.VAXToLocalInts() as handled in byte_rel_expn()
-          someInt[0]   = iData[j];
-          arrayCopyIntToByte( iBuffer, bArr );
-          status     = byteRelExpn( bArr, iLong, 1, someInt, NTC1 + 1 );
-          iData[j]   = someInt[0];
+  /**
+   * Reads byte relative compressed spectra IFSN to IFSN+NOS-1 into iData.
+   * The spectrum descriptors for the whole range are read at once, and
+   * spectra that are stored next to each other in the file are read
+   * together, so most calls need only a few reads.  The spectra are
+   * expanded straight into iData.
+   *
+   * @param h The file.
+   * @param iBase The start of the data section (in words).
+   * @param IFSN The first spectrum.
+   * @param NOS The number of spectra.
+   * @param iData The array to store the spectra in.
+   *
+   * @return The error code for getDat.
+   */
+  private int getCompressedDat( RawHandle h, int iBase, int IFSN, int NOS, int[] iData ) {
+    DecodeScratch scratch = ( DecodeScratch )decodeScratch.get(  );
+    int[]         desc    = scratch.descriptors( 2 * NOS );
+
+    // descriptor i is (number of words, offset from the start of the data
+    // section) for spectrum i
+    if( h.getSect.getSectLocal( iBase + h.dataHeader[2] + ( 2 * IFSN ), 2 * NOS, desc ) != 0 ) {
+      return 5;
+    }
 
-          //odd number error codes are OK
-          if( ( status % 2 ) == 0 ) {
-            errCode = 5;
+    int nOut = h.NTC1 + 1;
+    int i    = 0;
 
-            return errCode;
-          }
+    while( i < NOS ) {
+      // find the spectra stored contiguously after spectrum i
+      int first  = i;
+      int iLong  = desc[2 * i];
+      int offset = desc[( 2 * i ) + 1];
+
+      i++;
+
+      while( ( i < NOS ) && ( desc[( 2 * i ) + 1] == ( offset + iLong ) ) &&
+          ( ( iLong + desc[2 * i] ) <= DecodeScratch.MAX_WORDS ) ) {
+        iLong = iLong + desc[2 * i];
+        i++;
+      }
+
+      byte[] bytes = scratch.bytes( 4 * iLong );
 
-          j = j + NTC1 + 1;
+      if( h.getSect.getBytes( iBase + offset, iLong, bytes ) != 0 ) {
+        return 5;
+      }
+
+      int from = 0;
+
+      for( int k = first; k < i; k++ ) {
+        int nIn    = 4 * desc[2 * k];
+        int status = expandByteRel( bytes, from, nIn, 0, iData, k * nOut, nOut );
+
+        //odd number error codes are OK
+        if( ( status % 2 ) == 0 ) {
+          return 5;
         }
+
+        from = from + nIn;
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Expands byte relative compressed data, starting at inData[inOffset].
+   * The first nSkip values are decoded and dropped, and the next nOut are
+   * stored from outData[outOffset] onward.  This is the one decoder in
+   * JLibGet; getDat and byteRelExpn both use it.
+   *
+   * @return The status, as for byteRelExpn.
+   */
+  private static int expandByteRel( 
+    byte[] inData, int inOffset, int nIn, int nSkip, int[] outData,
+    int outOffset, int nOut ) {
+    int iTemp = 0;
+    int j     = inOffset;
+    int end   = inOffset + nIn;
+
+    if( nIn <= 0 ) {
+      return 2;
+    }
+
+    for( int i = outOffset - nSkip; i < ( outOffset + nOut ); i++ ) {
+      if( j >= end ) {
+        // check there are enough bytes
+        return 6;
+      }
+
+      // if number is contained in a byte
+      if( inData[j] != -128 ) {
+        // add in offset to base
+        iTemp = iTemp + inData[j];
+        j++;
       } else {
-        errCode = 6;
+        // Else skip marker and pick up new absolute value
+        if( ( j + 5 ) > end ) {
+          // check there are enough bytes
+          return 6;
+        }
 
-        return errCode;
+        iTemp = ( inData[j + 1] & 0xff ) | ( ( inData[j + 2] & 0xff ) << 8 ) |
+          ( ( inData[j + 3] & 0xff ) << 16 ) | ( inData[j + 4] << 24 );
+        j = j + 5;
+      }
+
+      // update current value
+      if( i >= outOffset ) {
+        outData[i] = iTemp;
       }
     }
 
-    //note no return in original Fortran code
-    return errCode;
+    // expansion OK, but excessive number of bytes given to the routine
+    if( nOut < ( nIn / 5 ) ) {
+      return 3;
+    }
+
+    return 1;
+  }
+
+  /**
+   * Scratch buffers used by getDat.  Each thread has its own, so that the
+   * buffers are reused from call to call without being shared.
+   */
+  private static class DecodeScratch {
+    /** The most words read from the file at once. */
+    static final int MAX_WORDS = 262144;
+    private int[]    desc      = new int[0];
+    private byte[]   bytes     = new byte[0];
+
+    int[] descriptors( int length ) {
+      if( desc.length < length ) {
+        desc = new int[length];
+      }
+
+      return desc;
+    }
+
+    byte[] bytes( int length ) {
+      if( bytes.length < length ) {
+        bytes = new byte[length];
+      }
+
+      return bytes;
+    }
   }
 
+  private static final ThreadLocal decodeScratch = new ThreadLocal(  ) {
+      protected Object initialValue(  ) {
+        return new DecodeScratch(  );
+      }
+    };
+
+
   /**
    * Copies the values in fArray to iArray.
    *
@@ -251,7 +494,8 @@ public class ISISio {
   }
 
   /**
-   * Gets character parameter(s) from RAW data file.\
+   * Gets character parameter(s) from RAW data file.  This reads from the
+   * file opened by openFile().
    *
    * @param runID
    * @param name
@@ -264,6 +508,29 @@ public class ISISio {
    *         error</li> </ul>
    */
   public int getParc( String runID, String name, String[] cValue ) {
+    int errCode = getParc( handle, name, cValue );
+
+    //  decide whether it's CRPT or just a file
+    if( ( errCode == 0 ) && runID.substring( 3, 7 ).equals( "00000" ) ) {
+      errCode = 2;
+
+      //note no return in original Fortran code
+    }
+
+    return errCode;
+  }
+
+  /**
+   * Gets character parameter(s) from RAW data file.  This can be called for
+   * any number of handles from several threads at once.
+   *
+   * @param h The file, from RawHandle.open().
+   * @param name The name of the parameter.
+   * @param cValue The array to store the parameter in.
+   *
+   * @return The error code, as for getParc( String, String, String[] ).
+   */
+  public int getParc( RawHandle h, String name, String[] cValue ) {
     //note that lengthIn is the length of cValue[]
     //note also an original Fortran EQUIVALENCE(iTemp, cTemp)
     String cTemp;
@@ -281,164 +548,161 @@ public class ISISio {
     int    iErr      = 0;
     int    errCode   = 0;
 
-    //  decide whether it's CRPT or just a file
-    if( runID.substring( 3, 7 ).equals( "00000" ) ) {
-      errCode = 2;
+    if( h == null ) {
+      FErrorAddDummy.fErrorAdd( "getParc", "No file open", " " );
+      errCode = 1;
 
-      //note no return in original Fortran code
+      return errCode;
     }
 
-    //  check name is valid & open file according to runID
-
-    /*if( ( !fileName.equals( runID ) ) || ( fileName.equals( " " ) ) ) {
-       String msg = "Access requested to " + runID + " when " + fileName +
-         " open.";
-       FErrorAddDummy.fErrorAdd( "getParc", msg, " " );
-       errCode = 1;
-       return errCode;
-       }*/
-
     //  read variables into cValue
     //  Format section
-    if( name.equals( "HDR" ) ) {
-      iErr        = getSect.getSect( 1, 20, iTemp, 49 );
+    switch( lookupCode( PARC_CODES, name ) ) {
+      case PARC_HDR:
+        iErr        = h.getSect.getSect( 1, 20, iTemp, 49 );
 
-      //EQUIVALENCE
-      cTemp       = copyIntsToString( iTemp );
-      cValue[1]   = cTemp;
+        //EQUIVALENCE
+        cTemp       = copyIntsToString( iTemp );
+        cValue[1]   = cTemp;
+        break;
 
       //  Run section
-    } else if( name.equals( "TITL" ) ) {
-      iErr        = getSect.getSect( iFormat[0] + 2, 20, iTemp, 49 );
-
-      //EQUIVALENCE
-      cTemp       = copyIntsToString( iTemp );
-      cValue[1]   = cTemp;
-    } else if( name.equals( "USER" ) ) {
-      iErr        = getSect.getSect( iFormat[0] + 22, 20, iTemp, 49 );
-
-      //EQUIVALENCE
-      cTemp       = copyIntsToString( iTemp );
-      cValue[0]   = cTemp.substring( 0, 19 );
-      cValue[1]   = cTemp.substring( 20, 39 );
-      cValue[2]   = cTemp.substring( 40, 59 );
-      cValue[3]   = cTemp.substring( 60, 79 );
-      iErr        = getSect.getSect( iFormat[0] + 42, 20, iTemp, 49 );
-      cValue[4]   = cTemp.substring( 0, 19 );
-      cValue[5]   = cTemp.substring( 20, 39 );
-      cValue[6]   = cTemp.substring( 40, 59 );
-      cValue[7]   = cTemp.substring( 60, 79 );
+      case PARC_TITL:
+        iErr        = h.getSect.getSect( h.iFormat[0] + 2, 20, iTemp, 49 );
+
+        //EQUIVALENCE
+        cTemp       = copyIntsToString( iTemp );
+        cValue[1]   = cTemp;
+        break;
+
+      case PARC_USER:
+        iErr        = h.getSect.getSect( h.iFormat[0] + 22, 20, iTemp, 49 );
+
+        //EQUIVALENCE
+        cTemp       = copyIntsToString( iTemp );
+        cValue[0]   = cTemp.substring( 0, 19 );
+        cValue[1]   = cTemp.substring( 20, 39 );
+        cValue[2]   = cTemp.substring( 40, 59 );
+        cValue[3]   = cTemp.substring( 60, 79 );
+        iErr        = h.getSect.getSect( h.iFormat[0] + 42, 20, iTemp, 49 );
+        cValue[4]   = cTemp.substring( 0, 19 );
+        cValue[5]   = cTemp.substring( 20, 39 );
+        cValue[6]   = cTemp.substring( 40, 59 );
+        cValue[7]   = cTemp.substring( 60, 79 );
+        break;
 
       //  Instrument section
-    } else if( name.equals( "NAME" ) ) {
-      iErr        = getSect.getSect( iFormat[1] + 1, 2, iTemp, 49 );
+      case PARC_NAME:
+        iErr        = h.getSect.getSect( h.iFormat[1] + 1, 2, iTemp, 49 );
 
-      //EQUIVALENCE
-      cTemp       = copyIntsToString( iTemp );
-      cValue[1]   = cTemp.substring( 0, 7 );
+        //EQUIVALENCE
+        cTemp       = copyIntsToString( iTemp );
+        cValue[1]   = cTemp.substring( 0, 7 );
+        break;
 
       // LOG / Notes section
-    } else if( name.equals( "NOTE" ) ) {
-      if( ver1 == 1 ) {
-        noteSect = 7;
-      } else {
-        noteSect = 8;
-      }
+      case PARC_NOTE:
+        if( h.ver1 == 1 ) {
+          noteSect = 7;
+        } else {
+          noteSect = 8;
+        }
 
-      int[] ver9Arr = { ver9 };
+        int[] ver9Arr = { ver9 };
 
-      iErr   = getSect.getSect( iFormat[noteSect - 1], 1, ver9Arr, 49 );
-      ver9   = ver9Arr[0];
-      ver9   = intConvert.VAXToLocalInt( ver9 );
+        iErr   = h.getSect.getSect( h.iFormat[noteSect - 1], 1, ver9Arr, 49 );
+        ver9   = ver9Arr[0];
+        ver9   = intConvert.VAXToLocalInt( ver9 );
 
-      if( ver9 == 0 ) {
-        iLines      = ( iFormat[noteSect] - iFormat[noteSect - 1] ) / 20;
-        nLines      = iLines;
-        offset      = iFormat[noteSect - 1] + 2;
+        if( ver9 == 0 ) {
+          iLines      = ( h.iFormat[noteSect] - h.iFormat[noteSect - 1] ) / 20;
+          nLines      = iLines;
+          offset      = h.iFormat[noteSect - 1] + 2;
 
-        //what is this?????
-        iLlen       = 20;  //! 20*4 characters
-        lLen        = 80;
-        cTemp       = " ";
-        lengthOut   = Math.min( nLines, cValue.length );
-        k           = 0;
+          //what is this?????
+          iLlen       = 20;  //! 20*4 characters
+          lLen        = 80;
+          cTemp       = " ";
+          lengthOut   = Math.min( nLines, cValue.length );
+          k           = 0;
 
-        for( i = 0; i < lengthOut; i++ ) {
-          k           = offset + ( ( i - 1 ) * iLlen );
-          iErr        = getSect.getSect( k, iLlen, iTemp, 49 );
+          for( i = 0; i < lengthOut; i++ ) {
+            k           = offset + ( ( i - 1 ) * iLlen );
+            iErr        = h.getSect.getSect( k, iLlen, iTemp, 49 );
 
-          //EQUIVALENCE
-          cTemp       = copyIntsToString( iTemp );
-          cValue[i]   = cTemp.substring( 0, lLen - 1 );
-        }
-      } else if( ver9 == 2 ) {
-        int[] lineArr = { nLines };
-
-        iErr        = getSect.getSect( 
-            iFormat[noteSect - 1] + 1, 1, lineArr, 49 );
-        nLines      = lineArr[0];
-        nLines      = intConvert.VAXToLocalInt( nLines );
-        offset      = iFormat[noteSect - 1] + 2;
-
-        // Each line stored as a line length + data
-        lengthOut   = Math.min( nLines, cValue.length );
-
-        for( i = 0; i < lengthOut; i++ ) {
-          lineArr[0]   = lLen;
-          iErr         = getSect.getSect( offset, 1, lineArr, 49 );
-          lLen         = lineArr[0];
-          lLen         = intConvert.VAXToLocalInt( lLen );
-          iLlen        = ( ( lLen - 1 ) / 4 ) + 1;
-          iErr         = getSect.getSect( offset + 1, iLlen, iTemp, 49 );
-
-          //EQUIVALENCE
-          cTemp        = copyIntsToString( iTemp );
-          cValue[i]    = cTemp.substring( 0, lLen - 1 );
-          offset       = offset + iLlen + 1;
-        }
-      } else {
-        int[] lineArr = { nLines };
-
-        iErr        = getSect.getSect( 
-            iFormat[noteSect - 1] + 1, 1, lineArr, 49 );
-        nLines      = lineArr[0];
-        nLines      = intConvert.VAXToLocalInt( nLines );
-        iLlen       = 20;  //  ! 20*4 characters per line
-        lLen        = 80;
-        offset      = iFormat[noteSect - 1] + 2;
-        cTemp       = " ";
-        lengthOut   = Math.min( nLines, cValue.length );
-        k           = 0;
-
-        for( i = 0; i < lengthOut; i++ ) {
-          k           = offset + ( ( i - 1 ) * iLlen );
-          iErr        = getSect.getSect( k, iLlen, iTemp, 49 );
-
-          //EQUIVALENCE
-          cTemp       = copyIntsToString( iTemp );
-          cValue[i]   = cTemp.substring( 0, lLen - 1 );
+            //EQUIVALENCE
+            cTemp       = copyIntsToString( iTemp );
+            cValue[i]   = cTemp.substring( 0, lLen - 1 );
+          }
+        } else if( ver9 == 2 ) {
+          int[] lineArr = { nLines };
+
+          iErr        = h.getSect.getSect( 
+              h.iFormat[noteSect - 1] + 1, 1, lineArr, 49 );
+          nLines      = lineArr[0];
+          nLines      = intConvert.VAXToLocalInt( nLines );
+          offset      = h.iFormat[noteSect - 1] + 2;
+
+          // Each line stored as a line length + data
+          lengthOut   = Math.min( nLines, cValue.length );
+
+          for( i = 0; i < lengthOut; i++ ) {
+            lineArr[0]   = lLen;
+            iErr         = h.getSect.getSect( offset, 1, lineArr, 49 );
+            lLen         = lineArr[0];
+            lLen         = intConvert.VAXToLocalInt( lLen );
+            iLlen        = ( ( lLen - 1 ) / 4 ) + 1;
+            iErr         = h.getSect.getSect( offset + 1, iLlen, iTemp, 49 );
+
+            //EQUIVALENCE
+            cTemp        = copyIntsToString( iTemp );
+            cValue[i]    = cTemp.substring( 0, lLen - 1 );
+            offset       = offset + iLlen + 1;
+          }
+        } else {
+          int[] lineArr = { nLines };
+
+          iErr        = h.getSect.getSect( 
+              h.iFormat[noteSect - 1] + 1, 1, lineArr, 49 );
+          nLines      = lineArr[0];
+          nLines      = intConvert.VAXToLocalInt( nLines );
+          iLlen       = 20;  //  ! 20*4 characters per line
+          lLen        = 80;
+          offset      = h.iFormat[noteSect - 1] + 2;
+          cTemp       = " ";
+          lengthOut   = Math.min( nLines, cValue.length );
+          k           = 0;
+
+          for( i = 0; i < lengthOut; i++ ) {
+            k           = offset + ( ( i - 1 ) * iLlen );
+            iErr        = h.getSect.getSect( k, iLlen, iTemp, 49 );
+
+            //EQUIVALENCE
+            cTemp       = copyIntsToString( iTemp );
+            cValue[i]   = cTemp.substring( 0, lLen - 1 );
+          }
         }
-      }
 
-      if( nLines <= 0 ) {
-        cValue[0] = " No notes were made";
-      }
+        if( nLines <= 0 ) {
+          cValue[0] = " No notes were made";
+        }
 
-      if( lengthOut < nLines ) {
-        String msg = "Not enough space to return all of NOTES section";
+        if( lengthOut < nLines ) {
+          String msg = "Not enough space to return all of NOTES section";
 
-        FErrorAddDummy.fErrorAdd( "getParc", msg, " " );
-      }
+          FErrorAddDummy.fErrorAdd( "getParc", msg, " " );
+        }
+        break;
 
       //  non existent requests
-    } else {
-      errCode = 3;
+      default:
+        errCode = 3;
 
-      String msg = "No such char parameter as " + name;
+        String msg = "No such char parameter as " + name;
 
-      FErrorAddDummy.fErrorAdd( "getParc", msg, " " );
+        FErrorAddDummy.fErrorAdd( "getParc", msg, " " );
 
-      return errCode;
+        return errCode;
     }
 
     return errCode;
@@ -454,9 +718,44 @@ public class ISISio {
    * 3 = asked for non-existent parameter<br>
    * 4 = other error<br>
    * Gets named integer paramter(s) from a RAW data file Whole sections may
-   * also be requested
+   * also be requested.  The file is opened first if it is not the one
+   * already open.
    */
   public int getPari( String runID, String name, int[] iValue ) {
+    RefInt NTC     = new RefInt(  );
+    RefInt NDETY   = new RefInt(  );
+    RefInt nUse    = new RefInt(  );
+    int    errCode = 0;
+
+    //  decide whether it's CRPT or just a file
+    if( runID.substring( 3, 7 ).equals( "00000" ) ) {
+      FErrorAddDummy.fErrorAdd( "getPari", "runID is 00000", " " );
+      errCode = 2;
+
+      return errCode;
+    }
+
+    //  check name is valid & open file according to runID\
+    errCode = openDataFile( runID, NTC, NDETY, nUse );
+
+    if( errCode == 1 ) {
+      return errCode;
+    }
+
+    return getPari( handle, name, iValue );
+  }
+
+  /**
+   * Gets named integer parameter(s) from a RAW data file.  This can be
+   * called for any number of handles from several threads at once.
+   *
+   * @param h The file, from RawHandle.open().
+   * @param name The name of the parameter.
+   * @param iValue The array to store the parameter in.
+   *
+   * @return The error code, as for getPari( String, String, int[] ).
+   */
+  public int getPari( RawHandle h, String name, int[] iValue ) {
     //note that lengthIn is the length of iValue[]
     //note also that there were two equivalence statements:
     //EQUIVALENCE(iWork, work)
@@ -469,9 +768,6 @@ public class ISISio {
     int    k        = 0;
     int    seNum    = 0;
     int    noteSect = 0;
-    RefInt NTC      = new RefInt(  );
-    RefInt NDETY    = new RefInt(  );
-    RefInt nUse     = new RefInt(  );
 
     //int iJunk    = 0;
     int offset = 0;
@@ -481,413 +777,521 @@ public class ISISio {
     //byte[] bJunk = new byte[4];
     int errCode = 0;
     int iErr = 0;
+    int length = 0;
 
-    //  decide whether it's CRPT or just a file
-    if( runID.substring( 3, 7 ).equals( "00000" ) ) {
-      FErrorAddDummy.fErrorAdd( "getPari", "runID is 00000", " " );
-      errCode = 2;
+    if( h == null ) {
+      FErrorAddDummy.fErrorAdd( "getPari", "No file open", " " );
+      errCode = 1;
 
       return errCode;
     }
 
-    //  check name is valid & open file according to runID\
-    errCode = openDataFile( runID, NTC, NDETY, nUse );
+    //  parameters that have already been read from this file
+    int[] cached = ( int[] )h.pariCache.get( name );
+
+    if( ( cached != null ) && ( cached.length <= iValue.length ) ) {
+      System.arraycopy( cached, 0, iValue, 0, cached.length );
 
-    if( errCode == 1 ) {
       return errCode;
     }
 
     //  read variables into iValue
     //  From now on just decide what has been requested and return it
-    if( name.equals( "VER1" ) ) {
-      iValue[0] = ver1;
+    switch( lookupCode( PARI_CODES, name ) ) {
+      case PARI_VER1:
+        iValue[0] = h.ver1;
 
-      //length      = 1;
-    } else if( name.equals( "SFMT" ) ) {
-      iErr = getSect.getSect( 1, 31, iValue, 49 );
+        length = 1;
+        break;
+
+      case PARI_SFMT:
+        iErr = h.getSect.getSect( 1, 31, iValue, 49 );
+
+        length = 31;
+        intConvert.VAXToLocalInts( iValue );
+        break;
 
-      //length   = 31;
-      intConvert.VAXToLocalInts( iValue );
       //  run section
-    } else if( name.equals( "SRUN" ) ) {
-      iErr = getSect.getSect( iFormat[0], 94, iValue, 49 );
-
-      //length   = 94;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "VER2" ) ) {
-      iErr = getSect.getSect( iFormat[0], 1, iValue, 49 );
-
-      //length   = 1;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "RUN" ) ) {
-      iErr = getSect.getSect( iFormat[0] + 1, 1, iValue, 49 );
-
-      //length   = 1;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( ( name.equals( "RPB" ) ) || ( name.equals( "IRPB" ) ) ) {
-      iErr = getSect.getSect( iFormat[0] + 62, 32, iValue, 49 );
-
-      //length   = 32;
-      intConvert.VAXToLocalInts( iValue );
-      //  instrument section
-    } else if( name.equals( "SINS" ) ) {
-      if( iVer[1] == 1 ) {
-        iErr = getSect.getSect( 
-            iFormat[1], 70 + ( nMon * 2 ) + ( ( 6 + nEff ) * nDet ), iValue, 49 );
+      case PARI_SRUN:
+        iErr = h.getSect.getSect( h.iFormat[0], 94, iValue, 49 );
 
-        //length   = 70 + ( nMon * 2 ) + ( ( 6 + nEff ) * nDet );
+        length = 94;
         intConvert.VAXToLocalInts( iValue );
-      } else {
-        iErr = getSect.getSect( 
-            iFormat[1], 70 + ( nMon * 2 ) + ( ( 5 + nEff ) * nDet ), iValue, 49 );
+        break;
 
-        //length   = 70 + ( nMon * 2 ) + ( ( 5 + nEff ) * nDet );
+      case PARI_VER2:
+        iErr = h.getSect.getSect( h.iFormat[0], 1, iValue, 49 );
+
+        length = 1;
         intConvert.VAXToLocalInts( iValue );
-      }
-    } else if( name.equals( "VER3" ) ) {
-      iValue[0] = iVer[1];
-
-      //length      = 1;
-    } else if( name.equals( "IVPB" ) ) {
-      iErr = getSect.getSect( iFormat[1] + 3, 64, iValue, 49 );
-
-      //length   = 64;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "NDET" ) ) {
-      iValue[0] = nDet;
-
-      //length      = 1;
-    } else if( name.equals( "NMON" ) ) {
-      iValue[0] = nMon;
-
-      //length      = 1;
-    } else if( name.equals( "NEFF" ) ) {
-      iValue[0] = nEff;
-
-      //length      = 1;
-    } else if( name.equals( "NUSE" ) ) {
-      iValue[0] = nEff;
-
-      //length      = 1;
-    } else if( name.equals( "MDET" ) ) {
-      iErr = getSect.getSect( iFormat[1] + 70, nMon, iValue, 49 );
-
-      //length   = nMon;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "MONP" ) ) {
-      iErr = getSect.getSect( iFormat[1] + 70 + nMon, nMon, iValue, 49 );
-
-      //length   = nMon;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "SPEC" ) ) {
-      iFrom   = iFormat[1] + 70 + ( 2 * nMon );
-      iErr    = getSect.getSect( iFrom, nDet, iValue, 49 );
-
-      //length   = nDet;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "CODE" ) ) {
-      if( iVer[1] != 1 ) {
-        iFrom   = iFormat[1] + 70 + ( 2 * nMon ) + ( 3 * nDet );
-        iErr    = getSect.getSect( iFrom, nDet, iValue, 49 );
-
-        //length   = nDet;
+        break;
+
+      case PARI_RUN:
+        iErr = h.getSect.getSect( h.iFormat[0] + 1, 1, iValue, 49 );
+
+        length = 1;
         intConvert.VAXToLocalInts( iValue );
-      } else {
-        iErr = 1;
-      }
-    } else if( name.equals( "TIMR" ) ) {
-      if( ver1 == 1 ) {
-        iFrom = iFormat[1] + 70 + ( 2 * nMon ) + nDet;
-      } else {
-        iFrom = iFormat[3] + 65 + ( 3 * nDet );
-      }
+        break;
 
-      iErr = getSect.getSect( iFrom, nDet, iValue, 49 );
+      case PARI_RPB:
+      case PARI_IRPB:
+        iErr = h.getSect.getSect( h.iFormat[0] + 62, 32, iValue, 49 );
 
-      //length   = nDet;
-      intConvert.VAXToLocalInts( iValue );
-      //  sample environment section
-    } else if( name.equals( "SSEN" ) ) {
-      if( iVer[2] == 1 ) {
-        iErr = getSect.getSect( iFormat[2], 34 + ( nSep * 24 ), iValue, 49 );
+        length = 32;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      //  instrument section
+      case PARI_SINS:
+        if( h.iVer[1] == 1 ) {
+          iErr = h.getSect.getSect( 
+              h.iFormat[1], 70 + ( h.nMon * 2 ) + ( ( 6 + h.nEff ) * h.nDet ), iValue, 49 );
+
+          length = 70 + ( h.nMon * 2 ) + ( ( 6 + h.nEff ) * h.nDet );
+          intConvert.VAXToLocalInts( iValue );
+        } else {
+          iErr = h.getSect.getSect( 
+              h.iFormat[1], 70 + ( h.nMon * 2 ) + ( ( 5 + h.nEff ) * h.nDet ), iValue, 49 );
+
+          length = 70 + ( h.nMon * 2 ) + ( ( 5 + h.nEff ) * h.nDet );
+          intConvert.VAXToLocalInts( iValue );
+        }
+        break;
 
-        //length   = 34 + ( nSep * 24 );
+      case PARI_VER3:
+        iValue[0] = h.iVer[1];
+
+        length = 1;
+        break;
+
+      case PARI_IVPB:
+        iErr = h.getSect.getSect( h.iFormat[1] + 3, 64, iValue, 49 );
+
+        length = 64;
         intConvert.VAXToLocalInts( iValue );
-      } else {
-        iErr = getSect.getSect( iFormat[2], 66 + ( nSep * 32 ), iValue, 49 );
+        break;
+
+      case PARI_NDET:
+        iValue[0] = h.nDet;
+
+        length = 1;
+        break;
+
+      case PARI_NMON:
+        iValue[0] = h.nMon;
+
+        length = 1;
+        break;
+
+      case PARI_NEFF:
+        iValue[0] = h.nEff;
 
-        //length   = 66 + ( nSep * 24 );
+        length = 1;
+        break;
+
+      case PARI_NUSE:
+        iValue[0] = h.nEff;
+
+        length = 1;
+        break;
+
+      case PARI_MDET:
+        iErr = h.getSect.getSect( h.iFormat[1] + 70, h.nMon, iValue, 49 );
+
+        length = h.nMon;
         intConvert.VAXToLocalInts( iValue );
-      }
+        break;
 
-      if( nSep != 0 ) {
-        FErrorAddDummy.fErrorAdd( 
-          "getPari", "getPar needs adjusting to take account of SE", " " );
-        errCode = 4;
-      }
-    } else if( name.equals( "VER4" ) ) {
-      iErr = getSect.getSect( iFormat[2], 1, iValue, 49 );
+      case PARI_MONP:
+        iErr = h.getSect.getSect( h.iFormat[1] + 70 + h.nMon, h.nMon, iValue, 49 );
+
+        length = h.nMon;
+        intConvert.VAXToLocalInts( iValue );
+        break;
 
-      //length   = 1;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "SPB " ) ) {
-      if( iVer[2] == 1 ) {
-        iErr = getSect.getSect( iFormat[2] + 1, 32, iValue, 49 );
+      case PARI_SPEC:
+        iFrom   = h.iFormat[1] + 70 + ( 2 * h.nMon );
+        iErr    = h.getSect.getSect( iFrom, h.nDet, iValue, 49 );
 
-        //length   = 32;
+        length = h.nDet;
         intConvert.VAXToLocalInts( iValue );
-      } else {
-        iErr = getSect.getSect( iFormat[2] + 1, 64, iValue, 49 );
+        break;
 
-        //length   = 64;
+      case PARI_CODE:
+        if( h.iVer[1] != 1 ) {
+          iFrom   = h.iFormat[1] + 70 + ( 2 * h.nMon ) + ( 3 * h.nDet );
+          iErr    = h.getSect.getSect( iFrom, h.nDet, iValue, 49 );
+
+          length = h.nDet;
+          intConvert.VAXToLocalInts( iValue );
+        } else {
+          iErr = 1;
+        }
+        break;
+
+      case PARI_TIMR:
+        if( h.ver1 == 1 ) {
+          iFrom = h.iFormat[1] + 70 + ( 2 * h.nMon ) + h.nDet;
+        } else {
+          iFrom = h.iFormat[3] + 65 + ( 3 * h.nDet );
+        }
+
+        iErr = h.getSect.getSect( iFrom, h.nDet, iValue, 49 );
+
+        length = h.nDet;
         intConvert.VAXToLocalInts( iValue );
-      }
-    } else if( name.equals( "NSEP" ) ) {
-      iValue[1] = nSep;
+        break;
 
-      //length      = 1;
-    } else if( name.substring( 0, 1 ).equals( "SE" ) ) {
-      //READ(name.substring(3,4), "(I2.2)") SENUM;
-      if( ( iVer[2] == 1 ) || ( nSep < seNum ) ) {
-        String msg = "Invalid SE block " + name;
+      //  sample environment section
+      case PARI_SSEN:
+        if( h.iVer[2] == 1 ) {
+          iErr = h.getSect.getSect( h.iFormat[2], 34 + ( h.nSep * 24 ), iValue, 49 );
 
-        FErrorAddDummy.fErrorAdd( "getPari", msg, " " );
-        errCode = 4;
-      } else {
-        k      = iFormat[2] + 34 + ( 32 * seNum );
-        iErr   = getSect.getSect( k, 32, iValue, 49 );
+          length = 34 + ( h.nSep * 24 );
+          intConvert.VAXToLocalInts( iValue );
+        } else {
+          iErr = h.getSect.getSect( h.iFormat[2], 66 + ( h.nSep * 32 ), iValue, 49 );
+
+          length = 66 + ( h.nSep * 32 );
+          intConvert.VAXToLocalInts( iValue );
+        }
 
-        //length   = 32;
+        if( h.nSep != 0 ) {
+          FErrorAddDummy.fErrorAdd( 
+            "getPari", "getPar needs adjusting to take account of SE", " " );
+          errCode = 4;
+        }
+        break;
+
+      case PARI_VER4:
+        iErr = h.getSect.getSect( h.iFormat[2], 1, iValue, 49 );
+
+        length = 1;
         intConvert.VAXToLocalInts( iValue );
-      }
+        break;
+
+      case PARI_SPB:
+        if( h.iVer[2] == 1 ) {
+          iErr = h.getSect.getSect( h.iFormat[2] + 1, 32, iValue, 49 );
+
+          length = 32;
+          intConvert.VAXToLocalInts( iValue );
+        } else {
+          iErr = h.getSect.getSect( h.iFormat[2] + 1, 64, iValue, 49 );
+
+          length = 64;
+          intConvert.VAXToLocalInts( iValue );
+        }
+        break;
+
+      case PARI_NSEP:
+        iValue[0] = h.nSep;
+
+        length = 1;
+        break;
 
       //  DAE section
-    } else if( name.equals( "SDAE" ) ) {
-      if( iVer[3] == 1 ) {
-        iErr = getSect.getSect( iFormat[3], 65 + ( 3 * nDet ), iValue, 49 );
+      case PARI_SDAE:
+        if( h.iVer[3] == 1 ) {
+          iErr = h.getSect.getSect( h.iFormat[3], 65 + ( 3 * h.nDet ), iValue, 49 );
 
-        //length   = 65 + ( 3 * nDet );
-      } else {
-        iErr = getSect.getSect( iFormat[3], 65 + ( 5 * nDet ), iValue, 49 );
+          length = 65 + ( 3 * h.nDet );
+        } else {
+          iErr = h.getSect.getSect( h.iFormat[3], 65 + ( 5 * h.nDet ), iValue, 49 );
 
-        //length   = 65 + ( 5 * nDet );
-      }
+          length = 65 + ( 5 * h.nDet );
+        }
+
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_VER5:
+        iErr = h.getSect.getSect( h.iFormat[3], 1, iValue, 49 );
+
+        length = 1;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_DAEP:
+        iErr = h.getSect.getSect( h.iFormat[3] + 1, 64, iValue, 49 );
+
+        length = 64;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_CRAT:
+        iErr = h.getSect.getSect( h.iFormat[3] + 65, h.nDet, iValue, 49 );
+
+        length = h.nDet;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_MODN:
+        iErr = h.getSect.getSect( h.iFormat[3] + 65 + h.nDet, h.nDet, iValue, 49 );
+
+        length = h.nDet;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_MPOS:
+        iErr = h.getSect.getSect( h.iFormat[3] + 65 + ( 2 * h.nDet ), h.nDet, iValue, 49 );
+
+        length = h.nDet;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_UDET:
+        iErr = h.getSect.getSect( h.iFormat[3] + 65 + ( 4 * h.nDet ), h.nDet, iValue, 49 );
+
+        length = h.nDet;
+        intConvert.VAXToLocalInts( iValue );
+        break;
 
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "VER5" ) ) {
-      iErr = getSect.getSect( iFormat[3], 1, iValue, 49 );
-
-      //length   = 1;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "DAEP" ) ) {
-      iErr = getSect.getSect( iFormat[3] + 1, 64, iValue, 49 );
-
-      //length   = 64;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "CRAT" ) ) {
-      iErr = getSect.getSect( iFormat[3] + 65, nDet, iValue, 49 );
-
-      //length   = nDet;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "MODN" ) ) {
-      iErr = getSect.getSect( iFormat[3] + 65 + nDet, nDet, iValue, 49 );
-
-      //length   = nDet;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "MPOS" ) ) {
-      iErr = getSect.getSect( iFormat[3] + 65 + ( 2 * nDet ), nDet, iValue, 49 );
-
-      //length   = nDet;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "UDET" ) ) {
-      iErr = getSect.getSect( iFormat[3] + 65 + ( 4 * nDet ), nDet, iValue, 49 );
-
-      //length   = nDet;
-      intConvert.VAXToLocalInts( iValue );
       //  TCB section
-    } else if( name.equals( "STCB" ) ) {
-      if( nTRG != 1 ) {
-        FErrorAddDummy.fErrorAdd( 
-          "getPari", "getPar needs adjusting to take account of SE", " " );
-        errCode = 4;
-      } else {
-        iErr = getSect.getSect( iFormat[4], 288 + NTC1 + 1, iValue, 49 );
+      case PARI_STCB:
+        if( h.nTRG != 1 ) {
+          FErrorAddDummy.fErrorAdd( 
+            "getPari", "getPar needs adjusting to take account of SE", " " );
+          errCode = 4;
+        } else {
+          iErr = h.getSect.getSect( h.iFormat[4], 288 + h.NTC1 + 1, iValue, 49 );
+
+          length = 288 + h.NTC1 + 1;
+          intConvert.VAXToLocalInts( iValue );
+        }
+        break;
+
+      case PARI_VER6:
+        iErr = h.getSect.getSect( h.iFormat[4], 1, iValue, 49 );
 
-        //length   = 288 + NTC1 + 1;
+        length = 1;
         intConvert.VAXToLocalInts( iValue );
-      }
-    } else if( name.equals( "VER6" ) ) {
-      iErr = getSect.getSect( iFormat[4], 1, iValue, 49 );
-
-      //length   = 1;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "NTRG" ) ) {
-      if( nTRG != 1 ) {
-        FErrorAddDummy.fErrorAdd( 
-          "getPari", "Multiple time regimes....getPari needs changing", " " );
-        errCode = 4;
-      } else {
-        iValue[0] = nTRG;
+        break;
+
+      case PARI_NTRG:
+        if( h.nTRG != 1 ) {
+          FErrorAddDummy.fErrorAdd( 
+            "getPari", "Multiple time regimes....getPari needs changing", " " );
+          errCode = 4;
+        } else {
+          iValue[0] = h.nTRG;
+
+          length = 1;
+        }
+        break;
+
+      case PARI_NFPP:
+        iErr = h.getSect.getSect( h.iFormat[4] + 2, 1, iValue, 49 );
+
+        length = 1;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_NPER:
+        iValue[0] = h.nPer;
+
+        length = 1;
+        break;
+
+      case PARI_PMAP:
+        iErr = h.getSect.getSect( h.iFormat[4] + 4, 256, iValue, 49 );
+
+        length = 256;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_NSP1:
+        iValue[0] = h.NSP1;
+
+        length = 1;
+        break;
+
+      case PARI_NTC1:
+        iValue[0] = h.NTC1;
+
+        length = 1;
+        break;
+
+      case PARI_TCM1:
+        iErr = h.getSect.getSect( h.iFormat[4] + 262, 5, iValue, 49 );
+
+        length = 5;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_PRE1:
+        iErr = h.getSect.getSect( h.iFormat[4] + 287, 1, iValue, 49 );
+
+        length = 1;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_TCB1:
+        iErr = h.getSect.getSect( h.iFormat[4] + 288, h.NTC1 + 1, iValue, 49 );
+
+        length = h.NTC1 + 1;
+        intConvert.VAXToLocalInts( iValue );
+        break;
+
+      case PARI_DHDR:
+        for( i = 0; i < 32; i++ ) {
+          iValue[i] = h.dataHeader[i];
+        }
+
+        length = 32;
+        break;
 
-        //length      = 1;
-      }
-    } else if( name.equals( "NFPP" ) ) {
-      iErr = getSect.getSect( iFormat[4] + 2, 1, iValue, 49 );
-
-      //length   = 1;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "NPER" ) ) {
-      iValue[0] = nPer;
-
-      //length      = 1;
-    } else if( name.equals( "PMAP" ) ) {
-      iErr = getSect.getSect( iFormat[4] + 4, 256, iValue, 49 );
-
-      //length   = 256;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "NSP1" ) ) {
-      iValue[0] = NSP1;
-
-      //length      = 1;
-    } else if( name.equals( "NTC1" ) ) {
-      iValue[0] = NTC1;
-
-      //length      = 1;
-    } else if( name.equals( "TCM1" ) ) {
-      iErr = getSect.getSect( iFormat[4] + 262, 5, iValue, 49 );
-
-      //length   = 5;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "PRE1" ) ) {
-      iErr = getSect.getSect( iFormat[4] + 287, 1, iValue, 49 );
-
-      //length   = 1;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "TCB1" ) ) {
-      iErr = getSect.getSect( iFormat[4] + 288, NTC1 + 1, iValue, 49 );
-
-      //length   = NTC1 + 1;
-      intConvert.VAXToLocalInts( iValue );
-    } else if( name.equals( "DHDR" ) ) {
-      for( i = 0; i < 32; i++ ) {
-        iValue[i] = dataHeader[i];
-      }
+      case PARI_ULEN:
+        iValue[0] = h.uLen;
 
-      //length = 32;
-    } else if( name.equals( "ULEN" ) ) {
-      iValue[0] = uLen;
+        length = 1;
+        break;
 
-      //length      = 1;
       // User section
-    } else if( name.equals( "VER7" ) ) {
-      if( ver1 == 1 ) {
-        FErrorAddDummy.fErrorAdd( 
-          "getPari", "No USER section, so no VER7 parameter", " " );
-      } else {
-        iErr = getSect.getSect( iFormat[5], 1, iValue, 49 );
+      case PARI_VER7:
+        if( h.ver1 == 1 ) {
+          FErrorAddDummy.fErrorAdd( 
+            "getPari", "No USER section, so no VER7 parameter", " " );
+        } else {
+          iErr = h.getSect.getSect( h.iFormat[5], 1, iValue, 49 );
 
-        //length   = 1;
-        intConvert.VAXToLocalInts( iValue );
-      }
+          length = 1;
+          intConvert.VAXToLocalInts( iValue );
+        }
+        break;
 
       // data section section
-    } else if( name.equals( "VER8" ) ) {
-      if( ver1 == 1 ) {
-        iErr = getSect.getSect( iFormat[5], 1, iValue, 49 );
-      } else {
-        iErr = getSect.getSect( iFormat[6], 1, iValue, 49 );
-      }
+      case PARI_VER8:
+        if( h.ver1 == 1 ) {
+          iErr = h.getSect.getSect( h.iFormat[5], 1, iValue, 49 );
+        } else {
+          iErr = h.getSect.getSect( h.iFormat[6], 1, iValue, 49 );
+        }
 
-      //length = 1;
-      intConvert.VAXToLocalInts( iValue );
+        length = 1;
+        intConvert.VAXToLocalInts( iValue );
+        break;
 
       // NOTES section
-    } else if( name.equals( "VER9" ) ) {
-      if( ver1 == 1 ) {
-        // Don't think this version number exists
-        //       iValue(1) = 1
-        iErr = getSect.getSect( iFormat[6], 1, iValue, 49 );
-      } else {
-        iErr = getSect.getSect( iFormat[7], 1, iValue, 49 );
-      }
+      case PARI_VER9:
+        if( h.ver1 == 1 ) {
+          // Don't think this version number exists
+          //       iValue(1) = 1
+          iErr = h.getSect.getSect( h.iFormat[6], 1, iValue, 49 );
+        } else {
+          iErr = h.getSect.getSect( h.iFormat[7], 1, iValue, 49 );
+        }
 
-      //length = 1;
-      intConvert.VAXToLocalInts( iValue );
+        length = 1;
+        intConvert.VAXToLocalInts( iValue );
+        break;
 
       // Max Line length in notes section (bytes)
-    } else if( name.equals( "NTLL" ) ) {
-      if( ver1 == 1 ) {
-        noteSect = 7;
-      } else {
-        noteSect = 8;
-      }
-
-      if( iVer[7] < 2 ) {
-        iValue[0] = 80;
-      } else {
-        int[] someInts = { j };
-
-        // Get number of lines into J
-        iErr     = getSect.getSect( iFormat[noteSect - 1] + 1, 1, someInts, 49 );
-        j        = someInts[0];
-        offset   = iFormat[noteSect - 1] + 2;
+      case PARI_NTLL:
+        if( h.ver1 == 1 ) {
+          noteSect = 7;
+        } else {
+          noteSect = 8;
+        }
 
-        // Each line stored as a line length + data
-        if( j < 1 ) {
+        if( h.iVer[7] < 2 ) {
           iValue[0] = 80;
         } else {
-          iValue[0] = 0;
-        }
+          int[] someInts = { j };
+
+          // Get number of lines into J
+          iErr     = h.getSect.getSect( h.iFormat[noteSect - 1] + 1, 1, someInts, 49 );
+          j        = someInts[0];
+          offset   = h.iFormat[noteSect - 1] + 2;
+
+          // Each line stored as a line length + data
+          if( j < 1 ) {
+            iValue[0] = 80;
+          } else {
+            iValue[0] = 0;
+          }
 
-        for( i = 0; i < j; i++ ) {
-          someInts[0]   = lLen;
-          iErr          = getSect.getSect( offset, 1, someInts, 49 );
-          lLen          = someInts[0];
-          iLlen         = ( ( lLen - 1 ) / 4 ) + 1;
-          iValue[0]     = Math.max( iValue[0], iLlen * 4 );
-          offset        = offset + iLlen + 1;
+          for( i = 0; i < j; i++ ) {
+            someInts[0]   = lLen;
+            iErr          = h.getSect.getSect( offset, 1, someInts, 49 );
+            lLen          = someInts[0];
+            iLlen         = ( ( lLen - 1 ) / 4 ) + 1;
+            iValue[0]     = Math.max( iValue[0], iLlen * 4 );
+            offset        = offset + iLlen + 1;
+          }
         }
-      }
 
-      //length = 1;
-    } else if( name.equals( "FORM" ) ) {
-      iValue[0] = iFormat[9];
+        length = 1;
+        break;
+
+      case PARI_FORM:
+        iValue[0] = h.iFormat[9];
+
+        length = 1;
+        break;
 
-      //length      = 1;
       // Number of lines in notes section
-    } else if( name.equals( "NTNL" ) ) {
-      if( ver1 == 1 ) {
-        noteSect = 7;
-      } else {
-        noteSect = 8;
-      }
+      case PARI_NTNL:
+        if( h.ver1 == 1 ) {
+          noteSect = 7;
+        } else {
+          noteSect = 8;
+        }
 
-      if( iVer[7] == 0 ) {
-        iValue[0] = ( iFormat[noteSect] - iFormat[noteSect - 1] ) / 20;
-      } else {
-        iErr = getSect.getSect( iFormat[noteSect - 1] + 1, 1, iValue, 49 );
-        intConvert.VAXToLocalInts( iValue );
-      }
+        if( h.iVer[7] == 0 ) {
+          iValue[0] = ( h.iFormat[noteSect] - h.iFormat[noteSect - 1] ) / 20;
+        } else {
+          iErr = h.getSect.getSect( h.iFormat[noteSect - 1] + 1, 1, iValue, 49 );
+          intConvert.VAXToLocalInts( iValue );
+        }
 
-      if( iValue[0] < 1 ) {
-        iValue[0] = 1;
-      }
+        if( iValue[0] < 1 ) {
+          iValue[0] = 1;
+        }
+
+        length = 1;
+        break;
 
-      //length = 1;
       //  non existent requests
-    } else {
-      errCode = 3;
+      default:
+        if( name.startsWith( "SE" ) ) {
+          //READ(name.substring(3,4), "(I2.2)") SENUM;
+          seNum = parameterNumber( name );
+
+          if( ( h.iVer[2] == 1 ) || ( seNum < 0 ) || ( h.nSep < seNum ) ) {
+            String msg = "Invalid SE block " + name;
+
+            FErrorAddDummy.fErrorAdd( "getPari", msg, " " );
+            errCode = 4;
+          } else {
+            k      = h.iFormat[2] + 34 + ( 32 * seNum );
+            iErr   = h.getSect.getSect( k, 32, iValue, 49 );
+
+            length = 32;
+            intConvert.VAXToLocalInts( iValue );
+          }
+        } else {
+          errCode = 3;
 
-      //length    = 0;
+          length = 0;
+        }
     }
 
     if( ( iErr != 0 ) && ( errCode == 0 ) ) {
-      String msg = "Error in reading data from file " + runID;
+      String msg = "Error in reading data from file " + h.fileName;
 
       FErrorAddDummy.fErrorAdd( "getPari", msg, " " );
       errCode = 4;
     }
 
+    //  keep what was read for the next request for this parameter
+    if( ( errCode == 0 ) && ( length > 0 ) && ( length <= iValue.length ) ) {
+      int[] values = new int[length];
+
+      System.arraycopy( iValue, 0, values, 0, length );
+      h.pariCache.put( name, values );
+    }
+
     //lengthOut = length;
     return errCode;
   }
@@ -898,9 +1302,34 @@ public class ISISio {
    * 2 = file number is '00000' and so no access available<br>
    * 3 = asked for non-existent parameter<br>
    * 4 = other error<br>
-   * Gets float parameter(s) from RAW data file
+   * Gets float parameter(s) from RAW data file.  This reads from the file
+   * opened by openFile().
    */
   public int getParr( String runID, String name, float[] rValue ) {
+    int errCode = 0;
+
+    //  decide whether it's CRPT or just a f
+    if( runID.substring( 4, 8 ).equals( "00000" ) ) {
+      FErrorAddDummy.fErrorAdd( "getParr", "runID is 00000", " " );
+      errCode = 2;
+
+      return errCode;
+    }
+
+    return getParr( handle, name, rValue );
+  }
+
+  /**
+   * Gets float parameter(s) from a RAW data file.  This can be called for
+   * any number of handles from several threads at once.
+   *
+   * @param h The file, from RawHandle.open().
+   * @param name The name of the parameter.
+   * @param rValue The array to store the parameter in.
+   *
+   * @return The error code, as for getParr( String, String, float[] ).
+   */
+  public int getParr( RawHandle h, String name, float[] rValue ) {
     //note that lengthIn is the length of rValue[]
     //note also two original equivalence statements:
     //EQUIVALENCE(iWork, work)
@@ -913,208 +1342,216 @@ public class ISISio {
     float temp    = 0;
     float extra   = 0;
     int   errCode = 0;
+    int   length  = 0;
 
     //lengthOut    = 0;
     //int length   = lengthIn;
-    //  decide whether it's CRPT or just a f
-    if( runID.substring( 4, 8 ).equals( "00000" ) ) {
-      FErrorAddDummy.fErrorAdd( "getParr", "runID is 00000", " " );
-      errCode = 2;
+    if( h == null ) {
+      FErrorAddDummy.fErrorAdd( "getParr", "No file open", " " );
+      errCode = 1;
 
       return errCode;
     }
 
-    //  check name is valid & open file according to runID
-    /*if( ( !fileName.equals( "runID" ) ) || ( fileName.equals( " " ) ) ) {
-       String msg = "Access requested to " + runID + " when " + fileName +
-         " open";
-       FErrorAddDummy.fErrorAdd( "getParr", msg, " " );
-       errCode = 1;
-       return errCode;
-       }*/
     //  read variables into rValue
     //  Instrument section
-    iTable = iFormat[1] + 70 + ( 2 * nMon );
+    //  parameters that have already been read from this file
+    float[] cached = ( float[] )h.parrCache.get( name );
+
+    if( ( cached != null ) && ( cached.length <= rValue.length ) ) {
+      System.arraycopy( cached, 0, rValue, 0, cached.length );
+
+      return errCode;
+    }
+
+    iTable = h.iFormat[1] + 70 + ( 2 * h.nMon );
 
     int[] iArr = new int[rValue.length];
 
-    arrayCopyFloatToInt( rValue, iArr );
+    switch( lookupCode( PARR_CODES, name ) ) {
+      case PARR_LEN2:
+        iErr   = readReals( h, iTable + ( 2 * h.nDet ), h.nDet, iArr, rValue );
+        length = h.nDet;
+        break;
 
-    if( name.equals( "LEN2" ) ) {
-      iErr = getSect.getSect( iTable + ( 2 * nDet ), nDet, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
+      case PARR_OMEG:
+        if( h.iVer[1] == 1 ) {
+          iErr   = readReals( h, iTable + ( 3 * h.nDet ), h.nDet, iArr, rValue );
+          length = h.nDet;
+        } else {
+          String msg = "Cannot access " + name;
 
-      //length   = nDet;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.equals( "OMEG" ) ) {
-      if( iVer[1] == 1 ) {
-        iErr = getSect.getSect( iTable + ( 3 * nDet ), nDet, iArr, 49 );
-        arrayCopyIntToFloat( iArr, rValue );
+          FErrorAddDummy.fErrorAdd( "getParr", msg, " " );
+          errCode = 4;
+        }
+        break;
 
-        //length   = nDet;
-        iErr = fConvert.VAXToIEEEFloat( rValue );
-      } else {
-        String msg = "Cannot access " + name;
+      case PARR_DELT:
+        if( h.iVer[1] != 1 ) {
+          iErr   = readReals( h, iTable + h.nDet, h.nDet, iArr, rValue );
+          length = h.nDet;
+        } else {
+          String msg = "Cannot access " + name;
 
-        FErrorAddDummy.fErrorAdd( "getParr", msg, " " );
-        errCode = 4;
-      }
-    } else if( name.equals( "DELT" ) ) {
-      if( iVer[1] != 1 ) {
-        iErr = getSect.getSect( iTable + nDet, nDet, iArr, 49 );
-        arrayCopyIntToFloat( iArr, rValue );
+          FErrorAddDummy.fErrorAdd( "getParr", msg, " " );
+          errCode = 4;
+        }
+        break;
 
-        //length   = nDet;
-        iErr = fConvert.VAXToIEEEFloat( rValue );
-      } else {
-        String msg = "Cannot access " + name;
+      case PARR_TTHE:
+        iErr   = readReals( h, iTable + ( 4 * h.nDet ), h.nDet, iArr, rValue );
+        length = h.nDet;
+        break;
+
+      case PARR_PHI:
+        if( h.iVer[1] == 1 ) {
+          iErr   = readReals( h, iTable + ( 5 * h.nDet ), h.nDet, iArr, rValue );
+          length = h.nDet;
+        } else {
+          //String msg = "getParr: No item " + name + " in RAW file";
+          //We do not flag an error here as then 'GET:SPECTRUM' would return an error vie READ_DATA
+          //comment out message until i find a RAW file that does have it set!
+          //FErrorAddDummy.fErrorAdd('INFORMATION', MESS, ' ')
+          errCode = 4;
+        }
+        break;
+
+      case PARR_EF01:
+        iErr   = readReals( h, iTable + ( 6 * h.nDet ), h.nDet, iArr, rValue );
+        length = h.nDet;
+        break;
+
+      case PARR_EF02:
+        iErr   = readReals( h, iTable + ( 7 * h.nDet ), h.nDet, iArr, rValue );
+        length = h.nDet;
+        break;
+
+      case PARR_EF03:
+        iErr   = readReals( h, iTable + ( 8 * h.nDet ), h.nDet, iArr, rValue );
+        length = h.nDet;
+        break;
+
+      case PARR_EF04:
+        iErr   = readReals( h, iTable + ( 9 * h.nDet ), h.nDet, iArr, rValue );
+        length = h.nDet;
+        break;
+
+      case PARR_EF05:
+        iErr   = readReals( h, iTable + ( 10 * h.nDet ), h.nDet, iArr, rValue );
+        length = h.nDet;
+        break;
+
+      case PARR_EF06:
+        iErr   = readReals( h, iTable + ( 11 * h.nDet ), h.nDet, iArr, rValue );
+        length = h.nDet;
+        break;
+
+      case PARR_RVPB:
+        iErr   = readReals( h, h.iFormat[1] + 3, 64, iArr, rValue );
+        length = 64;
+        break;
 
-        FErrorAddDummy.fErrorAdd( "getParr", msg, " " );
-        errCode = 4;
-      }
-    } else if( name.equals( "TTHE" ) ) {
-      iErr = getSect.getSect( iTable + ( 4 * nDet ), nDet, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = nDet;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.equals( "PHI" ) ) {
-      if( iVer[1] == 1 ) {
-        iErr = getSect.getSect( iTable + ( 5 * nDet ), nDet, iArr, 49 );
-        arrayCopyIntToFloat( iArr, rValue );
-
-        //length   = nDet;
-        iErr = fConvert.VAXToIEEEFloat( rValue );
-      } else {
-        //String msg = "getParr: No item " + name + " in RAW file";
-        //We do not flag an error here as then 'GET:SPECTRUM' would return an error vie READ_DATA
-        //comment out message until i find a RAW file that does have it set!
-        //FErrorAddDummy.fErrorAdd('INFORMATION', MESS, ' ')
-        errCode = 4;
-      }
-    } else if( name.equals( "EF01" ) ) {
-      iErr = getSect.getSect( iTable + ( 6 * nDet ), nDet, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = nDet;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.equals( "EF02" ) ) {
-      iErr = getSect.getSect( iTable + ( 7 * nDet ), nDet, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = nDet;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.equals( "EF03" ) ) {
-      iErr = getSect.getSect( iTable + ( 8 * nDet ), nDet, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = nDet;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.equals( "EF04" ) ) {
-      iErr = getSect.getSect( iTable + ( 9 * nDet ), nDet, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = nDet;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.equals( "EF05" ) ) {
-      iErr = getSect.getSect( iTable + ( 10 * nDet ), nDet, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = nDet;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.equals( "EF06" ) ) {
-      iErr = getSect.getSect( iTable + ( 11 * nDet ), nDet, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = nDet;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.equals( "RVPB" ) ) {
-      iErr = getSect.getSect( iFormat[1] + 3, 64, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = 64;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.substring( 1, 2 ).equals( "UT" ) ) {
-      //READ(name(3:4),'(I2)') I
-      iErr = getSect.getSect( iTable + ( ( 4 + i ) * nDet ), nDet, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = nDet;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
       //  Time channel boundaries section
       //     time channel area definition
-    } else if( name.equals( "TCP1" ) ) {
-      iErr = getSect.getSect( iFormat[4] + 267, 20, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = 20;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else if( name.equals( "TCB1" ) ) {
-      if( ver1 != 1 ) {
-        iErr = getSect.getSect( iFormat[3] + 1, 64, iStore, 49 );
-        intConvert.VAXToLocalInts( iStore );
-        extra = ( float )iStore[23] * 4;
-      } else {
-        extra = 0.0f;
-      }
-
-      //  if tcb's requested in real form then return as microsecs
-      iErr    = getSect.getSect( iFormat[4] + 287, 1, iStore, 49 );
-      IPRE1   = intConvert.VAXToLocalInt( iStore[0] );
-      iErr    = getSect.getSect( iFormat[4] + 288, NTC1 + 1, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      int[] iArray = new int[rValue.length];
+      case PARR_TCP1:
+        iErr   = readReals( h, h.iFormat[4] + 267, 20, iArr, rValue );
+        length = 20;
+        break;
+
+      case PARR_TCB1:
+        if( h.ver1 != 1 ) {
+          iErr = h.getSect.getSect( h.iFormat[3] + 1, 64, iStore, 49 );
+          intConvert.VAXToLocalInts( iStore );
+          extra = ( float )iStore[23] * 4;
+        } else {
+          extra = 0.0f;
+        }
 
-      //VAXToLocalInts wants an int array
-      arrayCopyFloatToInt( rValue, iArray );
-      intConvert.VAXToLocalInts( iArray );
-      arrayCopyIntToFloat( iArray, rValue );
+        //  if tcb's requested in real form then return as microsecs
+        iErr    = h.getSect.getSect( h.iFormat[4] + 287, 1, iStore, 49 );
+        IPRE1   = intConvert.VAXToLocalInt( iStore[0] );
+        iErr    = h.getSect.getSectLocal( h.iFormat[4] + 288, h.NTC1 + 1, iArr );
 
-      //  conversion loop - from clock pulses to microsecs
-      for( i = 0; i < ( NTC1 + 1 ); i++ ) {
-        temp        = ( ( float )( rValue[i] ) / 32.0f * ( float )( IPRE1 ) ) +
-          extra;
-        rValue[i]   = ( int )temp;
-      }
+        //  conversion loop - from clock pulses to microsecs
+        for( i = 0; i < Math.min( h.NTC1 + 1, rValue.length ); i++ ) {
+          temp        = ( ( float )( iArr[i] ) / 32.0f * ( float )( IPRE1 ) ) +
+            extra;
+          rValue[i]   = ( int )temp;
+        }
 
-      //length = NTC1 + 1;
-    } else if( name.equals( "DAT1" ) ) {
-      if( ver1 != 1 ) {
-        iErr = getSect.getSect( iFormat[5] + 2, uLen, iArr, 49 );
-        arrayCopyIntToFloat( iArr, rValue );
+        length = h.NTC1 + 1;
+        break;
 
-        //length   = uLen;
-        iErr = fConvert.VAXToIEEEFloat( rValue );
-      } else {
-        FErrorAddDummy.fErrorAdd( 
-          "getParr", "No user section in this file", " " );
-      }
+      case PARR_DAT1:
+        if( h.ver1 != 1 ) {
+          iErr   = readReals( h, h.iFormat[5] + 2, h.uLen, iArr, rValue );
+          length = h.uLen;
+        } else {
+          FErrorAddDummy.fErrorAdd( 
+            "getParr", "No user section in this file", " " );
+        }
+        break;
 
       //  non existent requests
-    } else if( name.equals( "RRPB" ) ) {
-      iErr = getSect.getSect( iFormat[0] + 62, 32, iArr, 49 );
-      arrayCopyIntToFloat( iArr, rValue );
-
-      //length   = 32;
-      iErr = fConvert.VAXToIEEEFloat( rValue );
-    } else {
-      errCode = 3;
+      case PARR_RRPB:
+        iErr   = readReals( h, h.iFormat[0] + 62, 32, iArr, rValue );
+        length = 32;
+        break;
+
+      default:
+        if( name.startsWith( "UT" ) && ( parameterNumber( name ) >= 1 ) ) {
+          //READ(name(3:4),'(I2)') I
+          i = parameterNumber( name );
+          iErr   = readReals( h, iTable + ( ( 4 + i ) * h.nDet ), h.nDet, iArr, rValue );
+          length = h.nDet;
+        } else {
+          errCode = 3;
 
-      //length    = 0;
-      return errCode;
+          length = 0;
+          return errCode;
+        }
     }
 
     if( ( iErr != 0 ) && ( errCode == 0 ) ) {
-      String msg = "Error in reading data from file " + runID;
+      String msg = "Error in reading data from file " + h.fileName;
 
       FErrorAddDummy.fErrorAdd( "getParr", msg, " " );
       errCode = 4;
     }
 
+    //  keep what was read for the next request for this parameter
+    if( ( errCode == 0 ) && ( length > 0 ) && ( length <= rValue.length ) ) {
+      float[] values = new float[length];
+
+      System.arraycopy( rValue, 0, values, 0, length );
+      h.parrCache.put( name, values );
+    }
+
     //lengthOut = length;
     return errCode;
   }
+  /**
+   * Reads VAX reals from a file and converts them to IEEE floats.
+   *
+   * @param h The file.
+   * @param istart The first word to read.
+   * @param nValues The number of values to read.
+   * @param iWork Work space at least as long as rValue.
+   * @param rValue The array to store the values in.  Only as many values as
+   *        fit are read.
+   *
+   * @return 0 if the values were read and non-zero otherwise.
+   */
+  private static int readReals( 
+    RawHandle h, int istart, int nValues, int[] iWork, float[] rValue ) {
+    int n    = Math.min( nValues, rValue.length );
+    int iErr = h.getSect.getSectLocal( istart, n, iWork );
+
+    FloatConvert.VAXToFloats( iWork, 0, rValue, 0, n );
+
+    return iErr;
+  }
+
 
   /**
    * This method returns the whole of a run file into the given array.<br>
@@ -1142,7 +1579,9 @@ public class ISISio {
     int[]   iArray2;
 
     //  check name is valid & open file according to runID
-    if( ( !fileName.equals( runID ) ) || ( fileName.equals( " " ) ) ) {
+    RawHandle h = handle;
+
+    if( ( h == null ) || !h.fileName.equals( runID ) ) {
       found = openFile( runID );
 
       if( !found ) {
@@ -1150,17 +1589,19 @@ public class ISISio {
 
         return iError;
       }
+
+      h = handle;
     }
 
     //  want whole file except for log section
     // get this in 2 parts: first the file up to the data section+data version number
-    if( ver1 == 1 ) {
-      start_of_data = iFormat[5];
+    if( h.ver1 == 1 ) {
+      start_of_data = h.iFormat[5];
     } else {
-      start_of_data = iFormat[6];
+      start_of_data = h.iFormat[6];
     }
 
-    iErr = getSect.getSect( 1, start_of_data, iArray, 49 );
+    iErr = h.getSect.getSect( 1, start_of_data, iArray, 49 );
     intConvert.VAXToLocalInts( iArray );
 
     // and now the data...
@@ -1174,7 +1615,7 @@ public class ISISio {
       iArray2[m] = iArray[start_of_data + m];
     }
 
-    errCode = getDat( runID, 0, ( NSP1 + 1 ) * nPer, iArray2 );
+    errCode = getDat( h, 0, ( h.NSP1 + 1 ) * h.nPer, iArray2 );
 
     if( errCode != 0 ) {
       iError = 10 + errCode;
@@ -1190,7 +1631,7 @@ public class ISISio {
     // for compressed file, log pointer points to wrong place.
     // Recalculate for data version 2.
     if( iArray[start_of_data] == 2 ) {
-      iArray[28] = iFormat[6] + 1 + ( ( NSP1 + 1 ) * ( NTC1 + 1 ) * nPer );
+      iArray[28] = h.iFormat[6] + 1 + ( ( h.NSP1 + 1 ) * ( h.NTC1 + 1 ) * h.nPer );
     }
 
     // we now have uncompressed data in a Version 1 format. Set data version to 1
@@ -1211,7 +1652,7 @@ public class ISISio {
    * @param bArray The byte array to store the bytes from iArray in.
    */
   public static void arrayCopyIntToByte( int[] iArray, byte[] bArray ) {
-    if( ( bArray.length * 4 ) != iArray.length ) {
+    if( bArray.length != ( iArray.length * 4 ) ) {
       throw new IllegalArgumentException( 
         "Byte array is not four times as large as " + "int array" );
     }
@@ -1219,9 +1660,9 @@ public class ISISio {
     int j = 0;
 
     for( int i = 0; i < iArray.length; i++ ) {
-      bArray[j]       = ( byte )( iArray[i] >> 3 );
-      bArray[j + 1]   = ( byte )( iArray[i] >> 2 );
-      bArray[j + 2]   = ( byte )( iArray[i] >> 1 );
+      bArray[j]       = ( byte )( iArray[i] >> 24 );
+      bArray[j + 1]   = ( byte )( iArray[i] >> 16 );
+      bArray[j + 2]   = ( byte )( iArray[i] >> 8 );
       bArray[j + 3]   = ( byte )( iArray[i] );
       j               = j + 4;
     }
@@ -1237,76 +1678,23 @@ public class ISISio {
    * number of extra longwords used in giving absolute values. Status return<br>
    * =1  no problems!<br>
    * =3  NOUT .lt.NIN/5<br>
-   * =2  NIN .le.0 =4  NOUT .gt.NIN =6  number of channels lt NOUT
+   * =2  NIN .le.0 =4  NOUT .gt.NIN =6  number of channels lt NOUT<br>
+   * NIN is the number of bytes in inData and values NFROM to NFROM+NOUT-1
+   * (counting from 1) are stored in outData.
    */
   public int byteRelExpn( 
     byte[] inData, int nIn, int nFrom, int[] outData, int nOut ) {
-    //note the original equivalence statement: EQUIVALENCE(iTemp, bTemp)
-    int    i;
-    int    j;
-    int    iTemp;
-    byte[] bTemp = new byte[4];
-
-    // Assume innocent until proven guilty
-    int iStatus = 1;
-
     // First check no slip-ups in the input parameters
     if( nIn <= 0 ) {
-      iStatus = 2;
-
-      return statusCheck( nOut, nIn, iStatus );
+      return statusCheck( nOut, nIn, 2 );
     }
 
     if( ( ( nOut + nFrom ) - 1 ) > nIn ) {
-      iStatus = 4;
-
-      return statusCheck( nOut, nIn, iStatus );
-    }
-
-    // Set initial absolute value to zero and channel counter to zero
-    iTemp   = 0;
-    j       = 0;
-
-    // Loop over all expected 32bit integers
-    for( i = 0; i < ( ( nFrom + nOut ) - 1 ); i++ ) {
-      j++;
-
-      if( j > nIn ) {
-        // check there are enough bytes
-        iStatus = 6;
-
-        return statusCheck( nOut, nIn, iStatus );
-      }
-
-      // if number is contained in a byte
-      if( inData[j] != -128 ) {
-        // add in offset to base
-        iTemp = iTemp + inData[j];
-      } else {
-        // Else skip marker and pick up new absolute value
-        if( ( j + 4 ) > nIn ) {
-          // check there are enough bytes
-          iStatus = 6;
-
-          return statusCheck( nOut, nIn, iStatus );
-        }
-
-        // unpack 4 bytes
-        bTemp[0]   = inData[j];
-        bTemp[1]   = inData[j + 1];
-        bTemp[2]   = inData[j + 2];
-        bTemp[4]   = inData[j + 3];
-        iTemp      = intConvert.VAXToLocalInt( iTemp );
-        j          = j + 4;
-      }
-
-      // update current value
-      if( i >= nFrom ) {
-        outData[i - nFrom] = iTemp;
-      }
+      return statusCheck( nOut, nIn, 4 );
     }
 
-    return statusCheck( nOut, nIn, iStatus );
+    return statusCheck( 
+      nOut, nIn, expandByteRel( inData, 0, nIn, nFrom - 1, outData, 0, nOut ) );
   }
 
   /**
@@ -1337,9 +1725,8 @@ public class ISISio {
     boolean found   = false;
     int     errCode = 0;
 
-    if( !fileName.equals( runID ) ) {
-      fileName   = " ";
-      found      = openFile( runID );
+    if( ( handle == null ) || !handle.fileName.equals( runID ) ) {
+      found = openFile( runID );
 
       if( !found ) {
         //this had RUNID(:TRUELEN(RUNID))
@@ -1352,183 +1739,43 @@ public class ISISio {
       }
     }
 
-    NTC.innerInt    = NTC1;
-    nDet.innerInt   = nDet1;
-    nUse.innerInt   = nEff;
+    RawHandle h = handle;
+
+    NTC.innerInt    = h.NTC1;
+    nDet.innerInt   = h.nDet;
+    nUse.innerInt   = h.nEff;
 
     return errCode;
   }
 
   /**
-   * Opens a RAW data file for reading. If a different file is already open it
-   * will be closed first.  Note: I am not so sure about the latter statement-
-   * CMB
+   * Opens a RAW data file for reading. If a different file is already open
+   * it will be closed first.  The methods that take a runID read from this
+   * file.  To read from several files at once, or from several threads,
+   * open a RawHandle for each file instead and use the methods that take a
+   * RawHandle.
    */
-  public boolean openFile( String runID ) {
-    //note the original equivalence statement: EQUIVALENCE(cFileTemp, iFileTemp)
-    boolean found;
-    int[]   iTemp     = new int[3];
-    int     i;
-    String  cFileTemp;
-    int     errCode   = 0;
-    int     iErr      = 0;
-
-    //  Check that the file exists
-    i           = trueLength( runID );
-
-    //original: INQUIRE(FILE=RUNID(1:I),EXIST=FOUND)
-    found       = new java.io.File( runID ).exists(  );
-
-    if( !found ) {
-      return found;
-    }
-
-    //Open new file it
-    cFileTemp   = runID;
-
-    //Hack - we have fileName in common block, so temporarily assign it for getsect_orig.f to read
-    fileName    = runID;
-    errCode     = 0;
-    errCode     = getSect.fastGetInit( cFileTemp, 49 );
-    fileName    = " ";
-
-    if( errCode != 0 ) {
-      found = false;
-
-      return found;
-    }
-
-    int[] someInt = new int[1];
-
-    //  Now pick out the vital parameters for future use
-    //  version number
-    iErr   = getSect.getSect( 21, 1, iTemp, 49 );
-    ver1   = intConvert.VAXToLocalInt( iTemp[0] );
-
-    //  Format section
-    iErr   = getSect.getSect( 22, 10, iFormat, 49 );
-    intConvert.VAXToLocalInts( iFormat );
-
-    //  RUN section
-    someInt[0]   = iVer[0];
-    iErr         = getSect.getSect( iFormat[0], 1, someInt, 49 );
-    iVer[0]      = intConvert.VAXToLocalInt( someInt[0] );
-
-    //  Instrument section
-    someInt[0]   = iVer[1];
-    iErr         = getSect.getSect( iFormat[1], 1, someInt, 49 );
-    iVer[1]      = intConvert.VAXToLocalInt( someInt[0] );
-
-    //  nDet,nMon,nEff
-    iErr         = getSect.getSect( iFormat[1] + 67, 3, iTemp, 49 );
-    intConvert.VAXToLocalInts( iTemp );
-    nDet         = iTemp[0];
-    nMon         = iTemp[1];
-    nEff         = iTemp[2];
-
-    //  SE section
-    someInt[0]   = iVer[2];
-    iErr         = getSect.getSect( iFormat[2], 1, someInt, 49 );
-    iVer[2]      = intConvert.VAXToLocalInt( someInt[0] );
-
-    //  nSep
-    if( iVer[2] == 1 ) {
-      iErr = getSect.getSect( iFormat[2] + 33, 1, iTemp, 49 );
-    } else {
-      iErr = getSect.getSect( iFormat[2] + 65, 1, iTemp, 49 );
-    }
-
-    nSep         = intConvert.VAXToLocalInt( iTemp[0] );
-
-    //  DAE section
-    someInt[0]   = iVer[3];
-    iErr         = getSect.getSect( iFormat[3], 1, someInt, 49 );
-    iVer[3]      = intConvert.VAXToLocalInt( someInt[0] );
-
-    //  TCB section
-    someInt[0]   = iVer[4];
-    iErr         = getSect.getSect( iFormat[4], 1, someInt, 49 );
-    iVer[4]      = intConvert.VAXToLocalInt( someInt[0] );
-
-    //  nTRG
-    iErr         = getSect.getSect( iFormat[4] + 1, 1, iTemp, 49 );
-    nTRG         = intConvert.VAXToLocalInt( iTemp[0] );
+  public synchronized boolean openFile( String runID ) {
+    RawHandle h = RawHandle.open( runID );
 
-    //I commented this out for testing.  It should be fixed.
-    if( nTRG != 1 ) {
-      //original: WRITE(6,*) 'NTRG Problem', NTRG
-
-      /*System.out.println( "nTRG problem " + nTRG );
-         found = false;
-         return found;*/
-    }
-
-    //  nPer
-    iErr   = getSect.getSect( iFormat[4] + 3, 1, iTemp, 49 );
-    nPer   = intConvert.VAXToLocalInt( iTemp[0] );
-
-    //  NSP1,NTC1
-    iErr   = getSect.getSect( iFormat[4] + 260, 2, iTemp, 49 );
-    intConvert.VAXToLocalInts( iTemp );
-    NSP1   = iTemp[0];
-    NTC1   = iTemp[1];
-
-    //  USER section
-    if( ver1 == 1 ) {
-      uLen      = 0;
-      iVer[5]   = 0;
-    } else {
-      someInt[0]   = iVer[5];
-      iErr         = getSect.getSect( iFormat[5], 1, someInt, 49 );
-      iVer[5]      = intConvert.VAXToLocalInt( someInt[0] );
-      iErr         = getSect.getSect( iFormat[5] + 1, 1, iTemp, 49 );
-      uLen         = intConvert.VAXToLocalInt( iTemp[0] );
-    }
-
-    //  DATA and NOTES section
-    if( ver1 == 1 ) {
-      someInt[0]   = iVer[6];
-      iErr         = getSect.getSect( iFormat[5], 1, someInt, 49 );
-      iVer[6]      = someInt[0];
-
-      if( iFormat[6] != 0 ) {
-        someInt[0]   = iVer[7];
-        iErr         = getSect.getSect( iFormat[6], 1, someInt, 49 );
-        iVer[7]      = intConvert.VAXToLocalInt( someInt[0] );
-      } else {
-        iVer[7] = 0;
-      }
-    } else {
-      someInt[0]   = iVer[6];
-      iErr         = getSect.getSect( iFormat[6], 1, someInt, 49 );
-      iVer[6]      = someInt[0];
-
-      if( iFormat[7] != 0 ) {
-        someInt[0]   = iVer[7];
-        iErr         = getSect.getSect( iFormat[7], 1, someInt, 49 );
-        iVer[7]      = intConvert.VAXToLocalInt( someInt[0] );
-      } else {
-        iVer[7] = 0;
-      }
+    if( h == null ) {
+      return false;
     }
 
-    iVer[6] = intConvert.VAXToLocalInt( iVer[6] );
-
-    // DATA section header
-    for( i = 0; i < dataHeader.length; i++ ) {
-      dataHeader[i] = 0;
+    if( handle != null ) {
+      handle.close(  );
     }
 
-    if( ( iVer[6] >= 2 ) ) {
-      iErr = getSect.getSect( iFormat[6] + 1, 32, dataHeader, 49 );
-      intConvert.VAXToLocalInts( dataHeader );
-    }
+    handle = h;
 
-    //  finally store the file name and set flags to true
-    fileName   = runID;
-    found      = true;
+    return true;
+  }
 
-    return found;
+  /**
+   * @return The file opened by openFile(), or null if no file is open.
+   */
+  public RawHandle getHandle(  ) {
+    return handle;
   }
 
   /**
@@ -1538,7 +1785,8 @@ public class ISISio {
    * runID<br>
    * iSpec - the identifier of the spectrum to retrieve<br>
    * nDetMax - the size of the work arrays deltaWork, specWork,<br>
-   * L2Work and ttheWork<br>
+   * L2Work and ttheWork (these are no longer filled in, but nDetMax is still<br>
+   * checked)<br>
    * nTCMax - maximum size of arrays iDat and TCB<br>
    * RETURNED VALUES <br>
    * L1 - Primary flight path<br>
@@ -1568,15 +1816,10 @@ public class ISISio {
     //also that nUse = length of userTables[]
     int     iErr      = 0;
     int     errCode   = 0;
-    int     i;
-    int     j;
-    int     nDetMatch = 0;
-    float   rNDet     = 0.0f;
     float[] RVPBWK    = new float[64];
     int[]   RPB       = new int[32];
     String  error1    = "";
     String  error2    = "";
-    String  UTNum     = "";
     String  header    = "";
 
     //String runIdent="";
@@ -1587,17 +1830,18 @@ public class ISISio {
     // *** convErr controls if an error occurs duing fConvert.VAXToIEEEFloat
     int convErr = 0;
 
-    // *** convErr controls if an error occurs duing fConvert.VAXToIEEEFloat
-    if( ( runID != fileName ) || ( fileName.equals( " " ) ) ) {
+    RawHandle h = handle;
+
+    if( ( h == null ) || ( runID != h.fileName ) ) {
       FErrorAddDummy.fErrorAdd( "readData", "Error in file specification", " " );
       errCode = 1;
 
       return errCode;
     }
 
-    if( ( NTC1 + 1 ) > nTCMax ) {
+    if( ( h.NTC1 + 1 ) > nTCMax ) {
       //original: WRITE(ERROR1, '(I8)') NTC1
-      error1   = "" + NTC1;
+      error1   = "" + h.NTC1;
 
       //original: WRITE(ERROR2, '(I8)') NTCMAX
       error2   = "" + nTCMax;
@@ -1611,12 +1855,12 @@ public class ISISio {
       return errCode;
     }
 
-    if( ( iSpec > ( ( ( NSP1 + 1 ) * nPer ) - 1 ) ) || ( iSpec < 0 ) ) {
+    if( ( iSpec > ( ( ( h.NSP1 + 1 ) * h.nPer ) - 1 ) ) || ( iSpec < 0 ) ) {
       //original: WRITE(MESS,175) ISPEC, ((NSP1+1)*NPER)-1
       //175 FORMAT('Invalid spectrum number = ', I5, '(spectra must
       //be in the range 0 - ', I5, ')')
       String msg = "Invalid spectrum number = " + iSpec +
-        " (spectra must be in the range 0 - " + ( ( ( NSP1 + 1 ) * nPer ) - 1 ) +
+        " (spectra must be in the range 0 - " + ( ( ( h.NSP1 + 1 ) * h.nPer ) - 1 ) +
         ")";
 
       FErrorAddDummy.fErrorAdd( "readData", msg, " " );
@@ -1625,9 +1869,9 @@ public class ISISio {
       return errCode;
     }
 
-    if( nDet > nDetMax ) {
+    if( h.nDet > nDetMax ) {
       //original: WRITE(ERROR1, '(I8)') NDET
-      error1   = "" + nDet;
+      error1   = "" + h.nDet;
 
       //original: WRITE(ERROR2, '(I8)') NTDETMAX
       error2   = "" + nDetMax;
@@ -1640,12 +1884,12 @@ public class ISISio {
       return errCode;
     }
 
-    if( nUse != nEff ) {
+    if( nUse != h.nEff ) {
       //original: WRITE(ERROR1, '(I8)') NUSE
       error1   = "" + nUse;
 
       //original: WRITE(ERROR1, '(I8)') NEFF
-      error2   = "" + nEff;
+      error2   = "" + h.nEff;
 
       String msg = "Invalid number of user parameters: " + error1 + " != " +
         error2;
@@ -1660,7 +1904,7 @@ public class ISISio {
       String[] headerArr = new String[1];
 
       headerArr[0]               = header;
-      iErr                       = getParc( runID, "HDR", headerArr );
+      iErr                       = getParc( h, "HDR", headerArr );
       header                     = headerArr[0];
 
       if( iErr != 0 ) {
@@ -1690,14 +1934,14 @@ public class ISISio {
       String[] instNameArr       = new String[1];
 
       instNameArr[0]         = instName.innerString;
-      iErr                   = getParc( runID, "name", instNameArr );
+      iErr                   = getParc( h, "name", instNameArr );
       instName.innerString   = instNameArr[0];
 
       if( iErr != 0 ) {
         return errorCode999GoTo(  );
       }
 
-      iErr = getParr( runID, "TCB1", TCB );
+      iErr = getParr( h, "TCB1", TCB );
 
       if( iErr != 0 ) {
         return errorCode999GoTo(  );
@@ -1707,7 +1951,7 @@ public class ISISio {
     }
 
     // *** end of >>> if ( quick=0) <<<
-    iErr = getParr( runID, "RVPB", RVPBWK );
+    iErr = getParr( h, "RVPB", RVPBWK );
 
     if( iErr != 0 ) {
       return errorCode999GoTo(  );
@@ -1715,101 +1959,34 @@ public class ISISio {
 
     L1.innerFloat         = RVPBWK[22];
 
-    // spectrum table
-    iErr                  = getPari( runID, "SPEC", specWork );
-
-    if( iErr != 0 ) {
-      return errorCode999GoTo(  );
-    }
-
     // run duration (s)
-    iErr = getPari( runID, "RPB", RPB );
-
-    if( iErr != 0 ) {
-      return errorCode999GoTo(  );
-    }
-
-    duration.innerFloat   = ( float )( RPB[12] );
-    iErr                  = getParr( runID, "DELT", deltaWork );
-
-    if( iErr != 0 ) {
-      return errorCode999GoTo(  );
-    }
-
-    iErr = getParr( runID, "LEN2", L2Work );
-
-    if( iErr != 0 ) {
-      return errorCode999GoTo(  );
-    }
-
-    iErr = getParr( runID, "TTHE", ttheWork );
+    iErr                  = getPari( h, "RPB", RPB );
 
     if( iErr != 0 ) {
       return errorCode999GoTo(  );
     }
 
-    // average tthe, L2 and delta over detectors used for given spectrum
-    tthe.innerFloat    = 0.0f;
-    L2.innerFloat      = 0.0f;
-    delta.innerFloat   = 0.0f;
-    j                  = 0;
-
-    for( i = 0; i < nDet; i++ ) {
-      if( specWork[i] == iSpec ) {
-        tthe.innerFloat    = tthe.innerFloat + ttheWork[i];
-        delta.innerFloat   = delta.innerFloat + deltaWork[i];
-        L2.innerFloat      = L2.innerFloat + L2Work[i];
-        j++;
-      }
-    }
-
-    nDetMatch   = j;
-
-    // *** phi ***
-    iErr        = getParr( runID, "PHI", deltaWork );
-    phi         = 0.0f;
-
-    if( iErr == 0 ) {
-      for( i = 0; i < nDet; i++ ) {
-        if( specWork[i] == iSpec ) {
-          phi = phi + deltaWork[i];
-        }
-      }
-    }
+    duration.innerFloat = ( float )( RPB[12] );
 
-    for( i = 0; i < nUse; i++ ) {
-      userTables[i] = 0.0f;
-    }
+    // average tthe, L2, delta and the user tables over detectors used for
+    // given spectrum.  These are worked out for every spectrum the first
+    // time, so the work arrays are no longer filled in.  phi was averaged
+    // here too, but it is passed by value so the average was never returned.
+    SpectrumAverages averages = h.averages;
 
-    for( i = 0; i < nUse; i++ ) {
-      //original: WRITE(UTNUM, '(I2.2)') I
-      UTNum   = "" + i;
-      iErr    = getParr( runID, "UT" + UTNum, deltaWork );
+    if( averages == null ) {
+      averages = SpectrumAverages.build( this, h );
 
-      if( iErr != 0 ) {
+      if( averages == null ) {
         return errorCode999GoTo(  );
       }
 
-      for( j = 0; j < nDet; j++ ) {
-        if( specWork[j] == iSpec ) {
-          userTables[i] = userTables[i] + deltaWork[j];
-        }
-      }
+      h.averages = averages;
     }
 
-    if( nDetMatch != 0 ) {
-      rNDet              = ( float )( nDetMatch );
-      tthe.innerFloat    = tthe.innerFloat / rNDet;
-      delta.innerFloat   = delta.innerFloat / rNDet;
-      L2.innerFloat      = L2.innerFloat / rNDet;
-      phi                = phi / rNDet;
-
-      for( i = 0; i < nUse; i++ ) {
-        userTables[i] = userTables[i] / rNDet;
-      }
-    }
+    averages.get( iSpec, L2, tthe, delta, userTables );
 
-    iErr = getDat( runID, iSpec, 1, iDat );
+    iErr = getDat( h, iSpec, 1, iDat );
 
     if( iErr != 0 ) {
       return errorCode999GoTo(  );
@@ -1844,6 +2021,52 @@ public class ISISio {
     return errCode;
   }
 
+  /**
+   * Builds the table used to look up the code for a parameter name.
+   *
+   * @param names The parameter names.
+   * @param codes The code for each name.
+   *
+   * @return The table, mapping each name to an Integer code.
+   */
+  private static HashMap codeTable( String[] names, int[] codes ) {
+    HashMap table = new HashMap( names.length * 2 );
+
+    for( int i = 0; i < names.length; i++ ) {
+      table.put( names[i], new Integer( codes[i] ) );
+    }
+
+    return table;
+  }
+
+  /**
+   * Looks up the code for a parameter name.
+   *
+   * @return The code or 0 if the name is not in the table.
+   */
+  private static int lookupCode( HashMap table, String name ) {
+    Integer code = ( Integer )table.get( name );
+
+    if( code == null ) {
+      return 0;
+    }
+
+    return code.intValue(  );
+  }
+
+  /**
+   * Gets the number at the end of a parameter name such as "SE01" or "UT3".
+   *
+   * @return The number or -1 if there isn't one.
+   */
+  private static int parameterNumber( String name ) {
+    try {
+      return Integer.parseInt( name.substring( 2 ).trim(  ) );
+    } catch( NumberFormatException e ) {
+      return -1;
+    }
+  }
+
   /**
    * Replacement for the GOTO statement in the original byteRelExpn function.
    *
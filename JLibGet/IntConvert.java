@@ -151,9 +151,9 @@ public class IntConvert {
    * @param a The int to swap around.
    */
   private int swapInt( int a ) {
-    //tested and passed
-    return ( int )( ( ( a ) << 24 ) | ( ( ( a ) << 8 ) & 0x00ff0000 ) |
-    ( ( ( a ) >> 8 ) & 0x0000ff00 ) | ( ( long )( a ) >> 24 ) );
+    //the top byte must not be sign extended when it is shifted down
+    return ( ( a ) << 24 ) | ( ( ( a ) << 8 ) & 0x00ff0000 ) |
+    ( ( ( a ) >> 8 ) & 0x0000ff00 ) | ( ( a ) >>> 24 );
   }
 
   /**
@@ -164,6 +164,6 @@ public class IntConvert {
    * @return The byte swapped short.
    */
   private short swapShort( short a ) {
-    return ( short )( ( ( a & 0xff ) << 8 ) | ( ( short )( a ) >> 8 ) );
+    return ( short )( ( ( a & 0xff ) << 8 ) | ( ( a >> 8 ) & 0xff ) );
   }
 }
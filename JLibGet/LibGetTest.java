@@ -49,83 +49,781 @@
  */
 package ISIS.JLibGet;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.Vector;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import ISIS.Rawfile.Rawfile;
+import ISIS.Rawfile.RawfileWriter;
+
+
 /**
- * Class to test the Jlibget library.
+ * Class to test the Jlibget library.  Each RAW file is read with both
+ * ISISio and ISIS.Rawfile.Rawfile, and the time channel boundaries, flight
+ * paths, scattering angles and counts from the two readers are compared, as
+ * are the averages over each spectrum's detectors that ISISio.readData
+ * gives.  Synthetic files, whose contents are known, can be written and
+ * checked as well.  The time taken by each reader to read every spectrum is
+ * reported, so this can be run before and after a change to check both that
+ * the readers still agree and that they are no slower.  The exit status is 1
+ * if any file fails.
  */
 public class LibGetTest {
   //~ Static fields/initializers ***********************************************
 
   private static final int MAXTCB = 20000;
 
+  /** The most words read by each call to ISISio.getDat. */
+  private static final int CHUNK_WORDS = 1 << 20;
+
+  /** The readers, as indices into the totals. */
+  private static final int IO  = 0;
+  private static final int RAW = 1;
+
   //~ Instance fields **********************************************************
 
-  private int     maxTCB;
-  private int     errCode;
-  private int     NTCB;
-  private int     iSpec;
-  private boolean found;
-  private int[]   counts = new int[MAXTCB];
-  private float[] TCB    = new float[MAXTCB];
-  private String  runID;
+  private ISISio io         = new ISISio(  );
+  private int    repeat     = 1;
+  private double minSeconds = 0.5;
+  private int    numFailed  = 0;
+  private int    numChecked = 0;
+
+  //the totals for each reader, indexed by IO and RAW
+  private double[] seconds = new double[2];
+  private long[]   bytes   = new long[2];
+  private long[]   spectra = new long[2];
+  private long[]   repeats = new long[2];
 
   //~ Methods ******************************************************************
 
   /**
-   * Main method for execution.
+   * Main method for execution.<br>
+   * Usage: LibGetTest [-synthetic n] [-repeat n] [-seconds s] [file or
+   * directory] ...<br>
+   * -synthetic n writes and checks n synthetic files, half of them
+   * compressed.  For the timings each reader reads every spectrum at least
+   * n times (-repeat, 1 by default) and until at least s seconds have
+   * passed (-seconds, 0.5 by default), so that even small files are timed
+   * over long enough to compare.  Every file ending in .raw in a directory
+   * is checked.
    */
   public static void main( String[] args ) {
-    new LibGetTest(  ).runTest(  );
+    LibGetTest test      = new LibGetTest(  );
+    Vector     files     = new Vector(  );
+    int        synthetic = 0;
+
+    for( int i = 0; i < args.length; i++ ) {
+      if( args[i].equals( "-synthetic" ) && ( i + 1 < args.length ) ) {
+        synthetic = Integer.parseInt( args[++i] );
+      } else if( args[i].equals( "-repeat" ) && ( i + 1 < args.length ) ) {
+        test.repeat = Math.max( 1, Integer.parseInt( args[++i] ) );
+      } else if( args[i].equals( "-seconds" ) && ( i + 1 < args.length ) ) {
+        test.minSeconds = Double.parseDouble( args[++i] );
+      } else {
+        addFiles( new File( args[i] ), files );
+      }
+    }
+
+    if( ( synthetic == 0 ) && files.isEmpty(  ) ) {
+      System.out.println( 
+        "Usage: LibGetTest [-synthetic n] [-repeat n] [-seconds s] " +
+        "[file or directory] ..." );
+
+      return;
+    }
+
+    for( int i = 0; i < synthetic; i++ ) {
+      test.runSynthetic( i );
+    }
+
+    for( int i = 0; i < files.size(  ); i++ ) {
+      test.runTest( ( String )files.elementAt( i ), null );
+    }
+
+    test.printTotals(  );
+
+    if( test.numFailed > 0 ) {
+      System.exit( 1 );
+    }
   }
 
   /**
-   * Runs a test of the libget code.
+   * Writes a synthetic file, checks it and deletes it.
+   *
+   * @param n The number of the synthetic file, which is also the seed for
+   *        its contents.
    */
-  public void runTest(  ) {
-    System.out.print( "Input data file: " );
-
-    //READ(5,9000) RUNID
-    //9000 FORMAT(A)
-    //      RUNID=/usr/local/genie/examples/data/hrp08639.raw
-    //CHANGED-THIS DID NOT ORIGINALLY RETURN A VALUE
-    // found = ISISio.openFile(runID);
-    if( !found ) {
+  public void runSynthetic( int n ) {
+    RawfileWriter writer = RawfileWriter.synthetic( 
+        64 << ( n % 4 ), 250 * ( 1 + ( n % 5 ) ), n );
+
+    writer.setCompressed( ( n % 2 ) == 1 );
+
+    File file = null;
+
+    try {
+      file = File.createTempFile( "libget", ".raw" );
+      writer.write( file.getPath(  ) );
+      runTest( file.getPath(  ), writer );
+    } catch( IOException e ) {
+      e.printStackTrace(  );
+      numFailed++;
+    } finally {
+      if( file != null ) {
+        file.delete(  );
+      }
+    }
+  }
+
+  /**
+   * Checks that both readers give the same values for a file and times how
+   * long each takes to read all of the spectra.
+   *
+   * @param runID The name of the file.
+   * @param expected The writer that wrote the file, or null if its contents
+   *        are not known.
+   *
+   * @return True if the readers agree (and agree with the writer).
+   */
+  public boolean runTest( String runID, RawfileWriter expected ) {
+    RawHandle h = RawHandle.open( runID );
+
+    numChecked++;
+
+    if( h == null ) {
       System.out.println( "File for " + runID + " not found" );
+      numFailed++;
 
-      return;
+      return false;
     }
 
-    //CHANGED-THIS DID NOT ORIGINALLY RETURN A VALUE OR THROW AN EXCEPTION
+    Rawfile rawfile = new Rawfile( runID );
+    int     nSpec   = h.getNumSpectra(  ) + 1;
+    int     nTC     = h.getNumTimeChannels(  ) + 1;
+    int     nDet    = h.getNumDetectors(  );
+    int     errors  = 0;
+
     try {
-      //TCB =ISISio.getParr(runID,"TCB1", maxTCB, NTCB, errCode);
-    } catch( RuntimeException e ) {
-      System.out.println( "Error in io.getParr: " );
-      e.printStackTrace(  );
+      //time channel boundaries
+      errors += compareTCBs( runID, h, rawfile, nTC, expected );
 
-      return;
+      //flight paths and scattering angles
+      errors += compareDetectors( runID, h, rawfile, "LEN2", nDet );
+      errors += compareDetectors( runID, h, rawfile, "TTHE", nDet );
+
+      //counts
+      int[][] counts = null;
+
+      if( expected != null ) {
+        counts = expected.getCounts(  );
+      }
+
+      errors += compareCounts( runID, h, rawfile, nSpec, nTC, counts );
+
+      //averages by spectrum
+      float[][] tables = null;
+
+      if( expected != null ) {
+        tables = expected.getUserTables(  );
+      }
+
+      errors += compareAverages( runID, rawfile, nSpec, nTC, tables );
+
+      //proton charges, and the charge BatchExport writes
+      errors += compareCharges( runID, h, rawfile, expected );
+
+      if( expected != null ) {
+        errors += checkExport( runID, rawfile );
+      }
+
+      if( errors == 0 ) {
+        timeReaders( runID, h, rawfile, nSpec, nTC );
+      }
+    } finally {
+      rawfile.Close(  );
+      h.close(  );
+    }
+
+    if( errors > 0 ) {
+      numFailed++;
+    }
+
+    return errors == 0;
+  }
+
+  /**
+   * Prints the totals for all of the files checked.
+   */
+  public void printTotals(  ) {
+    System.out.println( 
+      numChecked + " files checked, " + numFailed + " failed" );
+
+    if( spectra[IO] > 0 ) {
+      System.out.println( "ISISio:   " + rate( IO ) );
+      System.out.println( "Rawfile:  " + rate( RAW ) );
+    }
+  }
+
+  /**
+   * Compares the time channel boundaries from both readers with those
+   * worked out from the clock pulses, prescale and frame sync delay stored
+   * in the file, and with those that were written if they are known.
+   * Rawfile must give the boundaries exactly and ISISio truncates them to
+   * whole microseconds.
+   */
+  private int compareTCBs( 
+    String runID, RawHandle h, Rawfile rawfile, int nTC,
+    RawfileWriter expected ) {
+    float[] TCB    = new float[Math.min( nTC, MAXTCB )];
+    float[] rawTCB = rawfile.TimeChannelBoundariesForRegime( 1 );
+    int[]   pulses = new int[nTC];
+    int[]   PRE1   = new int[1];
+    int[]   DAEP   = new int[64];
+
+    if( 
+      ( io.getParr( h, "TCB1", TCB ) != 0 ) ||
+        ( io.getPari( h, "TCB1", pulses ) != 0 ) ||
+        ( io.getPari( h, "PRE1", PRE1 ) != 0 ) ||
+        ( io.getPari( h, "DAEP", DAEP ) != 0 ) || ( rawTCB == null ) ||
+        ( rawTCB.length != nTC ) ) {
+      return report( runID, "time channel boundaries could not be read" );
+    }
+
+    //TCB1(n) = (time - DAEP(24)*4)*32/PRE1, with no delay in version 1 files
+    int     delay = ( h.ver1 != 1 ) ? ( DAEP[23] * 4 ) : 0;
+    float[] truth = new float[nTC];
+
+    for( int i = 0; i < nTC; i++ ) {
+      truth[i] = ( pulses[i] * PRE1[0] / 32.0f ) + delay;
+    }
+
+    if( expected != null ) {
+      float[] written = expected.getTimeChannelBoundaries(  );
+
+      for( int i = 0; i < nTC; i++ ) {
+        if( Float.floatToIntBits( truth[i] ) != Float.floatToIntBits( 
+              written[i] ) ) {
+          return report( 
+            runID, "TCB " + i + " in the file: " + truth[i] + " != " +
+            written[i] + " written (offset " + ( truth[i] - written[i] ) +
+            ")" );
+        }
+      }
+    }
+
+    for( int i = 0; i < nTC; i++ ) {
+      if( Float.floatToIntBits( rawTCB[i] ) != Float.floatToIntBits( 
+            truth[i] ) ) {
+        return report( 
+          runID, "Rawfile TCB " + i + ": " + rawTCB[i] + " != " + truth[i] +
+          " (offset " + ( rawTCB[i] - truth[i] ) + ")" );
+      }
+    }
+
+    for( int i = 0; i < TCB.length; i++ ) {
+      if( TCB[i] != ( float )( int )truth[i] ) {
+        return report( 
+          runID, "ISISio TCB " + i + ": " + TCB[i] + " != " +
+          ( int )truth[i] + " (offset " + ( TCB[i] - ( int )truth[i] ) + ")" );
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Compares a table with one value for each detector.
+   */
+  private int compareDetectors( 
+    String runID, RawHandle h, Rawfile rawfile, String name, int nDet ) {
+    float[] values = new float[nDet];
+
+    if( io.getParr( h, name, values ) != 0 ) {
+      return report( runID, name + " could not be read" );
+    }
+
+    for( int d = 1; d <= nDet; d++ ) {
+      float rawValue;
+
+      if( name.equals( "LEN2" ) ) {
+        rawValue = rawfile.FlightPath( d );
+      } else {
+        rawValue = rawfile.DetectorAngle( d );
+      }
+
+      if( 
+        Float.floatToIntBits( rawValue ) != Float.floatToIntBits( 
+            values[d - 1] ) ) {
+        return report( 
+          runID, name + " for detector " + d + ": " + values[d - 1] + " != " +
+          rawValue );
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Compares every spectrum, and the counts written to the file if they are
+   * known.
+   */
+  private int compareCounts( 
+    String runID, RawHandle h, Rawfile rawfile, int nSpec, int nTC,
+    int[][] expected ) {
+    int   perChunk = Math.max( 1, CHUNK_WORDS / nTC );
+    int[] iData    = new int[perChunk * nTC];
+
+    for( int first = 0; first < nSpec; first += perChunk ) {
+      int NOS     = Math.min( perChunk, nSpec - first );
+      int errCode = io.getDat( h, first, NOS, iData );
+
+      if( errCode != 0 ) {
+        return report( 
+          runID, "getDat error " + errCode + " for spectrum " + first );
+      }
+
+      for( int k = 0; k < NOS; k++ ) {
+        int     s      = first + k;
+        float[] counts = rawfile.Get1DSpectrum( s + 1 );
+
+        if( ( counts == null ) || ( counts.length != nTC ) ) {
+          return report( runID, "Rawfile could not read spectrum " + s );
+        }
+
+        for( int i = 0; i < nTC; i++ ) {
+          int value = iData[( k * nTC ) + i];
+
+          if( ( float )value != counts[i] ) {
+            return report( 
+              runID, "spectrum " + s + ", channel " + i + ": " + value +
+              " != " + counts[i] );
+          }
+
+          if( ( expected != null ) && ( expected[s][i] != value ) ) {
+            return report( 
+              runID, "spectrum " + s + ", channel " + i + ": " + value +
+              " was written as " + expected[s][i] );
+          }
+        }
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Compares the good and total proton charges, and the good charge
+   * written to the file if it is known.
+   */
+  private int compareCharges( 
+    String runID, RawHandle h, Rawfile rawfile, RawfileWriter expected ) {
+    float[] rrpb = new float[32];
+
+    if( io.getParr( h, "RRPB", rrpb ) != 0 ) {
+      return report( runID, "RRPB could not be read" );
+    }
+
+    //RPB(8) is the good proton charge and RPB(9) the total
+    if( 
+      ( Float.floatToIntBits( rrpb[7] ) != Float.floatToIntBits( 
+          rawfile.GoodProtonCharge(  ) ) ) ||
+        ( Float.floatToIntBits( rrpb[8] ) != Float.floatToIntBits( 
+          rawfile.TotalProtonCharge(  ) ) ) ) {
+      return report( 
+        runID, "proton charges " + rrpb[7] + ", " + rrpb[8] + " != " +
+        rawfile.GoodProtonCharge(  ) + ", " + rawfile.TotalProtonCharge(  ) );
+    }
+
+    if( ( expected != null ) && ( rrpb[7] != expected.getProtonCharge(  ) ) ) {
+      return report( 
+        runID, "good proton charge " + rrpb[7] + " was written as " +
+        expected.getProtonCharge(  ) );
     }
 
-    System.out.println( "Read " + NTCB + " time channels." );
+    return 0;
+  }
+
+  /**
+   * Exports a file with BatchExport and checks the good proton charge and
+   * the columns in the header of the export file, and that the compressed
+   * counts are those of the first period from Rawfile.
+   */
+  private int checkExport( String runID, Rawfile rawfile ) {
+    File   dir  = new File( runID ).getAbsoluteFile(  ).getParentFile(  );
+    String name = new File( runID ).getName(  );
+
+    if( name.lastIndexOf( '.' ) > 0 ) {
+      name = name.substring( 0, name.lastIndexOf( '.' ) );
+    }
 
-    //read spectrum 1
-    iSpec = 1;
+    File            outFile = new File( dir, name + ".rxb" );
+    DataInputStream in      = null;
 
-    //    CHANGED-THIS DID NOT ORIGINALLY RETURN A VALUE OR THROW AN EXCEPTION
     try {
-      //counts = ISISio.getDat(runID,iSpec,1,MAXTCB);
-    } catch( RuntimeException e ) {
-      System.out.println( "Error in io.getDat: " );
-      e.printStackTrace(  );
+      if( !new BatchExport( dir, 1 << 20 ).export( runID ) ) {
+        return report( runID, "BatchExport failed" );
+      }
 
-      return;
+      in = new DataInputStream( new FileInputStream( outFile ) );
+      in.skipBytes( 20 );
+
+      float charge = in.readFloat(  );
+
+      if( 
+        Float.floatToIntBits( charge ) != Float.floatToIntBits( 
+            rawfile.GoodProtonCharge(  ) ) ) {
+        return report( 
+          runID, "BatchExport proton charge " + charge + " != " +
+          rawfile.GoodProtonCharge(  ) );
+      }
+
+      String[] names  = { "TCB1", "LEN2", "TTHE", "SPEC", "CBLK", "CNTS" };
+      int[]    types  = {
+          BatchExport.TYPE_FLOAT, BatchExport.TYPE_FLOAT,
+          BatchExport.TYPE_FLOAT, BatchExport.TYPE_INT, BatchExport.TYPE_INT,
+          BatchExport.TYPE_INT
+        };
+      long[]   counts = new long[names.length];
+
+      if( in.readInt(  ) != names.length ) {
+        return report( runID, "BatchExport header has the wrong columns" );
+      }
+
+      for( int i = 0; i < names.length; i++ ) {
+        byte[] column = new byte[4];
+
+        in.readFully( column );
+
+        int type  = in.readInt(  );
+        int codec = in.readInt(  );
+
+        counts[i] = in.readLong(  );
+        in.readLong(  );
+
+        if( 
+          !new String( column, "US-ASCII" ).equals( names[i] ) ||
+            ( type != types[i] ) ||
+            ( codec != ( ( i == 5 ) ? BatchExport.CODEC_DEFLATE
+                                    : BatchExport.CODEC_NONE ) ) ) {
+          return report( 
+            runID, "BatchExport column " + i + " is " +
+            new String( column, "US-ASCII" ) + " of type " + type +
+            " with codec " + codec );
+        }
+      }
+
+      //skip to the block index, which is followed by the counts
+      for( int i = 0; i < 4; i++ ) {
+        in.skipBytes( ( int )( 4 * counts[i] ) );
+      }
+
+      int[] blocks = new int[( int )counts[4]];
+
+      for( int i = 0; i < blocks.length; i++ ) {
+        blocks[i] = in.readInt(  );
+      }
+
+      return compareExportedCounts( runID, rawfile, in, blocks );
+    } catch( IOException e ) {
+      return report( runID, "BatchExport file could not be read: " + e );
+    } finally {
+      if( in != null ) {
+        try {
+          in.close(  );
+        } catch( IOException e ) {
+          //nothing more to do
+        }
+      }
+
+      outFile.delete(  );
+    }
+  }
+
+  /**
+   * Decompresses each block of the CNTS column of an export file and
+   * compares the spectra of the first period with those from Rawfile.
+   */
+  private int compareExportedCounts( 
+    String runID, Rawfile rawfile, DataInputStream in, int[] blocks )
+    throws IOException {
+    int      nSpec    = rawfile.getNumSpectraForRegime( 1 ) + 1;
+    int      nTC      = rawfile.Get1DSpectrum( 1 ).length;
+    int      spectrum = 0;
+    Inflater inflater = new Inflater(  );
+
+    try {
+      for( int b = 0; b < blocks.length; b += 2 ) {
+        byte[] packed = new byte[blocks[b + 1]];
+        byte[] words  = new byte[4 * blocks[b] * nTC];
+
+        in.readFully( packed );
+
+        inflater.reset(  );
+        inflater.setInput( packed );
+
+        if( 
+          ( inflater.inflate( words ) != words.length ) ||
+            !inflater.finished(  ) ) {
+          return report( runID, "BatchExport block " + ( b / 2 ) + " is the wrong size" );
+        }
+
+        for( int s = 0; s < blocks[b]; s++, spectrum++ ) {
+          if( spectrum >= nSpec ) {
+            continue;
+          }
+
+          float[] expected = rawfile.Get1DSpectrum( spectrum + 1 );
+          int     value    = 0;
+
+          for( int i = 0; i < nTC; i++ ) {
+            int at = 4 * ( ( s * nTC ) + i );
+
+            value += ( ( words[at] & 0xff ) << 24 ) |
+              ( ( words[at + 1] & 0xff ) << 16 ) |
+              ( ( words[at + 2] & 0xff ) << 8 ) | ( words[at + 3] & 0xff );
+
+            if( value != ( int )expected[i] ) {
+              return report( 
+                runID, "BatchExport spectrum " + spectrum + " channel " + i +
+                ": " + value + " != " + ( int )expected[i] );
+            }
+          }
+        }
+      }
+    } catch( DataFormatException e ) {
+      return report( runID, "BatchExport counts could not be decompressed: " + e );
+    } finally {
+      inflater.end(  );
+    }
+
+    if( spectrum < nSpec ) {
+      return report( runID, "BatchExport has " + spectrum + " spectra, not " + nSpec );
+    }
+
+    return 0;
+  }
+
+  /**
+   * Compares the two theta, L2 and user table averages from
+   * ISISio.readData for every spectrum with averages worked out from
+   * Rawfile, and the user tables with those written to the file if they are
+   * known.
+   */
+  private int compareAverages( 
+    String runID, Rawfile rawfile, int nSpec, int nTC, float[][] expected ) {
+    RefInt nTCRef   = new RefInt(  );
+    RefInt nDetRef  = new RefInt(  );
+    RefInt nUseRef  = new RefInt(  );
+
+    if( io.openDataFile( runID, nTCRef, nDetRef, nUseRef ) != 0 ) {
+      return report( runID, "openDataFile failed" );
     }
 
-    System.out.println( "Read spectrum " + iSpec );
+    int nDet = nDetRef.innerInt;
+    int nUse = nUseRef.innerInt;
 
-    for( int i = 1; i <= Math.min( 10, NTCB ); i++ ) {
-      //WRITE(6,9010) TCB(I), COUNTS(I)
-      System.out.println( "TOF = " + TCB[i] + ", Counts = " + counts[i] );
+    if( ( expected != null ) && ( nUse != expected.length ) ) {
+      return report( runID, nUse + " user tables, " + expected.length +
+        " were written" );
     }
 
-    //9010 FORMAT('TOF = ', G12.3, ', Counts = ', I7)
+    //the same sums in detector order that readData makes
+    int[]     spec   = rawfile.GetDetectorTable(  ).getSpectra(  );
+    int[]     numDet = new int[nSpec];
+    float[]   tthe   = new float[nSpec];
+    float[]   L2     = new float[nSpec];
+    float[][] ut     = new float[nSpec][nUse];
+
+    for( int d = 1; d <= nDet; d++ ) {
+      int s = spec[d - 1] - 1;
+
+      if( ( s < 0 ) || ( s >= nSpec ) ) {
+        continue;
+      }
+
+      float[] values = rawfile.UserTableValues( d );
+
+      for( int n = 0; n < nUse; n++ ) {
+        if( 
+          ( expected != null ) &&
+            ( Float.floatToIntBits( values[n] ) != Float.floatToIntBits( 
+              expected[n][d - 1] ) ) ) {
+          return report( 
+            runID, "UT" + ( n + 1 ) + " for detector " + d + ": " + values[n] +
+            " was written as " + expected[n][d - 1] );
+        }
+
+        ut[s][n] += values[n];
+      }
+
+      tthe[s] += rawfile.DetectorAngle( d );
+      L2[s] += rawfile.FlightPath( d );
+      numDet[s]++;
+    }
+
+    float[]   deltaWork  = new float[nDet];
+    int[]     specWork   = new int[nDet];
+    float[]   ttheWork   = new float[nDet];
+    float[]   L2Work     = new float[nDet];
+    float[]   TCB        = new float[nTC];
+    int[]     iDat       = new int[nTC];
+    float[]   userTables = new float[nUse];
+    RefFloat  L1         = new RefFloat(  );
+    RefFloat  L2Ref      = new RefFloat(  );
+    RefFloat  ttheRef    = new RefFloat(  );
+    RefFloat  delta      = new RefFloat(  );
+    RefFloat  duration   = new RefFloat(  );
+    RefString runTitle   = new RefString(  );
+    RefString time       = new RefString(  );
+    RefString userName   = new RefString(  );
+    RefString instName   = new RefString(  );
+    RefString runNo      = new RefString(  );
+
+    //quick, since the run details are not compared
+    for( int s = 0; s < nSpec; s++ ) {
+      int errCode = io.readData( 
+          io.getHandle(  ).getFileName(  ), s, deltaWork, specWork, ttheWork,
+          L2Work, nDet, TCB, iDat, nTC, L1, L2Ref, ttheRef, delta, 0.0f,
+          runTitle, duration, time, userName, instName, runNo, userTables,
+          nUse, 1 );
+
+      if( errCode != 0 ) {
+        return report( 
+          runID, "readData error " + errCode + " for spectrum " + s );
+      }
+
+      if( numDet[s] != 0 ) {
+        tthe[s] /= ( float )numDet[s];
+        L2[s] /= ( float )numDet[s];
+
+        for( int n = 0; n < nUse; n++ ) {
+          ut[s][n] /= ( float )numDet[s];
+        }
+      }
+
+      if( 
+        ( Float.floatToIntBits( ttheRef.innerFloat ) != Float.floatToIntBits( 
+            tthe[s] ) ) ||
+          ( Float.floatToIntBits( L2Ref.innerFloat ) != Float.floatToIntBits( 
+            L2[s] ) ) ) {
+        return report( 
+          runID, "readData averages for spectrum " + s + ": " +
+          ttheRef.innerFloat + ", " + L2Ref.innerFloat + " != " + tthe[s] +
+          ", " + L2[s] );
+      }
+
+      for( int n = 0; n < nUse; n++ ) {
+        if( 
+          Float.floatToIntBits( userTables[n] ) != Float.floatToIntBits( 
+              ut[s][n] ) ) {
+          return report( 
+            runID, "readData UT" + ( n + 1 ) + " for spectrum " + s + ": " +
+            userTables[n] + " != " + ut[s][n] );
+        }
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Times how long each reader takes to read every spectrum.  Each reader
+   * reads the whole file repeatedly until it has done so at least repeat
+   * times and at least minSeconds have passed.
+   */
+  private void timeReaders( 
+    String runID, RawHandle h, Rawfile rawfile, int nSpec, int nTC ) {
+    int   perChunk = Math.max( 1, CHUNK_WORDS / nTC );
+    int[] iData    = new int[perChunk * nTC];
+    long  minNanos = ( long )( minSeconds * 1.0e9 );
+    int   n        = 0;
+    long  start    = System.nanoTime(  );
+    long  elapsed;
+
+    do {
+      for( int first = 0; first < nSpec; first += perChunk ) {
+        io.getDat( h, first, Math.min( perChunk, nSpec - first ), iData );
+      }
+
+      n++;
+      elapsed = System.nanoTime(  ) - start;
+    } while( ( n < repeat ) || ( elapsed < minNanos ) );
+
+    double[] ioRun = add( IO, elapsed, n, nSpec, nTC );
+
+    n       = 0;
+    start   = System.nanoTime(  );
+
+    do {
+      for( int s = 1; s <= nSpec; s++ ) {
+        rawfile.Get1DSpectrum( s );
+      }
+
+      n++;
+      elapsed = System.nanoTime(  ) - start;
+    } while( ( n < repeat ) || ( elapsed < minNanos ) );
+
+    double[] rawRun = add( RAW, elapsed, n, nSpec, nTC );
+
+    System.out.println( 
+      runID + ": " + nSpec + " spectra of " + nTC + " channels OK" );
+    System.out.println( "  ISISio:   " + rate( ioRun ) );
+    System.out.println( "  Rawfile:  " + rate( rawRun ) );
+  }
+
+  /**
+   * Adds one file's timing to the totals for a reader.
+   *
+   * @return The bytes, spectra, seconds and repeats for the file.
+   */
+  private double[] add( int reader, long nanos, int n, int nSpec, int nTC ) {
+    double[] run = { 
+        4.0 * nSpec * nTC * n, ( double )nSpec * n, nanos / 1.0e9, n
+      };
+
+    bytes[reader] += ( long )run[0];
+    spectra[reader] += ( long )run[1];
+    seconds[reader] += run[2];
+    repeats[reader] += n;
+
+    return run;
+  }
+
+  private String rate( int reader ) {
+    return rate( 
+      new double[] { 
+        bytes[reader], spectra[reader], seconds[reader], repeats[reader]
+      } );
+  }
+
+  private static String rate( double[] run ) {
+    return ( int )( run[0] / run[2] / 1.0e6 ) + " MB/s, " +
+    ( long )( run[1] / run[2] ) + " spectra/s (" + ( long )run[3] +
+    " repeats in " + ( ( long )( run[2] * 1000 ) / 1000.0 ) + " s)";
+  }
+
+  private static int report( String runID, String message ) {
+    System.out.println( runID + ": " + message );
+
+    return 1;
+  }
+
+  private static void addFiles( File file, Vector files ) {
+    if( file.isDirectory(  ) ) {
+      File[] list = file.listFiles(  );
+
+      for( int i = 0; ( list != null ) && ( i < list.length ); i++ ) {
+        if( list[i].getName(  ).toLowerCase(  ).endsWith( ".raw" ) ) {
+          files.add( list[i].getPath(  ) );
+        }
+      }
+    } else {
+      files.add( file.getPath(  ) );
+    }
   }
 }
@@ -0,0 +1,261 @@
+/*
+ * File:  RawHandle.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * $Log$
+ */
+package ISIS.JLibGet;
+
+import java.util.Hashtable;
+
+
+/**
+ * An open RAW file and the values that ISISio needs to find its way around
+ * it (the crpt_SPECIALS common block of the original Fortran).  A handle
+ * does not change once it has been opened, so any number of threads can
+ * read from the same handle, and from different handles, through ISISio at
+ * the same time.
+ */
+public final class RawHandle {
+  //~ Instance fields **********************************************************
+
+  //crpt_SPECIALS common block start
+  final String  fileName;
+  final int     ver1;
+  final int[]   iFormat    = new int[10];
+  final int[]   iVer       = new int[10];
+  final int     nDet;
+  final int     nMon;
+  final int     nEff;
+  final int     nSep;
+  final int     nTRG;
+  final int     NSP1;
+  final int     NTC1;
+  final int     uLen;
+  final int     nPer;
+  final int[]   dataHeader = new int[32];
+  final GetSect getSect;
+
+  //crpt_SPECIALS common block end
+  //parameters already read from the file by getPari and getParr, keyed by
+  //name
+  final Hashtable pariCache = new Hashtable(  );
+  final Hashtable parrCache = new Hashtable(  );
+
+  //the detector tables averaged by spectrum for readData, worked out the
+  //first time they are needed
+  volatile SpectrumAverages averages;
+
+  //~ Constructors *************************************************************
+
+  /**
+   * Picks out the vital parameters of a file that has already been opened.
+   *
+   * @param runID The name of the file.
+   * @param getSect The opened file.
+   */
+  private RawHandle( String runID, GetSect getSect ) {
+    IntConvert intConvert = new IntConvert(  );
+    int[]      iTemp      = new int[3];
+    int[]      someInt    = new int[1];
+
+    this.getSect = getSect;
+
+    //  version number
+    getSect.getSect( 21, 1, iTemp, 49 );
+    ver1 = intConvert.VAXToLocalInt( iTemp[0] );
+
+    //  Format section
+    getSect.getSect( 22, 10, iFormat, 49 );
+    intConvert.VAXToLocalInts( iFormat );
+
+    //  RUN section
+    getSect.getSect( iFormat[0], 1, someInt, 49 );
+    iVer[0] = intConvert.VAXToLocalInt( someInt[0] );
+
+    //  Instrument section
+    getSect.getSect( iFormat[1], 1, someInt, 49 );
+    iVer[1] = intConvert.VAXToLocalInt( someInt[0] );
+
+    //  nDet,nMon,nEff
+    getSect.getSect( iFormat[1] + 67, 3, iTemp, 49 );
+    intConvert.VAXToLocalInts( iTemp );
+    nDet   = iTemp[0];
+    nMon   = iTemp[1];
+    nEff   = iTemp[2];
+
+    //  SE section
+    getSect.getSect( iFormat[2], 1, someInt, 49 );
+    iVer[2] = intConvert.VAXToLocalInt( someInt[0] );
+
+    //  nSep
+    if( iVer[2] == 1 ) {
+      getSect.getSect( iFormat[2] + 33, 1, iTemp, 49 );
+    } else {
+      getSect.getSect( iFormat[2] + 65, 1, iTemp, 49 );
+    }
+
+    nSep = intConvert.VAXToLocalInt( iTemp[0] );
+
+    //  DAE section
+    getSect.getSect( iFormat[3], 1, someInt, 49 );
+    iVer[3] = intConvert.VAXToLocalInt( someInt[0] );
+
+    //  TCB section
+    getSect.getSect( iFormat[4], 1, someInt, 49 );
+    iVer[4] = intConvert.VAXToLocalInt( someInt[0] );
+
+    //  nTRG
+    getSect.getSect( iFormat[4] + 1, 1, iTemp, 49 );
+    nTRG = intConvert.VAXToLocalInt( iTemp[0] );
+
+    //original: IF (NTRG .NE. 1) WRITE(6,*) 'NTRG Problem', NTRG
+    //this is not treated as an error
+    //  nPer
+    getSect.getSect( iFormat[4] + 3, 1, iTemp, 49 );
+    nPer = intConvert.VAXToLocalInt( iTemp[0] );
+
+    //  NSP1,NTC1
+    getSect.getSect( iFormat[4] + 260, 2, iTemp, 49 );
+    intConvert.VAXToLocalInts( iTemp );
+    NSP1   = iTemp[0];
+    NTC1   = iTemp[1];
+
+    //  USER section
+    if( ver1 == 1 ) {
+      uLen      = 0;
+      iVer[5]   = 0;
+    } else {
+      getSect.getSect( iFormat[5], 1, someInt, 49 );
+      iVer[5] = intConvert.VAXToLocalInt( someInt[0] );
+      getSect.getSect( iFormat[5] + 1, 1, iTemp, 49 );
+      uLen = intConvert.VAXToLocalInt( iTemp[0] );
+    }
+
+    //  DATA and NOTES section
+    if( ver1 == 1 ) {
+      getSect.getSect( iFormat[5], 1, someInt, 49 );
+      iVer[6] = someInt[0];
+
+      if( iFormat[6] != 0 ) {
+        getSect.getSect( iFormat[6], 1, someInt, 49 );
+        iVer[7] = intConvert.VAXToLocalInt( someInt[0] );
+      } else {
+        iVer[7] = 0;
+      }
+    } else {
+      getSect.getSect( iFormat[6], 1, someInt, 49 );
+      iVer[6] = someInt[0];
+
+      if( iFormat[7] != 0 ) {
+        getSect.getSect( iFormat[7], 1, someInt, 49 );
+        iVer[7] = intConvert.VAXToLocalInt( someInt[0] );
+      } else {
+        iVer[7] = 0;
+      }
+    }
+
+    iVer[6] = intConvert.VAXToLocalInt( iVer[6] );
+
+    // DATA section header
+    if( ( iVer[6] >= 2 ) ) {
+      getSect.getSect( iFormat[6] + 1, 32, dataHeader, 49 );
+      intConvert.VAXToLocalInts( dataHeader );
+    }
+
+    //  finally store the file name
+    fileName = runID;
+  }
+
+  //~ Methods ******************************************************************
+
+  /**
+   * Opens a RAW data file for reading.
+   *
+   * @param runID The name of the file.
+   *
+   * @return The handle for the file, or null if the file does not exist or
+   *         could not be opened.
+   */
+  public static RawHandle open( String runID ) {
+    //original: INQUIRE(FILE=RUNID(1:I),EXIST=FOUND)
+    if( ( runID == null ) || !new java.io.File( runID ).exists(  ) ) {
+      return null;
+    }
+
+    GetSect getSect = new GetSect(  );
+
+    if( getSect.fastGetInit( runID, 49 ) != 0 ) {
+      return null;
+    }
+
+    return new RawHandle( runID, getSect );
+  }
+
+  /**
+   * Closes the file.  The handle cannot be used after it has been closed.
+   */
+  public void close(  ) {
+    getSect.close(  );
+  }
+
+  /**
+   * @return The name of the file.
+   */
+  public String getFileName(  ) {
+    return fileName;
+  }
+
+  /**
+   * @return The number of spectra in each period, not counting spectrum 0.
+   */
+  public int getNumSpectra(  ) {
+    return NSP1;
+  }
+
+  /**
+   * @return The number of time channels, not counting time channel 0.
+   */
+  public int getNumTimeChannels(  ) {
+    return NTC1;
+  }
+
+  /**
+   * @return The number of periods.
+   */
+  public int getNumPeriods(  ) {
+    return nPer;
+  }
+
+  /**
+   * @return The number of detectors.
+   */
+  public int getNumDetectors(  ) {
+    return nDet;
+  }
+
+  /**
+   * @return The number of user defined UTn tables.
+   */
+  public int getNumUserTables(  ) {
+    return nEff;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * File:  SpectrumAverages.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * $Log$
+ */
+package ISIS.JLibGet;
+
+/**
+ * The two theta, L2, delta and UTn values of a RAW file averaged over the
+ * detectors of each spectrum, as returned by ISISio.readData.  They are
+ * worked out for every spectrum in one pass over the detector tables the
+ * first time readData is called for a file, and kept with the RawHandle.
+ * The sums are made in detector order and then divided by the number of
+ * detectors, exactly as readData did for one spectrum at a time, so the
+ * values are the same.
+ */
+final class SpectrumAverages {
+  //~ Instance fields **********************************************************
+
+  private final int     nUse;
+  private final int[]   numDet;
+  private final float[] tthe;
+  private final float[] L2;
+  private final float[] delta;
+
+  /** The UTn averages, indexed by spectrum * nUse + n. */
+  private final float[] userTables;
+
+  //~ Constructors *************************************************************
+
+  private SpectrumAverages( int nSpec, int nUse ) {
+    this.nUse    = nUse;
+    numDet       = new int[nSpec];
+    tthe         = new float[nSpec];
+    L2           = new float[nSpec];
+    delta        = new float[nSpec];
+    userTables   = new float[nSpec * nUse];
+  }
+
+  //~ Methods ******************************************************************
+
+  /**
+   * Works out the averages for every spectrum of a file.
+   *
+   * @param io The ISISio to read the detector tables with.
+   * @param h The file.
+   *
+   * @return The averages, or null if a detector table could not be read.
+   */
+  static SpectrumAverages build( ISISio io, RawHandle h ) {
+    int              nSpec    = ( h.NSP1 + 1 ) * h.nPer;
+    SpectrumAverages averages = new SpectrumAverages( nSpec, h.nEff );
+    int[]            spec     = new int[h.nDet];
+    float[]          work     = new float[h.nDet];
+
+    if( io.getPari( h, "SPEC", spec ) != 0 ) {
+      return null;
+    }
+
+    for( int i = 0; i < h.nDet; i++ ) {
+      if( ( spec[i] >= 0 ) && ( spec[i] < nSpec ) ) {
+        averages.numDet[spec[i]]++;
+      }
+    }
+
+    if( !averages.sum( io, h, "TTHE", spec, work, averages.tthe, 1, 0 ) ||
+        !averages.sum( io, h, "DELT", spec, work, averages.delta, 1, 0 ) ||
+        !averages.sum( io, h, "LEN2", spec, work, averages.L2, 1, 0 ) ) {
+      return null;
+    }
+
+    //the tables are named from UT1, as the Fortran UT01, UT02, ...
+    for( int n = 0; n < h.nEff; n++ ) {
+      if(
+        !averages.sum(
+            io, h, "UT" + ( n + 1 ), spec, work, averages.userTables, h.nEff,
+            n ) ) {
+        return null;
+      }
+    }
+
+    return averages;
+  }
+
+  /**
+   * Adds up one detector table by spectrum and divides each sum by the
+   * number of detectors in the spectrum.
+   */
+  private boolean sum(
+    ISISio io, RawHandle h, String name, int[] spec, float[] work,
+    float[] result, int stride, int offset ) {
+    if( io.getParr( h, name, work ) != 0 ) {
+      return false;
+    }
+
+    for( int i = 0; i < h.nDet; i++ ) {
+      if( ( spec[i] >= 0 ) && ( spec[i] < numDet.length ) ) {
+        result[( spec[i] * stride ) + offset] += work[i];
+      }
+    }
+
+    for( int s = 0; s < numDet.length; s++ ) {
+      if( numDet[s] != 0 ) {
+        result[( s * stride ) + offset] /= ( float )numDet[s];
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Copies the averages for one spectrum.
+   *
+   * @param iSpec The spectrum.
+   * @param L2 Set to the average secondary flight path.
+   * @param tthe Set to the average two theta.
+   * @param delta Set to the average delta.
+   * @param userTables Set to the average of each UTn table.
+   */
+  void get(
+    int iSpec, RefFloat L2, RefFloat tthe, RefFloat delta, float[] userTables ) {
+    L2.innerFloat      = this.L2[iSpec];
+    tthe.innerFloat    = this.tthe[iSpec];
+    delta.innerFloat   = this.delta[iSpec];
+    System.arraycopy( this.userTables, iSpec * nUse, userTables, 0, nUse );
+  }
+}
@@ -0,0 +1,450 @@
+/*
+ * File:  AsyncRawfile.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Reads a RAW file without blocking the threads that ask for it, so that
+ * a GUI can ask for a spectrum, and for the spectra around it, and carry
+ * on while they are read.  The spectra are read through an
+ * AsynchronousFileChannel, so no thread waits for the disk.  The number
+ * of reads in flight at once is limited, and reads that are waiting to
+ * start are served spectra first, newest first, and then prefetches.
+ * The bytes of the most recently read spectra are kept so that a
+ * spectrum that has been prefetched is delivered without reading it
+ * again.<br>
+ * Each accessor returns a CompletableFuture, which is completed on the
+ * Executor given to the constructor (for a GUI, this could be
+ * <code>SwingUtilities::invokeLater</code>).  The spectra are decoded on
+ * that Executor, and each future gets its own array.  The header sections
+ * are parsed once, on a pooled thread, when the AsyncRawfile is created.
+ * <br>
+ * Spectra are numbered as in Rawfile.Get1DSpectrum(int), so the first
+ * spectrum is at 1.  The spectra of version 1 files stored with data
+ * format 1 are spread out through the file and cannot be read this way.
+ */
+public class AsyncRawfile
+{
+   /** The most spectra kept after they have been read. */
+   private static final int MAX_CACHED = 64;
+
+   /**
+    * A read of the bytes stored for one spectrum.
+    */
+   private static class Read
+   {
+      private int                       spect;
+      private CompletableFuture<byte[]> bytes;
+
+      private Read(int spect, CompletableFuture<byte[]> bytes)
+      {
+         this.spect = spect;
+         this.bytes = bytes;
+      }
+   }
+
+   private String                     filename;
+   private Executor                   executor;
+   private AsynchronousFileChannel    channel;
+   private CompletableFuture<Rawfile> header;
+   /** One permit for each read that may be in flight. */
+   private Semaphore                  inFlight;
+   private boolean                    closed;
+   /** The reads that have not started, in the order they will start. */
+   private Vector<Read>               pending;
+   private Hashtable<Integer,CompletableFuture<byte[]>> cache;
+   /** The cached spectra, oldest first. */
+   private Vector<Integer>            cacheOrder;
+
+   /**
+    * Starts opening a RAW file.  This returns once the file has been
+    * opened, without waiting for its header to be read.
+    * @param filename The name of the file.
+    * @param maxInFlight The most reads that may be in progress at once.
+    * @param executor Completes the futures returned by this class.
+    * @throws IOException If the file could not be opened.
+    */
+   public AsyncRawfile(final String filename, int maxInFlight,
+                       Executor executor) throws IOException
+   {
+      this.filename = filename;
+      this.executor = executor;
+      channel = AsynchronousFileChannel.open(Paths.get(filename),
+                                             StandardOpenOption.READ);
+      inFlight = new Semaphore(Math.max(1,maxInFlight));
+      pending = new Vector<Read>();
+      cache = new Hashtable<Integer,CompletableFuture<byte[]>>();
+      cacheOrder = new Vector<Integer>();
+
+      header = CompletableFuture.supplyAsync(new Supplier<Rawfile>()
+      {
+         public Rawfile get()
+         {
+            Rawfile file = new Rawfile(filename);
+            //the sections are left empty if the file could not be read
+            if (file.getDataSection().getTotalNumSpectra() <= 0)
+               throw new IllegalStateException("Could not read the header of "+filename);
+            return file;
+         }
+      });
+      //the reads need the header to find the spectra
+      header.whenComplete(new BiConsumer<Rawfile,Throwable>()
+      {
+         public void accept(Rawfile file, Throwable error)
+         {
+            startReads();
+         }
+      });
+   }
+
+   /**
+    * Get the Rawfile, once its header sections have been read, so that
+    * its header methods do not block.
+    * @return The future Rawfile, which completes exceptionally if the
+    * file could not be read.
+    */
+   public CompletableFuture<Rawfile> getRawfile()
+   {
+      return header.thenApplyAsync(Function.<Rawfile>identity(),executor);
+   }
+
+   /**
+    * Get the time channel boundaries for a detector, as from
+    * Rawfile.TimeChannelBoundaries(int).
+    * @param id The detector (the first detector is at 1).
+    * @return The future boundaries, which are <code>null</code> if
+    * <code>id</code> is invalid.
+    */
+   public CompletableFuture<float[]> getTimeChannelBoundaries(final int id)
+   {
+      return header.thenApplyAsync(new Function<Rawfile,float[]>()
+      {
+         public float[] apply(Rawfile file)
+         {
+            return file.TimeChannelBoundaries(id);
+         }
+      },executor);
+   }
+
+   /**
+    * Get the time channel boundaries for a time regime, as from
+    * Rawfile.TimeChannelBoundariesForRegime(int).
+    * @param num The time regime (the first time regime is at 1).
+    * @return The future boundaries, which are <code>null</code> if
+    * <code>num</code> is invalid.
+    */
+   public CompletableFuture<float[]> getTimeChannelBoundariesForRegime(final int num)
+   {
+      return header.thenApplyAsync(new Function<Rawfile,float[]>()
+      {
+         public float[] apply(Rawfile file)
+         {
+            return file.TimeChannelBoundariesForRegime(num);
+         }
+      },executor);
+   }
+
+   /**
+    * Asks for a spectrum to be read.  This returns straight away.
+    * @param spect The spectrum.
+    * @return The future counts, as from Rawfile.Get1DSpectrum(int), which
+    * completes exceptionally if the spectrum could not be read.
+    */
+   public CompletableFuture<float[]> getSpectrum(final int spect)
+   {
+      return fetch(spect,false).thenApplyAsync(new Function<byte[],float[]>()
+      {
+         public float[] apply(byte[] bytes)
+         {
+            return decode(spect,bytes);
+         }
+      },executor);
+   }
+
+   /**
+    * Asks for the spectra either side of a spectrum to be read, after
+    * any spectra that have been asked for with getSpectrum(), so that
+    * they can be delivered straight away if they are asked for later.
+    * @param spect The spectrum.
+    * @param radius The number of spectra either side of
+    * <code>spect</code> to read.
+    */
+   public void prefetch(int spect, int radius)
+   {
+      for (int d=1; d<=radius; d++)
+      {
+         fetch(spect+d,true);
+         if (spect-d >= 1)
+            fetch(spect-d,true);
+      }
+   }
+
+   /**
+    * Closes the file.  Reads that have not finished complete
+    * exceptionally.
+    */
+   public void close()
+   {
+      Vector<Read> dropped;
+      synchronized (this)
+      {
+         if (closed)
+            return;
+         closed = true;
+         dropped = pending;
+         pending = new Vector<Read>();
+      }
+      for (int i=0; i<dropped.size(); i++)
+         dropped.elementAt(i).bytes.completeExceptionally(new ClosedChannelException());
+      try
+      {
+         channel.close();
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+      }
+      header.thenAccept(new Consumer<Rawfile>()
+      {
+         public void accept(Rawfile file)
+         {
+            file.Close();
+         }
+      });
+   }
+
+   /**
+    * Get the bytes of a spectrum, from the cache or by queueing a read.
+    * @param prefetch True to queue the read behind every read that was
+    * asked for by getSpectrum().
+    */
+   private CompletableFuture<byte[]> fetch(int spect, boolean prefetch)
+   {
+      Integer key = new Integer(spect);
+      CompletableFuture<byte[]> bytes;
+      synchronized (this)
+      {
+         bytes = cache.get(key);
+         if (bytes != null && !bytes.isCompletedExceptionally())
+         {
+            //a spectrum that is wanted now is read before any prefetch
+            if (!prefetch)
+               for (int i=0; i<pending.size(); i++)
+                  if (pending.elementAt(i).spect == spect)
+                  {
+                     pending.add(0,pending.remove(i));
+                     break;
+                  }
+            return bytes;
+         }
+
+         bytes = new CompletableFuture<byte[]>();
+         if (closed)
+         {
+            bytes.completeExceptionally(new ClosedChannelException());
+            return bytes;
+         }
+         if (cache.put(key,bytes) == null)
+            cacheOrder.add(key);
+         if (cacheOrder.size() > MAX_CACHED)
+            cache.remove(cacheOrder.remove(0));
+
+         Read read = new Read(spect,bytes);
+         if (prefetch)
+            pending.add(read);
+         else
+            pending.add(0,read);
+      }
+      startReads();
+      return bytes;
+   }
+
+   /**
+    * Starts as many pending reads as there are permits for.  This is
+    * called when a read is queued, when a read finishes and when the
+    * header has been read.
+    */
+   private void startReads()
+   {
+      if (!header.isDone())
+         return;
+      while (inFlight.tryAcquire())
+      {
+         Read read = null;
+         synchronized (this)
+         {
+            if (!pending.isEmpty())
+               read = pending.remove(0);
+         }
+         if (read == null)
+         {
+            inFlight.release();
+            //a read queued after the check above may have found no permit
+            synchronized (this)
+            {
+               if (pending.isEmpty())
+                  return;
+            }
+         }
+         else
+            start(read);
+      }
+   }
+
+   /**
+    * Starts reading the bytes of a spectrum, holding a permit until the
+    * read has finished.
+    */
+   private void start(final Read read)
+   {
+      final long[] block = new long[2];
+      Rawfile file = header.getNow(null);
+      if (file == null || !file.getDataSection().getSpectrumBlock(read.spect,block))
+      {
+         finish(read,null,new IOException("Spectrum "+read.spect+
+                                          " cannot be read from "+filename));
+         return;
+      }
+
+      final ByteBuffer buffer = ByteBuffer.allocate((int)block[1]);
+      try
+      {
+         channel.read(buffer,block[0],null,new CompletionHandler<Integer,Object>()
+         {
+            public void completed(Integer count, Object attachment)
+            {
+               if (count.intValue() < 0)
+                  failed(new IOException("Spectrum "+read.spect+
+                                         " runs past the end of "+filename),attachment);
+               else if (buffer.hasRemaining())
+                  channel.read(buffer,block[0]+buffer.position(),attachment,this);
+               else
+                  finish(read,buffer.array(),null);
+            }
+
+            public void failed(Throwable error, Object attachment)
+            {
+               finish(read,null,error);
+            }
+         });
+      }
+      catch (RuntimeException e)
+      {
+         //the channel has been closed
+         finish(read,null,e);
+      }
+   }
+
+   private void finish(Read read, byte[] bytes, Throwable error)
+   {
+      inFlight.release();
+      if (error == null)
+         read.bytes.complete(bytes);
+      else
+         read.bytes.completeExceptionally(error);
+      startReads();
+   }
+
+   /**
+    * Decodes the bytes of a spectrum as Rawfile.Get1DSpectrum(int) does.
+    */
+   private float[] decode(int spect, byte[] bytes)
+   {
+      DataSection data = header.join().getDataSection();
+      SpectrumBuffer buffer = new SpectrumBuffer();
+      System.arraycopy(bytes,0,buffer.reserve(bytes.length),0,bytes.length);
+      buffer.rewind(data.isCompressed());
+      float[] counts = new float[data.getNumChannelsForSpectrum(spect)];
+      for (int j=0; j<counts.length; j++)
+         counts[j] = buffer.next();
+      return counts;
+   }
+
+   /**
+    * Testbed.  Asks for every 10th spectrum of the specified file, with
+    * the two spectra either side of each prefetched, and then asks for the
+    * prefetched spectra, checking each against Rawfile.Get1DSpectrum(int).
+    */
+   public static void main(String[] args) throws Exception
+   {
+      java.util.concurrent.ExecutorService executor =
+         java.util.concurrent.Executors.newSingleThreadExecutor();
+      AsyncRawfile async = new AsyncRawfile(args[0],4,executor);
+      Rawfile rawfile = async.getRawfile().join();
+      System.out.println("Opened run "+rawfile.RunNumber());
+      int nspec = rawfile.getDataSection().getTotalNumSpectra();
+
+      long start = System.nanoTime();
+      Vector<CompletableFuture<float[]>> requested = new Vector<CompletableFuture<float[]>>();
+      for (int s=1; s<=nspec; s+=10)
+      {
+         requested.add(async.getSpectrum(s));
+         async.prefetch(s,2);
+      }
+      CompletableFuture.allOf(requested.toArray(new CompletableFuture[0])).join();
+      System.out.println("Requested spectra read in "+
+                         (System.nanoTime()-start)/1000000+" ms");
+
+      start = System.nanoTime();
+      Vector<CompletableFuture<float[]>> prefetched = new Vector<CompletableFuture<float[]>>();
+      for (int s=1; s<=nspec; s+=10)
+         prefetched.add(async.getSpectrum(Math.min(s+1,nspec)));
+      CompletableFuture.allOf(prefetched.toArray(new CompletableFuture[0])).join();
+      System.out.println("Prefetched spectra read in "+
+                         (System.nanoTime()-start)/1000000+" ms");
+
+      int bad = 0;
+      for (int i=0; i<requested.size(); i++)
+      {
+         int s = 1+10*i;
+         if (!java.util.Arrays.equals(requested.elementAt(i).join(),rawfile.Get1DSpectrum(s)) ||
+             !java.util.Arrays.equals(prefetched.elementAt(i).join(),
+                                      rawfile.Get1DSpectrum(Math.min(s+1,nspec))))
+            bad++;
+      }
+      System.out.println(bad+" of "+requested.size()+" pairs of spectra differ from Get1DSpectrum");
+      async.close();
+      executor.shutdown();
+   }
+}
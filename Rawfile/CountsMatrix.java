@@ -0,0 +1,314 @@
+/*
+ * File:  CountsMatrix.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * The counts for every spectrum of a RAW file as one matrix with a row for
+ * each spectrum and a column for each time channel.  The counts are kept
+ * outside of the Java heap in direct buffers, so even a matrix of several
+ * gigabytes adds almost nothing to the work the garbage collector does.
+ * A direct buffer cannot hold more than 2 GB, so the rows are split
+ * between as many buffers as are needed, each holding a whole number of
+ * rows.<br>
+ * Rows are numbered as the spectra in Rawfile.Get1DSpectrum(int), so the
+ * first row is 1, and column 0 is the zeroth time channel.  Spectra with
+ * fewer time channels than the longest spectrum are padded with zeros.<br>
+ * The memory is not given back until release() is called (or, failing
+ * that, until the matrix is garbage collected).
+ */
+public class CountsMatrix
+{
+   /** The most bytes held by one buffer. */
+   private static final int MAX_SLAB_BYTES = 1 << 30;
+
+   private int          numRows;
+   private int          numCols;
+   private int          rowsPerSlab;
+   private IntBuffer[]  slabs;
+   private ByteBuffer[] memory;
+
+   private CountsMatrix(int numRows, int numCols)
+   {
+      this.numRows = numRows;
+      this.numCols = numCols;
+      rowsPerSlab = Math.max(1,MAX_SLAB_BYTES/(4*Math.max(1,numCols)));
+      int numSlabs = (numRows+rowsPerSlab-1)/rowsPerSlab;
+      slabs = new IntBuffer[numSlabs];
+      memory = new ByteBuffer[numSlabs];
+      for (int i=0; i<numSlabs; i++)
+      {
+         int rows = Math.min(rowsPerSlab,numRows-i*rowsPerSlab);
+         memory[i] = ByteBuffer.allocateDirect(4*rows*numCols)
+                               .order(ByteOrder.nativeOrder());
+         slabs[i] = memory[i].asIntBuffer();
+      }
+   }
+
+   /**
+    * Reads every spectrum of a RAW file into a new matrix.  The spectra
+    * are read on several threads at once, each decoding its own range of
+    * spectra straight into the matrix.
+    * @param rawfile The RAW file.
+    * @return The matrix or <code>null</code> if the file could not be
+    * read.
+    */
+   public static CountsMatrix load(Rawfile rawfile)
+   {
+      final DataSection data = rawfile.getDataSection();
+      int nspec = data.getTotalNumSpectra();
+      if (nspec < 1)
+         return null;
+
+      int ncols = 0;
+      for (int i=1; i<=nspec; i++)
+         ncols = Math.max(ncols,data.getNumChannelsForSpectrum(i));
+
+      final CountsMatrix matrix;
+      try
+      {
+         matrix = new CountsMatrix(nspec,ncols);
+      }
+      catch (OutOfMemoryError e)
+      {
+         System.out.println("There is not enough memory for "+nspec+
+                            " spectra of "+ncols+" time channels");
+         return null;
+      }
+
+      boolean ok = ParallelSpectra.forEachChunk(rawfile.getFileName(),1,nspec,
+                                                ParallelSpectra.numThreads(nspec),
+         new ParallelSpectra.Chunk()
+         {
+            public void process(RandomAccessFile file, SpectrumBuffer buffer,
+                                int first, int last) throws IOException
+            {
+               for (int i=first; i<=last; i++)
+               {
+                  int size = data.loadSpectrum(file,i,buffer);
+                  if (size < 0)
+                     throw new IOException("Spectrum "+i+" could not be read");
+                  IntBuffer slab = matrix.slabs[(i-1)/matrix.rowsPerSlab];
+                  int index = ((i-1)%matrix.rowsPerSlab)*matrix.numCols;
+                  for (int j=0; j<size; j++)
+                     slab.put(index+j,buffer.next());
+               }
+            }
+         });
+      if (!ok)
+      {
+         matrix.release();
+         return null;
+      }
+      return matrix;
+   }
+
+   /**
+    * Get the number of rows (spectra).
+    * @return The number of rows.
+    */
+   public int getNumRows()
+   {
+      return numRows;
+   }
+
+   /**
+    * Get the number of columns (time channels, including the zeroth
+    * time channel, of the longest spectrum).
+    * @return The number of columns.
+    */
+   public int getNumCols()
+   {
+      return numCols;
+   }
+
+   /**
+    * Get the counts in one time channel of one spectrum.
+    * @param row The spectrum (the first spectrum is at 1).
+    * @param col The time channel.
+    * @return The counts or -1 if <code>row</code> or <code>col</code> is
+    * invalid or the matrix has been released.
+    */
+   public int get(int row, int col)
+   {
+      if (slabs==null || row<1 || row>numRows || col<0 || col>=numCols)
+         return -1;
+      return slabs[(row-1)/rowsPerSlab].get(((row-1)%rowsPerSlab)*numCols+col);
+   }
+
+   /**
+    * Copies one spectrum into <code>out</code>.
+    * @param row The spectrum (the first spectrum is at 1).
+    * @param out The array to copy into.  It must have at least
+    * getNumCols() elements.
+    * @return True if the row was copied and false if <code>row</code> is
+    * invalid, <code>out</code> is too short or the matrix has been
+    * released.
+    */
+   public boolean getRow(int row, int[] out)
+   {
+      if (slabs==null || row<1 || row>numRows || out==null || out.length<numCols)
+         return false;
+      IntBuffer view = slabs[(row-1)/rowsPerSlab].duplicate();
+      view.position(((row-1)%rowsPerSlab)*numCols);
+      view.get(out,0,numCols);
+      return true;
+   }
+
+   /**
+    * Get a view of one spectrum in the matrix, without copying it.  The
+    * view must not be used after the matrix has been released.
+    * @param row The spectrum (the first spectrum is at 1).
+    * @return The view or <code>null</code> if <code>row</code> is invalid
+    * or the matrix has been released.
+    */
+   public IntBuffer getRowView(int row)
+   {
+      if (slabs==null || row<1 || row>numRows)
+         return null;
+      IntBuffer view = slabs[(row-1)/rowsPerSlab].duplicate();
+      int start = ((row-1)%rowsPerSlab)*numCols;
+      view.position(start);
+      view.limit(start+numCols);
+      return view.slice();
+   }
+
+   /**
+    * Copies one time channel of every spectrum into <code>out</code>.
+    * Element i-1 is spectrum i.
+    * @param col The time channel.
+    * @param out The array to copy into.  It must have at least
+    * getNumRows() elements.
+    * @return True if the column was copied and false if <code>col</code>
+    * is invalid, <code>out</code> is too short or the matrix has been
+    * released.
+    */
+   public boolean getColumn(int col, int[] out)
+   {
+      if (slabs==null || col<0 || col>=numCols || out==null || out.length<numRows)
+         return false;
+      for (int i=0; i<numRows; i++)
+         out[i] = slabs[i/rowsPerSlab].get((i%rowsPerSlab)*numCols+col);
+      return true;
+   }
+
+   /**
+    * Gives the memory held by the matrix back to the system straight
+    * away, rather than when the matrix is garbage collected.  The matrix,
+    * and any views of it, cannot be used afterwards, so this must not be
+    * called while another thread may still be reading from the matrix.
+    */
+   public void release()
+   {
+      if (memory == null)
+         return;
+      ByteBuffer[] buffers = memory;
+      slabs = null;
+      memory = null;
+      for (int i=0; i<buffers.length; i++)
+         free(buffers[i]);
+   }
+
+   /**
+    * Frees a direct buffer.  There is no public way to do this, so the
+    * method that the JDK provides (Unsafe.invokeCleaner() from Java 9, or
+    * the buffer's cleaner before that) is found by reflection.  If neither
+    * can be found, the buffer is left for the garbage collector.
+    */
+   private static void free(ByteBuffer buffer)
+   {
+      try
+      {
+         Class unsafeClass = Class.forName("sun.misc.Unsafe");
+         Field field = unsafeClass.getDeclaredField("theUnsafe");
+         field.setAccessible(true);
+         Method clean = unsafeClass.getMethod("invokeCleaner",
+                                              new Class[] { ByteBuffer.class });
+         clean.invoke(field.get(null),new Object[] { buffer });
+         return;
+      }
+      catch (Exception e)
+      {
+         //not Java 9 or later
+      }
+
+      try
+      {
+         Method getCleaner = buffer.getClass().getMethod("cleaner",new Class[0]);
+         getCleaner.setAccessible(true);
+         Object cleaner = getCleaner.invoke(buffer,new Object[0]);
+         if (cleaner != null)
+            cleaner.getClass().getMethod("clean",new Class[0])
+                   .invoke(cleaner,new Object[0]);
+      }
+      catch (Exception e)
+      {
+         //leave it for the garbage collector
+      }
+   }
+
+   /**
+    * Testbed.  Loads the specified file and checks the matrix against
+    * Rawfile.Get1DSpectrum(int).
+    */
+   public static void main(String[] args)
+   {
+      Rawfile rawfile = new Rawfile(args[0]);
+      long start = System.currentTimeMillis();
+      CountsMatrix matrix = load(rawfile);
+      long time = System.currentTimeMillis()-start;
+      if (matrix == null)
+      {
+         System.out.println("The file could not be read");
+         return;
+      }
+      System.out.println(matrix.getNumRows()+" x "+matrix.getNumCols()+
+                         " loaded in "+time+" ms");
+
+      int bad = 0;
+      int[] row = new int[matrix.getNumCols()];
+      for (int i=1; i<=matrix.getNumRows(); i++)
+      {
+         float[] expected = rawfile.Get1DSpectrum(i);
+         matrix.getRow(i,row);
+         for (int j=0; j<expected.length; j++)
+            if (expected[j] != row[j])
+               bad++;
+      }
+      System.out.println(bad+" counts differ");
+      matrix.release();
+      rawfile.Close();
+   }
+}
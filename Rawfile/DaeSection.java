@@ -832,4 +832,19 @@ public class DaeSection {
    {
       return regimeInfoInformant.getMinRegimeNumber();
    }
+
+   /**
+    * Adds the per-detector tables to a hash.
+    * @param hash The hash so far.
+    * @return The new hash.
+    */
+   long fingerprint(long hash)
+   {
+      hash = Fingerprint.add(hash,crateNum);
+      hash = Fingerprint.add(hash,inputNum);
+      hash = Fingerprint.add(hash,moduleNum);
+      hash = Fingerprint.add(hash,timeRegimeTable);
+      hash = Fingerprint.add(hash,userDetectorNumber);
+      return hash;
+   }
 }
@@ -132,6 +132,30 @@ public class DataSection {
    * time regime information.
    */
   private TimeSection timeSection;
+  
+  /**
+   * The number (as used by get1DSpectrum) of the first spectrum in 
+   * each time regime.  The ith element corresponds to the (i+1)th 
+   * time regime and the last element is one more than the total 
+   * number of spectra.  The length of this array is one more than 
+   * the number of time regimes.
+   */
+  private int[] regimeFirstSpectrum;
+  
+  /**
+   * The number of words (time channels plus the zeroth time channel) 
+   * stored for each spectrum in each time regime.  The ith element 
+   * corresponds to the (i+1)th time regime.
+   */
+  private int[] regimeNumChannels;
+  
+  /**
+   * For version 1 data, the offset (in words, from the first data 
+   * word after the version number) of the block of data for each 
+   * time regime.  The ith element corresponds to the (i+1)th time 
+   * regime.
+   */
+  private int[] regimeWordOffset;
 
   //~ Constructors -------------------------------------------------------------
 
@@ -152,6 +176,9 @@ public class DataSection {
      startAddress = -1;
      dataFormat = -1;
      timeSection = new TimeSection();
+     regimeFirstSpectrum = new int[] { 1 };
+     regimeNumChannels = new int[0];
+     regimeWordOffset = new int[0];
   }
 
   /**
@@ -173,6 +200,7 @@ public class DataSection {
       if( version == 1 ) {
         //dealt with in Get1DSpectrum
         dataFormat = header.getDataFormatFlag();
+        computeRegimeLayout( ts );
       } else if( version == 2 ) {
         compressionType             = Header.readUnsignedInteger( rawFile, 4 );
         reserved                    = Header.readUnsignedInteger( rawFile, 4 );
@@ -180,13 +208,7 @@ public class DataSection {
         equivV1FileSize             = Header.readUnsignedInteger( rawFile, 4 );
         compRatioDataSect           = ( float )Header.ReadVAXReal4( rawFile );
         compRatioWholeFile          = ( float )Header.ReadVAXReal4( rawFile );
-        nspec                       = 0;
-        
-        int min = timeSection.getMinimumRegimeNumber();
-        int max = timeSection.getMaximumRegimeNumber();
-        
-        for( int ii = min; ii <= max; ii++ )
-          nspec += ts.getNumSpectraForRegime(ii);
+        computeRegimeLayout( ts );
 
         spectrumDescArray = new int[( 2 * nspec ) + 1];
         rawFile.seek( startAddress + ( offsetToSpectrumDescArray * 4 ) );
@@ -348,13 +370,16 @@ public class DataSection {
       float[] result = null;
       if (spect>=1 && spect<=nspec)
       {
-         spect--;
          try
          {
-            if (version == 1)
-               result = getDataForDataVersion1(rawFile,spect,ts);
-            else if (version == 2)
-               result = getDataForDataVersion2(rawFile,spect,ts);
+            SpectrumBuffer buffer = new SpectrumBuffer();
+            int size = loadSpectrum(rawFile,spect,buffer);
+            if (size > 0)
+            {
+               result = new float[size];
+               for (int i=0; i<size; i++)
+                  result[i] = buffer.next();
+            }
          } catch(IOException e) { e.printStackTrace(); }
       }
       else
@@ -363,137 +388,199 @@ public class DataSection {
             "\n  Returning null.");
       return result;
    }
-  
-   private float[] getDataForDataVersion1(RandomAccessFile rawFile, int spect, TimeSection ts) throws IOException
-   {
-      if (dataFormat == 0)
-         return getDataForDataFormatFlag0(rawFile,spect,ts);
-      else if (dataFormat == 1)
-         return getDataForDataFormatFlag1(rawFile,spect,ts);
-      else
-         return null;
-   }
-    
-   private float[] getDataForDataFormatFlag0(RandomAccessFile rawFile, int spect, TimeSection ts) throws IOException
+   
+   /**
+    * Reads the words stored for the specified spectrum into 
+    * <code>buffer</code> and rewinds it so that the counts for the 
+    * spectrum can be read, one time channel at a time, with 
+    * <code>SpectrumBuffer.next()</code>.  The buffer is reused so 
+    * that reading many spectra does not allocate memory for each one.
+    * @param rawFile The rawfile to use.
+    * @param spect The spectrum number (the first spectrum is at spect=1).
+    * @param buffer The buffer to read the spectrum into.
+    * @return The number of values (time channels plus the zeroth time 
+    * channel) that can be read from <code>buffer</code> or -1 if 
+    * <code>spect</code> is invalid or the data is stored in a format 
+    * that cannot be read.
+    * @throws IOException If the spectrum could not be read.
+    */
+   int loadSpectrum(RandomAccessFile rawFile, int spect, SpectrumBuffer buffer) throws IOException
    {
-      int     size;
-      float[]   rawData;
-
-      rawFile.seek( startAddress +
-        ( spect * ( ts.getNumTimeChannelsForRegime(timeSection.getMinimumRegimeNumber()) + 1 ) * 4 ) );
-      size      = ts.getNumTimeChannelsForRegime(timeSection.getMinimumRegimeNumber()) + 1;
-      rawData   = new float[size];
-
-      byte[] num = new byte[4];
-
-      for( int mm = 0; mm < size; mm++ )
-      {
-         rawFile.read( num );
-         rawData[mm] = convertLSBIntToMSBInt( num );
-      }
-
-      return rawData;
-   }
-    
-    /**
-     * Get the spectrum specified from the ISIS RAW file assuming that the data was 
-     * written to the file with the data version number = 1 and the data format flag =1.
-     * THIS METHOD NEEDS TO BE TESTED.  CURRENTLY, IT IS NOT 
-     * GAURANTEED TO WORK.
-     * @param rawFile Reader for the ISIS RAW file that is to be read.
-     * @param spect The spectrum that is to be read.
-     * @param ts The TimeSection of the ISIS RAW file that is to be read.
-     * @return The spectrum.
-     * @throws IOException
-     */
-      private float[] getDataForDataFormatFlag1(RandomAccessFile rawFile, int spect, TimeSection ts) throws IOException
+      int index = getRegimeIndexForSpectrum(spect);
+      if (index < 0)
+         return -1;
+      
+      int size = regimeNumChannels[index];
+      if (version == 1)
       {
-         boolean sectionFound = false;
-         int actualSpectraNumber = spect+1;
-         int regimeNumber = timeSection.getMinimumRegimeNumber();
-         int total = 0;
-         int previousTotal = total;
-         int spectraNumberInRegime = 0;
-         while (!sectionFound && regimeNumber<=timeSection.getMaximumRegimeNumber())
+         //the data starts after the version number and is stored one 
+         //time regime after another
+         long regimeStart = startAddress + 4 + regimeWordOffset[index]*4L;
+         int spectrumInRegime = spect - regimeFirstSpectrum[index];
+         byte[] raw = buffer.reserve(size*4);
+         if (dataFormat == 0)
          {
-            previousTotal = total;
-            total += ts.getNumSpectraForRegime(regimeNumber)+1;
-            if (total>=actualSpectraNumber)
-            {
-               sectionFound = true;
-               spectraNumberInRegime = actualSpectraNumber-previousTotal-1;
-            }
-            else
-               regimeNumber++;
+            //each spectrum is stored as a contiguous block of time channels
+            rawFile.seek(regimeStart + (long)spectrumInRegime*size*4);
+            rawFile.readFully(raw, 0, size*4);
          }
-         if (sectionFound)	    	
+         else if (dataFormat == 1)
          {
-            //the spectra that is to be found is "spectraNumberInRegime" in regime "regimeNumber"
-            int offset = 0;
-            for (int i=timeSection.getMinimumRegimeNumber(); i<=regimeNumber; i++)
-               offset += (ts.getNumSpectraForRegime(i)+1)*(ts.getNumTimeChannelsForRegime(i)+1)*4;
-
-            //skip ahead to the regime
-            rawFile.seek(startAddress+offset);
-            int skipAhead = (ts.getNumSpectraForRegime(regimeNumber)+1-spectraNumberInRegime-1)*4;
-            float[] data = new float[ts.getNumTimeChannelsForRegime(regimeNumber)+1];
-            for (int i=0; i<data.length; i++)
+            //for each time channel all of the spectra are stored together
+            int numSpectra = regimeFirstSpectrum[index+1] - regimeFirstSpectrum[index];
+            for (int i=0; i<size; i++)
             {
-               rawFile.seek(rawFile.getFilePointer()+spectraNumberInRegime*4);
-               data[i] = Header.readUnsignedInteger(rawFile,4);
-               rawFile.seek(rawFile.getFilePointer()+skipAhead);
+               rawFile.seek(regimeStart + ((long)i*numSpectra + spectrumInRegime)*4);
+               rawFile.readFully(raw, i*4, 4);
             }
-            return data;
          }
          else
-            return null;
+            return -1;
+         buffer.rewind(false);
+         return size;
       }
-  
-   private float[] getDataForDataVersion2(RandomAccessFile rawFile, int spect, TimeSection ts) throws IOException
+      else if (version == 2 && compressionType == 1)
+      {
+         //byte relative compression
+         int numBytes = spectrumDescArray[2*(spect-1)]*4;
+         rawFile.seek(startAddress + spectrumDescArray[2*(spect-1)+1]*4L);
+         rawFile.readFully(buffer.reserve(numBytes), 0, numBytes);
+         buffer.rewind(true);
+         return size;
+      }
+      else
+         return -1;
+   }
+   
+   /**
+    * Get the number of compressed bytes stored for the specified
+    * spectrum in a version 2 Data Section.
+    * @param spect The spectrum number (the first spectrum is at spect=1).
+    * @return The number of bytes or -1 if <code>spect</code> is invalid
+    * or the section is not version 2.
+    */
+   int getSpectrumLength(int spect)
+   {
+      if (version != 2 || spect < 1 || spect > nspec)
+         return -1;
+      return spectrumDescArray[2*(spect-1)]*4;
+   }
+   
+   /**
+    * Get where the words for the specified spectrum are stored, for a 
+    * spectrum that is stored as one block of bytes, so that the block 
+    * can be read without going through loadSpectrum().
+    * @param spect The spectrum number (the first spectrum is at spect=1).
+    * @param block Is set to the offset of the block in the file, and 
+    * the number of bytes in it.
+    * @return True if the block was found, or false if <code>spect</code> 
+    * is invalid or the spectrum is not stored as one block (the time 
+    * channels of version 1 data stored with data format 1 are spread 
+    * out through the time regime).
+    */
+   boolean getSpectrumBlock(int spect, long[] block)
    {
-      if (compressionType == 0)
-         return getDataForCompressionType0(rawFile,spect,ts);
-      else if (compressionType == 1)
-         return getDataForCompressionType1(rawFile,spect,ts);
+      int index = getRegimeIndexForSpectrum(spect);
+      if (index < 0)
+         return false;
+      
+      if (version == 1 && dataFormat == 0)
+      {
+         int size = regimeNumChannels[index];
+         block[0] = startAddress + 4 + regimeWordOffset[index]*4L +
+                    (long)(spect-regimeFirstSpectrum[index])*size*4;
+         block[1] = size*4;
+         return true;
+      }
+      else if (version == 2 && compressionType == 1)
+      {
+         block[0] = startAddress + spectrumDescArray[2*(spect-1)+1]*4L;
+         block[1] = spectrumDescArray[2*(spect-1)]*4;
+         return true;
+      }
       else
-         return null;
+         return false;
    }
-    
-   private float[] getDataForCompressionType0(RandomAccessFile rawFile, int spect, TimeSection ts) throws IOException
+   
+   /**
+    * Is each spectrum stored as byte relative compressed data, rather 
+    * than as little-endian 32 bit integers?
+    * @return True if the spectra are compressed.
+    */
+   boolean isCompressed()
    {
-   	   return null;
+      return version == 2;
    }
-    
-	private float[] getDataForCompressionType1(RandomAccessFile rawFile, int spect, TimeSection ts) throws IOException
-	{
-		//note: at some point, this should deal directly with float[] rather than converting
-		//from int[] to float[]
-		int     size;
-		int[]   rawData;
-		float[] data;
-
-		//byte relative compression
-		//need total bytes for all spectra-read and uncompress
-		int    numWords  = spectrumDescArray[2 * spect];
-		byte[] compBytes = new byte[( numWords ) * 4];
-
-		size      = ts.getNumTimeChannelsForRegime(timeSection.getMinimumRegimeNumber()) + 1;
-		rawData   = new int[size];
-
-		//read the bytes from the file
-		rawFile.seek( startAddress +
-		  ( spectrumDescArray[( 2 * spect ) + 1] * 4 ) );
-		rawFile.read( compBytes );
-		byteRelExpn( compBytes, rawData );
-		data = new float[rawData.length];
-
-		for( int k = 0; k < data.length; k++ )
-		{
-		  data[k] = rawData[k];
-		}
 
-		return data;
-	}
+   /**
+    * Get the time regime that the specified spectrum is in.
+    * @param spect The spectrum number (the first spectrum is at spect=1).
+    * @return The time regime number or -1 if <code>spect</code> is 
+    * invalid.
+    */
+   public int getRegimeForSpectrum(int spect)
+   {
+      int index = getRegimeIndexForSpectrum(spect);
+      if (index < 0)
+         return -1;
+      return timeSection.getMinimumRegimeNumber()+index;
+   }
+   
+   /**
+    * Get the number of values (time channels plus the zeroth time 
+    * channel) stored for the specified spectrum.
+    * @param spect The spectrum number (the first spectrum is at spect=1).
+    * @return The number of values or -1 if <code>spect</code> is 
+    * invalid.
+    */
+   public int getNumChannelsForSpectrum(int spect)
+   {
+      int index = getRegimeIndexForSpectrum(spect);
+      if (index < 0)
+         return -1;
+      return regimeNumChannels[index];
+   }
+   
+   private int getRegimeIndexForSpectrum(int spect)
+   {
+      if (spect<1 || spect>nspec)
+         return -1;
+      
+      int index = 0;
+      while (spect >= regimeFirstSpectrum[index+1])
+         index++;
+      return index;
+   }
+   
+   /**
+    * Works out where the spectra for each time regime are stored.  Each 
+    * time regime stores one more spectrum than the number of spectra 
+    * recorded in the time section (the zeroth spectrum), and each 
+    * spectrum stores one more value than the number of time channels.
+    * @param ts The time section to use.
+    */
+   private void computeRegimeLayout(TimeSection ts)
+   {
+      int min = ts.getMinimumRegimeNumber();
+      int max = ts.getMaximumRegimeNumber();
+      int numRegimes = (min < 0) ? 0 : max-min+1;
+      
+      regimeFirstSpectrum = new int[numRegimes+1];
+      regimeNumChannels = new int[numRegimes];
+      regimeWordOffset = new int[numRegimes];
+      
+      regimeFirstSpectrum[0] = 1;
+      int offset = 0;
+      for (int i=0; i<numRegimes; i++)
+      {
+         int numSpectra = ts.getNumSpectraForRegime(min+i)+1;
+         regimeNumChannels[i] = ts.getNumTimeChannelsForRegime(min+i)+1;
+         regimeWordOffset[i] = offset;
+         offset += numSpectra*regimeNumChannels[i];
+         regimeFirstSpectrum[i+1] = regimeFirstSpectrum[i]+numSpectra;
+      }
+      nspec = regimeFirstSpectrum[numRegimes]-1;
+   }
 
   /**
    * Takes a 32 bit integer and places its bytes into a 4 element byte array as
@@ -598,50 +685,6 @@ public class DataSection {
   //    return MSBByteArrayToInt32( bTemp );
   //  }
 
-  /**
-   * Expansion of byte-relative format into 32bit format Each integer is stored
-   * relative to the previous value in byte form.The first is relative to
-   * zero. This allows for numbers to be within + or - 127 of the previous
-   * value. Where a 32bit integer cannot be expressed in this way a special
-   * byte code is used (-128) and the full 32bit integer stored elsewhere. The
-   * final space used is (NIN-1)/4 +1 + NEXTRA longwords, where NEXTRA is the
-   * number of extra longwords used in giving absolute values. Status return<br>
-   * =1  no problems!<br>
-   * =3  NOUT .lt.NIN/5<br>
-   * =2  NIN .le.0 =4  NOUT .gt.NIN =6  number of channels lt NOUT
-   */
-  private void byteRelExpn( byte[] inData, int[] outData ) {
-    int    j;
-    int    iTemp;
-    byte[] bTemp = new byte[4];
-
-    // Set initial absolute value to zero and channel counter to zero
-    iTemp   = 0;
-    j       = 0;
-
-    // Loop over all expected 32bit integers
-    for( int i = 0; i < outData.length; i++ ) {
-      // if number is contained in a byte
-      if( inData[j] != -128 ) {
-        // add in offset to base
-        iTemp = iTemp + inData[j];
-      } else {
-        // Else skip marker and pick up new absolute value
-        // unpack next 4 bytes
-        bTemp[0]   = inData[j + 1];
-        bTemp[1]   = inData[j + 2];
-        bTemp[2]   = inData[j + 3];
-        bTemp[3]   = inData[j + 4];
-        iTemp      = convertLSBIntToMSBInt( bTemp );
-        j          = j + 4;
-      }
-
-      // update current value
-      outData[i] = iTemp;
-      j++;
-    }
-  }
-
   /**
    * Takes a four element byte array and converts it to a 32 bit integer, using
    * bTemp[0] as the first byte of the integer in big-endian style.
@@ -662,39 +705,6 @@ public class DataSection {
   //    ( bTemp[3] & 0x000000ff ) );
   //  }
 
-  /**
-   * Converts a byte array representing a little endian integer  (byte[0] =
-   * least significant byte) to a 32 bit big endian integer. This is taken
-   * from Rawfile.java's readUnsignedInteger.
-   *
-   * @param b The byte array holding the 4 bytes representing the  integer
-   *
-   * @return The converted 32 bit integer.
-   *
-   * @throws IllegalArgumentException If the byte array is not of size 4.
-   */
-  private int convertLSBIntToMSBInt( byte[] b ) throws IllegalArgumentException {
-    if( b.length != 4 ) {
-      throw new IllegalArgumentException( 
-        "Byte array must have length 4: byteArrayToInt" );
-    }
-
-    int[] c   = new int[b.length];
-    int   num = 0;
-
-    for( int i = 0; i < b.length; ++i ) {
-      if( b[i] < 0 ) {
-        c[i] = b[i] + 256;
-      } else {
-        c[i] = b[i];
-      }
-
-      num += ( c[i] * ( int )Math.pow( 256.0, ( double )i ) );
-    }
-
-    return num;
-  }
-
    /**
     * Get the compression ratio for the data section.
     * @return The compression ratio for the data section.
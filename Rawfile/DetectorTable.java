@@ -0,0 +1,299 @@
+/*
+ * File:  DetectorTable.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+/**
+ * The per detector information from the instrument section and the DAE
+ * section of an ISIS RAW file, gathered into one array for each value so
+ * that loops over the detectors can run over plain arrays.  A
+ * DetectorTable is built when a Rawfile is opened and is not modified
+ * afterwards.  The public methods give copies of the arrays, and classes
+ * in this package use the arrays directly.<br>
+ * Detector d (d=1,2,...) is at element d-1 of every array.  The
+ * detectors can also be visited in spectrum order:  the detectors in
+ * spectrum s (numbered as in Rawfile.Get1DSpectrum(int), so the first
+ * spectrum is at 1) are getDetectorsBySpectrum()[i] for i from
+ * getSpectrumStarts()[s] to getSpectrumStarts()[s+1]-1.
+ */
+public final class DetectorTable
+{
+   final int       numDetectors;
+   /** The spectrum of each detector, as in Rawfile.Get1DSpectrum(int). */
+   final int[]     spectrum;
+   final float[]   flightPath;
+   final float[]   twoTheta;
+   final float[]   holdOff;
+   final int[]     userTableCode;
+   final boolean[] monitor;
+   final int[]     crate;
+   final int[]     module;
+   final int[]     input;
+   final int[]     timeRegime;
+   final int[]     userDetectorNumber;
+   /** The detector numbers (from 1) in spectrum order. */
+   final int[]     bySpectrum;
+   /** Where the detectors in each spectrum start in bySpectrum. */
+   final int[]     spectrumStart;
+
+   /**
+    * Gathers the per detector information.
+    * @param inst The instrument section.
+    * @param dae The DAE section.
+    * @param numSpectra The number of spectra in the file.
+    */
+   DetectorTable(InstrumentSection inst, DaeSection dae, int numSpectra)
+   {
+      numDetectors = Math.max(inst.getNumberOfDetectors(),0);
+      int n = numDetectors;
+      spectrum = new int[n];
+      flightPath = new float[n];
+      twoTheta = new float[n];
+      holdOff = new float[n];
+      userTableCode = new int[n];
+      monitor = new boolean[n];
+      crate = new int[n];
+      module = new int[n];
+      input = new int[n];
+      timeRegime = new int[n];
+      userDetectorNumber = new int[n];
+      for (int d=1; d<=n; d++)
+      {
+         spectrum[d-1] = inst.getSpectrumNumberForDetector(d)+1;
+         flightPath[d-1] = inst.getFlightPathForDetector(d);
+         twoTheta[d-1] = inst.getDetectorAngleForDetector(d);
+         holdOff[d-1] = inst.getHoldOffForDetector(d);
+         userTableCode[d-1] = inst.getCodeForUserTableValuesForDetector(d);
+         crate[d-1] = dae.getCrateNumForDetector(d);
+         module[d-1] = dae.getModuleNumForDetector(d);
+         input[d-1] = dae.getInputNumForDetector(d);
+         timeRegime[d-1] = dae.getTimeRegimeForDetector(d);
+         userDetectorNumber[d-1] = dae.getUserDetectorNumForDetector(d);
+      }
+      for (int m=1; m<=inst.getNumberOfMonitors(); m++)
+      {
+         int d = inst.getMonDetNumForMonitor(m);
+         if (d>=1 && d<=n)
+            monitor[d-1] = true;
+      }
+
+      //a counting sort of the detectors by spectrum, keeping detector
+      //order within each spectrum.  Detectors outside of the spectra are
+      //left out.
+      int nspec = Math.max(numSpectra,0);
+      spectrumStart = new int[nspec+2];
+      int count = 0;
+      for (int i=0; i<n; i++)
+         if (spectrum[i]>=1 && spectrum[i]<=nspec)
+         {
+            spectrumStart[spectrum[i]+1]++;
+            count++;
+         }
+      for (int s=1; s<spectrumStart.length; s++)
+         spectrumStart[s] += spectrumStart[s-1];
+      bySpectrum = new int[count];
+      int[] next = new int[nspec+1];
+      System.arraycopy(spectrumStart,0,next,0,nspec+1);
+      for (int i=0; i<n; i++)
+         if (spectrum[i]>=1 && spectrum[i]<=nspec)
+            bySpectrum[next[spectrum[i]]++] = i+1;
+   }
+
+   /**
+    * Get the number of detectors (including the monitors).
+    * @return The number of detectors.
+    */
+   public int getNumDetectors()
+   {
+      return numDetectors;
+   }
+
+   /**
+    * Get the number of spectra that the spectrum order covers.
+    * @return The number of spectra.
+    */
+   public int getNumSpectra()
+   {
+      return spectrumStart.length-2;
+   }
+
+   /**
+    * Get the spectrum of each detector.
+    * @return The spectrum numbers, as in Rawfile.Get1DSpectrum(int), so
+    * the spectrum recorded in the file plus 1.
+    */
+   public int[] getSpectra()
+   {
+      return (int[])spectrum.clone();
+   }
+
+   /**
+    * Get the secondary flight path of each detector.
+    * @return The flight paths.
+    */
+   public float[] getFlightPaths()
+   {
+      return (float[])flightPath.clone();
+   }
+
+   /**
+    * Get the scattering angle of each detector.
+    * @return The angles (in degrees).
+    */
+   public float[] getTwoThetas()
+   {
+      return (float[])twoTheta.clone();
+   }
+
+   /**
+    * Get the hold off of each detector.
+    * @return The hold offs.
+    */
+   public float[] getHoldOffs()
+   {
+      return (float[])holdOff.clone();
+   }
+
+   /**
+    * Get the code for the user table values of each detector.
+    * @return The codes.
+    */
+   public int[] getUserTableCodes()
+   {
+      return (int[])userTableCode.clone();
+   }
+
+   /**
+    * Get which detectors are monitors.
+    * @return True for each detector that is a monitor.
+    */
+   public boolean[] getMonitors()
+   {
+      return (boolean[])monitor.clone();
+   }
+
+   /**
+    * Get the DAE crate of each detector.
+    * @return The crate numbers.
+    */
+   public int[] getCrates()
+   {
+      return (int[])crate.clone();
+   }
+
+   /**
+    * Get the DAE module of each detector.
+    * @return The module numbers.
+    */
+   public int[] getModules()
+   {
+      return (int[])module.clone();
+   }
+
+   /**
+    * Get the DAE input of each detector.
+    * @return The input numbers.
+    */
+   public int[] getInputs()
+   {
+      return (int[])input.clone();
+   }
+
+   /**
+    * Get the time regime of each detector.
+    * @return The time regime numbers.
+    */
+   public int[] getTimeRegimes()
+   {
+      return (int[])timeRegime.clone();
+   }
+
+   /**
+    * Get the user detector number of each detector.
+    * @return The user detector numbers.
+    */
+   public int[] getUserDetectorNumbers()
+   {
+      return (int[])userDetectorNumber.clone();
+   }
+
+   /**
+    * Get the detectors in spectrum order.
+    * @return The detector numbers (from 1).
+    */
+   public int[] getDetectorsBySpectrum()
+   {
+      return (int[])bySpectrum.clone();
+   }
+
+   /**
+    * Get where the detectors in each spectrum start in
+    * getDetectorsBySpectrum().
+    * @return The starts, indexed by spectrum, with one extra element at
+    * the end.  Element 0 is not used.
+    */
+   public int[] getSpectrumStarts()
+   {
+      return (int[])spectrumStart.clone();
+   }
+
+   /**
+    * Get the detectors in one spectrum.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The detector numbers (from 1), which is empty if
+    * <code>spect</code> is invalid.
+    */
+   public int[] getDetectorsInSpectrum(int spect)
+   {
+      if (spect<1 || spect>getNumSpectra())
+         return new int[0];
+      int[] result = new int[spectrumStart[spect+1]-spectrumStart[spect]];
+      System.arraycopy(bySpectrum,spectrumStart[spect],result,0,result.length);
+      return result;
+   }
+
+   /**
+    * Testbed.  Prints the detectors in each of the first spectra of the
+    * specified file.
+    */
+   public static void main(String[] args)
+   {
+      Rawfile rawfile = new Rawfile(args[0]);
+      DetectorTable table = rawfile.GetDetectorTable();
+      System.out.println(table.getNumDetectors()+" detectors in "+
+                         table.getNumSpectra()+" spectra");
+      for (int s=1; s<=Math.min(10,table.getNumSpectra()); s++)
+      {
+         int[] dets = table.getDetectorsInSpectrum(s);
+         StringBuffer line = new StringBuffer("spectrum "+s+":");
+         for (int i=0; i<dets.length; i++)
+            line.append(" ").append(dets[i]);
+         System.out.println(line);
+      }
+      rawfile.Close();
+   }
+}
@@ -0,0 +1,89 @@
+/*
+ * File:  Fingerprint.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+/**
+ * Static methods to build a 64 bit FNV-1a hash of the tables read from
+ * an ISIS RAW file.  Each method takes the hash so far and returns the
+ * hash with the new values added.  Start with Fingerprint.START.
+ */
+final class Fingerprint
+{
+   /** The starting value of a hash. */
+   static final long START = 0xcbf29ce484222325L;
+   private static final long PRIME = 0x100000001b3L;
+
+   private Fingerprint()
+   {
+   }
+
+   static long add(long hash, int value)
+   {
+      for (int i=0; i<4; i++)
+      {
+         hash ^= (value >>> (8*i)) & 0xff;
+         hash *= PRIME;
+      }
+      return hash;
+   }
+
+   static long add(long hash, float value)
+   {
+      return add(hash,Float.floatToIntBits(value));
+   }
+
+   static long add(long hash, int[] values)
+   {
+      if (values == null)
+         return add(hash,-1);
+      hash = add(hash,values.length);
+      for (int i=0; i<values.length; i++)
+         hash = add(hash,values[i]);
+      return hash;
+   }
+
+   static long add(long hash, float[] values)
+   {
+      if (values == null)
+         return add(hash,-1);
+      hash = add(hash,values.length);
+      for (int i=0; i<values.length; i++)
+         hash = add(hash,values[i]);
+      return hash;
+   }
+
+   static long add(long hash, String value)
+   {
+      if (value == null)
+         return add(hash,-1);
+      hash = add(hash,value.length());
+      for (int i=0; i<value.length(); i++)
+         hash = add(hash,value.charAt(i));
+      return hash;
+   }
+}
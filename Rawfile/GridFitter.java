@@ -0,0 +1,366 @@
+/*
+ * File:  GridFitter.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.File;
+import java.util.Hashtable;
+
+import gov.anl.ipns.MathTools.Geometry.*;
+import DataSetTools.dataset.*;
+
+/**
+ * Fits a flat, evenly spaced data grid to the pixel positions of each
+ * area detector of an instrument, so that the grids can be made at run
+ * time for any instrument whose pixel positions are known, rather than
+ * being worked out from corner pixels and written into code as
+ * Write_SXD_Grid_Info and SXD_Grids do.<br>
+ * The pixels of each detector are given in row major order.  The
+ * position of the pixel in row r and column c is fitted, by least
+ * squares, with center + c'*colStep + r'*rowStep, where c' and r' are
+ * the column and row measured from the middle of the detector.  Because
+ * c' and r' are measured from the middle of a full grid, the least
+ * squares equations separate and the fit is a single pass over the
+ * pixels.  The local x axis is along colStep, the local y axis is the
+ * part of rowStep at right angles to it, and the width and height are
+ * the number of columns and rows times the lengths of the steps.  The
+ * detectors are fitted on several threads at once.<br>
+ * The instrument section of a RAW file only records the secondary flight
+ * path and scattering angle of each detector, which do not fix a
+ * position, so the pixel positions have to come from elsewhere, such as
+ * an SXD config file (forSXDConfig()).  Fitted grids for config files
+ * are kept, and used again until the config file changes.
+ */
+public class GridFitter implements IInstrument_Grid_Info
+{
+   /** The fitted grids for each config file, by file name. */
+   private static final Hashtable cache = new Hashtable();
+
+   private UniformGrid[] grids;
+   private int[]         firstSpectrum;
+   /** The root mean square distance of the pixels from the fit. */
+   private float[]       residual;
+   /** The length and modification time of the file fitted, if any. */
+   private long          sourceLength;
+   private long          sourceModified;
+
+   private GridFitter(int numGrids)
+   {
+      grids = new UniformGrid[numGrids];
+      firstSpectrum = new int[numGrids];
+      residual = new float[numGrids];
+   }
+
+   /**
+    * Fits a grid to each detector.
+    * @param x The x coordinate of each pixel.
+    * @param y The y coordinate of each pixel.
+    * @param z The z coordinate of each pixel.
+    * @param firstPixel The index in the coordinate arrays of the first
+    * pixel of each detector.
+    * @param numRows The number of rows of each detector.
+    * @param numCols The number of columns of each detector.
+    * @param firstSpectrumID The ID of the spectrum for the first pixel of
+    * each detector.
+    * @param units The units of the coordinates (for example "meter").
+    * @return The fitted grids or <code>null</code> if the arrays do not
+    * match or a detector has fewer than two rows or columns.
+    */
+   public static GridFitter fit(final float[] x, final float[] y, final float[] z,
+                                final int[] firstPixel, final int[] numRows,
+                                final int[] numCols, int[] firstSpectrumID,
+                                final String units)
+   {
+      int numGrids = firstPixel.length;
+      if (numRows.length != numGrids || numCols.length != numGrids ||
+          firstSpectrumID.length != numGrids ||
+          y.length != x.length || z.length != x.length)
+      {
+         System.out.println("There must be one of each value for each of the "+
+                            numGrids+" detectors and each pixel");
+         return null;
+      }
+      for (int g=0; g<numGrids; g++)
+         if (numRows[g] < 2 || numCols[g] < 2 || firstPixel[g] < 0 ||
+             firstPixel[g]+numRows[g]*numCols[g] > x.length)
+         {
+            System.out.println("Detector "+(g+1)+" does not have at least two "+
+                               "rows and columns within the pixels given");
+            return null;
+         }
+
+      final GridFitter fitter = new GridFitter(numGrids);
+      System.arraycopy(firstSpectrumID,0,fitter.firstSpectrum,0,numGrids);
+
+      //each thread fits every numThreads'th detector
+      final int numThreads = Math.max(1,Math.min(numGrids,
+                                      Runtime.getRuntime().availableProcessors()));
+      Thread[] threads = new Thread[numThreads];
+      for (int t=0; t<numThreads; t++)
+      {
+         final int first = t;
+         threads[t] = new Thread("GridFitter")
+         {
+            public void run()
+            {
+               for (int g=first; g<fitter.grids.length; g+=numThreads)
+                  fitter.fitGrid(g,x,y,z,firstPixel[g],numRows[g],numCols[g],units);
+            }
+         };
+         threads[t].start();
+      }
+      for (int t=0; t<numThreads; t++)
+      {
+         try
+         {
+            threads[t].join();
+         }
+         catch (InterruptedException e)
+         {
+            e.printStackTrace();
+            return null;
+         }
+      }
+      return fitter;
+   }
+
+   /**
+    * Fits the grids of the SXD detectors to the pixel positions in an
+    * sxdII.config file, read with SXDConfigLoader.  The first spectrum IDs
+    * are those of SXDConfigLoader.getFirstSpectrumID(int).  The fit is
+    * kept and given again for the same file until it changes.
+    * @param configFile The sxdII.config file.
+    * @return The fitted grids or <code>null</code> if the file could not
+    * be read.
+    */
+   public static GridFitter forSXDConfig(String configFile)
+   {
+      File file = new File(configFile);
+      String key = file.getAbsolutePath();
+      synchronized (cache)
+      {
+         GridFitter fitter = (GridFitter)cache.get(key);
+         if (fitter != null && fitter.sourceLength == file.length() &&
+             fitter.sourceModified == file.lastModified())
+            return fitter;
+      }
+
+      long length = file.length();
+      long modified = file.lastModified();
+      SXDConfigLoader config = SXDConfigLoader.load(configFile);
+      if (config == null)
+         return null;
+      int numGrids = config.numGrids();
+      int[] firstPixel = new int[numGrids];
+      int[] numRows = new int[numGrids];
+      int[] numCols = new int[numGrids];
+      int[] firstSpectrumID = new int[numGrids];
+      for (int g=0; g<numGrids; g++)
+      {
+         firstPixel[g] = g*SXDConfigLoader.PIX_PER_DET;
+         numRows[g] = SXDConfigLoader.N_ROWS;
+         numCols[g] = SXDConfigLoader.N_COLS;
+         firstSpectrumID[g] = config.getFirstSpectrumID(g);
+      }
+      GridFitter fitter = fit(config.x,config.y,config.z,firstPixel,
+                              numRows,numCols,firstSpectrumID,"meter");
+      if (fitter == null)
+         return null;
+      fitter.sourceLength = length;
+      fitter.sourceModified = modified;
+      synchronized (cache)
+      {
+         cache.put(key,fitter);
+      }
+      return fitter;
+   }
+
+   /**
+    * Fits one grid.
+    */
+   private void fitGrid(int g, float[] x, float[] y, float[] z, int first,
+                        int rows, int cols, String units)
+   {
+      double midRow = (rows-1)/2.0;
+      double midCol = (cols-1)/2.0;
+      double[] sum = new double[3];
+      double[] colSum = new double[3];
+      double[] rowSum = new double[3];
+      for (int r=0; r<rows; r++)
+      {
+         double rr = r-midRow;
+         int row = first+r*cols;
+         for (int c=0; c<cols; c++)
+         {
+            double cc = c-midCol;
+            int i = row+c;
+            sum[0] += x[i];
+            sum[1] += y[i];
+            sum[2] += z[i];
+            colSum[0] += cc*x[i];
+            colSum[1] += cc*y[i];
+            colSum[2] += cc*z[i];
+            rowSum[0] += rr*x[i];
+            rowSum[1] += rr*y[i];
+            rowSum[2] += rr*z[i];
+         }
+      }
+
+      //the sums of the squares of the centred columns and rows
+      double n = (double)rows*cols;
+      double colSquares = rows*cols*((double)cols*cols-1)/12;
+      double rowSquares = cols*rows*((double)rows*rows-1)/12;
+      double[] center = new double[3];
+      double[] colStep = new double[3];
+      double[] rowStep = new double[3];
+      for (int k=0; k<3; k++)
+      {
+         center[k] = sum[k]/n;
+         colStep[k] = colSum[k]/colSquares;
+         rowStep[k] = rowSum[k]/rowSquares;
+      }
+
+      double squares = 0;
+      for (int r=0; r<rows; r++)
+      {
+         double rr = r-midRow;
+         int row = first+r*cols;
+         for (int c=0; c<cols; c++)
+         {
+            double cc = c-midCol;
+            int i = row+c;
+            double dx = x[i]-(center[0]+cc*colStep[0]+rr*rowStep[0]);
+            double dy = y[i]-(center[1]+cc*colStep[1]+rr*rowStep[1]);
+            double dz = z[i]-(center[2]+cc*colStep[2]+rr*rowStep[2]);
+            squares += dx*dx+dy*dy+dz*dz;
+         }
+      }
+
+      double colLength = length(colStep);
+      double rowLength = length(rowStep);
+      double[] xVec = scale(colStep,1/colLength);
+      double along = xVec[0]*rowStep[0]+xVec[1]*rowStep[1]+xVec[2]*rowStep[2];
+      double[] yVec = new double[3];
+      for (int k=0; k<3; k++)
+         yVec[k] = rowStep[k]-along*xVec[k];
+      yVec = scale(yVec,1/length(yVec));
+
+      grids[g] = new UniformGrid(g+1,units,vector(center),vector(xVec),
+                                 vector(yVec),(float)(cols*colLength),
+                                 (float)(rows*rowLength),0.0f,rows,cols);
+      residual[g] = (float)Math.sqrt(squares/n);
+   }
+
+   private static double length(double[] v)
+   {
+      return Math.sqrt(v[0]*v[0]+v[1]*v[1]+v[2]*v[2]);
+   }
+
+   private static double[] scale(double[] v, double s)
+   {
+      return new double[] { v[0]*s, v[1]*s, v[2]*s };
+   }
+
+   private static Vector3D vector(double[] v)
+   {
+      return new Vector3D((float)v[0],(float)v[1],(float)v[2]);
+   }
+
+   /**
+    * Get how well a grid fits its pixels.
+    * @param index The index of the grid in the list.
+    * @return The root mean square distance of the pixels from their
+    * fitted positions, in the units of the coordinates, or NaN if the
+    * index is invalid.
+    */
+   public float getResidual(int index)
+   {
+      if (index >= 0 && index < grids.length)
+         return residual[index];
+      else
+         return Float.NaN;
+   }
+
+   /**
+    * Get the number of detectors (i.e. data grids).
+    * @return The number of data grids.
+    */
+   public int numGrids()
+   {
+      return grids.length;
+   }
+
+   /**
+    * Get the data grid at the specified index in the list of grids.
+    * @param index The index of the grid in the list.
+    * @return A copy of the data grid at the specified index, or null if
+    * the index is invalid.
+    */
+   public IDataGrid getGridAtIndex(int index)
+   {
+      if (index >= 0 && index < grids.length)
+         return new UniformGrid(grids[index],false);
+      else
+         return null;
+   }
+
+   /**
+    * Get the ID of the first spectrum for the data grid at the specified
+    * index.
+    * @param index The index of the grid in the list.
+    * @return The ID of the first spectrum for the grid or -1 if the index
+    * is invalid.
+    */
+   public int getFirstSpectrumID(int index)
+   {
+      if (index >= 0 && index < grids.length)
+         return firstSpectrum[index];
+      else
+         return -1;
+   }
+
+   /**
+    * Testbed.  Fits the SXD detectors to the specified config file and
+    * prints how well each one fits.
+    */
+   public static void main(String[] args)
+   {
+      String filename = (args.length > 0) ? args[0] : "sxdII.config";
+      long start = System.currentTimeMillis();
+      GridFitter fitter = forSXDConfig(filename);
+      long time = System.currentTimeMillis()-start;
+      if (fitter == null)
+         return;
+      for (int g=0; g<fitter.numGrids(); g++)
+         System.out.println("Detector "+(g+1)+":  rms residual "+
+                            fitter.getResidual(g));
+      start = System.currentTimeMillis();
+      forSXDConfig(filename);
+      System.out.println("Fitted in "+time+" ms, then "+
+                         (System.currentTimeMillis()-start)+" ms from the cache");
+   }
+}
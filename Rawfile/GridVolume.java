@@ -0,0 +1,284 @@
+/*
+ * File:  GridVolume.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import DataSetTools.dataset.IDataGrid;
+
+/**
+ * The counts for every pixel of one detector grid (for example an SXD
+ * panel) at every time channel, stored time channel by time channel.
+ * For each time channel the counts are stored in row major order, so the
+ * counts for one time slice of the grid are contiguous and can be copied
+ * out with a single System.arraycopy().  Rows, columns and time channels
+ * are all numbered starting at 1.  The zeroth time channel is not stored.
+ */
+public class GridVolume
+{
+   private IDataGrid grid;
+   private int       firstSpectrum;
+   private int       numRows;
+   private int       numCols;
+   private int       numChannels;
+   private float[]   tcb;
+   /** The counts, indexed by ((channel-1)*numRows+row-1)*numCols+col-1. */
+   private int[]     counts;
+
+   private GridVolume(IDataGrid grid, int firstSpectrum, int numChannels,
+                      float[] tcb)
+   {
+      this.grid = grid;
+      this.firstSpectrum = firstSpectrum;
+      this.numRows = grid.num_rows();
+      this.numCols = grid.num_cols();
+      this.numChannels = numChannels;
+      this.tcb = tcb;
+      this.counts = new int[numChannels*numRows*numCols];
+   }
+
+   /**
+    * Reads the volume for every grid of an instrument from a RAW file.
+    * Each spectrum is read once, and the spectra are read on several
+    * threads at once.
+    * @param rawfile The RAW file.
+    * @param info The grids of the instrument (for example SXD_Grids).
+    * @return The volume for each grid, in the same order as the grids
+    * in <code>info</code>, or <code>null</code> if the file could not
+    * be read.  A grid whose spectra are not in the file has a
+    * <code>null</code> volume.
+    */
+   public static GridVolume[] load(Rawfile rawfile, IInstrument_Grid_Info info)
+   {
+      final DataSection data = rawfile.getDataSection();
+      int nspec = data.getTotalNumSpectra();
+      int numGrids = info.numGrids();
+      final GridVolume[] volumes = new GridVolume[numGrids];
+
+      //the grid that each spectrum is in
+      final int[] gridForSpectrum = new int[nspec+1];
+      Arrays.fill(gridForSpectrum,-1);
+      int first = nspec+1;
+      int last = 0;
+      for (int g=0; g<numGrids; g++)
+      {
+         IDataGrid grid = info.getGridAtIndex(g);
+         int start = info.getFirstSpectrumID(g);
+         if (grid == null || start < 1)
+            continue;
+         int end = start+grid.num_rows()*grid.num_cols()-1;
+         if (end > nspec)
+         {
+            System.out.println("The spectra for grid "+grid.ID()+" are not all in "+
+                               rawfile.getFileName());
+            continue;
+         }
+
+         int regime = data.getRegimeForSpectrum(start);
+         volumes[g] = new GridVolume(grid,start,data.getNumChannelsForSpectrum(start)-1,
+                                     rawfile.TimeChannelBoundariesForRegime(regime));
+         for (int i=start; i<=end; i++)
+            gridForSpectrum[i] = g;
+         first = Math.min(first,start);
+         last = Math.max(last,end);
+      }
+
+      boolean ok = ParallelSpectra.forEachChunk(rawfile.getFileName(),first,last,
+                                                ParallelSpectra.numThreads(last-first+1),
+         new ParallelSpectra.Chunk()
+         {
+            public void process(RandomAccessFile file, SpectrumBuffer buffer,
+                                int first, int last) throws IOException
+            {
+               for (int i=first; i<=last; i++)
+               {
+                  int g = gridForSpectrum[i];
+                  if (g < 0)
+                     continue;
+                  int size = data.loadSpectrum(file,i,buffer);
+                  if (size < 0)
+                     throw new IOException("Spectrum "+i+" could not be read");
+
+                  //each spectrum is one pixel, so its counts are spread
+                  //through the volume one time slice apart
+                  GridVolume volume = volumes[g];
+                  int area = volume.numRows*volume.numCols;
+                  int index = i-volume.firstSpectrum;
+                  int n = Math.min(size-1,volume.numChannels);
+                  buffer.next();
+                  for (int j=0; j<n; j++)
+                  {
+                     volume.counts[index] = buffer.next();
+                     index += area;
+                  }
+               }
+            }
+         });
+
+      return ok ? volumes : null;
+   }
+
+   /**
+    * Get the grid that this volume is for.
+    * @return The grid.
+    */
+   public IDataGrid getGrid()
+   {
+      return grid;
+   }
+
+   /**
+    * Get the spectrum for row 1, column 1 of the grid.
+    * @return The spectrum number (as used by Rawfile.Get1DSpectrum(int)).
+    */
+   public int getFirstSpectrum()
+   {
+      return firstSpectrum;
+   }
+
+   /**
+    * Get the number of rows in the grid.
+    * @return The number of rows.
+    */
+   public int getNumRows()
+   {
+      return numRows;
+   }
+
+   /**
+    * Get the number of columns in the grid.
+    * @return The number of columns.
+    */
+   public int getNumCols()
+   {
+      return numCols;
+   }
+
+   /**
+    * Get the number of time channels.
+    * @return The number of time channels.
+    */
+   public int getNumChannels()
+   {
+      return numChannels;
+   }
+
+   /**
+    * Get the time channel boundaries (in microseconds).  Time channel j
+    * spans element j-1 to element j.
+    * @return The time channel boundaries or <code>null</code> if they
+    * could not be read.
+    */
+   public float[] getTimeChannelBoundaries()
+   {
+      if (tcb == null)
+         return null;
+      return (float[])tcb.clone();
+   }
+
+   /**
+    * Get the counts for one pixel at one time.
+    * @param channel The time channel.
+    * @param row The row.
+    * @param col The column.
+    * @return The counts or -1 if the channel, row or column is invalid.
+    */
+   public int getCounts(int channel, int row, int col)
+   {
+      if (channel<1 || channel>numChannels || row<1 || row>numRows ||
+          col<1 || col>numCols)
+         return -1;
+      return counts[((channel-1)*numRows+row-1)*numCols+col-1];
+   }
+
+   /**
+    * Copies the counts for every pixel at one time into
+    * <code>slice</code>, in row major order.
+    * @param channel The time channel.
+    * @param slice The array to copy into.  It must have at least
+    * getNumRows()*getNumCols() elements.
+    * @return True if the slice was copied and false if
+    * <code>channel</code> is invalid or <code>slice</code> is too short.
+    */
+   public boolean getSlice(int channel, int[] slice)
+   {
+      int area = numRows*numCols;
+      if (channel<1 || channel>numChannels || slice == null || slice.length<area)
+         return false;
+      System.arraycopy(counts,(channel-1)*area,slice,0,area);
+      return true;
+   }
+
+   /**
+    * Get the counts for every pixel at one time, in row major order.
+    * @param channel The time channel.
+    * @return The counts or <code>null</code> if <code>channel</code> is
+    * invalid.
+    */
+   public int[] getSlice(int channel)
+   {
+      int[] slice = new int[numRows*numCols];
+      if (getSlice(channel,slice))
+         return slice;
+      return null;
+   }
+
+   /**
+    * Testbed.  Loads the SXD grids from the specified file and prints the
+    * total counts in each.
+    */
+   public static void main(String[] args)
+   {
+      Rawfile rawfile = new Rawfile(args[0]);
+      long start = System.currentTimeMillis();
+      GridVolume[] volumes = load(rawfile,new SXD_Grids());
+      long time = System.currentTimeMillis()-start;
+      if (volumes == null)
+      {
+         System.out.println("The grids could not be read");
+         return;
+      }
+      for (int g=0; g<volumes.length; g++)
+      {
+         if (volumes[g] == null)
+            continue;
+         long total = 0;
+         int[] slice = new int[volumes[g].numRows*volumes[g].numCols];
+         for (int j=1; j<=volumes[g].numChannels; j++)
+         {
+            volumes[g].getSlice(j,slice);
+            for (int k=0; k<slice.length; k++)
+               total += slice[k];
+         }
+         System.out.println("grid "+volumes[g].grid.ID()+":  "+total+" counts");
+      }
+      System.out.println("Loaded in "+time+" ms");
+   }
+}
@@ -0,0 +1,289 @@
+/*
+ * File:  GroupedSum.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Vector;
+
+import DataSetTools.dataset.IDataGrid;
+
+/**
+ * Sums the spectra in an ISIS RAW file by group (for example a detector
+ * bank or an SXD panel) in one pass through the file.  The spectra are
+ * read on several threads at once.  Each thread adds the spectra it reads
+ * into its own set of sums, and the sums from all of the threads are
+ * added together at the end.<br>
+ * Spectra are numbered as in Rawfile.Get1DSpectrum(int), so the first
+ * spectrum is at 1.  The spectrum recorded for a detector in the
+ * instrument section, n, is the spectrum numbered n+1.
+ */
+public class GroupedSum
+{
+   /**
+    * The group for each spectrum or -1 if the spectrum is not in any
+    * group.  Element 0 is not used.
+    */
+   private int[] groupForSpectrum;
+   /** The number of groups. */
+   private int   numGroups;
+
+   /**
+    * Creates a new GroupedSum.
+    * @param groupForSpectrum The group (from 0 to numGroups-1) for each
+    * spectrum or -1 if the spectrum is not to be summed.  Element 0 is
+    * not used.
+    * @param numGroups The number of groups.
+    */
+   public GroupedSum(int[] groupForSpectrum, int numGroups)
+   {
+      this.groupForSpectrum = (int[])groupForSpectrum.clone();
+      this.numGroups = numGroups;
+      if (this.groupForSpectrum.length > 0)
+         this.groupForSpectrum[0] = -1;
+      for (int i=1; i<this.groupForSpectrum.length; i++)
+         if (this.groupForSpectrum[i] >= numGroups)
+            this.groupForSpectrum[i] = -1;
+   }
+
+   /**
+    * Creates a GroupedSum with one group for each of the data grids of an
+    * instrument.  The spectra for a grid are the contiguous block that
+    * starts at the grid's first spectrum ID.
+    * @param info The data grids of the instrument.
+    * @return The GroupedSum.
+    */
+   public static GroupedSum forGrids(IInstrument_Grid_Info info)
+   {
+      int numGrids = info.numGrids();
+      int[] first = new int[numGrids];
+      int[] count = new int[numGrids];
+      int max = 0;
+      for (int g=0; g<numGrids; g++)
+      {
+         IDataGrid grid = info.getGridAtIndex(g);
+         first[g] = info.getFirstSpectrumID(g);
+         count[g] = (grid == null) ? 0 : grid.num_rows()*grid.num_cols();
+         max = Math.max(max,first[g]+count[g]-1);
+      }
+
+      int[] map = new int[max+1];
+      Arrays.fill(map,-1);
+      for (int g=0; g<numGrids; g++)
+         for (int i=0; i<count[g]; i++)
+            map[first[g]+i] = g;
+      return new GroupedSum(map,numGrids);
+   }
+
+   /**
+    * Creates a GroupedSum from a group for each detector, using the
+    * spectrum recorded for each detector in the instrument section.  If
+    * the detectors in a spectrum are in different groups, the spectrum
+    * is put in the group of the first of its detectors.
+    * @param rawfile The RAW file.
+    * @param groupForDetector The group for each detector or -1 if the
+    * detector is not to be summed.  Element 0 is not used.
+    * @param numGroups The number of groups.
+    * @return The GroupedSum.
+    */
+   public static GroupedSum forDetectors(Rawfile rawfile,
+                                         int[] groupForDetector,
+                                         int numGroups)
+   {
+      int[] spectrum = rawfile.GetDetectorTable().spectrum;
+      int[] map = new int[rawfile.getDataSection().getTotalNumSpectra()+1];
+      Arrays.fill(map,-1);
+      int numDet = Math.min(spectrum.length,groupForDetector.length-1);
+      for (int d=1; d<=numDet; d++)
+      {
+         int spect = spectrum[d-1];
+         if (spect>=1 && spect<map.length && map[spect]==-1)
+            map[spect] = groupForDetector[d];
+      }
+      return new GroupedSum(map,numGroups);
+   }
+
+   /**
+    * Creates a GroupedSum with one group for each DAE crate.  Group c-1
+    * holds the spectra for the detectors in crate c.  Monitors are not
+    * included.
+    * @param rawfile The RAW file.
+    * @return The GroupedSum.
+    */
+   public static GroupedSum forCrates(Rawfile rawfile)
+   {
+      DetectorTable table = rawfile.GetDetectorTable();
+      int numDet = table.numDetectors;
+      int[] groupForDetector = new int[numDet+1];
+      int numCrates = 0;
+      for (int d=1; d<=numDet; d++)
+      {
+         if (table.monitor[d-1])
+            groupForDetector[d] = -1;
+         else
+         {
+            groupForDetector[d] = table.crate[d-1]-1;
+            numCrates = Math.max(numCrates,groupForDetector[d]+1);
+         }
+      }
+      return forDetectors(rawfile,groupForDetector,numCrates);
+   }
+
+   /**
+    * Get the number of groups.
+    * @return The number of groups.
+    */
+   public int getNumGroups()
+   {
+      return numGroups;
+   }
+
+   /**
+    * Get the group that a spectrum is in.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The group or -1 if the spectrum is not in any group.
+    */
+   public int getGroupForSpectrum(int spect)
+   {
+      if (spect<1 || spect>=groupForSpectrum.length)
+         return -1;
+      return groupForSpectrum[spect];
+   }
+
+   /**
+    * Sums the spectra in each group.  The sums include the zeroth time
+    * channel, as Rawfile.Get1DSpectrum(int) does.  If a group has spectra
+    * from time regimes with different numbers of time channels, the sum
+    * is as long as the longest spectrum and the time channels are added
+    * by index.
+    * @param rawfile The RAW file.
+    * @return The summed spectrum for each group, or <code>null</code> for
+    * a group with no spectra.  If the file could not be read,
+    * <code>null</code> is returned.
+    */
+   public float[][] sum(Rawfile rawfile)
+   {
+      final DataSection data = rawfile.getDataSection();
+      int nspec = Math.min(data.getTotalNumSpectra(),groupForSpectrum.length-1);
+      if (nspec <= 0)
+         return null;
+
+      //the length of the sum for each group
+      final int[] length = new int[numGroups];
+      for (int i=1; i<=nspec; i++)
+      {
+         int g = groupForSpectrum[i];
+         if (g >= 0)
+            length[g] = Math.max(length[g],data.getNumChannelsForSpectrum(i));
+      }
+
+      final Vector partials = new Vector();
+      boolean ok = ParallelSpectra.forEachChunk(rawfile.getFileName(),1,nspec,
+                                                ParallelSpectra.numThreads(nspec),
+         new ParallelSpectra.Chunk()
+         {
+            public void process(RandomAccessFile file, SpectrumBuffer buffer,
+                                int first, int last) throws IOException
+            {
+               long[][] sums = new long[numGroups][];
+               for (int i=first; i<=last; i++)
+               {
+                  int g = groupForSpectrum[i];
+                  if (g < 0)
+                     continue;
+                  int size = data.loadSpectrum(file,i,buffer);
+                  if (size < 0)
+                     throw new IOException("Spectrum "+i+" could not be read");
+                  if (sums[g] == null)
+                     sums[g] = new long[length[g]];
+                  long[] sum = sums[g];
+                  for (int j=0; j<size; j++)
+                     sum[j] += buffer.next();
+               }
+               partials.add(sums);
+            }
+         });
+      if (!ok)
+         return null;
+
+      //add the sums from each thread together
+      float[][] result = new float[numGroups][];
+      long[] total = new long[0];
+      for (int g=0; g<numGroups; g++)
+      {
+         if (total.length < length[g])
+            total = new long[length[g]];
+         boolean found = false;
+         for (int p=0; p<partials.size(); p++)
+         {
+            long[] sum = ((long[][])partials.elementAt(p))[g];
+            if (sum == null)
+               continue;
+            if (!found)
+               Arrays.fill(total,0,length[g],0);
+            found = true;
+            for (int j=0; j<sum.length; j++)
+               total[j] += sum[j];
+         }
+         if (found)
+         {
+            result[g] = new float[length[g]];
+            for (int j=0; j<length[g]; j++)
+               result[g][j] = total[j];
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Testbed.  Sums the spectra in each DAE crate of the specified file.
+    */
+   public static void main(String[] args)
+   {
+      Rawfile rawfile = new Rawfile(args[0]);
+      GroupedSum grouping = GroupedSum.forCrates(rawfile);
+      long start = System.currentTimeMillis();
+      float[][] sums = grouping.sum(rawfile);
+      long time = System.currentTimeMillis()-start;
+      if (sums == null)
+      {
+         System.out.println("The spectra could not be summed");
+         return;
+      }
+      for (int g=0; g<sums.length; g++)
+      {
+         double total = 0;
+         if (sums[g] != null)
+            for (int j=0; j<sums[g].length; j++)
+               total += sums[g][j];
+         System.out.println("crate "+(g+1)+":  "+total+" counts");
+      }
+      System.out.println("Summed in "+time+" ms");
+   }
+}
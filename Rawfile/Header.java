@@ -64,6 +64,9 @@ package ISIS.Rawfile;
 
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import ISIS.JLibGet.FloatConvert;
 
 /**
  * This package processes header information from an ISIS Raw data file.
@@ -283,41 +286,26 @@ public class Header {
    */
   protected static double ReadVAXReal4( RandomAccessFile inFile )
     throws IOException {
-    int    length   = 4;
-    long   hi_mant;
-    long   low_mant;
-    long   exp;
-    long   sign;
-    double f_val;
-    long   val = ( long )readUnsignedInteger( inFile, length );
-
-    if( val < 0 ) {
-      val = val + ( long )Math.pow( 2.0, ( double )32 );
-    }
+    return FloatConvert.VAXToFloat( readUnsignedInteger( inFile, 4 ) );
+  }
 
-    /* add 128 to put in the implied 1 */
-    hi_mant   = ( val & 127 ) + 128;
-    val       = val >> 7;
-
-    /* exponent is "excess 128" */
-    exp        = ( ( int )( val & 255 ) ) - 128;
-    val        = val >> 8;
-    sign       = val & 1;
-    low_mant   = val >> 1;
-
-    /* This could also be a "reserved" operand of some sort?*/
-    if( exp == -128 ) {
-      f_val = 0;
-    } else {
-      f_val = ( ( hi_mant / 256.0 ) + ( low_mant / 16777216.0 ) ) * Math.pow( 2.0,
-          ( double )exp );
+  // ---------------------------- readVAXReals ----------------------
+  /**
+   * Reads <code>n</code> VAX real numbers from the RandomAccessFile
+   * <code>inFile</code> with a single read and stores them in
+   * <code>values</code>, starting at <code>offset</code>.
+   */
+  protected static void readVAXReals( RandomAccessFile inFile, float[] values,
+                                      int offset, int n )
+    throws IOException {
+    if( n <= 0 ) {
+      return;
     }
 
-    if( sign == 1 ) {
-      f_val = -f_val;
-    }
+    byte[] b = new byte[4 * n];
 
-    return f_val;
+    inFile.readFully( b );
+    FloatConvert.VAXToFloats( ByteBuffer.wrap( b ), values, offset, n );
   }
 
   // --------------------------- readUnsignedInteger -------------------
@@ -379,15 +379,11 @@ public class InstrumentSection {
 
       holdOff = new float[nDet + 1];
 
-      for( int ii = 1; ii <= nDet; ii++ ) {
-        holdOff[ii] = ( float )Header.ReadVAXReal4( rawFile );
-      }
+      Header.readVAXReals( rawFile, holdOff, 1, nDet );
 
       flightPath = new float[nDet + 1];
 
-      for( int ii = 1; ii <= nDet; ii++ ) {
-        flightPath[ii] = ( float )Header.ReadVAXReal4( rawFile );
-      }
+      Header.readVAXReals( rawFile, flightPath, 1, nDet );
 
       codeForUserTableValues = new int[nDet + 1];
 
@@ -397,16 +393,12 @@ public class InstrumentSection {
 
       detectorAngle = new float[nDet + 1];
 
-      for( int ii = 1; ii <= nDet; ii++ ) {
-        detectorAngle[ii] = ( float )Header.ReadVAXReal4( rawFile );
-      }
+      Header.readVAXReals( rawFile, detectorAngle, 1, nDet );
 
       userTable = new float[nUserTables][nDet + 1];
 
       for( int jj = 0; jj < nUserTables; jj++ ) {
-        for( int ii = 1; ii <= nDet; ii++ ) {
-          userTable[jj][ii] = ( float )Header.ReadVAXReal4( rawFile );
-        }
+        Header.readVAXReals( rawFile, userTable[jj], 1, nDet );
       }
     } catch( IOException ex ) {}
 
@@ -1070,4 +1062,21 @@ public class InstrumentSection {
       
       return found;
    }
+
+   /**
+    * Adds the per-detector tables that determine the geometry of the 
+    * instrument to a hash.
+    * @param hash The hash so far.
+    * @return The new hash.
+    */
+   long fingerprint(long hash)
+   {
+      hash = Fingerprint.add(hash,nDet);
+      hash = Fingerprint.add(hash,L1);
+      hash = Fingerprint.add(hash,spectrumNumbers);
+      hash = Fingerprint.add(hash,detectorAngle);
+      hash = Fingerprint.add(hash,flightPath);
+      hash = Fingerprint.add(hash,monDetNums);
+      return hash;
+   }
 }
@@ -0,0 +1,233 @@
+/*
+ * File:  MonitorNormaliser.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Divides the spectra in an ISIS RAW file by a beam monitor.  The monitor
+ * spectrum is read once, when the MonitorNormaliser is created, and its
+ * reciprocal is worked out for each time regime.  Each spectrum is then
+ * multiplied by the reciprocal as it is decoded, so the counts go
+ * straight from the file into the normalised spectrum.<br>
+ * Spectra in the monitor's time regime are divided by the monitor one
+ * time channel at a time.  Spectra in other time regimes are either
+ * divided by the monitor rebinned onto the regime's time channels (as in
+ * Rawfile.Get1DSpectrumRebinned(int,float[])), or by the total counts in
+ * the monitor.  A time channel where the monitor has no counts, and the
+ * zeroth time channel, are set to 0.<br>
+ * Spectra are numbered as in Rawfile.Get1DSpectrum(int), so the first
+ * spectrum is at 1.
+ */
+public class MonitorNormaliser
+{
+   private Rawfile     rawfile;
+   private DataSection data;
+   private int         minRegime;
+   /** The reciprocal of the monitor on the time channels of each regime. */
+   private float[][]   reciprocal;
+
+   /**
+    * Reads a monitor spectrum and works out what each time regime is
+    * divided by.
+    * @param rawfile The RAW file.
+    * @param monitorNum The monitor (the first monitor is at 1).
+    * @param rebin True to rebin the monitor onto the time channels of
+    * each time regime, and false to divide the spectra in other time
+    * regimes by the total monitor counts.
+    * @throws IllegalArgumentException If the monitor does not exist or
+    * could not be read.
+    */
+   public MonitorNormaliser(Rawfile rawfile, int monitorNum, boolean rebin)
+   {
+      this.rawfile = rawfile;
+      data = rawfile.getDataSection();
+      InstrumentSection inst = rawfile.getInstrumentSection();
+      int det = inst.getMonDetNumForMonitor(monitorNum);
+      if (det < 0)
+         throw new IllegalArgumentException("There is no monitor "+monitorNum);
+      int monSpect = inst.getSpectrumNumberForDetector(det)+1;
+      float[] monitor = rawfile.Get1DSpectrum(monSpect);
+      int monRegime = data.getRegimeForSpectrum(monSpect);
+      if (monitor == null || monRegime < 0)
+         throw new IllegalArgumentException("Monitor "+monitorNum+
+                                            " (spectrum "+monSpect+
+                                            ") could not be read");
+
+      //summed in a double, since monitor totals are often more than the
+      //2^24 counts a float can add to exactly
+      double total = 0;
+      for (int j=1; j<monitor.length; j++)
+         total += monitor[j];
+
+      minRegime = rawfile.MinRegimeNumber();
+      int maxRegime = rawfile.MaxRegimeNumber();
+      float[] monBounds = rawfile.TimeChannelBoundariesForRegime(monRegime);
+      reciprocal = new float[maxRegime-minRegime+1][];
+      for (int r=minRegime; r<=maxRegime; r++)
+      {
+         float[] bounds = rawfile.TimeChannelBoundariesForRegime(r);
+         if (bounds == null)
+            continue;
+         float[] divisor;
+         if (r == monRegime)
+            divisor = monitor;
+         else if (rebin)
+         {
+            RebinMap map = new RebinMap(monBounds,bounds);
+            divisor = new float[bounds.length];
+            float[] bins = new float[map.getNumBins()];
+            for (int j=1; j<monitor.length; j++)
+               map.add(j,monitor[j],bins);
+            //bin k of the map is time channel k+1 of the regime
+            System.arraycopy(bins,0,divisor,1,bins.length);
+         }
+         else
+         {
+            divisor = new float[bounds.length];
+            Arrays.fill(divisor,(float)total);
+         }
+
+         float[] inv = new float[divisor.length];
+         for (int j=1; j<divisor.length; j++)
+            if (divisor[j] != 0)
+               inv[j] = 1/divisor[j];
+         reciprocal[r-minRegime] = inv;
+      }
+   }
+
+   /**
+    * Get the normalised counts in one spectrum.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The counts divided by the monitor or <code>null</code> if
+    * the spectrum could not be read.
+    */
+   public float[] normalise(int spect)
+   {
+      RandomAccessFile file = null;
+      try
+      {
+         file = new RandomAccessFile(rawfile.getFileName(),"r");
+         return normalise(file,new SpectrumBuffer(),spect);
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         return null;
+      }
+      finally
+      {
+         try
+         {
+            if (file != null)
+               file.close();
+         }
+         catch (IOException e) { e.printStackTrace(); }
+      }
+   }
+
+   /**
+    * Get the normalised counts in every spectrum.  The spectra are read
+    * on several threads at once, each with its own connection to the
+    * file.
+    * @return An array whose ith element is the normalised spectrum i.
+    * Since the first spectrum is at 1, the zeroth element is
+    * <code>null</code>.  If any spectrum could not be read,
+    * <code>null</code> is returned.
+    */
+   public float[][] normaliseAll()
+   {
+      int nspec = data.getTotalNumSpectra();
+      if (nspec <= 0)
+         return null;
+
+      final float[][] result = new float[nspec+1][];
+      boolean ok = ParallelSpectra.forEachChunk(rawfile.getFileName(),1,nspec,
+                                                ParallelSpectra.numThreads(nspec),
+         new ParallelSpectra.Chunk()
+         {
+            public void process(RandomAccessFile file, SpectrumBuffer buffer,
+                                int first, int last) throws IOException
+            {
+               for (int i=first; i<=last; i++)
+               {
+                  result[i] = normalise(file,buffer,i);
+                  if (result[i] == null)
+                     throw new IOException("Spectrum "+i+" could not be read");
+               }
+            }
+         });
+      return ok ? result : null;
+   }
+
+   /**
+    * Decodes one spectrum, multiplying each time channel by the
+    * reciprocal of the monitor.
+    */
+   private float[] normalise(RandomAccessFile file, SpectrumBuffer buffer,
+                             int spect) throws IOException
+   {
+      int regime = data.getRegimeForSpectrum(spect);
+      if (regime < 0 || reciprocal[regime-minRegime] == null)
+         return null;
+      float[] inv = reciprocal[regime-minRegime];
+      int size = data.loadSpectrum(file,spect,buffer);
+      if (size < 0)
+         return null;
+      float[] result = new float[size];
+      buffer.next();
+      for (int j=1; j<size; j++)
+         result[j] = buffer.next()*inv[j];
+      return result;
+   }
+
+   /**
+    * Testbed.  Normalises every spectrum of the specified file by its
+    * first monitor and prints the total of the normalised counts.
+    */
+   public static void main(String[] args)
+   {
+      Rawfile rawfile = new Rawfile(args[0]);
+      long start = System.currentTimeMillis();
+      float[][] spectra = new MonitorNormaliser(rawfile,1,true).normaliseAll();
+      long time = System.currentTimeMillis()-start;
+      if (spectra == null)
+      {
+         System.out.println("The spectra could not be normalised");
+         return;
+      }
+      double total = 0;
+      for (int i=1; i<spectra.length; i++)
+         for (int j=0; j<spectra[i].length; j++)
+            total += spectra[i][j];
+      System.out.println(total+" normalised counts in "+(spectra.length-1)+
+                         " spectra, "+time+" ms");
+   }
+}
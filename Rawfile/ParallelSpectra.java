@@ -0,0 +1,142 @@
+/*
+ * File:  ParallelSpectra.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Splits a range of spectra into contiguous chunks and processes the
+ * chunks at the same time on separate threads.  Each thread opens its
+ * own RandomAccessFile on the RAW file and has its own SpectrumBuffer,
+ * so the only state shared between the threads is whatever the
+ * Chunk itself shares.
+ */
+class ParallelSpectra
+{
+   /**
+    * The work done for one chunk of spectra.
+    */
+   interface Chunk
+   {
+      /**
+       * Processes the spectra <code>first</code> to <code>last</code>
+       * (inclusive).
+       * @param file The RAW file, opened for this chunk only.
+       * @param buffer A buffer for this chunk only.
+       * @param first The first spectrum in the chunk.
+       * @param last The last spectrum in the chunk.
+       * @throws IOException If the spectra could not be read.
+       */
+      public void process(RandomAccessFile file, SpectrumBuffer buffer,
+                          int first, int last) throws IOException;
+   }
+
+   /**
+    * Get the number of threads to use when processing the specified
+    * number of spectra.
+    * @param numSpectra The number of spectra.
+    * @return The number of threads, at least 1.
+    */
+   static int numThreads(int numSpectra)
+   {
+      int n = Runtime.getRuntime().availableProcessors();
+      return Math.max(1,Math.min(n,numSpectra));
+   }
+
+   /**
+    * Processes the spectra <code>first</code> to <code>last</code>
+    * (inclusive) and waits until all of the chunks are done.
+    * @param filename The name of the RAW file.
+    * @param first The first spectrum.
+    * @param last The last spectrum.
+    * @param numChunks The number of chunks (and threads) to use.
+    * @param body The work to do for each chunk.
+    * @return True if every chunk was processed and false otherwise.
+    */
+   static boolean forEachChunk(final String filename, int first, int last,
+                               int numChunks, final Chunk body)
+   {
+      int numSpectra = last-first+1;
+      if (numSpectra <= 0)
+         return true;
+      if (numChunks<1 || numChunks>numSpectra)
+         numChunks = numSpectra;
+
+      final boolean[] ok = new boolean[numChunks];
+      Thread[] threads = new Thread[numChunks];
+      int start = first;
+      for (int i=0; i<numChunks; i++)
+      {
+         final int index = i;
+         final int lo = start;
+         final int hi = start + (numSpectra*(i+1))/numChunks - (numSpectra*i)/numChunks - 1;
+         start = hi+1;
+         threads[i] = new Thread("RAW spectra "+lo+"-"+hi)
+         {
+            public void run()
+            {
+               RandomAccessFile file = null;
+               try
+               {
+                  file = new RandomAccessFile(filename,"r");
+                  body.process(file,new SpectrumBuffer(),lo,hi);
+                  ok[index] = true;
+               }
+               catch (IOException e) { e.printStackTrace(); }
+               finally
+               {
+                  try
+                  {
+                     if (file != null)
+                        file.close();
+                  }
+                  catch (IOException e) { e.printStackTrace(); }
+               }
+            }
+         };
+         threads[i].start();
+      }
+
+      boolean result = true;
+      for (int i=0; i<numChunks; i++)
+      {
+         try
+         {
+            threads[i].join();
+         }
+         catch (InterruptedException e)
+         {
+            e.printStackTrace();
+            result = false;
+         }
+         result = result && ok[i];
+      }
+      return result;
+   }
+}
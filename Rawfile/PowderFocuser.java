@@ -0,0 +1,220 @@
+/*
+ * File:  PowderFocuser.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Vector;
+
+/**
+ * Time focuses the spectra of a powder diffractometer (such as HRPD) onto
+ * a common d-spacing axis, one focused histogram for each bank, in one
+ * pass through the file.  The banks are the groups of a GroupedSum.  As
+ * each spectrum is decoded its time channel boundaries are converted to
+ * d-spacing with the spectrum's DIFC (see UnitConverter), and the counts
+ * in each time channel are split between the d-spacing bins it overlaps
+ * in proportion to the overlap.  The spectra are read on several threads
+ * at once, each adding into its own set of histograms, which are added
+ * together at the end, so the memory used depends on the number of
+ * banks, bins and threads but not on the number of detectors.<br>
+ * The counts in the zeroth time channel, in spectra with no detectors,
+ * and in any part of a time channel outside of the d-spacing bins, are
+ * dropped.
+ */
+public class PowderFocuser
+{
+   private GroupedSum banks;
+   /** The boundaries of the d-spacing bins, in increasing order. */
+   private float[]    dBounds;
+
+   /**
+    * Creates a new PowderFocuser.
+    * @param banks The bank that each spectrum is focused into.
+    * @param dBounds The d-spacing bin boundaries (in Angstroms) in
+    * increasing order.  The ith bin spans dBounds[i] to dBounds[i+1].
+    */
+   public PowderFocuser(GroupedSum banks, float[] dBounds)
+   {
+      this.banks = banks;
+      this.dBounds = (float[])dBounds.clone();
+   }
+
+   /**
+    * Makes d-spacing bins whose widths are a fixed fraction of d, as the
+    * resolution of a time of flight diffractometer is.
+    * @param dMin The lowest d-spacing.
+    * @param dMax The highest d-spacing.
+    * @param deltaDOverD The width of each bin divided by its lower edge.
+    * @return The bin boundaries.
+    */
+   public static float[] logBins(float dMin, float dMax, float deltaDOverD)
+   {
+      int n = (int)Math.ceil(Math.log(dMax/dMin)/Math.log(1+deltaDOverD));
+      float[] bounds = new float[n+1];
+      for (int i=0; i<=n; i++)
+         bounds[i] = (float)(dMin*Math.pow(1+deltaDOverD,i));
+      return bounds;
+   }
+
+   /**
+    * Focuses the spectra of a RAW file.
+    * @param rawfile The RAW file.
+    * @return The focused counts in each d-spacing bin for each bank, or
+    * <code>null</code> for a bank with no spectra.  If the file could
+    * not be read, <code>null</code> is returned.
+    */
+   public float[][] focus(Rawfile rawfile)
+   {
+      final DataSection data = rawfile.getDataSection();
+      final UnitConverter converter = new UnitConverter(rawfile);
+      final int nspec = data.getTotalNumSpectra();
+      final int numBanks = banks.getNumGroups();
+      final int numBins = dBounds.length-1;
+      if (nspec <= 0 || numBins < 1)
+         return null;
+
+      final int minRegime = rawfile.MinRegimeNumber();
+      final float[][] tcb = new float[rawfile.MaxRegimeNumber()-minRegime+1][];
+      for (int r=0; r<tcb.length; r++)
+         tcb[r] = rawfile.TimeChannelBoundariesForRegime(r+minRegime);
+
+      final Vector partials = new Vector();
+      boolean ok = ParallelSpectra.forEachChunk(rawfile.getFileName(),1,nspec,
+                                                ParallelSpectra.numThreads(nspec),
+         new ParallelSpectra.Chunk()
+         {
+            public void process(RandomAccessFile file, SpectrumBuffer buffer,
+                                int first, int last) throws IOException
+            {
+               double[][] sums = new double[numBanks][];
+               for (int i=first; i<=last; i++)
+               {
+                  int bank = banks.getGroupForSpectrum(i);
+                  float toD = converter.getFactor(i,UnitConverter.D_SPACING);
+                  int regime = data.getRegimeForSpectrum(i);
+                  if (bank < 0 || Float.isNaN(toD) || toD <= 0 || regime < 0 ||
+                      tcb[regime-minRegime] == null)
+                     continue;
+                  int size = data.loadSpectrum(file,i,buffer);
+                  if (size < 0)
+                     throw new IOException("Spectrum "+i+" could not be read");
+                  if (sums[bank] == null)
+                     sums[bank] = new double[numBins];
+                  focus(buffer,size,tcb[regime-minRegime],toD,sums[bank]);
+               }
+               partials.add(sums);
+            }
+         });
+      if (!ok)
+         return null;
+
+      //add the histograms from each thread together
+      float[][] result = new float[numBanks][];
+      for (int b=0; b<numBanks; b++)
+      {
+         double[] total = null;
+         for (int p=0; p<partials.size(); p++)
+         {
+            double[] sum = ((double[][])partials.elementAt(p))[b];
+            if (sum == null)
+               continue;
+            if (total == null)
+               total = new double[numBins];
+            for (int k=0; k<numBins; k++)
+               total[k] += sum[k];
+         }
+         if (total != null)
+         {
+            result[b] = new float[numBins];
+            for (int k=0; k<numBins; k++)
+               result[b][k] = (float)total[k];
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Adds the counts decoded from <code>buffer</code> into the d-spacing
+    * bins.  Time channel j spans tof[j-1] to tof[j], and d-spacing is the
+    * time of flight times <code>toD</code>.
+    */
+   private void focus(SpectrumBuffer buffer, int size, float[] tof, float toD,
+                      double[] out)
+   {
+      int numBins = dBounds.length-1;
+      buffer.next();
+      int k = 0;
+      float lo = tof[0]*toD;
+      for (int j=1; j<size && j<tof.length; j++)
+      {
+         int counts = buffer.next();
+         float hi = tof[j]*toD;
+         float width = hi-lo;
+         if (counts != 0 && width > 0)
+         {
+            while (k<numBins && dBounds[k+1]<=lo)
+               k++;
+            for (int kk=k; kk<numBins && dBounds[kk]<hi; kk++)
+            {
+               float overlap = Math.min(hi,dBounds[kk+1])-Math.max(lo,dBounds[kk]);
+               if (overlap > 0)
+                  out[kk] += counts*(double)overlap/width;
+            }
+         }
+         lo = hi;
+      }
+   }
+
+   /**
+    * Testbed.  Focuses the spectra in each DAE crate of the specified file
+    * onto bins from 0.5 to 5 Angstroms with a width of 0.1% of d.
+    */
+   public static void main(String[] args)
+   {
+      Rawfile rawfile = new Rawfile(args[0]);
+      PowderFocuser focuser = new PowderFocuser(GroupedSum.forCrates(rawfile),
+                                                logBins(0.5f,5.0f,0.001f));
+      long start = System.currentTimeMillis();
+      float[][] focused = focuser.focus(rawfile);
+      long time = System.currentTimeMillis()-start;
+      if (focused == null)
+      {
+         System.out.println("The spectra could not be focused");
+         return;
+      }
+      for (int b=0; b<focused.length; b++)
+      {
+         double total = 0;
+         if (focused[b] != null)
+            for (int k=0; k<focused[b].length; k++)
+               total += focused[b][k];
+         System.out.println("bank "+(b+1)+":  "+total+" counts");
+      }
+      System.out.println("Focused in "+time+" ms");
+   }
+}
@@ -102,7 +102,10 @@
 package ISIS.Rawfile;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import IPNS.Runfile.InstrumentType;
 
@@ -110,7 +113,12 @@ import IPNS.Runfile.InstrumentType;
  * This class is designed to provide an interface to the ISIS raw files.  This
  * class reads information by instatiating classes for different section of
  * the  raw file header information.  Public methods to retrieve information
- * are all provided by this class
+ * are all provided by this class<br>
+ * A Rawfile reads spectra through one RandomAccessFile and one shared
+ * decode buffer, so it must only be used by one thread at a time.  The
+ * methods that read many spectra on several threads, such as
+ * Get1DSpectraRebinned(float[]), give each thread its own connection to
+ * the file.
  *
  * @author J.P. Hammonds Intense Pulsed Neutron Source Argonne National
  *         Laboratory
@@ -133,6 +141,11 @@ public class Rawfile {
   
   private int minMonitorID;
   private int maxMonitorID;
+  
+  private SpectrumBuffer spectrumBuffer;
+  private float[]        rebinBounds;
+  private RebinMap[]     rebinMaps;
+  private DetectorTable  detTable;
 
   //~ Constructors -------------------------------------------------------------
 
@@ -151,11 +164,16 @@ public class Rawfile {
       daeSect = new DaeSection();
       timeSect = new TimeSection();
       dataSect = new DataSection();
+      detTable = new DetectorTable(instSect,daeSect,0);
       leaveOpen = false;
       filename = new String();
       
       minMonitorID = -1;
       maxMonitorID = -1;
+      
+      spectrumBuffer = null;
+      rebinBounds = null;
+      rebinMaps = new RebinMap[0];
    }
 
   /**
@@ -175,10 +193,66 @@ public class Rawfile {
       daeSect    = new DaeSection( rawfile, header, instSect.getNumberOfDetectors() );
       timeSect   = new TimeSection( rawfile, header, daeSect );
       dataSect   = new DataSection( rawfile, header, timeSect );
+      detTable   = new DetectorTable( instSect, daeSect, dataSect.getTotalNumSpectra() );
     } catch( IOException ex ) { ex.printStackTrace(); }
   }
 
   //~ Methods ------------------------------------------------------------------
+  /**
+   * Get the name of the RAW file.
+   * @return The name of the RAW file.
+   */
+  String getFileName()
+  {
+     return filename;
+  }
+  
+  /**
+   * Get the data section of the RAW file.
+   * @return The data section.
+   */
+  DataSection getDataSection()
+  {
+     return dataSect;
+  }
+  
+  /**
+   * Get the instrument section of the RAW file.
+   * @return The instrument section.
+   */
+  InstrumentSection getInstrumentSection()
+  {
+     return instSect;
+  }
+  
+  /**
+   * Get the per detector information from the instrument and DAE 
+   * sections of the RAW file.
+   * @return The table, which is built when the file is opened.
+   */
+  public DetectorTable GetDetectorTable()
+  {
+     return detTable;
+  }
+  
+  /**
+   * Get the DAE section of the RAW file.
+   * @return The DAE section.
+   */
+  DaeSection getDaeSection()
+  {
+     return daeSect;
+  }
+  
+  /**
+   * Get the time section of the RAW file.
+   * @return The time section.
+   */
+  TimeSection getTimeSection()
+  {
+     return timeSect;
+  }
+  
   /**
    * Closes files opened with LeaveOpen.
    */
@@ -220,6 +294,24 @@ public class Rawfile {
     leaveOpen = true;
   }
 
+  /**
+   * Get a 64 bit hash of the tables that determine the geometry of the 
+   * instrument:  the instrument name, the flight path, angle and spectrum 
+   * of each detector, the DAE tables for each detector, and the number of 
+   * spectra, number of time channels and time channel boundaries for each 
+   * time regime.  Two RAW files with the same fingerprint can share 
+   * detector positions, subgroup lists and time scales.
+   * @return The fingerprint.
+   */
+  public long GeometryFingerprint()
+  {
+     long hash = Fingerprint.add(Fingerprint.START,instSect.getInstrumentName());
+     hash = instSect.fingerprint(hash);
+     hash = daeSect.fingerprint(hash);
+     hash = timeSect.fingerprint(hash);
+     return hash;
+  }
+  
   /**
    * Get the detector IDs which are in the spectrum (aka subgroup) <code>sg</code>.
    * @param sg The spectrum in question.
@@ -245,11 +337,12 @@ public class Rawfile {
     }
     */
     
-    Vector found = new Vector(instSect.getNumberOfDetectors());
-    for (int i=1; i<=instSect.getNumberOfDetectors(); i++)
+    int[] spectrum = detTable.spectrum;
+    Vector found = new Vector(detTable.numDetectors);
+    for (int i=0; i<spectrum.length; i++)
     {
-       if (instSect.getSpectrumNumberForDetector(i)==sg)
-         found.add(new Integer(i));
+       if (spectrum[i]==sg+1)
+         found.add(new Integer(i+1));
     }
     
     int[] answer = new int[found.size()];
@@ -407,17 +500,14 @@ public class Rawfile {
     else
     {
        int prescale = timeSect.getClockPrescaleForRegime(num);
-       float error = timeSect.getTimeChannelParametersForRegime(num)[0][0];
+       //the boundaries are stored in clock pulses after the frame synch 
+       //delay, which is in 4 microsecond steps (as in TimeSection, 
+       //TCB1(n) = (time - DAEP(24)*4)*32/PRE1).  Version 1 files have 
+       //no delay.
+       int delay = (header.getFormatVersion() != 1) ? daeSect.getFrameSyncDelay()*4 : 0;
        float[] tcbArray = new float[timeChanBound.length];
-       //here 4 is subtracted because data collected from ISIS RAW files seems 
-       //to be hinting that the first and last values in timeChanBound are always 
-       //too high by 4 units.  Therefore, it is hypothesized that all of the values are 
-       //too high by 4 units.  This makes the calculated values match 
-       //getTimeChannelParametersForRegime(num)[0][0] and 
-       //getTimeChannelParametersForRegime(num)[0][1] which appear to be the 
-       //initial and final times (in microseconds) respectively
        for (int i=0; i<timeChanBound.length; i++)
-         tcbArray[i] = (timeChanBound[i]*prescale/32.0f+error-4);
+         tcbArray[i] = timeChanBound[i]*prescale/32.0f+delay;
        
        return tcbArray;
     }
@@ -447,6 +537,257 @@ public class Rawfile {
     return dataSect.get1DSpectrum( rawfile, spect, timeSect );
   }
   
+  /**
+   * Retrieves the spectrum of a 1D detector, rebinned onto the bins 
+   * <code>bounds</code>.  The counts are read from the file straight 
+   * into the new bins, without first storing the full spectrum.  The 
+   * counts in each time channel are split between the new bins it 
+   * overlaps in proportion to the overlap.  The counts in the zeroth 
+   * time channel, and in any part of a time channel outside of 
+   * <code>bounds</code>, are dropped.
+   * @param spect The number of the spectrum that is to be retrieved.
+   * @param bounds The bin boundaries (in microseconds) in increasing 
+   * order.  The ith bin spans bounds[i] to bounds[i+1].
+   * @return The counts in each bin (of length bounds.length-1) or 
+   * <code>null</code> if the spectrum could not be read.
+   */
+  public float[] Get1DSpectrumRebinned( int spect, float[] bounds )
+  {
+     if (bounds == null || bounds.length < 2)
+     {
+        System.out.println("At least two bin boundaries are needed to rebin spectrum "+spect);
+        return null;
+     }
+     
+     RebinMap map = getRebinMap(dataSect.getRegimeForSpectrum(spect),bounds);
+     if (map == null)
+     {
+        System.out.println("A request for an invalid spectrum was made in Get1DSpectrumRebinned(int, float[])" +
+           "\n  Spectrum requested:  "+spect+
+           "\n  Returning null.");
+        return null;
+     }
+     
+     try
+     {
+        return rebin(rawfile,getSpectrumBuffer(),spect,map,new float[map.getNumBins()]);
+     }
+     catch (IOException e)
+     {
+        e.printStackTrace();
+        return null;
+     }
+  }
+  
+  /**
+   * Retrieves every spectrum in the file, rebinned onto the bins 
+   * <code>bounds</code> as described in Get1DSpectrumRebinned(int,float[]).  
+   * The spectra are read on several threads at once, each with its 
+   * own connection to the file.
+   * @param bounds The bin boundaries (in microseconds) in increasing 
+   * order.  The ith bin spans bounds[i] to bounds[i+1].
+   * @return An array whose ith element is the rebinned spectrum i.  
+   * Since the first spectrum is at 1, the zeroth element is 
+   * <code>null</code>.  If any spectrum could not be read, 
+   * <code>null</code> is returned.
+   */
+  public float[][] Get1DSpectraRebinned( final float[] bounds )
+  {
+     if (bounds == null || bounds.length < 2)
+     {
+        System.out.println("At least two bin boundaries are needed to rebin the spectra");
+        return null;
+     }
+     
+     int nspec = dataSect.getTotalNumSpectra();
+     if (nspec <= 0)
+        return null;
+     
+     //the maps are found once here, so the threads only share this array
+     final int minRegime = timeSect.getMinimumRegimeNumber();
+     final RebinMap[] maps = getRebinMaps(bounds);
+     final float[][] result = new float[nspec+1][];
+     boolean ok = ParallelSpectra.forEachChunk(filename,1,nspec,
+                                               ParallelSpectra.numThreads(nspec),
+        new ParallelSpectra.Chunk()
+        {
+           public void process(RandomAccessFile file, SpectrumBuffer buffer,
+                               int first, int last) throws IOException
+           {
+              for (int i=first; i<=last; i++)
+              {
+                 int regime = dataSect.getRegimeForSpectrum(i)-minRegime;
+                 RebinMap map = (regime >= 0 && regime < maps.length) ? maps[regime] : null;
+                 if (map == null)
+                    throw new IOException("Spectrum "+i+" could not be rebinned");
+                 result[i] = rebin(file,buffer,i,map,new float[map.getNumBins()]);
+                 if (result[i] == null)
+                    throw new IOException("Spectrum "+i+" could not be read");
+              }
+           }
+        });
+     
+     return ok ? result : null;
+  }
+  
+  /**
+   * Retrieves every spectrum in the file divided by a beam monitor, as 
+   * described in MonitorNormaliser.  The monitor is read once and each 
+   * spectrum is divided as it is decoded, on several threads at once.
+   * @param monitorNum The monitor (the first monitor is at 1).
+   * @param rebin True to rebin the monitor onto the time channels of 
+   * each time regime, and false to divide the spectra in other time 
+   * regimes by the total monitor counts.
+   * @return An array whose ith element is the normalised spectrum i.  
+   * Since the first spectrum is at 1, the zeroth element is 
+   * <code>null</code>.  If the monitor or any spectrum could not be 
+   * read, <code>null</code> is returned.
+   */
+  public float[][] Get1DSpectraNormalised( int monitorNum, boolean rebin )
+  {
+     try
+     {
+        return new MonitorNormaliser(this,monitorNum,rebin).normaliseAll();
+     }
+     catch (IllegalArgumentException e)
+     {
+        System.out.println(e.getMessage());
+        return null;
+     }
+  }
+  
+  /**
+   * Opens a cursor over the spectra <code>first</code> to
+   * <code>last</code> (inclusive), which decodes each spectrum into the
+   * same arrays rather than allocating new ones as Get1DSpectrum(int)
+   * does.  See SpectrumCursor.
+   * @param first The first spectrum.
+   * @param last The last spectrum.
+   * @return The cursor, which must be closed when it is no longer
+   * needed, or <code>null</code> if the file could not be opened.
+   */
+  public SpectrumCursor OpenSpectrumCursor( int first, int last )
+  {
+     try
+     {
+        return new SpectrumCursor(this,first,last);
+     }
+     catch (IOException e)
+     {
+        e.printStackTrace();
+        return null;
+     }
+  }
+
+  /**
+   * Get a stream over the spectra <code>first</code> to <code>last</code>
+   * (inclusive), built on a SpectrumCursor.  Each element is the cursor 
+   * that has just read a spectrum, and is only valid until the stream 
+   * moves on.  A parallel stream splits the spectra between threads, 
+   * each with its own connection to the file and its own arrays.
+   * @param first The first spectrum.
+   * @param last The last spectrum.
+   * @param parallel True for a parallel stream.
+   * @return The stream or <code>null</code> if the file could not be 
+   * opened.
+   */
+  public Stream<SpectrumCursor> StreamSpectra( int first, int last, boolean parallel )
+  {
+     final SpectrumCursor cursor = OpenSpectrumCursor(first,last);
+     if (cursor == null)
+        return null;
+     return StreamSupport.stream(cursor,parallel).onClose(new Runnable()
+     {
+        public void run()
+        {
+           cursor.close();
+        }
+     });
+  }
+
+  /**
+   * Reads every spectrum in the file into one matrix held outside of the
+   * Java heap, as described in CountsMatrix.  The matrix must be released
+   * with CountsMatrix.release() when it is no longer needed.
+   * @return The matrix or <code>null</code> if the file could not be
+   * read.
+   */
+  public CountsMatrix GetCountsMatrix()
+  {
+     return CountsMatrix.load(this);
+  }
+
+  /**
+   * Reads a spectrum and adds its counts to <code>out</code>.
+   * @return <code>out</code> or <code>null</code> if the spectrum is 
+   * stored in a format that cannot be read.
+   */
+  private float[] rebin( RandomAccessFile file, SpectrumBuffer buffer, 
+                         int spect, RebinMap map, float[] out ) throws IOException
+  {
+     int size = dataSect.loadSpectrum(file,spect,buffer);
+     if (size < 0)
+        return null;
+     
+     //skip the zeroth time channel
+     buffer.next();
+     for (int j=1; j<size; j++)
+        map.add(j,buffer.next(),out);
+     return out;
+  }
+  
+  /**
+   * Get the map from the time channels of a time regime onto the bins 
+   * <code>bounds</code>.  The maps for the last set of bins used are kept 
+   * so that they are only built once for each time regime.
+   * @param regime The time regime.
+   * @param bounds The bin boundaries.
+   * @return The map or <code>null</code> if <code>regime</code> is invalid.
+   */
+  private RebinMap getRebinMap( int regime, float[] bounds )
+  {
+     int min = timeSect.getMinimumRegimeNumber();
+     if (regime < min || regime > timeSect.getMaximumRegimeNumber())
+        return null;
+     
+     if (!Arrays.equals(bounds,rebinBounds))
+     {
+        rebinBounds = (float[])bounds.clone();
+        rebinMaps = new RebinMap[timeSect.getMaximumRegimeNumber()-min+1];
+     }
+     
+     if (rebinMaps[regime-min] == null)
+     {
+        float[] tcb = TimeChannelBoundariesForRegime(regime);
+        if (tcb == null)
+           return null;
+        rebinMaps[regime-min] = new RebinMap(tcb,rebinBounds);
+     }
+     return rebinMaps[regime-min];
+  }
+  
+  /**
+   * Get the maps from the time channels of every time regime onto the 
+   * bins <code>bounds</code>.
+   * @param bounds The bin boundaries.
+   * @return The maps, indexed by the time regime minus the minimum 
+   * regime number.  The map for a regime with no time channel boundaries 
+   * is <code>null</code>.
+   */
+  private RebinMap[] getRebinMaps( float[] bounds )
+  {
+     for (int r=timeSect.getMinimumRegimeNumber(); r<=timeSect.getMaximumRegimeNumber(); r++)
+        getRebinMap(r,bounds);
+     return rebinMaps;
+  }
+  
+  private SpectrumBuffer getSpectrumBuffer()
+  {
+     if (spectrumBuffer == null)
+        spectrumBuffer = new SpectrumBuffer();
+     return spectrumBuffer;
+  }
+  
   /**
    * Is the detector numbered <code>detNum</code> a monitor?
    * @param detNum The number of the detector in question.
@@ -668,6 +1009,15 @@ public class Rawfile {
     return runSect.getGoodProtonCharge();
   }
 
+  /**
+   * The total proton charge.
+   * @return The total proton charge for this run.
+   */
+  public float TotalProtonCharge(  )
+  {
+    return runSect.getTotalProtonCharge();
+  }
+
   /**
    * The angle for the detector specified by 
    * <code>detID</code>.
@@ -697,6 +1047,21 @@ public class Rawfile {
      return instSect.getFlightPathForDetector(detID);
   }
   
+  /**
+   * The user table values for a given detector ID.
+   * @param detID The number of the detector you are referring to.
+   * Note:  For <code>detectorNum</code> to be valid, 1 <=
+   * <code>detectorNum</code> <=
+   * {@link InstrumentSection#getNumberOfDetectors()
+   * getNumberOfDetectors()}.
+   * @return The value from each user table (UT1 first) for the detector,
+   * or null if <code>detID</code> is invalid.
+   */
+  public float[] UserTableValues( int detID )
+  {
+     return instSect.getUserTableForDetector(detID);
+  }
+  
   /**
    * Get the crate number at detector <code>detectorNum</code>.  
    * Note:  The first detector is at <code>detectorNum</code>=1 not 0.
@@ -0,0 +1,391 @@
+/*
+ * File:  RawfileFollower.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+/**
+ * Follows a RAW file that is still being written, as the current run of
+ * a live experiment is, keeping the file open and the counts of every
+ * spectrum in memory.  Each time the file is checked (poll()) only the
+ * spectra that have changed are decoded again:<br>
+ * if the size and modification time of the file are the same nothing is
+ * read,<br>
+ * otherwise the sections before the data are read again, and if the
+ * spectra or time channels have changed every spectrum is decoded,<br>
+ * otherwise the words stored for each spectrum are read and a spectrum
+ * is decoded if, in a compressed (version 2) file, its size has changed,
+ * or if the CRC-32 of its words has changed.  A spectrum that has only
+ * moved, because one before it has grown, is not decoded again.<br>
+ * The spectra that were decoded again are passed to every
+ * FollowListener.  A thread can check the file at a fixed interval
+ * (start()), by default the dump interval of the run.<br>
+ * Spectra are numbered as in Rawfile.Get1DSpectrum(int), so the first
+ * spectrum is at 1, and each spectrum includes the zeroth time channel.
+ */
+public class RawfileFollower
+{
+   /**
+    * Is told when the spectra of the followed file change.
+    */
+   public interface FollowListener
+   {
+      /**
+       * Called after a check of the file found changed spectra.
+       * @param follower The RawfileFollower.
+       * @param spectra The spectra that changed, in order.
+       */
+      public void spectraChanged(RawfileFollower follower, int[] spectra);
+   }
+
+   private String           filename;
+   private RandomAccessFile file;
+   private SpectrumBuffer   buffer;
+   private CRC32            crc;
+   private long             fileLength;
+   private long             lastModified;
+   private RunSection       runSect;
+   private DataSection      dataSect;
+   /** The counts, compressed lengths and checksums of each spectrum. */
+   private int[][]          counts;
+   private int[]            lengths;
+   private long[]           checksums;
+   private Vector           listeners;
+   private Thread           thread;
+   private boolean          stopping;
+
+   /**
+    * Opens a RAW file and decodes every spectrum.
+    * @param filename The RAW file.
+    * @throws IOException If the file could not be opened.
+    */
+   public RawfileFollower(String filename) throws IOException
+   {
+      this.filename = filename;
+      file = new RandomAccessFile(filename,"r");
+      buffer = new SpectrumBuffer();
+      crc = new CRC32();
+      counts = new int[1][];
+      lengths = new int[1];
+      checksums = new long[1];
+      listeners = new Vector();
+      poll();
+   }
+
+   /**
+    * Adds a listener that is told when spectra change.
+    * @param listener The listener.
+    */
+   public void addFollowListener(FollowListener listener)
+   {
+      listeners.add(listener);
+   }
+
+   /**
+    * Removes a listener.
+    * @param listener The listener.
+    */
+   public void removeFollowListener(FollowListener listener)
+   {
+      listeners.remove(listener);
+   }
+
+   /**
+    * Checks the file and decodes the spectra that have changed since the
+    * last check.  If the file cannot be read, for example because it is
+    * part way through being written, the counts are left as they were
+    * and the next check tries again.
+    * @return The spectra that changed, which are also passed to the
+    * listeners, or <code>null</code> if the file could not be read.
+    */
+   public int[] poll()
+   {
+      int[] changed;
+      synchronized (this)
+      {
+         if (file == null)
+            return null;
+         File f = new File(filename);
+         long length = f.length();
+         long modified = f.lastModified();
+         if (dataSect != null && length == fileLength && modified == lastModified)
+            return new int[0];
+
+         try
+         {
+            changed = reread();
+         }
+         catch (Exception e)
+         {
+            System.out.println("Could not read "+filename+":  "+e);
+            return null;
+         }
+         fileLength = length;
+         lastModified = modified;
+      }
+
+      if (changed.length > 0)
+      {
+         Vector copy = (Vector)listeners.clone();
+         for (int i=0; i<copy.size(); i++)
+            ((FollowListener)copy.elementAt(i)).spectraChanged(this,changed);
+      }
+      return changed;
+   }
+
+   /**
+    * Reads the sections of the file again and decodes the changed
+    * spectra.  Nothing is kept unless every spectrum could be read.
+    */
+   private int[] reread() throws IOException
+   {
+      Header header = new Header(file);
+      RunSection run = new RunSection(file,header);
+      InstrumentSection inst = new InstrumentSection(file,header);
+      DaeSection dae = new DaeSection(file,header,inst.getNumberOfDetectors());
+      TimeSection time = new TimeSection(file,header,dae);
+      DataSection data = new DataSection(file,header,time);
+      int nspec = data.getTotalNumSpectra();
+      if (nspec < 0)
+         throw new IOException("The data section could not be read");
+
+      //every spectrum is new if the spectra or time channels have changed
+      boolean layoutChanged = (dataSect == null || nspec != counts.length-1);
+      for (int i=1; i<=nspec && !layoutChanged; i++)
+         if (data.getNumChannelsForSpectrum(i) != counts[i].length)
+            layoutChanged = true;
+
+      int[][] newCounts = layoutChanged ? new int[nspec+1][] : (int[][])counts.clone();
+      int[] newLengths = new int[nspec+1];
+      long[] newChecksums = new long[nspec+1];
+      int[] changed = new int[nspec];
+      int numChanged = 0;
+      for (int i=1; i<=nspec; i++)
+      {
+         int size = data.loadSpectrum(file,i,buffer);
+         if (size < 0)
+            throw new IOException("Spectrum "+i+" could not be read");
+         newLengths[i] = data.getSpectrumLength(i);
+         crc.reset();
+         buffer.update(crc);
+         newChecksums[i] = crc.getValue();
+         if (layoutChanged || newLengths[i] != lengths[i] ||
+             newChecksums[i] != checksums[i])
+         {
+            int[] values = new int[size];
+            for (int j=0; j<size; j++)
+               values[j] = buffer.next();
+            newCounts[i] = values;
+            changed[numChanged++] = i;
+         }
+      }
+
+      runSect = run;
+      dataSect = data;
+      counts = newCounts;
+      lengths = newLengths;
+      checksums = newChecksums;
+
+      int[] result = new int[numChanged];
+      System.arraycopy(changed,0,result,0,numChanged);
+      return result;
+   }
+
+   /**
+    * Get the number of spectra.
+    * @return The number of spectra when the file was last read.
+    */
+   public synchronized int getNumSpectra()
+   {
+      return counts.length-1;
+   }
+
+   /**
+    * Get the counts in a spectrum.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The counts when the file was last read or <code>null</code>
+    * if <code>spect</code> is invalid.
+    */
+   public synchronized int[] getCounts(int spect)
+   {
+      if (spect<1 || spect>=counts.length)
+         return null;
+      return (int[])counts[spect].clone();
+   }
+
+   /**
+    * Get the good proton charge.
+    * @return The charge (in microamp hours) when the file was last read.
+    */
+   public synchronized float getGoodProtonCharge()
+   {
+      return (runSect == null) ? Float.NaN : runSect.getGoodProtonCharge();
+   }
+
+   /**
+    * Get the dump interval of the run.
+    * @return The dump interval (in minutes) when the file was last read
+    * or -1 if it is not known.
+    */
+   public synchronized int getDumpInterval()
+   {
+      return (runSect == null) ? -1 : runSect.getDumpInterval();
+   }
+
+   /**
+    * Starts a thread that checks the file every dump interval, or every
+    * minute if the dump interval is not set.
+    */
+   public void start()
+   {
+      int minutes = getDumpInterval();
+      start(60000L*((minutes > 0) ? minutes : 1));
+   }
+
+   /**
+    * Starts a thread that checks the file at a fixed interval.  Any
+    * thread already started is stopped first.
+    * @param interval The time between checks in milliseconds.
+    */
+   public void start(final long interval)
+   {
+      stop();
+      synchronized (this)
+      {
+         stopping = false;
+         thread = new Thread("RawfileFollower")
+         {
+            public void run()
+            {
+               while (waitFor(interval))
+                  poll();
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+      }
+   }
+
+   /**
+    * Waits for the next check.
+    * @return False if the thread should stop.
+    */
+   private synchronized boolean waitFor(long interval)
+   {
+      long end = System.currentTimeMillis()+interval;
+      long left = interval;
+      while (!stopping && left > 0)
+      {
+         try
+         {
+            wait(left);
+         }
+         catch (InterruptedException e)
+         {
+            return false;
+         }
+         left = end-System.currentTimeMillis();
+      }
+      return !stopping;
+   }
+
+   /**
+    * Stops the thread started by start(), and waits for any check in
+    * progress to finish.
+    */
+   public void stop()
+   {
+      Thread old;
+      synchronized (this)
+      {
+         old = thread;
+         thread = null;
+         stopping = true;
+         notifyAll();
+      }
+      if (old != null && old != Thread.currentThread())
+      {
+         try
+         {
+            old.join();
+         }
+         catch (InterruptedException e)
+         {
+            e.printStackTrace();
+         }
+      }
+   }
+
+   /**
+    * Stops following the file and closes it.
+    */
+   public void close()
+   {
+      stop();
+      synchronized (this)
+      {
+         try
+         {
+            if (file != null)
+               file.close();
+         }
+         catch (IOException e) { e.printStackTrace(); }
+         file = null;
+      }
+   }
+
+   /**
+    * Testbed.  Follows the specified file, checking it at the interval
+    * given in seconds by the second argument (or every dump interval),
+    * and prints the spectra that change.
+    */
+   public static void main(String[] args) throws Exception
+   {
+      long start = System.currentTimeMillis();
+      RawfileFollower follower = new RawfileFollower(args[0]);
+      System.out.println(follower.getNumSpectra()+" spectra read in "+
+                         (System.currentTimeMillis()-start)+" ms");
+      follower.addFollowListener(new FollowListener()
+      {
+         public void spectraChanged(RawfileFollower follower, int[] spectra)
+         {
+            System.out.println(spectra.length+" spectra changed, "+
+                               follower.getGoodProtonCharge()+" uAh");
+         }
+      });
+      if (args.length > 1)
+         follower.start(1000L*Integer.parseInt(args[1]));
+      else
+         follower.start();
+      Thread.sleep(Long.MAX_VALUE);
+   }
+}
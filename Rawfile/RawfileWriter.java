@@ -0,0 +1,617 @@
+/*
+ * File:  RawfileWriter.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import ISIS.JLibGet.FloatConvert;
+
+/**
+ * Writes small ISIS RAW files (format version 2, one time regime, one
+ * period) so that the readers in ISIS.Rawfile and ISIS.JLibGet can be
+ * checked against files whose contents are known, and so that counts
+ * that have been worked out (for example by RunSummer) can be saved.
+ * Unless the spectrum numbers are given, detector d is recorded in
+ * spectrum d.  Some of the detectors can be made monitors and there can
+ * be user tables.  There are no sample environment parameters.  The data
+ * section is either version 1 (uncompressed) or version 2 with byte
+ * relative compression.<br>
+ * The time channel boundaries are given in clock pulses after the frame
+ * sync delay, so both readers should convert them to
+ * tcb*prescale/32+4*delay microseconds.
+ */
+public class RawfileWriter
+{
+   /** The number of words in the period map of the time section. */
+   private static final int PMAP_SIZE = 256;
+
+   private String  instName;
+   private int     runNumber;
+   private String  title;
+   private String  userName;
+   private float   L1;
+   private float   protonCharge;
+   /** The total proton charge, or NaN if it is the good proton charge. */
+   private float   totalCharge;
+   private float[] flightPath;
+   private float[] twoTheta;
+   /** The spectrum number of each detector, as stored in the file. */
+   private int[]   spectrumNumber;
+   /** The detector number of each monitor. */
+   private int[]   monitors;
+   /** The user tables, indexed by [table][detector], both from 0. */
+   private float[][] userTables;
+   private int[]   tcb;
+   private int     prescale;
+   /** The frame sync delay, in 4 microsecond steps. */
+   private int     frameSyncDelay;
+   /** The counts, indexed by [spectrum][time channel], both from 0. */
+   private int[][] counts;
+   private boolean compressed;
+
+   /**
+    * Creates a new RawfileWriter for a file with no detectors.
+    */
+   public RawfileWriter()
+   {
+      instName = "TST";
+      runNumber = 1;
+      title = "";
+      userName = "";
+      L1 = 10.0f;
+      protonCharge = 0.0f;
+      totalCharge = Float.NaN;
+      flightPath = new float[0];
+      twoTheta = new float[0];
+      spectrumNumber = new int[0];
+      monitors = new int[0];
+      userTables = new float[0][];
+      tcb = new int[] { 0, 32 };
+      prescale = 1;
+      frameSyncDelay = 0;
+      counts = new int[0][];
+      compressed = false;
+   }
+
+   /**
+    * Creates a RawfileWriter for a file with random counts.
+    * @param numDetectors The number of detectors (and spectra).
+    * @param numChannels The number of time channels.
+    * @param seed The seed for the random numbers.
+    * @return The RawfileWriter.
+    */
+   public static RawfileWriter synthetic(int numDetectors, int numChannels,
+                                         long seed)
+   {
+      Random random = new Random(seed);
+      RawfileWriter writer = new RawfileWriter();
+      writer.setRunNumber(1+random.nextInt(99999));
+      writer.setTitle("Synthetic run "+seed);
+      writer.setProtonCharge(100.0f*random.nextFloat());
+      //more than the good charge, so that a reader that mixes up the two
+      //is caught
+      writer.setTotalProtonCharge(1.25f*writer.getProtonCharge()+1.0f);
+
+      float[] l2 = new float[numDetectors];
+      float[] angle = new float[numDetectors];
+      for (int d=0; d<numDetectors; d++)
+      {
+         l2[d] = 0.5f+random.nextFloat();
+         angle[d] = 180.0f*random.nextFloat();
+      }
+      writer.setDetectors(l2,angle);
+
+      int[] boundaries = new int[numChannels+1];
+      boundaries[0] = 32*(1000+random.nextInt(1000));
+      for (int i=1; i<boundaries.length; i++)
+         boundaries[i] = boundaries[i-1]+32*(1+random.nextInt(16));
+      writer.setTimeChannelBoundaries(boundaries,1);
+      writer.setFrameSyncDelay(random.nextInt(250));
+
+      //mostly small changes from one channel to the next, with the odd
+      //large one so that both forms of byte relative compression are used
+      int[][] data = new int[numDetectors+1][numChannels+1];
+      for (int s=0; s<data.length; s++)
+      {
+         int value = random.nextInt(100);
+         for (int i=0; i<data[s].length; i++)
+         {
+            if (random.nextInt(50) == 0)
+               value = random.nextInt(1000000);
+            else
+               value = Math.max(0,value+random.nextInt(21)-10);
+            data[s][i] = value;
+         }
+      }
+      writer.setCounts(data);
+
+      //two user tables, so that the readers' UTn tables can be checked
+      float[][] tables = new float[2][numDetectors];
+      for (int n=0; n<tables.length; n++)
+         for (int d=0; d<numDetectors; d++)
+            tables[n][d] = 100.0f*random.nextFloat();
+      writer.setUserTables(tables);
+      return writer;
+   }
+
+   /**
+    * Sets the instrument name.
+    * @param name The name (only the first 3 characters are used in the
+    * header).
+    */
+   public void setInstrumentName(String name)
+   {
+      instName = name;
+   }
+
+   /**
+    * Sets the run number.
+    * @param run The run number (at most 5 digits).
+    */
+   public void setRunNumber(int run)
+   {
+      runNumber = run;
+   }
+
+   /**
+    * Sets the run title.
+    * @param title The title.
+    */
+   public void setTitle(String title)
+   {
+      this.title = title;
+   }
+
+   /**
+    * Sets the user name.
+    * @param name The name.
+    */
+   public void setUserName(String name)
+   {
+      userName = name;
+   }
+
+   /**
+    * Sets the primary flight path.
+    * @param L1 The primary flight path (in meters).
+    */
+   public void setPrimaryFlightPath(float L1)
+   {
+      this.L1 = L1;
+   }
+
+   /**
+    * Sets the good proton charge.
+    * @param charge The charge (in microamp hours).
+    */
+   public void setProtonCharge(float charge)
+   {
+      protonCharge = charge;
+   }
+
+   /**
+    * Sets the total proton charge.  Unless this is called, the total
+    * charge is the same as the good charge.
+    * @param charge The charge (in microamp hours).
+    */
+   public void setTotalProtonCharge(float charge)
+   {
+      totalCharge = charge;
+   }
+
+   /**
+    * Get the good proton charge.
+    * @return The charge (in microamp hours).
+    */
+   public float getProtonCharge()
+   {
+      return protonCharge;
+   }
+
+   /**
+    * Sets the detectors, with detector d recorded in spectrum d.  Detector
+    * d (d=1,2,...) is at element d-1 of the arrays.
+    * @param flightPath The secondary flight path of each detector.
+    * @param twoTheta The scattering angle of each detector (in degrees).
+    */
+   public void setDetectors(float[] flightPath, float[] twoTheta)
+   {
+      int[] spectra = new int[flightPath.length];
+      for (int d=0; d<spectra.length; d++)
+         spectra[d] = d+1;
+      setDetectors(flightPath,twoTheta,spectra);
+   }
+
+   /**
+    * Sets the detectors.  Detector d (d=1,2,...) is at element d-1 of the
+    * arrays.
+    * @param flightPath The secondary flight path of each detector.
+    * @param twoTheta The scattering angle of each detector (in degrees).
+    * @param spectrumNumber The spectrum each detector is recorded in, as
+    * stored in the file (so the first spectrum after spectrum 0 is 1).
+    */
+   public void setDetectors(float[] flightPath, float[] twoTheta,
+                            int[] spectrumNumber)
+   {
+      this.flightPath = (float[])flightPath.clone();
+      this.twoTheta = (float[])twoTheta.clone();
+      this.spectrumNumber = (int[])spectrumNumber.clone();
+   }
+
+   /**
+    * Makes some of the detectors monitors.
+    * @param detectors The detector number (from 1) of each monitor.
+    */
+   public void setMonitors(int[] detectors)
+   {
+      monitors = (int[])detectors.clone();
+   }
+
+   /**
+    * Sets the user tables.
+    * @param tables The tables, indexed by [table][detector], so the first
+    * table (UT1) is element 0 and detector d (d=1,2,...) is at element d-1
+    * of each table.
+    */
+   public void setUserTables(float[][] tables)
+   {
+      userTables = new float[tables.length][];
+      for (int n=0; n<tables.length; n++)
+         userTables[n] = (float[])tables[n].clone();
+   }
+
+   /**
+    * Get the user tables.
+    * @return The tables, indexed by [table][detector].
+    */
+   public float[][] getUserTables()
+   {
+      return userTables;
+   }
+
+   /**
+    * Sets the time channel boundaries.
+    * @param tcb The boundaries in clock pulses.  There is one more
+    * boundary than the number of time channels.
+    * @param prescale The clock prescale.
+    */
+   public void setTimeChannelBoundaries(int[] tcb, int prescale)
+   {
+      this.tcb = (int[])tcb.clone();
+      this.prescale = prescale;
+   }
+
+   /**
+    * Sets the frame sync delay, which is added to every time channel
+    * boundary.
+    * @param delay The delay in 4 microsecond steps.
+    */
+   public void setFrameSyncDelay(int delay)
+   {
+      frameSyncDelay = delay;
+   }
+
+   /**
+    * Sets the counts.  Spectrum 0 is included, so there must be at least
+    * one more spectrum than the largest spectrum number of the detectors,
+    * and each spectrum must have one more value than the number of time
+    * channels (time channel 0).
+    * @param counts The counts, indexed by [spectrum][time channel].
+    */
+   public void setCounts(int[][] counts)
+   {
+      this.counts = counts;
+   }
+
+   /**
+    * Sets whether the data section is byte relative compressed.
+    * @param compressed True to write a compressed (version 2) data
+    * section and false to write an uncompressed (version 1) one.
+    */
+   public void setCompressed(boolean compressed)
+   {
+      this.compressed = compressed;
+   }
+
+   /**
+    * Get the counts.
+    * @return The counts, indexed by [spectrum][time channel].
+    */
+   public int[][] getCounts()
+   {
+      return counts;
+   }
+
+   /**
+    * Get the time channel boundaries in microseconds, as both readers
+    * should report them.
+    * @return The boundaries.
+    */
+   public float[] getTimeChannelBoundaries()
+   {
+      float[] result = new float[tcb.length];
+      for (int i=0; i<tcb.length; i++)
+         result[i] = tcb[i]*prescale/32.0f+frameSyncDelay*4;
+      return result;
+   }
+
+   /**
+    * Writes the file.
+    * @param filename The name of the file.
+    * @throws IOException If the file could not be written or the
+    * counts do not match the detectors and time channels.
+    */
+   public void write(String filename) throws IOException
+   {
+      int nDet = flightPath.length;
+      int nMon = monitors.length;
+      int nEff = userTables.length;
+      int ntc = tcb.length-1;
+      int nsp = counts.length-1;
+      if (twoTheta.length != nDet || spectrumNumber.length != nDet || nsp < 0)
+         throw new IOException("Need a flight path, angle and spectrum for each of "+
+                               nDet+" detectors");
+      for (int d=0; d<nDet; d++)
+         if (spectrumNumber[d]<0 || spectrumNumber[d]>nsp)
+            throw new IOException("Detector "+(d+1)+" is in spectrum "+
+                                  spectrumNumber[d]+" of "+nsp);
+      for (int m=0; m<nMon; m++)
+         if (monitors[m]<1 || monitors[m]>nDet)
+            throw new IOException("Monitor "+(m+1)+" is detector "+
+                                  monitors[m]+" of "+nDet);
+      for (int n=0; n<nEff; n++)
+         if (userTables[n].length != nDet)
+            throw new IOException("User table "+(n+1)+" does not have "+nDet+" values");
+      for (int s=0; s<counts.length; s++)
+         if (counts[s].length != ntc+1)
+            throw new IOException("Spectrum "+s+" does not have "+(ntc+1)+" values");
+
+      byte[][] packed = null;
+      int dataWords;
+      if (compressed)
+      {
+         packed = new byte[counts.length][];
+         dataWords = 33+2*counts.length;
+         for (int s=0; s<counts.length; s++)
+         {
+            packed[s] = compress(counts[s]);
+            dataWords += packed[s].length/4;
+         }
+      }
+      else
+         dataWords = 1+counts.length*(ntc+1);
+
+      //the sections, as 1 based word addresses
+      int[] address = new int[10];
+      address[0] = 33;                             //run
+      address[1] = address[0]+94;                  //instrument
+      address[2] = address[1]+70+2*nMon+(5+nEff)*nDet; //sample environment
+      address[3] = address[2]+66;                  //DAE
+      address[4] = address[3]+64+5*nDet;           //time channels
+      address[5] = address[4]+288+ntc+1;           //user
+      address[6] = address[5]+2;                   //data
+      int numWords = address[6]-1+dataWords;
+
+      ByteBuffer out = ByteBuffer.allocate(4*numWords);
+      out.order(ByteOrder.LITTLE_ENDIAN);
+
+      //header
+      String run = String.valueOf(100000+runNumber%100000).substring(1);
+      putString(out,instName,3);
+      putString(out,run,5);
+      putString(out,userName,20);
+      putString(out,title,24);
+      putString(out,"01-JAN-2000",12);
+      putString(out,"00:00:00",8);
+      putString(out,"0",8);
+      out.putInt(2);
+      for (int i=0; i<address.length; i++)
+         out.putInt(address[i]);
+      out.putInt(0);                               //data format flag
+
+      //run section
+      seekWord(out,address[0]);
+      out.putInt(2);
+      out.putInt(runNumber);
+      putString(out,title,80);
+      putString(out,userName,20);
+      seekWord(out,address[0]+62);
+      out.putInt(0);
+      seekWord(out,address[0]+62+7);
+      out.putInt(FloatConvert.floatToVAX(protonCharge));
+      out.putInt(FloatConvert.floatToVAX(Float.isNaN(totalCharge) ? protonCharge
+                                                                  : totalCharge));
+
+      //instrument section
+      seekWord(out,address[1]);
+      out.putInt(2);
+      putString(out,instName,8);
+      seekWord(out,address[1]+25);
+      out.putInt(FloatConvert.floatToVAX(L1));
+      seekWord(out,address[1]+67);
+      out.putInt(nDet);
+      out.putInt(nMon);
+      out.putInt(nEff);                            //user tables
+      for (int m=0; m<nMon; m++)
+         out.putInt(monitors[m]);
+      for (int m=0; m<nMon; m++)
+         out.putInt(1);                            //monitor prescale
+      for (int d=0; d<nDet; d++)
+         out.putInt(spectrumNumber[d]);
+      for (int d=0; d<nDet; d++)
+         out.putInt(0);                            //hold off
+      for (int d=0; d<nDet; d++)
+         out.putInt(FloatConvert.floatToVAX(flightPath[d]));
+      for (int d=0; d<nDet; d++)
+         out.putInt(0);                            //user table codes
+      for (int d=0; d<nDet; d++)
+         out.putInt(FloatConvert.floatToVAX(twoTheta[d]));
+      for (int n=0; n<nEff; n++)
+         for (int d=0; d<nDet; d++)
+            out.putInt(FloatConvert.floatToVAX(userTables[n][d]));
+
+      //sample environment section, with no parameters
+      seekWord(out,address[2]);
+      out.putInt(2);
+
+      //DAE section
+      seekWord(out,address[3]);
+      out.putInt(2);
+      seekWord(out,address[3]+24);
+      out.putInt(frameSyncDelay);
+      seekWord(out,address[3]+64);
+      for (int d=0; d<nDet; d++)
+         out.putInt(1+d/512);                      //crate
+      for (int d=0; d<nDet; d++)
+         out.putInt(1+(d/32)%16);                  //module
+      for (int d=0; d<nDet; d++)
+         out.putInt(d%32);                         //input
+      for (int d=0; d<nDet; d++)
+         out.putInt(1);                            //time regime
+      for (int d=0; d<nDet; d++)
+         out.putInt(d+1);                          //user detector number
+
+      //time channel section
+      seekWord(out,address[4]);
+      out.putInt(2);
+      out.putInt(1);                               //time regimes
+      out.putInt(1);                               //frames per period
+      out.putInt(1);                               //periods
+      out.putInt(1);                               //period map
+      seekWord(out,address[4]+260);
+      out.putInt(nsp);
+      out.putInt(ntc);
+      seekWord(out,address[4]+267);
+      out.putInt(FloatConvert.floatToVAX(getTimeChannelBoundaries()[0]));
+      seekWord(out,address[4]+287);
+      out.putInt(prescale);
+      for (int i=0; i<=ntc; i++)
+         out.putInt(tcb[i]);
+
+      //user section
+      seekWord(out,address[5]);
+      out.putInt(1);
+      out.putInt(0);
+
+      //data section
+      seekWord(out,address[6]);
+      if (compressed)
+      {
+         out.putInt(2);
+         out.putInt(1);                            //byte relative
+         out.putInt(0);
+         out.putInt(33);                           //spectrum descriptors
+         out.putInt(address[6]-1+1+counts.length*(ntc+1));
+         int offset = 33+2*counts.length;
+         seekWord(out,address[6]+33);
+         for (int s=0; s<counts.length; s++)
+         {
+            out.putInt(packed[s].length/4);
+            out.putInt(offset);
+            offset += packed[s].length/4;
+         }
+         for (int s=0; s<counts.length; s++)
+            out.put(packed[s]);
+      }
+      else
+      {
+         out.putInt(1);
+         for (int s=0; s<counts.length; s++)
+            for (int i=0; i<=ntc; i++)
+               out.putInt(counts[s][i]);
+      }
+
+      FileOutputStream file = new FileOutputStream(filename);
+      try
+      {
+         file.write(out.array());
+      }
+      finally
+      {
+         file.close();
+      }
+   }
+
+   /**
+    * Byte relative compresses one spectrum, padded with zeros to a whole
+    * number of words.
+    */
+   private static byte[] compress(int[] values)
+   {
+      byte[] result = new byte[5*values.length+3];
+      int n = 0;
+      int last = 0;
+      for (int i=0; i<values.length; i++)
+      {
+         int delta = values[i]-last;
+         if (delta > -128 && delta < 128 && (long)values[i]-last == delta)
+            result[n++] = (byte)delta;
+         else
+         {
+            result[n++] = -128;
+            result[n++] = (byte)values[i];
+            result[n++] = (byte)(values[i] >> 8);
+            result[n++] = (byte)(values[i] >> 16);
+            result[n++] = (byte)(values[i] >> 24);
+         }
+         last = values[i];
+      }
+      byte[] padded = new byte[(n+3)/4*4];
+      System.arraycopy(result,0,padded,0,n);
+      return padded;
+   }
+
+   private static void seekWord(ByteBuffer out, int word)
+   {
+      out.position(4*(word-1));
+   }
+
+   private static void putString(ByteBuffer out, String s, int length)
+   {
+      for (int i=0; i<length; i++)
+         out.put((byte)((i < s.length()) ? s.charAt(i) : ' '));
+   }
+
+   /**
+    * Testbed.  Writes a synthetic file with the specified name, number of
+    * detectors and number of time channels, compressed if a fourth
+    * argument is given.
+    */
+   public static void main(String[] args) throws IOException
+   {
+      RawfileWriter writer = synthetic(Integer.parseInt(args[1]),
+                                       Integer.parseInt(args[2]),
+                                       System.currentTimeMillis());
+      writer.setCompressed(args.length > 3);
+      writer.write(args[0]);
+   }
+}
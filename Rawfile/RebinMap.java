@@ -0,0 +1,138 @@
+/*
+ * File:  RebinMap.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+/**
+ * Precomputed map from the time channels of a time regime onto a set of
+ * target bins.  The counts in each time channel are split between the
+ * target bins that it overlaps in proportion to the overlap, so that
+ * the total number of counts is preserved for the range covered by the
+ * target bins.  Once built, a RebinMap is not modified and can be shared
+ * between threads.
+ */
+class RebinMap
+{
+   /** The number of target bins. */
+   private int     numBins;
+   /**
+    * The entries for time channel j are first[j] to first[j+1]-1.  The
+    * zeroth time channel has no entries.
+    */
+   private int[]   first;
+   /** The target bin for each entry. */
+   private int[]   bin;
+   /** The fraction of the time channel that falls in the target bin. */
+   private float[] weight;
+
+   /**
+    * Creates a new RebinMap.
+    * @param source The time channel boundaries of the time regime.  Time
+    * channel j (j=1,2,...) spans source[j-1] to source[j].
+    * @param target The boundaries of the target bins.  Bin k spans
+    * target[k] to target[k+1].
+    */
+   RebinMap(float[] source, float[] target)
+   {
+      int numChannels = source.length-1;
+      numBins = Math.max(target.length-1,0);
+      first = new int[numChannels+2];
+      bin = new int[numChannels+numBins];
+      weight = new float[bin.length];
+
+      int n = 0;
+      int k = 0;
+      for (int j=1; j<=numChannels; j++)
+      {
+         first[j] = n;
+         float lo = source[j-1];
+         float hi = source[j];
+         float width = hi-lo;
+
+         while (k<numBins && target[k+1]<=lo)
+            k++;
+
+         for (int kk=k; kk<numBins && target[kk]<hi && width>0; kk++)
+         {
+            float overlap = Math.min(hi,target[kk+1])-Math.max(lo,target[kk]);
+            if (overlap > 0)
+            {
+               if (n == bin.length)
+                  grow();
+               bin[n] = kk;
+               weight[n] = overlap/width;
+               n++;
+            }
+         }
+      }
+      first[numChannels+1] = n;
+   }
+
+   /**
+    * Get the number of target bins.
+    * @return The number of target bins.
+    */
+   int getNumBins()
+   {
+      return numBins;
+   }
+
+   /**
+    * Get the number of time channels (not including the zeroth time
+    * channel) that this map was built for.
+    * @return The number of time channels.
+    */
+   int getNumChannels()
+   {
+      return first.length-2;
+   }
+
+   /**
+    * Adds the counts for one time channel to the target bins that it
+    * overlaps.
+    * @param channel The time channel (the zeroth time channel is ignored).
+    * @param counts The counts in the time channel.
+    * @param out The target bins.
+    */
+   void add(int channel, float counts, float[] out)
+   {
+      if (channel<1 || channel>=first.length-1 || counts == 0)
+         return;
+      for (int n=first[channel]; n<first[channel+1]; n++)
+         out[bin[n]] += counts*weight[n];
+   }
+
+   private void grow()
+   {
+      int[] newBin = new int[2*bin.length+1];
+      float[] newWeight = new float[newBin.length];
+      System.arraycopy(bin,0,newBin,0,bin.length);
+      System.arraycopy(weight,0,newWeight,0,weight.length);
+      bin = newBin;
+      weight = newWeight;
+   }
+}
@@ -0,0 +1,499 @@
+/*
+ * File:  RunSeriesLoader.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Opens and summarises a series of runs (for example a temperature scan)
+ * at the same time.  Each run is handled by its own virtual thread, where
+ * the JVM has them, and otherwise by a pool of as many threads as the
+ * runs that may be read at once.  Two Semaphores stop the threads from
+ * swamping the machine, and since a thread waiting on a Semaphore does
+ * not hold a monitor, a waiting virtual thread gives up its carrier:<br>
+ * the number of runs being read at once by all RunSeriesLoaders together
+ * (setMaxConcurrentReads()), and<br>
+ * the memory budget of each loader.  A run is charged the size of its
+ * file while it is open, which is more than Rawfile and the summary need,
+ * since Rawfile does not keep the counts.  A run bigger than the whole
+ * budget is read once nothing else is.<br>
+ * The summaries are passed to a listener in run number order as soon as
+ * they can be, that is as soon as every run with a smaller run number has
+ * been passed on.  The run numbers are read from the headers of all of the
+ * runs first, so that the runs can then be summarised in that order.
+ */
+public class RunSeriesLoader
+{
+   /** The bytes in each permit of the memory budget. */
+   private static final long UNIT = 1024;
+
+   /**
+    * A Semaphore whose number of permits can be lowered.
+    */
+   private static class Limit extends Semaphore
+   {
+      private Limit(int permits)
+      {
+         super(permits,true);
+      }
+
+      private void reduce(int permits)
+      {
+         reducePermits(permits);
+      }
+   }
+
+   /** The runs that may be read by all loaders, and the limit. */
+   private static final Limit reads = new Limit(4);
+   private static int         maxReading = 4;
+
+   /**
+    * Is told about each run, in run number order.
+    */
+   public interface RunListener
+   {
+      /**
+       * Called when a run has been summarised.
+       * @param run The summary.
+       */
+      public void runLoaded(Run run);
+   }
+
+   /**
+    * The summary of one run.
+    */
+   public static class Run
+   {
+      private String  filename;
+      private int     index;
+      private int     runNumber  = -1;
+      private String  title      = "";
+      private String  instrument = "";
+      private float   protonCharge;
+      private long    totalCounts;
+      private long[]  spectrumTotals;
+      private boolean ok;
+      private boolean done;
+
+      private Run(String filename, int index)
+      {
+         this.filename = filename;
+         this.index = index;
+      }
+
+      /**
+       * Get the name of the RAW file.
+       * @return The name.
+       */
+      public String getFileName()
+      {
+         return filename;
+      }
+
+      /**
+       * Get the run number.
+       * @return The run number, or Integer.MAX_VALUE if it could not be
+       * read.
+       */
+      public int getRunNumber()
+      {
+         return runNumber;
+      }
+
+      /**
+       * Get the run title.
+       * @return The title.
+       */
+      public String getTitle()
+      {
+         return title;
+      }
+
+      /**
+       * Get the instrument name.
+       * @return The name.
+       */
+      public String getInstrumentName()
+      {
+         return instrument;
+      }
+
+      /**
+       * Get the good proton charge.
+       * @return The charge (in microamp hours).
+       */
+      public float getGoodProtonCharge()
+      {
+         return protonCharge;
+      }
+
+      /**
+       * Get the counts in every time channel of every spectrum, apart from
+       * the zeroth time channels.
+       * @return The total.
+       */
+      public long getTotalCounts()
+      {
+         return totalCounts;
+      }
+
+      /**
+       * Get the counts in each spectrum, apart from the zeroth time
+       * channel.  Element i is spectrum i (as in
+       * Rawfile.Get1DSpectrum(int)), and element 0 is not used.
+       * @return The counts or <code>null</code> if the run could not be
+       * read.
+       */
+      public long[] getSpectrumTotals()
+      {
+         return spectrumTotals;
+      }
+
+      /**
+       * Was the run read?
+       * @return True if the run was read and summarised.
+       */
+      public boolean isOK()
+      {
+         return ok;
+      }
+   }
+
+   /** The memory budget, in permits of UNIT bytes. */
+   private int           budget;
+   private Semaphore     memory;
+   private Run[]         runs;
+   private int           numDelivered;
+   private RunListener   listener;
+   private ReentrantLock deliveryLock = new ReentrantLock();
+
+   /**
+    * Creates a new RunSeriesLoader.
+    * @param memoryBytes The memory budget in bytes.
+    */
+   public RunSeriesLoader(long memoryBytes)
+   {
+      budget = (int)Math.min(Integer.MAX_VALUE,Math.max(1,(memoryBytes+UNIT-1)/UNIT));
+      memory = new Semaphore(budget,true);
+   }
+
+   /**
+    * Sets the most runs that may be read at once by all of the
+    * RunSeriesLoaders together.
+    * @param max The number of runs.
+    */
+   public static synchronized void setMaxConcurrentReads(int max)
+   {
+      max = Math.max(1,max);
+      if (max > maxReading)
+         reads.release(max-maxReading);
+      else
+         reads.reduce(maxReading-max);
+      maxReading = max;
+   }
+
+   /**
+    * Summarises every run and waits until they are all done.
+    * @param filenames The RAW files.
+    * @param listener Is given each summary, in run number order, or
+    * <code>null</code>.
+    * @return The summaries, in run number order.
+    */
+   public Run[] load(String[] filenames, RunListener listener)
+   {
+      synchronized (this)
+      {
+         this.listener = listener;
+         runs = new Run[filenames.length];
+         for (int i=0; i<runs.length; i++)
+            runs[i] = new Run(filenames[i],i);
+         numDelivered = 0;
+      }
+
+      //the headers first, so that the runs can be read in run number order
+      final Run[] all = (Run[])runs.clone();
+      runWorkers(all,true);
+      Arrays.sort(all,new Comparator()
+      {
+         public int compare(Object a, Object b)
+         {
+            return order((Run)a,(Run)b);
+         }
+      });
+      runWorkers(all,false);
+      return all;
+   }
+
+   /**
+    * Reads the header or summarises each run, each on its own thread, and
+    * waits until they are all done.  The threads are started in the order
+    * of <code>queue</code>, and the Semaphores are fair, so the runs are
+    * read in about that order.
+    */
+   private void runWorkers(Run[] queue, final boolean header)
+   {
+      ExecutorService threads = newThreadPerRun();
+      for (int i=0; i<queue.length; i++)
+      {
+         final Run run = queue[i];
+         threads.execute(new Runnable()
+         {
+            public void run()
+            {
+               if (header)
+                  readRunNumber(run);
+               else
+               {
+                  summarise(run);
+                  deliver();
+               }
+            }
+         });
+      }
+
+      threads.shutdown();
+      try
+      {
+         while (!threads.awaitTermination(1,TimeUnit.MINUTES))
+            ;
+      }
+      catch (InterruptedException e)
+      {
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * Get an ExecutorService that starts a virtual thread for each task.
+    * Before Java 21 there are no virtual threads, so a pool of as many
+    * threads as the runs that may be read at once is used instead.
+    */
+   private static ExecutorService newThreadPerRun()
+   {
+      try
+      {
+         return (ExecutorService)Executors.class
+            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }
+      catch (Exception e)
+      {
+         synchronized (RunSeriesLoader.class)
+         {
+            return Executors.newFixedThreadPool(maxReading);
+         }
+      }
+   }
+
+   /**
+    * Reads the run number from the header.
+    */
+   private void readRunNumber(Run run)
+   {
+      int runNumber = Integer.MAX_VALUE;
+      beginRead();
+      try
+      {
+         RandomAccessFile file = new RandomAccessFile(run.filename,"r");
+         try
+         {
+            runNumber = Integer.parseInt(new Header(file).getRunNumber().trim());
+         }
+         finally
+         {
+            file.close();
+         }
+      }
+      catch (Exception e)
+      {
+         System.out.println("The run number of "+run.filename+" could not be read");
+      }
+      finally
+      {
+         endRead();
+      }
+      synchronized (this)
+      {
+         run.runNumber = runNumber;
+      }
+   }
+
+   /**
+    * Opens the run and adds up its spectra.
+    */
+   private void summarise(Run run)
+   {
+      int charge = reserve(new File(run.filename).length());
+      beginRead();
+      try
+      {
+         Rawfile rawfile = new Rawfile(run.filename);
+         int nspec = rawfile.getDataSection().getTotalNumSpectra();
+         if (nspec > 0)
+         {
+            long[] totals = new long[nspec+1];
+            long total = 0;
+            SpectrumCursor cursor = rawfile.OpenSpectrumCursor(1,nspec);
+            if (cursor != null)
+            {
+               while (cursor.next())
+               {
+                  int[] counts = cursor.getCounts();
+                  long sum = 0;
+                  for (int j=1; j<cursor.getNumChannels(); j++)
+                     sum += counts[j];
+                  totals[cursor.getSpectrum()] = sum;
+                  total += sum;
+               }
+               cursor.close();
+               synchronized (this)
+               {
+                  run.title = rawfile.RunTitle().trim();
+                  run.instrument = rawfile.InstrumentName().trim();
+                  run.protonCharge = rawfile.GoodProtonCharge();
+                  run.spectrumTotals = totals;
+                  run.totalCounts = total;
+                  run.ok = !cursor.hasFailed();
+               }
+            }
+         }
+         rawfile.Close();
+      }
+      finally
+      {
+         endRead();
+         release(charge);
+         synchronized (this)
+         {
+            run.done = true;
+         }
+      }
+   }
+
+   /**
+    * Passes on every finished run that has no unfinished run before it.
+    */
+   private void deliver()
+   {
+      deliveryLock.lock();
+      try
+      {
+         while (true)
+         {
+            Run next = null;
+            synchronized (this)
+            {
+               if (numDelivered >= runs.length)
+                  return;
+               //the first undelivered run in run number order, if the
+               //order is known and the run is finished
+               for (int i=0; i<runs.length; i++)
+               {
+                  Run run = runs[i];
+                  if (run == null)
+                     continue;
+                  if (run.runNumber < 0)
+                     return;
+                  if (next == null || order(run,next) < 0)
+                     next = run;
+               }
+               if (next == null || !next.done)
+                  return;
+               runs[next.index] = null;
+               numDelivered++;
+            }
+            if (listener != null)
+               listener.runLoaded(next);
+         }
+      }
+      finally
+      {
+         deliveryLock.unlock();
+      }
+   }
+
+   private static int order(Run a, Run b)
+   {
+      if (a.runNumber != b.runNumber)
+         return (a.runNumber < b.runNumber) ? -1 : 1;
+      return a.index-b.index;
+   }
+
+   /**
+    * Takes the part of the memory budget needed for a file.
+    * @return The number of permits taken.
+    */
+   private int reserve(long bytes)
+   {
+      int charge = (int)Math.min(budget,Math.max(1,(bytes+UNIT-1)/UNIT));
+      memory.acquireUninterruptibly(charge);
+      return charge;
+   }
+
+   private void release(int charge)
+   {
+      memory.release(charge);
+   }
+
+   private static void beginRead()
+   {
+      reads.acquireUninterruptibly();
+   }
+
+   private static void endRead()
+   {
+      reads.release();
+   }
+
+   /**
+    * Testbed.  Summarises the specified files and prints the total counts
+    * per microamp hour of each run.
+    */
+   public static void main(String[] args)
+   {
+      long start = System.currentTimeMillis();
+      new RunSeriesLoader(256L*1024*1024).load(args,new RunListener()
+      {
+         public void runLoaded(Run run)
+         {
+            System.out.println(run.getRunNumber()+"  "+run.getTitle()+"  "+
+                               run.getTotalCounts()+" counts, "+
+                               run.getGoodProtonCharge()+" uAh");
+         }
+      });
+      System.out.println(args.length+" runs in "+
+                         (System.currentTimeMillis()-start)+" ms");
+   }
+}
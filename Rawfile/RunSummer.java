@@ -0,0 +1,323 @@
+/*
+ * File:  RunSummer.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Adds together repeated runs of the same instrument setup.  The spectra
+ * of every run are read at the same time, a range of spectra on each
+ * thread, and each spectrum is added straight into the sum, so only the
+ * summed counts and one SpectrumBuffer per run per thread are held in
+ * memory, however many runs there are.<br>
+ * The runs must have the same detectors (the same
+ * Rawfile.GeometryFingerprint()), the same spectra and the same time
+ * channel boundaries.  The summed counts behave like one long run whose
+ * good proton charge is the total of the runs' charges, so dividing them
+ * by that total (getCountsPerCharge()) gives the counts per microamp hour
+ * with each run weighted by its proton charge.<br>
+ * Spectra are numbered as in Rawfile.Get1DSpectrum(int), so the first
+ * spectrum is at 1, and each spectrum includes the zeroth time channel.
+ */
+public class RunSummer
+{
+   private String[] filenames;
+   private Rawfile  first;
+   private int      numSpectra;
+   private float    totalCharge;
+   /** The summed counts, indexed by [spectrum][time channel]. */
+   private long[][] sums;
+
+   private RunSummer(String[] filenames)
+   {
+      this.filenames = (String[])filenames.clone();
+   }
+
+   /**
+    * Adds together the spectra of several runs.
+    * @param filenames The RAW files.
+    * @return The sum or <code>null</code> if a file could not be read or
+    * the runs do not match.
+    */
+   public static RunSummer sum(String[] filenames)
+   {
+      if (filenames == null || filenames.length == 0)
+         return null;
+
+      final RunSummer summer = new RunSummer(filenames);
+      final DataSection[] data = new DataSection[filenames.length];
+      for (int r=0; r<filenames.length; r++)
+      {
+         Rawfile rawfile = new Rawfile(filenames[r]);
+         data[r] = rawfile.getDataSection();
+         if (r == 0)
+            summer.first = rawfile;
+         else
+         {
+            String problem = summer.compare(rawfile);
+            rawfile.Close();
+            if (problem != null)
+            {
+               System.out.println(filenames[r]+" cannot be added to "+
+                                  filenames[0]+":  "+problem);
+               summer.first.Close();
+               return null;
+            }
+         }
+         summer.totalCharge += rawfile.GoodProtonCharge();
+      }
+      summer.first.Close();
+
+      final int nspec = data[0].getTotalNumSpectra();
+      if (nspec < 1)
+         return null;
+      summer.numSpectra = nspec;
+      summer.sums = new long[nspec+1][];
+      for (int i=1; i<=nspec; i++)
+         summer.sums[i] = new long[data[0].getNumChannelsForSpectrum(i)];
+
+      //each thread opens every run and adds its own range of spectra, so
+      //the threads never write to the same part of the sum
+      final String[] names = summer.filenames;
+      boolean ok = ParallelSpectra.forEachChunk(names[0],1,nspec,
+                                                ParallelSpectra.numThreads(nspec),
+         new ParallelSpectra.Chunk()
+         {
+            public void process(RandomAccessFile file, SpectrumBuffer buffer,
+                                int first, int last) throws IOException
+            {
+               RandomAccessFile[] files = new RandomAccessFile[names.length];
+               SpectrumBuffer[] buffers = new SpectrumBuffer[names.length];
+               files[0] = file;
+               buffers[0] = buffer;
+               try
+               {
+                  for (int r=1; r<names.length; r++)
+                  {
+                     files[r] = new RandomAccessFile(names[r],"r");
+                     buffers[r] = new SpectrumBuffer();
+                  }
+
+                  for (int i=first; i<=last; i++)
+                  {
+                     long[] sum = summer.sums[i];
+                     for (int r=0; r<names.length; r++)
+                     {
+                        int size = data[r].loadSpectrum(files[r],i,buffers[r]);
+                        if (size < 0)
+                           throw new IOException("Spectrum "+i+" of "+names[r]+
+                                                 " could not be read");
+                        for (int j=0; j<size; j++)
+                           sum[j] += buffers[r].next();
+                     }
+                  }
+               }
+               finally
+               {
+                  for (int r=1; r<names.length; r++)
+                     if (files[r] != null)
+                        files[r].close();
+               }
+            }
+         });
+      return ok ? summer : null;
+   }
+
+   /**
+    * Checks that a run can be added to the first run.
+    * @return <code>null</code> if it can, and otherwise why it cannot.
+    */
+   private String compare(Rawfile rawfile)
+   {
+      DataSection a = first.getDataSection();
+      DataSection b = rawfile.getDataSection();
+      if (a.getTotalNumSpectra() != b.getTotalNumSpectra())
+         return "the number of spectra is different";
+      if (first.GeometryFingerprint() != rawfile.GeometryFingerprint())
+         return "the detectors are different";
+      if (first.MinRegimeNumber() != rawfile.MinRegimeNumber() ||
+          first.MaxRegimeNumber() != rawfile.MaxRegimeNumber())
+         return "the time regimes are different";
+      for (int r=first.MinRegimeNumber(); r<=first.MaxRegimeNumber(); r++)
+         if (!Arrays.equals(first.TimeChannelBoundariesForRegime(r),
+                            rawfile.TimeChannelBoundariesForRegime(r)))
+            return "the time channel boundaries for regime "+r+" are different";
+      for (int i=1; i<=a.getTotalNumSpectra(); i++)
+         if (a.getNumChannelsForSpectrum(i) != b.getNumChannelsForSpectrum(i))
+            return "spectrum "+i+" has a different number of time channels";
+      return null;
+   }
+
+   /**
+    * Get the number of spectra.
+    * @return The number of spectra.
+    */
+   public int getNumSpectra()
+   {
+      return numSpectra;
+   }
+
+   /**
+    * Get the total good proton charge of the runs.
+    * @return The charge (in microamp hours).
+    */
+   public float getTotalProtonCharge()
+   {
+      return totalCharge;
+   }
+
+   /**
+    * Get the summed counts of one spectrum.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The counts or <code>null</code> if <code>spect</code> is
+    * invalid.
+    */
+   public long[] getCounts(int spect)
+   {
+      if (spect<1 || spect>numSpectra)
+         return null;
+      return (long[])sums[spect].clone();
+   }
+
+   /**
+    * Get the summed counts of one spectrum divided by the total good
+    * proton charge.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The counts per microamp hour or <code>null</code> if
+    * <code>spect</code> is invalid or the total charge is zero.
+    */
+   public float[] getCountsPerCharge(int spect)
+   {
+      if (spect<1 || spect>numSpectra || totalCharge <= 0)
+         return null;
+      long[] sum = sums[spect];
+      float[] result = new float[sum.length];
+      for (int j=0; j<sum.length; j++)
+         result[j] = (float)(sum[j]/(double)totalCharge);
+      return result;
+   }
+
+   /**
+    * Writes the summed counts as a new RAW file, with the run details and
+    * detectors of the first run and the total proton charge, using
+    * RawfileWriter.  RawfileWriter only writes files with one time
+    * regime, and the time channel boundaries are rounded to whole clock
+    * pulses.
+    * @param filename The name of the new file.
+    * @param compressed True to write byte relative compressed data.
+    * @return True if the file was written.
+    */
+   public boolean write(String filename, boolean compressed)
+   {
+      Rawfile rawfile = new Rawfile(filenames[0]);
+      try
+      {
+         if (rawfile.MinRegimeNumber() != rawfile.MaxRegimeNumber())
+         {
+            System.out.println("Only runs with one time regime can be written");
+            return false;
+         }
+
+         RawfileWriter writer = new RawfileWriter();
+         writer.setInstrumentName(rawfile.InstrumentName().trim());
+         writer.setRunNumber(rawfile.RunNumber());
+         writer.setTitle(rawfile.RunTitle().trim());
+         writer.setUserName(rawfile.UserName().trim());
+         writer.setPrimaryFlightPath(rawfile.SourceToSample());
+         writer.setProtonCharge(totalCharge);
+
+         DetectorTable table = rawfile.GetDetectorTable();
+         int[] spectra = new int[table.numDetectors];
+         for (int i=0; i<spectra.length; i++)
+            spectra[i] = table.spectrum[i]-1;
+         writer.setDetectors(table.flightPath,table.twoTheta,spectra);
+         InstrumentSection inst = rawfile.getInstrumentSection();
+         int[] monitors = new int[inst.getNumberOfMonitors()];
+         for (int m=1; m<=monitors.length; m++)
+            monitors[m-1] = inst.getMonDetNumForMonitor(m);
+         writer.setMonitors(monitors);
+
+         float[] tcb = rawfile.TimeChannelBoundariesForRegime(rawfile.MinRegimeNumber());
+         int[] pulses = new int[tcb.length];
+         for (int i=0; i<tcb.length; i++)
+            pulses[i] = Math.round(tcb[i]*32);
+         writer.setTimeChannelBoundaries(pulses,1);
+
+         //spectrum i here is spectrum i-1 in the file
+         int[][] counts = new int[numSpectra][];
+         for (int i=1; i<=numSpectra; i++)
+         {
+            counts[i-1] = new int[sums[i].length];
+            for (int j=0; j<sums[i].length; j++)
+            {
+               if (sums[i][j] > Integer.MAX_VALUE)
+               {
+                  System.out.println("The counts in spectrum "+i+
+                                     " are too large for a RAW file");
+                  return false;
+               }
+               counts[i-1][j] = (int)sums[i][j];
+            }
+         }
+         writer.setCounts(counts);
+         writer.setCompressed(compressed);
+         writer.write(filename);
+         return true;
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         return false;
+      }
+      finally
+      {
+         rawfile.Close();
+      }
+   }
+
+   /**
+    * Testbed.  Adds together the files given after the first argument and
+    * writes the sum to the file named by the first argument.
+    */
+   public static void main(String[] args)
+   {
+      String[] runs = new String[args.length-1];
+      System.arraycopy(args,1,runs,0,runs.length);
+      long start = System.currentTimeMillis();
+      RunSummer summer = sum(runs);
+      if (summer == null)
+         return;
+      System.out.println(runs.length+" runs summed in "+
+                         (System.currentTimeMillis()-start)+" ms, "+
+                         summer.getTotalProtonCharge()+" uAh");
+      if (summer.write(args[0],true))
+         System.out.println("Written to "+args[0]);
+   }
+}
@@ -187,22 +187,24 @@ public class SESection
    	  	sampleType = Header.readUnsignedInteger(rawFile,4);
    	  	sampleGeometry = Header.readUnsignedInteger(rawFile,4);
    	  	
-   	  	sampleThickness = (float)Header.ReadVAXReal4(rawFile);
-   	  	sampleHeight = (float)Header.ReadVAXReal4(rawFile);
-   	  	sampleWidth = (float)Header.ReadVAXReal4(rawFile);
-   	  	omega = (float)Header.ReadVAXReal4(rawFile);
-   	  	psi = (float)Header.ReadVAXReal4(rawFile);
-   	  	phi = (float)Header.ReadVAXReal4(rawFile);
-   	  	scatGeom = (float)Header.ReadVAXReal4(rawFile);
-   	  	sample_sCOH = (float)Header.ReadVAXReal4(rawFile);
-   	  	sample_sINC = (float)Header.ReadVAXReal4(rawFile);
-   	  	sample_sABS = (float)Header.ReadVAXReal4(rawFile);
-   	  	sampleNumDensity = (float)Header.ReadVAXReal4(rawFile);
-   	  	canWallThickness = (float)Header.ReadVAXReal4(rawFile);
-   	  	can_sCOH = (float)Header.ReadVAXReal4(rawFile);
-   	  	can_sINC = (float)Header.ReadVAXReal4(rawFile);
-   	  	can_sABS = (float)Header.ReadVAXReal4(rawFile);
-   	  	canNumDensity = (float)Header.ReadVAXReal4(rawFile);
+   	  	float[] reals = new float[16];
+   	  	Header.readVAXReals(rawFile,reals,0,reals.length);
+   	  	sampleThickness = reals[0];
+   	  	sampleHeight = reals[1];
+   	  	sampleWidth = reals[2];
+   	  	omega = reals[3];
+   	  	psi = reals[4];
+   	  	phi = reals[5];
+   	  	scatGeom = reals[6];
+   	  	sample_sCOH = reals[7];
+   	  	sample_sINC = reals[8];
+   	  	sample_sABS = reals[9];
+   	  	sampleNumDensity = reals[10];
+   	  	canWallThickness = reals[11];
+   	  	can_sCOH = reals[12];
+   	  	can_sINC = reals[13];
+   	  	can_sABS = reals[14];
+   	  	canNumDensity = reals[15];
         sampleName = Header.readString(rawFile,40);
    	  	   
    	  	//skip over the spare space
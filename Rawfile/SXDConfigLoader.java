@@ -0,0 +1,626 @@
+/*
+ * File:  SXDConfigLoader.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import gov.anl.ipns.MathTools.Geometry.*;
+import DataSetTools.dataset.*;
+
+/**
+ * Reads the pixel positions of the SXD detectors from an sxdII.config
+ * file at run time and makes the data grids from them, so that a change
+ * to the geometry only needs a new config file rather than new code in
+ * SXD_Grids.<br>
+ * Each line of the config file gives the id, longitude, latitude and
+ * distance (in mm) of one pixel, and the pixels are listed detector by
+ * detector, each 64x64 detector in row major order.  The text is split
+ * into pieces at line ends and the pieces are parsed on several threads
+ * into arrays of the Cartesian coordinates (in metres).  The arrays are
+ * then saved to a binary cache file next to the config file, which is
+ * memory mapped and used instead of the config file as long as the
+ * config file has not changed.<br>
+ * The grids are made in the same way as Write_SXD_Grid_Info does, and
+ * the first spectrum IDs are those used by SXD_Grids, which match the
+ * IDs in the SXDII raw files.
+ */
+public class SXDConfigLoader implements IInstrument_Grid_Info
+{
+   /** The number of rows and columns of pixels in each detector. */
+   public static final int N_ROWS = 64;
+   public static final int N_COLS = 64;
+   public static final int PIX_PER_DET = N_ROWS*N_COLS;
+
+   /** Marks a cache file, "SXC1". */
+   private static final int MAGIC = 0x53584331;
+   /** The size of the cache file header in bytes. */
+   private static final int HEADER_SIZE = 4+8+8+4;
+
+   private int[]         ids;
+   float[]               x;
+   float[]               y;
+   float[]               z;
+   private UniformGrid[] grids;
+
+   private SXDConfigLoader(int[] ids, float[] x, float[] y, float[] z)
+   {
+      this.ids = ids;
+      this.x = x;
+      this.y = y;
+      this.z = z;
+      makeGrids();
+   }
+
+   /**
+    * Loads the pixel positions from a config file, using the cache file
+    * (the config file's name followed by ".cache") if it is up to date and
+    * writing it if not.
+    * @param configFile The sxdII.config file.
+    * @return The loader or <code>null</code> if the config file could not
+    * be read.
+    */
+   public static SXDConfigLoader load(String configFile)
+   {
+      return load(configFile,configFile+".cache");
+   }
+
+   /**
+    * Loads the pixel positions from a config file, using a cache file if
+    * it is up to date and writing it if not.
+    * @param configFile The sxdII.config file.
+    * @param cacheFile The cache file, or <code>null</code> to not use a
+    * cache.
+    * @return The loader or <code>null</code> if the config file could not
+    * be read.
+    */
+   public static SXDConfigLoader load(String configFile, String cacheFile)
+   {
+      File config = new File(configFile);
+      if (cacheFile != null)
+      {
+         SXDConfigLoader loader = readCache(cacheFile,config.length(),
+                                            config.lastModified());
+         if (loader != null)
+            return loader;
+      }
+
+      SXDConfigLoader loader = parse(configFile);
+      if (loader != null && cacheFile != null)
+      {
+         try
+         {
+            loader.writeCache(cacheFile,config.length(),config.lastModified());
+         }
+         catch (IOException e)
+         {
+            //the positions are still good without the cache
+            System.out.println("Could not write "+cacheFile+":  "+e);
+         }
+      }
+      return loader;
+   }
+
+   /**
+    * Parses a config file on several threads.
+    */
+   private static SXDConfigLoader parse(String configFile)
+   {
+      final byte[] text;
+      try
+      {
+         RandomAccessFile file = new RandomAccessFile(configFile,"r");
+         try
+         {
+            text = new byte[(int)file.length()];
+            file.readFully(text);
+         }
+         finally
+         {
+            file.close();
+         }
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         return null;
+      }
+
+      //split the text at line ends, and count the lines in each piece so
+      //that each thread knows where its pixels go
+      int numPieces = Math.max(1,Math.min(Runtime.getRuntime().availableProcessors(),
+                                          text.length/65536));
+      final int[] start = new int[numPieces+1];
+      start[numPieces] = text.length;
+      for (int p=1; p<numPieces; p++)
+      {
+         int pos = Math.max(start[p-1],(int)((long)text.length*p/numPieces));
+         while (pos < text.length && text[pos-1] != '\n')
+            pos++;
+         start[p] = pos;
+      }
+      final int[] firstPixel = new int[numPieces+1];
+      for (int p=0; p<numPieces; p++)
+         firstPixel[p+1] = firstPixel[p]+countLines(text,start[p],start[p+1]);
+
+      int numPixels = firstPixel[numPieces];
+      final int[] ids = new int[numPixels];
+      final float[] x = new float[numPixels];
+      final float[] y = new float[numPixels];
+      final float[] z = new float[numPixels];
+      final boolean[] ok = new boolean[numPieces];
+      Thread[] threads = new Thread[numPieces];
+      for (int p=0; p<numPieces; p++)
+      {
+         final int piece = p;
+         threads[p] = new Thread("SXDConfigLoader")
+         {
+            public void run()
+            {
+               ok[piece] = parse(text,start[piece],start[piece+1],
+                                 firstPixel[piece],ids,x,y,z);
+            }
+         };
+         threads[p].start();
+      }
+      boolean allOK = true;
+      for (int p=0; p<numPieces; p++)
+      {
+         try
+         {
+            threads[p].join();
+         }
+         catch (InterruptedException e)
+         {
+            e.printStackTrace();
+            return null;
+         }
+         allOK &= ok[p];
+      }
+      if (!allOK)
+      {
+         System.out.println(configFile+" is not a valid SXD config file");
+         return null;
+      }
+      if (numPixels == 0 || numPixels%PIX_PER_DET != 0)
+      {
+         System.out.println(configFile+" has "+numPixels+
+                            " pixels, which is not a whole number of detectors");
+         return null;
+      }
+      return new SXDConfigLoader(ids,x,y,z);
+   }
+
+   /**
+    * Counts the lines between <code>from</code> and <code>to</code> that
+    * are not blank.
+    */
+   private static int countLines(byte[] text, int from, int to)
+   {
+      int count = 0;
+      boolean blank = true;
+      for (int i=from; i<to; i++)
+      {
+         byte b = text[i];
+         if (b == '\n')
+         {
+            if (!blank)
+               count++;
+            blank = true;
+         }
+         else if (b > ' ')
+            blank = false;
+      }
+      if (!blank)
+         count++;
+      return count;
+   }
+
+   /**
+    * Parses the lines between <code>from</code> and <code>to</code> into
+    * the arrays, starting at pixel <code>pixel</code>.  The spherical
+    * coordinates are converted as DetectorPosition.setSphericalCoords()
+    * would, with the longitude as the azimuthal angle and 90 degrees minus
+    * the latitude as the polar angle.
+    * @return False if a line does not have four numbers.
+    */
+   private static boolean parse(byte[] text, int from, int to, int pixel,
+                                int[] ids, float[] x, float[] y, float[] z)
+   {
+      double[] values = new double[4];
+      int pos = from;
+      while (pos < to)
+      {
+         int n = 0;
+         while (pos < to && text[pos] != '\n')
+         {
+            byte b = text[pos];
+            if (b <= ' ')
+            {
+               pos++;
+               continue;
+            }
+            if (n == 4)
+               return false;
+            int end = pos;
+            while (end < to && text[end] > ' ')
+               end++;
+            values[n] = parseNumber(text,pos,end);
+            if (Double.isNaN(values[n]))
+               return false;
+            n++;
+            pos = end;
+         }
+         pos++;
+         if (n == 0)
+            continue;
+         if (n != 4)
+            return false;
+
+         float theta = (float)values[1]*(float)(Math.PI/180);
+         float phi = (90-(float)values[2])*(float)(Math.PI/180);
+         float r = (float)values[3]/1000;
+         double sinPhi = Math.sin(phi);
+         ids[pixel] = (int)values[0];
+         x[pixel] = (float)(r*Math.cos(theta)*sinPhi);
+         y[pixel] = (float)(r*Math.sin(theta)*sinPhi);
+         z[pixel] = (float)(r*Math.cos(phi));
+         pixel++;
+      }
+      return true;
+   }
+
+   /**
+    * Parses a decimal number, with an optional sign, decimal point and
+    * exponent, without making a String.
+    * @return The number or NaN if it is not a number.
+    */
+   private static double parseNumber(byte[] text, int from, int to)
+   {
+      int pos = from;
+      boolean negative = false;
+      if (pos < to && (text[pos] == '-' || text[pos] == '+'))
+         negative = (text[pos++] == '-');
+      long mantissa = 0;
+      int scale = 0;
+      int digits = 0;
+      boolean point = false;
+      for (; pos < to; pos++)
+      {
+         byte b = text[pos];
+         if (b >= '0' && b <= '9')
+         {
+            if (mantissa < 100000000000000000L)
+            {
+               mantissa = mantissa*10+(b-'0');
+               if (point)
+                  scale--;
+            }
+            else if (!point)
+               scale++;
+            digits++;
+         }
+         else if (b == '.' && !point)
+            point = true;
+         else
+            break;
+      }
+      if (digits == 0)
+         return Double.NaN;
+      if (pos < to && (text[pos] == 'e' || text[pos] == 'E'))
+      {
+         pos++;
+         boolean negExp = false;
+         if (pos < to && (text[pos] == '-' || text[pos] == '+'))
+            negExp = (text[pos++] == '-');
+         int exp = 0;
+         int expDigits = 0;
+         for (; pos < to && text[pos] >= '0' && text[pos] <= '9'; pos++, expDigits++)
+            exp = Math.min(exp*10+(text[pos]-'0'),10000);
+         if (expDigits == 0)
+            return Double.NaN;
+         scale += negExp ? -exp : exp;
+      }
+      if (pos != to)
+         return Double.NaN;
+
+      double value = mantissa;
+      if (scale < 0 && scale >= -22)
+         value /= POWERS[-scale];
+      else if (scale > 0 && scale <= 22)
+         value *= POWERS[scale];
+      else if (scale != 0)
+         value *= Math.pow(10,scale);
+      return negative ? -value : value;
+   }
+
+   /** The powers of ten that a double holds exactly. */
+   private static final double[] POWERS = new double[23];
+   static
+   {
+      POWERS[0] = 1;
+      for (int i=1; i<POWERS.length; i++)
+         POWERS[i] = POWERS[i-1]*10;
+   }
+
+   /**
+    * Reads a cache file, if it was written for a config file of this
+    * length and modification time.
+    * @return The loader or <code>null</code> if the cache cannot be used.
+    */
+   private static SXDConfigLoader readCache(String cacheFile, long length,
+                                            long modified)
+   {
+      File file = new File(cacheFile);
+      if (!file.isFile() || file.length() < HEADER_SIZE)
+         return null;
+      try
+      {
+         RandomAccessFile raf = new RandomAccessFile(file,"r");
+         try
+         {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                                               0,channel.size());
+            if (map.getInt() != MAGIC || map.getLong() != length ||
+                map.getLong() != modified)
+               return null;
+            int n = map.getInt();
+            if (n <= 0 || n%PIX_PER_DET != 0 ||
+                channel.size() != HEADER_SIZE+16L*n)
+               return null;
+
+            int[] ids = new int[n];
+            float[] x = new float[n];
+            float[] y = new float[n];
+            float[] z = new float[n];
+            map.asIntBuffer().get(ids);
+            map.position(map.position()+4*n);
+            map.asFloatBuffer().get(x);
+            map.position(map.position()+4*n);
+            map.asFloatBuffer().get(y);
+            map.position(map.position()+4*n);
+            map.asFloatBuffer().get(z);
+            return new SXDConfigLoader(ids,x,y,z);
+         }
+         finally
+         {
+            raf.close();
+         }
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         return null;
+      }
+   }
+
+   /**
+    * Writes the pixel positions to a cache file.  The file is written
+    * under a temporary name and then renamed, so a reader never sees part
+    * of a cache file.
+    */
+   private void writeCache(String cacheFile, long length, long modified)
+      throws IOException
+   {
+      File file = new File(cacheFile);
+      File tmp = new File(cacheFile+".tmp");
+      int n = ids.length;
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE+16*n);
+      buffer.putInt(MAGIC);
+      buffer.putLong(length);
+      buffer.putLong(modified);
+      buffer.putInt(n);
+      buffer.asIntBuffer().put(ids);
+      buffer.position(buffer.position()+4*n);
+      buffer.asFloatBuffer().put(x);
+      buffer.position(buffer.position()+4*n);
+      buffer.asFloatBuffer().put(y);
+      buffer.position(buffer.position()+4*n);
+      buffer.asFloatBuffer().put(z);
+
+      FileOutputStream out = new FileOutputStream(tmp);
+      try
+      {
+         out.write(buffer.array());
+      }
+      finally
+      {
+         out.close();
+      }
+      file.delete();
+      if (!tmp.renameTo(file))
+         throw new IOException("Could not rename "+tmp+" to "+file);
+   }
+
+   /**
+    * Makes a UniformGrid for each detector.  The centre is the average of
+    * the first and last pixels, the local x axis runs along the first row
+    * and the local y axis down the first column.
+    */
+   private void makeGrids()
+   {
+      int numDet = ids.length/PIX_PER_DET;
+      grids = new UniformGrid[numDet];
+      for (int det=0; det<numDet; det++)
+      {
+         int r1c1 = det*PIX_PER_DET;          //first pixel
+         int r1cN = r1c1+(N_COLS-1);          //end of first row
+         int rNcN = r1c1+PIX_PER_DET-1;       //last pixel
+         int rNc1 = rNcN-(N_COLS-1);          //start of last row
+
+         Vector3D center = new Vector3D((x[r1c1]+x[rNcN])*0.5f,
+                                        (y[r1c1]+y[rNcN])*0.5f,
+                                        (z[r1c1]+z[rNcN])*0.5f);
+         float[] xVec = difference(r1cN,r1c1);
+         float width = N_COLS*length(xVec)/(N_COLS-1);
+         float[] yVec = difference(rNc1,r1c1);
+         float height = N_ROWS*length(yVec)/(N_ROWS-1);
+
+         grids[det] = new UniformGrid(det+1,"meter",center,
+                                      unit(xVec),unit(yVec),
+                                      width,height,0.0f,N_ROWS,N_COLS);
+      }
+   }
+
+   private float[] difference(int a, int b)
+   {
+      return new float[] { x[a]-x[b], y[a]-y[b], z[a]-z[b] };
+   }
+
+   private static float length(float[] v)
+   {
+      return (float)Math.sqrt(v[0]*v[0]+v[1]*v[1]+v[2]*v[2]);
+   }
+
+   private static Vector3D unit(float[] v)
+   {
+      float len = length(v);
+      return new Vector3D(v[0]/len,v[1]/len,v[2]/len);
+   }
+
+   /**
+    * Get the number of pixels.
+    * @return The number of pixels.
+    */
+   public int getNumPixels()
+   {
+      return ids.length;
+   }
+
+   /**
+    * Get the id of each pixel, as given in the config file.
+    * @return The ids, in the order of the config file.
+    */
+   public int[] getPixelIDs()
+   {
+      return (int[])ids.clone();
+   }
+
+   /**
+    * Get the x coordinate of each pixel.
+    * @return The coordinates (in metres), in the order of the config file.
+    */
+   public float[] getX()
+   {
+      return (float[])x.clone();
+   }
+
+   /**
+    * Get the y coordinate of each pixel.
+    * @return The coordinates (in metres), in the order of the config file.
+    */
+   public float[] getY()
+   {
+      return (float[])y.clone();
+   }
+
+   /**
+    * Get the z coordinate of each pixel.
+    * @return The coordinates (in metres), in the order of the config file.
+    */
+   public float[] getZ()
+   {
+      return (float[])z.clone();
+   }
+
+   /**
+    * Get the number of detectors (i.e. data grids).
+    * @return The number of data grids.
+    */
+   public int numGrids()
+   {
+      return grids.length;
+   }
+
+   /**
+    * Get the data grid at the specified index in the list of grids.
+    * @param index The index of the grid in the list.
+    * @return A copy of the data grid at the specified index, or null if
+    * the index is invalid.
+    */
+   public IDataGrid getGridAtIndex(int index)
+   {
+      if (index >= 0 && index < grids.length)
+         return new UniformGrid(grids[index],false);
+      else
+         return null;
+   }
+
+   /**
+    * Get the ID of the first spectrum for the data grid at the specified
+    * index.  As in SXD_Grids, the spectra of each detector follow on from
+    * those of the one before, starting at spectrum 2.
+    * @param index The index of the grid in the list.
+    * @return The ID of the first spectrum for the grid or -1 if the index
+    * is invalid.
+    */
+   public int getFirstSpectrumID(int index)
+   {
+      if (index >= 0 && index < grids.length)
+         return 2+index*PIX_PER_DET;
+      else
+         return -1;
+   }
+
+   /**
+    * Testbed.  Loads the specified config file twice, the second time
+    * from the cache, and prints the centre of each detector.
+    */
+   public static void main(String[] args)
+   {
+      String filename = (args.length > 0) ? args[0] : "sxdII.config";
+      new File(filename+".cache").delete();
+
+      long start = System.currentTimeMillis();
+      SXDConfigLoader parsed = load(filename);
+      long parseTime = System.currentTimeMillis()-start;
+      start = System.currentTimeMillis();
+      SXDConfigLoader cached = load(filename);
+      long cacheTime = System.currentTimeMillis()-start;
+      if (parsed == null || cached == null)
+         return;
+
+      System.out.println(parsed.getNumPixels()+" pixels parsed in "+parseTime+
+                         " ms, read from the cache in "+cacheTime+" ms");
+      for (int det=0; det<cached.numGrids(); det++)
+      {
+         int first = det*PIX_PER_DET;
+         int last = first+PIX_PER_DET-1;
+         System.out.println("Detector "+(det+1)+" centre:  "+
+                            (cached.x[first]+cached.x[last])/2+", "+
+                            (cached.y[first]+cached.y[last])/2+", "+
+                            (cached.z[first]+cached.z[last])/2);
+      }
+   }
+}
@@ -0,0 +1,152 @@
+/*
+ * File:  SpectrumBuffer.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.util.zip.Checksum;
+
+/**
+ * Reusable buffer that holds the words stored in an ISIS RAW file for
+ * one spectrum and decodes them one time channel at a time.  The words
+ * are either little-endian 32 bit integers or byte relative compressed
+ * data.  A single buffer can be used to read any number of spectra
+ * without allocating memory for each one.  A SpectrumBuffer should only
+ * be used by one thread at a time.
+ */
+class SpectrumBuffer
+{
+   /** The bytes read from the file. */
+   private byte[]  raw;
+   /** The number of valid bytes in <code>raw</code>. */
+   private int     length;
+   /** The position of the next byte to decode. */
+   private int     pos;
+   /** True if the bytes are byte relative compressed. */
+   private boolean compressed;
+   /** The last value decoded. */
+   private int     value;
+
+   /**
+    * Creates a new, empty, SpectrumBuffer.
+    */
+   SpectrumBuffer()
+   {
+      raw = new byte[0];
+      length = 0;
+      pos = 0;
+      compressed = false;
+      value = 0;
+   }
+
+   /**
+    * Get an array that can hold at least <code>numBytes</code> bytes.  The
+    * bytes for the next spectrum should be read into the start of this
+    * array before calling rewind().
+    * @param numBytes The number of bytes that will be read.
+    * @return The array to read the bytes into.
+    */
+   byte[] reserve(int numBytes)
+   {
+      if (raw.length < numBytes)
+         raw = new byte[numBytes];
+      length = numBytes;
+      return raw;
+   }
+
+   /**
+    * Prepares to decode the bytes most recently read into the buffer.
+    * @param compressed True if the bytes are byte relative compressed
+    * and false if they are little-endian 32 bit integers.
+    */
+   void rewind(boolean compressed)
+   {
+      this.compressed = compressed;
+      pos = 0;
+      value = 0;
+   }
+
+   /**
+    * Get the number of valid bytes in the buffer.
+    * @return The number of bytes most recently reserved.
+    */
+   int length()
+   {
+      return length;
+   }
+
+   /**
+    * Adds the bytes most recently read into the buffer to a checksum.
+    * @param checksum The checksum.
+    */
+   void update(Checksum checksum)
+   {
+      checksum.update(raw,0,length);
+   }
+
+   /**
+    * Decodes the next value in the buffer.  For byte relative compressed
+    * data each value is stored relative to the previous value as a single
+    * byte, except when the byte is -128, in which case the value is
+    * stored in the following 4 bytes.
+    * @return The next value.
+    */
+   int next()
+   {
+      if (compressed)
+      {
+         byte b = raw[pos++];
+         if (b != -128)
+            value += b;
+         else
+         {
+            value = littleEndianInt(raw,pos);
+            pos += 4;
+         }
+      }
+      else
+      {
+         value = littleEndianInt(raw,pos);
+         pos += 4;
+      }
+      return value;
+   }
+
+   /**
+    * Converts the 4 bytes starting at <code>offset</code> in
+    * <code>b</code> from a little-endian integer.
+    * @param b The bytes.
+    * @param offset The index of the least significant byte.
+    * @return The integer.
+    */
+   static int littleEndianInt(byte[] b, int offset)
+   {
+      return (b[offset] & 0xff) |
+             ((b[offset+1] & 0xff) << 8) |
+             ((b[offset+2] & 0xff) << 16) |
+             (b[offset+3] << 24);
+   }
+}
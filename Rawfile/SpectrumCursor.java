@@ -0,0 +1,318 @@
+/*
+ * File:  SpectrumCursor.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.StreamSupport;
+
+/**
+ * Steps through a range of spectra in a RAW file, decoding each one into
+ * the same arrays, so that reading every spectrum does not allocate any
+ * memory for each spectrum.  The counts from getCounts() and
+ * getCountsAsFloats() are only valid until next() is called again.<br>
+ * A cursor is a Spliterator, so it can be given to
+ * StreamSupport.stream(spliterator, true) (or Rawfile.StreamSpectra())
+ * for a parallel stream.  Each element of the stream is the cursor that
+ * has just read a spectrum, so it must be used before the stream moves on
+ * and must not be kept.  trySplit() gives a new cursor the first half of
+ * the spectra that have not yet been read, as an ordered Spliterator
+ * must.  The new cursor has its own arrays and opens its own connection
+ * to the file when it first reads a spectrum, so the two cursors can be
+ * used on different threads.  A cursor should only be used by one thread
+ * at a time.  It is closed when tryAdvance() finds no more spectra, and
+ * otherwise must be closed when it is no longer needed.<br>
+ * Spectra are numbered as in Rawfile.Get1DSpectrum(int), so the first
+ * spectrum is at 1.
+ */
+public class SpectrumCursor implements Spliterator<SpectrumCursor>
+{
+   private String           filename;
+   private DataSection      data;
+   private RandomAccessFile file;
+   private SpectrumBuffer   buffer;
+   /** The next spectrum to read. */
+   private int              nextSpectrum;
+   /** The last spectrum to read. */
+   private int              lastSpectrum;
+   private int              spectrum;
+   private int              numChannels;
+   private int[]            counts;
+   private float[]          floatCounts;
+   private boolean          floatsValid;
+   private boolean          failed;
+   private boolean          closed;
+
+   /**
+    * Creates a cursor over the spectra <code>first</code> to
+    * <code>last</code> (inclusive) of a RAW file.
+    * @param rawfile The RAW file.
+    * @param first The first spectrum.
+    * @param last The last spectrum.
+    * @throws IOException If the file could not be opened.
+    */
+   public SpectrumCursor(Rawfile rawfile, int first, int last)
+      throws IOException
+   {
+      this(rawfile.getFileName(),rawfile.getDataSection(),first,last);
+      file = new RandomAccessFile(filename,"r");
+   }
+
+   /**
+    * Creates a cursor that opens the file when it first reads a spectrum.
+    */
+   private SpectrumCursor(String filename, DataSection data, int first, int last)
+   {
+      this.filename = filename;
+      this.data = data;
+      nextSpectrum = Math.max(1,first);
+      lastSpectrum = Math.min(data.getTotalNumSpectra(),last);
+      spectrum = 0;
+      numChannels = 0;
+      counts = new int[0];
+      floatCounts = new float[0];
+      buffer = new SpectrumBuffer();
+   }
+
+   /**
+    * Reads the next spectrum.
+    * @return True if a spectrum was read and false if there are no more
+    * spectra or the spectrum could not be read (see hasFailed()).
+    */
+   public boolean next()
+   {
+      if (failed || closed || nextSpectrum > lastSpectrum)
+         return false;
+
+      try
+      {
+         if (file == null)
+            file = new RandomAccessFile(filename,"r");
+         int size = data.loadSpectrum(file,nextSpectrum,buffer);
+         if (size < 0)
+            throw new IOException("Spectrum "+nextSpectrum+" could not be read");
+         if (counts.length < size)
+            counts = new int[size];
+         for (int j=0; j<size; j++)
+            counts[j] = buffer.next();
+         numChannels = size;
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         failed = true;
+         return false;
+      }
+
+      spectrum = nextSpectrum++;
+      floatsValid = false;
+      return true;
+   }
+
+   /**
+    * Get the spectrum most recently read by next().
+    * @return The spectrum number or 0 if next() has not read a spectrum.
+    */
+   public int getSpectrum()
+   {
+      return spectrum;
+   }
+
+   /**
+    * Get the number of values in the spectrum most recently read, that is
+    * its number of time channels plus the zeroth time channel.
+    * @return The number of values.
+    */
+   public int getNumChannels()
+   {
+      return numChannels;
+   }
+
+   /**
+    * Get the counts in the spectrum most recently read.  The array is
+    * reused for the next spectrum and may be longer than
+    * getNumChannels().
+    * @return The counts.
+    */
+   public int[] getCounts()
+   {
+      return counts;
+   }
+
+   /**
+    * Get the counts in the spectrum most recently read as floats, as
+    * Rawfile.Get1DSpectrum(int) gives them.  The array is reused for the
+    * next spectrum and may be longer than getNumChannels().
+    * @return The counts.
+    */
+   public float[] getCountsAsFloats()
+   {
+      if (!floatsValid)
+      {
+         if (floatCounts.length < counts.length)
+            floatCounts = new float[counts.length];
+         for (int j=0; j<numChannels; j++)
+            floatCounts[j] = counts[j];
+         floatsValid = true;
+      }
+      return floatCounts;
+   }
+
+   /**
+    * Get the number of spectra that next() has still to read.
+    * @return The number of spectra.
+    */
+   public int getRemaining()
+   {
+      return Math.max(0,lastSpectrum-nextSpectrum+1);
+   }
+
+   /**
+    * Did the last call to next() fail because a spectrum could not be
+    * read?
+    * @return True if a spectrum could not be read.
+    */
+   public boolean hasFailed()
+   {
+      return failed;
+   }
+
+   /**
+    * Reads the next spectrum and passes this cursor to
+    * <code>action</code>.  The cursor is closed once there are no more
+    * spectra.
+    * @param action Is given the cursor after each spectrum is read.
+    * @return True if a spectrum was read.
+    */
+   public boolean tryAdvance(Consumer<? super SpectrumCursor> action)
+   {
+      if (!next())
+      {
+         close();
+         return false;
+      }
+      action.accept(this);
+      return true;
+   }
+
+   /**
+    * Splits off the first half of the spectra that have still to be
+    * read into a new cursor, which leaves this cursor with the second
+    * half.
+    * @return The new cursor, or <code>null</code> if there are fewer than
+    * two spectra left or this cursor has been closed.
+    */
+   public SpectrumCursor trySplit()
+   {
+      int remaining = getRemaining();
+      if (remaining < 2 || closed || failed)
+         return null;
+      int mid = nextSpectrum+remaining/2;
+      SpectrumCursor other = new SpectrumCursor(filename,data,nextSpectrum,mid-1);
+      nextSpectrum = mid;
+      return other;
+   }
+
+   /**
+    * Get the number of spectra that have still to be read.
+    * @return getRemaining().
+    */
+   public long estimateSize()
+   {
+      return getRemaining();
+   }
+
+   /**
+    * Get the characteristics of the cursor as a Spliterator.  The spectra
+    * are in order, their number is known, and so is the number in each
+    * split.
+    * @return ORDERED, SIZED, SUBSIZED and NONNULL.
+    */
+   public int characteristics()
+   {
+      return ORDERED | SIZED | SUBSIZED | NONNULL;
+   }
+
+   /**
+    * Closes the cursor's connection to the file.
+    */
+   public void close()
+   {
+      try
+      {
+         if (file != null)
+            file.close();
+      }
+      catch (IOException e) { e.printStackTrace(); }
+      file = null;
+      closed = true;
+   }
+
+   /**
+    * Testbed.  Sums every spectrum of the specified file with one cursor,
+    * and again with a parallel stream over a cursor.
+    */
+   public static void main(String[] args) throws Exception
+   {
+      Rawfile rawfile = new Rawfile(args[0]);
+      int nspec = rawfile.getDataSection().getTotalNumSpectra();
+
+      long start = System.currentTimeMillis();
+      SpectrumCursor cursor = rawfile.OpenSpectrumCursor(1,nspec);
+      double total = 0;
+      while (cursor.next())
+      {
+         int[] counts = cursor.getCounts();
+         for (int j=0; j<cursor.getNumChannels(); j++)
+            total += counts[j];
+      }
+      cursor.close();
+      System.out.println("One cursor:  "+total+" counts in "+
+                         (System.currentTimeMillis()-start)+" ms");
+
+      start = System.currentTimeMillis();
+      total = StreamSupport.stream(rawfile.OpenSpectrumCursor(1,nspec),true)
+         .mapToDouble(new ToDoubleFunction<SpectrumCursor>()
+         {
+            public double applyAsDouble(SpectrumCursor c)
+            {
+               int[] counts = c.getCounts();
+               double sum = 0;
+               for (int j=0; j<c.getNumChannels(); j++)
+                  sum += counts[j];
+               return sum;
+            }
+         }).sum();
+      System.out.println("Parallel stream:  "+total+" counts in "+
+                         (System.currentTimeMillis()-start)+" ms");
+      rawfile.Close();
+   }
+}
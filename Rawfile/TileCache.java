@@ -0,0 +1,723 @@
+/*
+ * File:  TileCache.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A local cache of the counts in a RAW file, so that runs which are
+ * processed many times do not have to be decompressed each time.  The
+ * counts are stored as tiles of a block of spectra by a block of time
+ * channels.  Each tile is stored on its own, either as it is or
+ * compressed with Deflater at its fastest setting, so any tile can be
+ * read without reading the rest.  A footer at the end of the file gives
+ * the size of the tiles and where each tile is.  The cache file is
+ * memory mapped when it is opened, so reading a block of spectra (all of
+ * the tiles in one row) or a block of time channels (all of the tiles in
+ * one column) only touches the tiles in that block.<br>
+ * Spectra are numbered as in Rawfile.Get1DSpectrum(int), so the first
+ * spectrum is at 1, and each spectrum includes the zeroth time channel.
+ * Spectra with fewer time channels than the longest spectrum are padded
+ * with zeros.<br>
+ * The file is little-endian:<br>
+ * "RTC1", then the tiles, then the footer: number of spectra, number of
+ * time channels, spectra per tile, time channels per tile, codec, the
+ * number of time channels of each spectrum, and the offset (long) and
+ * length (int) of each tile in row major order.  The last 12 bytes are
+ * the offset of the footer (long) and "RTCF".  Each row of tiles is
+ * written as soon as it is encoded, so the rows are not necessarily in
+ * order in the file.<br>
+ * Optionally the values from the other sections of the RAW file are
+ * written next to the cache as a properties file.
+ */
+public class TileCache
+{
+   /** The tiles are stored as they are. */
+   public static final int CODEC_NONE    = 0;
+   /** The tiles are compressed with Deflater. */
+   public static final int CODEC_DEFLATE = 1;
+
+   private static final int MAGIC        = 0x31435452;   //"RTC1"
+   private static final int FOOTER_MAGIC = 0x46435452;   //"RTCF"
+
+   private FileChannel channel;
+   /** The whole file, or null if it is too big to map in one piece. */
+   private ByteBuffer  map;
+   private int         numSpectra;
+   private int         numChannels;
+   private int         spectraPerTile;
+   private int         channelsPerTile;
+   private int         codec;
+   private int[]       channelsForSpectrum;
+   private long[]      tileOffset;
+   private int[]       tileLength;
+
+   private TileCache()
+   {
+   }
+
+   /**
+    * Writes a cache of the counts in a RAW file.  The spectra are read
+    * and the tiles compressed on several threads at once.
+    * @param rawfile The RAW file.
+    * @param filename The name of the cache file.
+    * @param spectraPerTile The number of spectra in each tile.
+    * @param channelsPerTile The number of time channels in each tile.
+    * @param codec CODEC_NONE or CODEC_DEFLATE.
+    * @param withProperties True to also write the values from the other
+    * sections to <code>filename</code>.properties.
+    * @return True if the cache was written.
+    */
+   public static boolean write(Rawfile rawfile, String filename,
+                               final int spectraPerTile,
+                               final int channelsPerTile, final int codec,
+                               boolean withProperties)
+   {
+      final DataSection data = rawfile.getDataSection();
+      final int nspec = data.getTotalNumSpectra();
+      if (nspec<1 || spectraPerTile<1 || channelsPerTile<1)
+         return false;
+
+      final int[] channels = new int[nspec];
+      int nchan = 0;
+      for (int i=1; i<=nspec; i++)
+      {
+         channels[i-1] = Math.max(0,data.getNumChannelsForSpectrum(i));
+         nchan = Math.max(nchan,channels[i-1]);
+      }
+      final int numChannels = nchan;
+      final int rows = (nspec+spectraPerTile-1)/spectraPerTile;
+      final int cols = (nchan+channelsPerTile-1)/channelsPerTile;
+
+      FileOutputStream out;
+      try
+      {
+         out = new FileOutputStream(filename);
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         return false;
+      }
+      boolean ok = false;
+      try
+      {
+         final TileWriter writer = new TileWriter(out.getChannel(),rows*cols);
+
+         //each chunk is a range of rows of tiles rather than of spectra, and
+         //each row is written as soon as it is encoded, so only one row of
+         //tiles per thread is held in memory
+         ok = ParallelSpectra.forEachChunk(rawfile.getFileName(),0,rows-1,
+                                           ParallelSpectra.numThreads(rows),
+            new ParallelSpectra.Chunk()
+            {
+               public void process(RandomAccessFile file, SpectrumBuffer buffer,
+                                   int first, int last) throws IOException
+               {
+                  int[][] counts = new int[spectraPerTile][numChannels];
+                  int[] tile = new int[spectraPerTile*channelsPerTile];
+                  byte[][] row = new byte[cols][];
+                  Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                  try
+                  {
+                     for (int r=first; r<=last; r++)
+                     {
+                        int firstSpect = r*spectraPerTile+1;
+                        int n = Math.min(spectraPerTile,nspec-firstSpect+1);
+                        for (int k=0; k<n; k++)
+                        {
+                           Arrays.fill(counts[k],0);
+                           int size = data.loadSpectrum(file,firstSpect+k,buffer);
+                           if (size < 0)
+                              throw new IOException("Spectrum "+(firstSpect+k)+
+                                                    " could not be read");
+                           for (int j=0; j<size; j++)
+                              counts[k][j] = buffer.next();
+                        }
+
+                        for (int c=0; c<cols; c++)
+                        {
+                           int firstChan = c*channelsPerTile;
+                           int m = Math.min(channelsPerTile,numChannels-firstChan);
+                           for (int k=0; k<n; k++)
+                              System.arraycopy(counts[k],firstChan,tile,k*m,m);
+                           row[c] = encode(tile,n*m,codec,deflater);
+                        }
+                        writer.append(r*cols,row);
+                     }
+                  }
+                  finally
+                  {
+                     deflater.end();
+                  }
+               }
+            });
+
+         if (ok)
+            writer.finish(nspec,numChannels,spectraPerTile,channelsPerTile,
+                          codec,channels);
+      }
+      catch (IOException e)
+      {
+         e.printStackTrace();
+         ok = false;
+      }
+      finally
+      {
+         try
+         {
+            out.close();
+         }
+         catch (IOException e)
+         {
+            e.printStackTrace();
+            ok = false;
+         }
+         if (!ok)
+            new File(filename).delete();
+      }
+      if (!ok)
+         return false;
+
+      if (withProperties)
+      {
+         try
+         {
+            writeProperties(rawfile,filename+".properties");
+         }
+         catch (IOException e)
+         {
+            e.printStackTrace();
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Appends the tiles of a cache file as the rows are encoded, and keeps
+    * where each tile went for the footer.
+    */
+   private static class TileWriter
+   {
+      private FileChannel fc;
+      private long        position;
+      private long[]      offset;
+      private int[]       length;
+
+      TileWriter(FileChannel fc, int numTiles) throws IOException
+      {
+         this.fc = fc;
+         offset = new long[numTiles];
+         length = new int[numTiles];
+         ByteBuffer head = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+         head.putInt(MAGIC).flip();
+         writeFully(fc,head);
+         position = 4;
+      }
+
+      /**
+       * Writes the tiles of one row.
+       * @param firstTile The index of the first tile of the row.
+       * @param row The encoded tiles.
+       */
+      synchronized void append(int firstTile, byte[][] row) throws IOException
+      {
+         for (int c=0; c<row.length; c++)
+         {
+            offset[firstTile+c] = position;
+            length[firstTile+c] = row[c].length;
+            writeFully(fc,ByteBuffer.wrap(row[c]));
+            position += row[c].length;
+         }
+      }
+
+      /**
+       * Writes the footer once every row has been written.
+       */
+      synchronized void finish(int nspec, int numChannels, int spectraPerTile,
+                               int channelsPerTile, int codec, int[] channels)
+         throws IOException
+      {
+         ByteBuffer footer = ByteBuffer.allocate(20+4*nspec+12*offset.length+12)
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+         footer.putInt(nspec).putInt(numChannels).putInt(spectraPerTile)
+               .putInt(channelsPerTile).putInt(codec);
+         for (int i=0; i<nspec; i++)
+            footer.putInt(channels[i]);
+         for (int t=0; t<offset.length; t++)
+            footer.putLong(offset[t]).putInt(length[t]);
+         footer.putLong(position).putInt(FOOTER_MAGIC);
+         footer.flip();
+         writeFully(fc,footer);
+      }
+   }
+
+   /**
+    * Opens a cache file.
+    * @param filename The name of the cache file.
+    * @return The cache or <code>null</code> if it could not be read.
+    */
+   public static TileCache open(String filename)
+   {
+      TileCache cache = new TileCache();
+      try
+      {
+         cache.channel = new RandomAccessFile(filename,"r").getChannel();
+         long size = cache.channel.size();
+         if (size <= Integer.MAX_VALUE)
+            cache.map = cache.channel.map(FileChannel.MapMode.READ_ONLY,0,size)
+                                     .order(ByteOrder.LITTLE_ENDIAN);
+
+         ByteBuffer tail = cache.read(size-12,12);
+         long footerStart = tail.getLong();
+         if (tail.getInt() != FOOTER_MAGIC || cache.read(0,4).getInt() != MAGIC)
+            throw new IOException(filename+" is not a tile cache");
+
+         ByteBuffer footer = cache.read(footerStart,(int)(size-12-footerStart));
+         cache.numSpectra = footer.getInt();
+         cache.numChannels = footer.getInt();
+         cache.spectraPerTile = footer.getInt();
+         cache.channelsPerTile = footer.getInt();
+         cache.codec = footer.getInt();
+         cache.channelsForSpectrum = new int[cache.numSpectra];
+         for (int i=0; i<cache.numSpectra; i++)
+            cache.channelsForSpectrum[i] = footer.getInt();
+         int numTiles = cache.getNumSpectrumBlocks()*cache.getNumChannelBlocks();
+         cache.tileOffset = new long[numTiles];
+         cache.tileLength = new int[numTiles];
+         for (int t=0; t<numTiles; t++)
+         {
+            cache.tileOffset[t] = footer.getLong();
+            cache.tileLength[t] = footer.getInt();
+         }
+      }
+      catch (Exception e)
+      {
+         e.printStackTrace();
+         cache.close();
+         return null;
+      }
+      return cache;
+   }
+
+   /**
+    * Closes the cache file.
+    */
+   public void close()
+   {
+      map = null;
+      try
+      {
+         if (channel != null)
+            channel.close();
+      }
+      catch (IOException e) { e.printStackTrace(); }
+   }
+
+   /**
+    * Get the number of spectra.
+    * @return The number of spectra.
+    */
+   public int getNumSpectra()
+   {
+      return numSpectra;
+   }
+
+   /**
+    * Get the number of time channels in the longest spectrum, including
+    * the zeroth time channel.
+    * @return The number of time channels.
+    */
+   public int getNumChannels()
+   {
+      return numChannels;
+   }
+
+   /**
+    * Get the number of time channels in a spectrum, including the zeroth
+    * time channel.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The number of time channels or -1 if <code>spect</code> is
+    * invalid.
+    */
+   public int getNumChannelsForSpectrum(int spect)
+   {
+      if (spect<1 || spect>numSpectra)
+         return -1;
+      return channelsForSpectrum[spect-1];
+   }
+
+   /**
+    * Get the number of spectra in each tile.
+    * @return The number of spectra.
+    */
+   public int getSpectraPerTile()
+   {
+      return spectraPerTile;
+   }
+
+   /**
+    * Get the number of time channels in each tile.
+    * @return The number of time channels.
+    */
+   public int getChannelsPerTile()
+   {
+      return channelsPerTile;
+   }
+
+   /**
+    * Get the number of blocks of spectra (rows of tiles).
+    * @return The number of blocks.
+    */
+   public int getNumSpectrumBlocks()
+   {
+      return (numSpectra+spectraPerTile-1)/spectraPerTile;
+   }
+
+   /**
+    * Get the number of blocks of time channels (columns of tiles).
+    * @return The number of blocks.
+    */
+   public int getNumChannelBlocks()
+   {
+      return (numChannels+channelsPerTile-1)/channelsPerTile;
+   }
+
+   /**
+    * Get the counts in one tile, in spectrum major order.  The tile for
+    * the last block of spectra or time channels may be smaller than the
+    * others.  If the tiles are not compressed, the buffer is a view of the
+    * mapped file, so no counts are copied.
+    * @param sBlock The block of spectra (from 0).
+    * @param cBlock The block of time channels (from 0).
+    * @return The counts or <code>null</code> if the block is invalid or
+    * the tile could not be read.
+    */
+   public IntBuffer getTile(int sBlock, int cBlock)
+   {
+      int cols = getNumChannelBlocks();
+      if (sBlock<0 || sBlock>=getNumSpectrumBlocks() || cBlock<0 || cBlock>=cols)
+         return null;
+      int t = sBlock*cols+cBlock;
+      int numValues = spectraInBlock(sBlock)*channelsInBlock(cBlock);
+      try
+      {
+         ByteBuffer bytes = read(tileOffset[t],tileLength[t]);
+         if (codec == CODEC_NONE)
+            return bytes.asIntBuffer();
+
+         byte[] packed = new byte[tileLength[t]];
+         bytes.get(packed);
+         Inflater inflater = new Inflater();
+         byte[] unpacked = new byte[4*numValues];
+         inflater.setInput(packed);
+         int n = inflater.inflate(unpacked);
+         inflater.end();
+         if (n != unpacked.length)
+            throw new IOException("Tile "+sBlock+","+cBlock+" is too short");
+         return ByteBuffer.wrap(unpacked).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+      }
+      catch (Exception e)
+      {
+         e.printStackTrace();
+         return null;
+      }
+   }
+
+   /**
+    * Get every time channel of a block of spectra.
+    * @param sBlock The block of spectra (from 0).
+    * @return The counts, indexed by [spectrum in block][time channel], or
+    * <code>null</code> if the block is invalid or could not be read.
+    */
+   public int[][] getSpectrumBlock(int sBlock)
+   {
+      if (sBlock<0 || sBlock>=getNumSpectrumBlocks())
+         return null;
+      int n = spectraInBlock(sBlock);
+      int[][] result = new int[n][numChannels];
+      for (int c=0; c<getNumChannelBlocks(); c++)
+      {
+         IntBuffer tile = getTile(sBlock,c);
+         if (tile == null)
+            return null;
+         int m = channelsInBlock(c);
+         for (int k=0; k<n; k++)
+            tile.get(result[k],c*channelsPerTile,m);
+      }
+      return result;
+   }
+
+   /**
+    * Get every spectrum for a block of time channels.
+    * @param cBlock The block of time channels (from 0).
+    * @return The counts, indexed by [time channel in block][spectrum-1],
+    * or <code>null</code> if the block is invalid or could not be read.
+    */
+   public int[][] getChannelBlock(int cBlock)
+   {
+      if (cBlock<0 || cBlock>=getNumChannelBlocks())
+         return null;
+      int m = channelsInBlock(cBlock);
+      int[][] result = new int[m][numSpectra];
+      for (int r=0; r<getNumSpectrumBlocks(); r++)
+      {
+         IntBuffer tile = getTile(r,cBlock);
+         if (tile == null)
+            return null;
+         int n = spectraInBlock(r);
+         int firstSpect = r*spectraPerTile;
+         for (int k=0; k<n; k++)
+            for (int j=0; j<m; j++)
+               result[j][firstSpect+k] = tile.get();
+      }
+      return result;
+   }
+
+   /**
+    * Get one spectrum.  Only the tiles in the spectrum's block are read.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The counts, including the zeroth time channel, or
+    * <code>null</code> if <code>spect</code> is invalid or could not be
+    * read.
+    */
+   public int[] getSpectrum(int spect)
+   {
+      if (spect<1 || spect>numSpectra)
+         return null;
+      int sBlock = (spect-1)/spectraPerTile;
+      int k = (spect-1)%spectraPerTile;
+      int n = spectraInBlock(sBlock);
+      int[] result = new int[channelsForSpectrum[spect-1]];
+      for (int c=0; c<getNumChannelBlocks(); c++)
+      {
+         int firstChan = c*channelsPerTile;
+         if (firstChan >= result.length)
+            break;
+         IntBuffer tile = getTile(sBlock,c);
+         if (tile == null)
+            return null;
+         int m = channelsInBlock(c);
+         tile.position(k*m);
+         tile.get(result,firstChan,Math.min(m,result.length-firstChan));
+      }
+      return result;
+   }
+
+   private int spectraInBlock(int sBlock)
+   {
+      return Math.min(spectraPerTile,numSpectra-sBlock*spectraPerTile);
+   }
+
+   private int channelsInBlock(int cBlock)
+   {
+      return Math.min(channelsPerTile,numChannels-cBlock*channelsPerTile);
+   }
+
+   /**
+    * Get part of the file, as a view of the mapped file if it could be
+    * mapped in one piece and otherwise as a mapping of just that part.
+    */
+   private ByteBuffer read(long position, int length) throws IOException
+   {
+      if (map != null)
+      {
+         ByteBuffer view = map.duplicate();
+         view.position((int)position).limit((int)position+length);
+         return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+      }
+      MappedByteBuffer part = channel.map(FileChannel.MapMode.READ_ONLY,
+                                          position,length);
+      part.order(ByteOrder.LITTLE_ENDIAN);
+      return part;
+   }
+
+   /**
+    * Stores one tile as little-endian words, compressed if asked to.
+    */
+   private static byte[] encode(int[] tile, int numValues, int codec,
+                                Deflater deflater)
+   {
+      ByteBuffer words = ByteBuffer.allocate(4*numValues).order(ByteOrder.LITTLE_ENDIAN);
+      words.asIntBuffer().put(tile,0,numValues);
+      if (codec != CODEC_DEFLATE)
+         return words.array();
+
+      deflater.reset();
+      deflater.setInput(words.array());
+      deflater.finish();
+      byte[] out = new byte[4*numValues+64];
+      int n = 0;
+      while (!deflater.finished())
+      {
+         if (n == out.length)
+         {
+            byte[] bigger = new byte[2*out.length];
+            System.arraycopy(out,0,bigger,0,n);
+            out = bigger;
+         }
+         n += deflater.deflate(out,n,out.length-n);
+      }
+      byte[] result = new byte[n];
+      System.arraycopy(out,0,result,0,n);
+      return result;
+   }
+
+   private static void writeFully(FileChannel fc, ByteBuffer buffer)
+      throws IOException
+   {
+      while (buffer.hasRemaining())
+         fc.write(buffer);
+   }
+
+   /**
+    * Writes the run, instrument and time channel values of a RAW file as
+    * a properties file.
+    */
+   private static void writeProperties(Rawfile rawfile, String filename)
+      throws IOException
+   {
+      Properties props = new Properties();
+      props.setProperty("instrument",rawfile.InstrumentName().trim());
+      props.setProperty("run.number",""+rawfile.RunNumber());
+      props.setProperty("run.title",rawfile.RunTitle().trim());
+      props.setProperty("run.user",rawfile.UserName().trim());
+      props.setProperty("run.end",(rawfile.EndDate().trim()+" "+
+                                    rawfile.EndTime().trim()).trim());
+      props.setProperty("run.goodProtonCharge",""+rawfile.GoodProtonCharge());
+      props.setProperty("instrument.L1",""+rawfile.SourceToSample());
+      props.setProperty("sample.phi",""+rawfile.Phi());
+      props.setProperty("sample.chi",""+rawfile.Chi());
+      props.setProperty("sample.omega",""+rawfile.Omega());
+
+      DetectorTable table = rawfile.GetDetectorTable();
+      int numDet = table.numDetectors;
+      StringBuffer spec = new StringBuffer();
+      StringBuffer l2 = new StringBuffer();
+      StringBuffer angle = new StringBuffer();
+      StringBuffer crate = new StringBuffer();
+      for (int d=1; d<=numDet; d++)
+      {
+         String sep = (d == 1) ? "" : ",";
+         spec.append(sep).append(table.spectrum[d-1]);
+         l2.append(sep).append(table.flightPath[d-1]);
+         angle.append(sep).append(table.twoTheta[d-1]);
+         crate.append(sep).append(table.crate[d-1]);
+      }
+      props.setProperty("detectors.count",""+numDet);
+      props.setProperty("detectors.spectrum",spec.toString());
+      props.setProperty("detectors.L2",l2.toString());
+      props.setProperty("detectors.twoTheta",angle.toString());
+      props.setProperty("detectors.crate",crate.toString());
+
+      for (int r=rawfile.MinRegimeNumber(); r<=rawfile.MaxRegimeNumber(); r++)
+      {
+         float[] tcb = rawfile.TimeChannelBoundariesForRegime(r);
+         if (tcb == null)
+            continue;
+         StringBuffer list = new StringBuffer();
+         for (int i=0; i<tcb.length; i++)
+            list.append((i == 0) ? "" : ",").append(tcb[i]);
+         props.setProperty("regime."+r+".tcb",list.toString());
+         props.setProperty("regime."+r+".spectra",""+rawfile.getNumSpectraForRegime(r));
+      }
+
+      FileOutputStream out = new FileOutputStream(filename);
+      try
+      {
+         props.store(out,"Run "+rawfile.RunNumber()+" from "+rawfile.getFileName());
+      }
+      finally
+      {
+         out.close();
+      }
+   }
+
+   /**
+    * Testbed.  Writes a compressed cache of the specified file, then reads
+    * it back by blocks of spectra and by blocks of time channels and
+    * checks the counts against Rawfile.Get1DSpectrum(int).
+    */
+   public static void main(String[] args)
+   {
+      Rawfile rawfile = new Rawfile(args[0]);
+      String cacheName = args[0]+".rtc";
+      long start = System.currentTimeMillis();
+      if (!write(rawfile,cacheName,64,512,CODEC_DEFLATE,true))
+      {
+         System.out.println("The cache could not be written");
+         return;
+      }
+      System.out.println("Written in "+(System.currentTimeMillis()-start)+" ms");
+
+      TileCache cache = open(cacheName);
+      start = System.currentTimeMillis();
+      int bad = 0;
+      for (int r=0; r<cache.getNumSpectrumBlocks(); r++)
+      {
+         int[][] block = cache.getSpectrumBlock(r);
+         for (int k=0; k<block.length; k++)
+         {
+            float[] expected = rawfile.Get1DSpectrum(r*cache.spectraPerTile+k+1);
+            for (int j=0; j<expected.length; j++)
+               if (expected[j] != block[k][j])
+                  bad++;
+         }
+      }
+      System.out.println("Spectrum blocks read in "+
+                         (System.currentTimeMillis()-start)+" ms");
+
+      start = System.currentTimeMillis();
+      long total = 0;
+      for (int c=0; c<cache.getNumChannelBlocks(); c++)
+      {
+         int[][] block = cache.getChannelBlock(c);
+         for (int j=0; j<block.length; j++)
+            for (int i=0; i<block[j].length; i++)
+               total += block[j][i];
+      }
+      System.out.println("Time channel blocks read in "+
+                         (System.currentTimeMillis()-start)+" ms, "+total+" counts");
+      System.out.println(bad+" counts differ");
+      cache.close();
+      rawfile.Close();
+   }
+}
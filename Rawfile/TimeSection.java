@@ -218,10 +218,7 @@ public class TimeSection {
           timeChannelMode[ii][jj] = Header.readUnsignedInteger( rawFile, 4 );
 
         for( int jj = 0; jj < 4; jj++ )
-        {
-          for( int kk = 0; kk < 5; kk++ )
-            timeChannelParameters[ii][jj][kk] = ( float )Header.ReadVAXReal4( rawFile );
-        }
+          Header.readVAXReals( rawFile, timeChannelParameters[ii][jj], 0, 5 );
 
         clockPrescale[ii]           = Header.readUnsignedInteger( rawFile, 4 );
         timeChannelBoundaries[ii]   = new int[numTimeChannels[ii] + 1];
@@ -599,4 +596,24 @@ public class TimeSection {
    {
       return (num-getMinimumRegimeNumber());
    }
+
+   /**
+    * Adds the number of spectra and time channels, and the time channel 
+    * boundaries, for each time regime to a hash.
+    * @param hash The hash so far.
+    * @return The new hash.
+    */
+   long fingerprint(long hash)
+   {
+      hash = Fingerprint.add(hash,numSpectra);
+      hash = Fingerprint.add(hash,numTimeChannels);
+      hash = Fingerprint.add(hash,clockPrescale);
+      if (timeChannelBoundaries != null)
+         for (int i=0; i<timeChannelBoundaries.length; i++)
+            hash = Fingerprint.add(hash,timeChannelBoundaries[i]);
+      for (int i=0; i<timeChannelParameters.length; i++)
+         if (timeChannelParameters[i].length > 0)
+            hash = Fingerprint.add(hash,timeChannelParameters[i][0]);
+      return hash;
+   }
 }
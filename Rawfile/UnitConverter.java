@@ -0,0 +1,340 @@
+/*
+ * File:  UnitConverter.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * Modified:
+ *
+ * $Log$
+ */
+
+package ISIS.Rawfile;
+
+/**
+ * Converts times of flight for the spectra of an ISIS RAW file to
+ * wavelength, d-spacing or |Q|.  The factor that each spectrum's times are
+ * multiplied (or divided) by is worked out once, when the UnitConverter
+ * is created, from the primary flight path and the average secondary
+ * flight path and scattering angle of the detectors in the spectrum.  The
+ * conversions are then a single multiplication or division for each
+ * value.<br>
+ * Times are in microseconds, wavelengths and d-spacings in Angstroms and
+ * |Q| in inverse Angstroms.  Since |Q| falls as the time of flight rises,
+ * converted boundaries are in decreasing order for |Q|.  A spectrum with
+ * no detectors converts every time to NaN.<br>
+ * Spectra are numbered as in Rawfile.Get1DSpectrum(int), so the first
+ * spectrum is at 1.  The spectrum recorded for a detector in the
+ * instrument section, n, is the spectrum numbered n+1.
+ */
+public class UnitConverter
+{
+   /** Convert to wavelength. */
+   public static final int WAVELENGTH = 0;
+   /** Convert to d-spacing. */
+   public static final int D_SPACING  = 1;
+   /** Convert to the magnitude of Q. */
+   public static final int Q          = 2;
+
+   /**
+    * Planck's constant divided by the neutron mass, in Angstrom metres
+    * per microsecond, so a neutron that takes t microseconds to travel L
+    * metres has a wavelength of H_OVER_MN*t/L Angstroms.
+    */
+   public static final double H_OVER_MN = 0.0039560346;
+
+   private Rawfile   rawfile;
+   private float     L1;
+   /** The average secondary flight path of each spectrum. */
+   private float[]   L2;
+   /** The average scattering angle (in degrees) of each spectrum. */
+   private float[]   twoTheta;
+   /**
+    * The factors for each spectrum, indexed by [units][spectrum].  The
+    * wavelength and d-spacing are the time times the factor, and |Q| is
+    * the factor divided by the time.
+    */
+   private float[][] factor;
+
+   /**
+    * Works out the conversion factors for every spectrum of a RAW file.
+    * @param rawfile The RAW file.
+    */
+   public UnitConverter(Rawfile rawfile)
+   {
+      this.rawfile = rawfile;
+      L1 = rawfile.SourceToSample();
+      int nspec = rawfile.getDataSection().getTotalNumSpectra();
+      nspec = Math.max(nspec,0);
+      L2 = new float[nspec+1];
+      twoTheta = new float[nspec+1];
+      int[] numDet = new int[nspec+1];
+
+      DetectorTable table = rawfile.GetDetectorTable();
+      int[] spectrum = table.spectrum;
+      float[] flightPath = table.flightPath;
+      float[] angle = table.twoTheta;
+      for (int i=0; i<spectrum.length; i++)
+      {
+         int spect = spectrum[i];
+         if (spect<1 || spect>nspec)
+            continue;
+         L2[spect] += flightPath[i];
+         twoTheta[spect] += angle[i];
+         numDet[spect]++;
+      }
+
+      factor = new float[3][nspec+1];
+      for (int i=0; i<=nspec; i++)
+      {
+         if (numDet[i] == 0)
+         {
+            L2[i] = twoTheta[i] = Float.NaN;
+            factor[WAVELENGTH][i] = factor[D_SPACING][i] = factor[Q][i] = Float.NaN;
+            continue;
+         }
+         L2[i] /= numDet[i];
+         twoTheta[i] /= numDet[i];
+         double perTime = H_OVER_MN/(L1+L2[i]);
+         double sinTheta = Math.sin(Math.toRadians(twoTheta[i]/2));
+         factor[WAVELENGTH][i] = (float)perTime;
+         factor[D_SPACING][i] = (float)(perTime/(2*sinTheta));
+         factor[Q][i] = (float)(4*Math.PI*sinTheta/perTime);
+      }
+   }
+
+   /**
+    * Get the number of spectra.
+    * @return The number of spectra.
+    */
+   public int getNumSpectra()
+   {
+      return L2.length-1;
+   }
+
+   /**
+    * Get the total flight path of a spectrum.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The primary flight path plus the average secondary flight
+    * path of the detectors in the spectrum, or NaN if the spectrum has no
+    * detectors or is invalid.
+    */
+   public float getTotalFlightPath(int spect)
+   {
+      if (spect<1 || spect>=L2.length)
+         return Float.NaN;
+      return L1+L2[spect];
+   }
+
+   /**
+    * Get the scattering angle of a spectrum.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return The average scattering angle (in degrees) of the detectors
+    * in the spectrum, or NaN if the spectrum has no detectors or is
+    * invalid.
+    */
+   public float getTwoTheta(int spect)
+   {
+      if (spect<1 || spect>=twoTheta.length)
+         return Float.NaN;
+      return twoTheta[spect];
+   }
+
+   /**
+    * Get the DIFC of a spectrum, the time of flight per Angstrom of
+    * d-spacing.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @return DIFC (in microseconds per Angstrom) or NaN if the spectrum
+    * has no detectors or is invalid.
+    */
+   public float getDIFC(int spect)
+   {
+      if (spect<1 || spect>=L2.length)
+         return Float.NaN;
+      return 1/factor[D_SPACING][spect];
+   }
+
+   /**
+    * Get the factor that the times of flight of a spectrum are converted
+    * with, as described for <code>factor</code>.
+    */
+   float getFactor(int spect, int units)
+   {
+      return factor[units][spect];
+   }
+
+   /**
+    * Converts times of flight for one spectrum.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @param tof The times of flight (in microseconds).
+    * @param units WAVELENGTH, D_SPACING or Q.
+    * @return The converted values or <code>null</code> if
+    * <code>spect</code> or <code>units</code> is invalid.
+    */
+   public float[] convert(int spect, float[] tof, int units)
+   {
+      if (tof == null)
+         return null;
+      float[] result = new float[tof.length];
+      return convert(spect,tof,result,units) ? result : null;
+   }
+
+   /**
+    * Converts times of flight for one spectrum into an array that the
+    * caller provides, which can be <code>tof</code> itself.
+    * @param spect The spectrum (the first spectrum is at 1).
+    * @param tof The times of flight (in microseconds).
+    * @param out The array to put the converted values in, which must be
+    * at least as long as <code>tof</code>.
+    * @param units WAVELENGTH, D_SPACING or Q.
+    * @return True if the values were converted and false if
+    * <code>spect</code> or <code>units</code> is invalid.
+    */
+   public boolean convert(int spect, float[] tof, float[] out, int units)
+   {
+      if (spect<1 || spect>=L2.length || units<WAVELENGTH || units>Q ||
+          out.length < tof.length)
+         return false;
+      float f = factor[units][spect];
+      int n = tof.length;
+      if (units == Q)
+         for (int j=0; j<n; j++)
+            out[j] = f/tof[j];
+      else
+         for (int j=0; j<n; j++)
+            out[j] = f*tof[j];
+      return true;
+   }
+
+   /**
+    * Converts the time channel boundaries of every spectrum, on several
+    * threads at once.
+    * @param units WAVELENGTH, D_SPACING or Q.
+    * @return An array whose ith element is the converted boundaries of
+    * spectrum i.  Since the first spectrum is at 1, the zeroth element is
+    * <code>null</code>.  If <code>units</code> is invalid,
+    * <code>null</code> is returned.
+    */
+   public float[][] convertBoundaries(int units)
+   {
+      if (units<WAVELENGTH || units>Q)
+         return null;
+      DataSection data = rawfile.getDataSection();
+      int nspec = getNumSpectra();
+      float[][] result = new float[nspec+1][];
+      int minRegime = rawfile.MinRegimeNumber();
+      float[][] tcb = new float[rawfile.MaxRegimeNumber()-minRegime+1][];
+      for (int r=0; r<tcb.length; r++)
+         tcb[r] = rawfile.TimeChannelBoundariesForRegime(r+minRegime);
+      //each spectrum is converted from its regime's boundaries
+      for (int i=1; i<=nspec; i++)
+      {
+         int regime = data.getRegimeForSpectrum(i);
+         if (regime >= 0 && tcb[regime-minRegime] != null)
+            result[i] = tcb[regime-minRegime];
+      }
+      return convert(result,units,false) ? result : null;
+   }
+
+   /**
+    * Converts a matrix of times of flight, one row for each spectrum, in
+    * place, on several threads at once.
+    * @param tof An array whose ith element holds the times of flight for
+    * spectrum i.  Rows that are <code>null</code> are skipped.
+    * @param units WAVELENGTH, D_SPACING or Q.
+    * @return True if the times were converted and false if
+    * <code>units</code> is invalid.
+    */
+   public boolean convert(float[][] tof, int units)
+   {
+      if (units<WAVELENGTH || units>Q)
+         return false;
+      return convert(tof,units,true);
+   }
+
+   /**
+    * Converts rows on several threads.  Rows that are not converted in
+    * place may be shared, so each gets a new array.
+    */
+   private boolean convert(final float[][] rows, final int units,
+                           final boolean inPlace)
+   {
+      final int numRows = Math.min(rows.length-1,getNumSpectra());
+      if (numRows <= 0)
+         return true;
+      int numThreads = ParallelSpectra.numThreads(numRows);
+      Thread[] threads = new Thread[numThreads];
+      for (int t=0; t<numThreads; t++)
+      {
+         final int first = 1+(int)((long)numRows*t/numThreads);
+         final int last = (int)((long)numRows*(t+1)/numThreads);
+         threads[t] = new Thread("UnitConverter")
+         {
+            public void run()
+            {
+               for (int i=first; i<=last; i++)
+               {
+                  if (rows[i] == null)
+                     continue;
+                  float[] out = inPlace ? rows[i] : new float[rows[i].length];
+                  convert(i,rows[i],out,units);
+                  rows[i] = out;
+               }
+            }
+         };
+         threads[t].start();
+      }
+      for (int t=0; t<numThreads; t++)
+      {
+         try
+         {
+            threads[t].join();
+         }
+         catch (InterruptedException e)
+         {
+            e.printStackTrace();
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Testbed.  Converts the time channel boundaries of every spectrum of
+    * the specified file to d-spacing and prints the range of the first
+    * spectrum with detectors.
+    */
+   public static void main(String[] args)
+   {
+      Rawfile rawfile = new Rawfile(args[0]);
+      long start = System.currentTimeMillis();
+      UnitConverter converter = new UnitConverter(rawfile);
+      float[][] d = converter.convertBoundaries(D_SPACING);
+      long time = System.currentTimeMillis()-start;
+      for (int i=1; i<d.length; i++)
+      {
+         if (d[i] == null || Float.isNaN(d[i][0]))
+            continue;
+         System.out.println("Spectrum "+i+" (2theta="+converter.getTwoTheta(i)+
+                            "):  d from "+d[i][0]+" to "+d[i][d[i].length-1]);
+         break;
+      }
+      System.out.println(d.length-1+" spectra converted in "+time+" ms");
+   }
+}
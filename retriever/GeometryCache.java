@@ -0,0 +1,167 @@
+/*
+ * File:  GeometryCache.java
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * This work was supported by the Intense Pulsed Neutron Source Division
+ * of Argonne National Laboratory, Argonne, IL 60439-4845, USA.
+ *
+ * For further information, see <http://www.pns.anl.gov/ISAW/>
+ *
+ * $Log$
+ */
+package ISIS.retriever;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import DataSetTools.dataset.*;
+
+import ISIS.Rawfile.*;
+
+import gov.anl.ipns.MathTools.Geometry.*;
+
+
+/**
+ * Process-wide cache of the geometry that ISISRawfileRetriever builds for
+ * each Data block: the detector position, the list of detector IDs and
+ * the time scale.  Consecutive runs on the same instrument usually have
+ * the same detector tables, so the geometry is kept for the last few
+ * instrument configurations seen, keyed by the instrument name and
+ * Rawfile.GeometryFingerprint().  The time scale is shared between
+ * DataSets, but each DataSet is given its own copies of the detector
+ * positions and ID lists, so changing them in one DataSet does not change
+ * any other run.
+ */
+class GeometryCache {
+  //~ Static fields/initializers ***********************************************
+
+  /** The most configurations that are kept. */
+  private static final int MAX_ENTRIES = 8;
+
+  private static final Hashtable entries = new Hashtable(  );
+
+  /** The keys in the order they were last used, oldest first. */
+  private static final Vector    order   = new Vector(  );
+
+  //~ Instance fields **********************************************************
+
+  private XScale             xscale;
+  private DetectorPosition[] positions;
+  private int[][]            ids;
+
+  //~ Constructors *************************************************************
+
+  private GeometryCache( Rawfile rawfile, int numSpectra ) {
+    xscale      = new VariableXScale(
+        rawfile.TimeChannelBoundariesForRegime( 1 ) );
+    positions   = new DetectorPosition[numSpectra];
+    ids         = new int[numSpectra][];
+
+    for( int i = 0; i < numSpectra; i++ ) {
+      positions[i] = new DetectorPosition(  );
+      positions[i].setCylindricalCoords(
+        rawfile.FlightPath( i ),
+        ( float )( rawfile.DetectorAngle( i ) * ( Math.PI / 180 ) ), 0 );
+      ids[i] = rawfile.IdsInSubgroup( i );
+    }
+  }
+
+  //~ Methods ******************************************************************
+
+  /**
+   * Get the geometry for a RAW file, building it if no file with the same
+   * instrument configuration has been seen.
+   *
+   * @param rawfile The RAW file.
+   * @param numSpectra The number of Data blocks that will be built.
+   *
+   * @return The geometry.
+   */
+  static GeometryCache get( Rawfile rawfile, int numSpectra ) {
+    String key = rawfile.InstrumentName(  ) + ":" + numSpectra + ":" +
+      Long.toHexString( rawfile.GeometryFingerprint(  ) );
+
+    synchronized( entries ) {
+      GeometryCache geometry = ( GeometryCache )entries.get( key );
+
+      if( geometry != null ) {
+        order.remove( key );
+        order.add( key );
+
+        return geometry;
+      }
+    }
+
+    //built without the lock, so that retrievers for other configurations
+    //are not held up
+    GeometryCache built = new GeometryCache( rawfile, numSpectra );
+
+    synchronized( entries ) {
+      GeometryCache geometry = ( GeometryCache )entries.get( key );
+
+      if( geometry == null ) {
+        geometry = built;
+        entries.put( key, geometry );
+
+        if( order.size(  ) >= MAX_ENTRIES ) {
+          entries.remove( order.remove( 0 ) );
+        }
+      } else {
+        //another thread built the same geometry meanwhile, so use that
+        order.remove( key );
+      }
+
+      order.add( key );
+
+      return geometry;
+    }
+  }
+
+  /**
+   * Removes all of the cached geometry.
+   */
+  static void clear(  ) {
+    synchronized( entries ) {
+      entries.clear(  );
+      order.clear(  );
+    }
+  }
+
+  /**
+   * @return The time scale for time regime 1.
+   */
+  XScale getXScale(  ) {
+    return xscale;
+  }
+
+  /**
+   * @param i The index of the Data block.
+   *
+   * @return A copy of the detector position for the Data block.
+   */
+  DetectorPosition getPosition( int i ) {
+    return new DetectorPosition( positions[i] );
+  }
+
+  /**
+   * @param i The index of the Data block.
+   *
+   * @return A copy of the detector IDs for the Data block.
+   */
+  int[] getIds( int i ) {
+    return ( ids[i] == null ) ? null : ( int[] )ids[i].clone(  );
+  }
+}
@@ -129,30 +129,31 @@ public class ISISRawfileRetriever extends Retriever {
     setOneTimeDSAttributes( ds2 );
 
     Data             data;
-    DetectorPosition detPos;
     int              totalSpectra = rawfile.getNumSpectraForRegime(1);
     float[]          errors       = new float[1];
 
+    //the detector positions, subgroup lists and XScale are worked out once
+    //for each instrument configuration.  The XScale is shared, and each
+    //Data block gets its own copy of the position and subgroup list.
+    GeometryCache geometry = GeometryCache.get( rawfile, totalSpectra );
+
     //data block consists of a spectra and an XScale
     //XScale comes from tcb, and element of TCB at time regime
-    VariableXScale xscale = new VariableXScale( rawfile.TimeChannelBoundariesForRegime(1) );
+    XScale xscale = geometry.getXScale(  );
 
     //ID is spectrum number
     for( int i = 0; i < totalSpectra; i++ ) {
       data     = Data.getInstance( 
           xscale, rawfile.Get1DSpectrum( i ), errors, i );
-      detPos   = new DetectorPosition(  );
-      detPos.setCylindricalCoords( 
-        rawfile.FlightPath( i ),
-        ( float )( rawfile.DetectorAngle( i ) * ( Math.PI / 180 ) ), 0 );
 
       //two theta angle
-      data.setAttribute( new DetPosAttribute( Attribute.DETECTOR_POS, detPos ) );
+      data.setAttribute( 
+        new DetPosAttribute( Attribute.DETECTOR_POS, geometry.getPosition( i ) ) );
 
       //the detector IDs in subgroup may not be necessary
       data.setAttribute( 
         new IntListAttribute( 
-          Attribute.DETECTOR_IDS, rawfile.IdsInSubgroup( i ) ) );
+          Attribute.DETECTOR_IDS, geometry.getIds( i ) ) );
       setOneTimeBlockAttributes( data );
       ds2.addData_entry( data );
     }